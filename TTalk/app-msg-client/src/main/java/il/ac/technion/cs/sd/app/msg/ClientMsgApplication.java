@@ -1,20 +1,40 @@
 package il.ac.technion.cs.sd.app.msg;
 
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRedirect;
 import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.DisconnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.EncodedExchangeList;
 import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
 import il.ac.technion.cs.sd.app.msg.exchange.ExchangeList;
+import il.ac.technion.cs.sd.app.msg.exchange.ForwardedExchange;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchResponse;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.MulticastMessageRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceSubscribeRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceUpdate;
+import il.ac.technion.cs.sd.app.msg.exchange.RetryLater;
 import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
 import il.ac.technion.cs.sd.msg.ClientConnection;
+import il.ac.technion.cs.sd.msg.Codec;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -25,13 +45,26 @@ import java.util.function.Function;
  */
 public class ClientMsgApplication {
 	
+	/**
+	 * The time to wait for the answers to a presence query before asking again, as a server under load drops such
+	 * queries rather than answer them; doubled each time, up to {@link #MAX_QUERY_TIMEOUT_IN_MILLISECONDS}. A friend
+	 * request the server turned away is sent again after waiting the same way.
+	 */
+	static final long QUERY_TIMEOUT_IN_MILLISECONDS = 500L;
+	static final long MAX_QUERY_TIMEOUT_IN_MILLISECONDS = 8000L;
+	
 	final String username;
 	
 	ClientConnection<Exchange> connection;
+	final Codec<Exchange> codec = new XStreamCodec<Exchange>(); // decodes the exchanges of an EncodedExchangeList.
 	
-	BlockingQueue<Optional<Boolean>> isOnlineResponseQueue;
+	BlockingQueue<IsOnlineResponse> isOnlineResponseQueue;
+	BlockingQueue<Map<String, Optional<Boolean>>> isOnlineBatchResponseQueue;
 	Semaphore friendRequestResponseSemaphore;
+	volatile boolean friendRequestTurnedAway; // whether the server answered the last friend request by RetryLater.
 	Semaphore loginResponseSemaphore;
+	volatile String redirect; // the home server the client was redirected to while logging in, if any.
+	volatile Map<String, Boolean> presence = null; // of the friends, as pushed by the server; null unless subscribed.
 	
 	Consumer<InstantMessage> messageConsumer;
 	Function<String, Boolean> friendshipRequestHandler;
@@ -50,7 +83,8 @@ public class ClientMsgApplication {
 		
 		this.username = username;
 		this.connection = new ClientConnection<Exchange>(serverAddress, username);
-		this.isOnlineResponseQueue = new LinkedBlockingQueue<Optional<Boolean>>();
+		this.isOnlineResponseQueue = new LinkedBlockingQueue<IsOnlineResponse>();
+		this.isOnlineBatchResponseQueue = new LinkedBlockingQueue<Map<String, Optional<Boolean>>>();
 	}
 	
 	/**
@@ -78,7 +112,8 @@ public class ClientMsgApplication {
 		}
 		this.username = username;
 		this.connection = connection;
-		this.isOnlineResponseQueue = new LinkedBlockingQueue<Optional<Boolean>>();
+		this.isOnlineResponseQueue = new LinkedBlockingQueue<IsOnlineResponse>();
+		this.isOnlineBatchResponseQueue = new LinkedBlockingQueue<Map<String, Optional<Boolean>>>();
 		this.friendRequestResponseSemaphore = new Semaphore(0);
 		this.loginResponseSemaphore = new Semaphore(0);
 	}
@@ -93,6 +128,10 @@ public class ClientMsgApplication {
 	 *        the friendship as input and outputs the reply.
 	 * @param friendshipReplyConsumer The consumer to handle all friend requests replies (replies to outgoing
 	 *        friends requests). The consumer accepts the user requested and his reply.	
+	 * <p>
+	 * A server of a cluster which does not own the user redirects it to its home server; the client connects to the
+	 * home server instead, and keeps using it.
+	 * </p>
 	 */
 	public void login(Consumer<InstantMessage> messageConsumer,
 			Function<String, Boolean> friendshipRequestHandler,
@@ -107,7 +146,25 @@ public class ClientMsgApplication {
 		this.friendshipRequestHandler = friendshipRequestHandler;
 		this.friendshipReplyConsumer = friendshipReplyConsumer;
 
+		connect();
+		if (null != redirect) {
+			connection.stop();
+			connection = new ClientConnection<Exchange>(redirect, username);
+			connection.start(message -> message.accept(new Visitor()));
+			connect();
+			if (null != redirect) {
+				throw new RuntimeException("the client was redirected by its home server");
+			}
+		}
+	}
+	
+	/**
+	 * Send a ConnectRequest, and wait until it is responded: either by a redirect, or by the pending messages, which
+	 * are handled first.
+	 */
+	private void connect() {
 		loginResponseSemaphore = new Semaphore(0);
+		redirect = null;
 		connection.send(new ConnectRequest());
 		try {
 			// Wait until login is responded and all pending messages handled.
@@ -122,6 +179,7 @@ public class ClientMsgApplication {
 	 * messages. A client can login (using {@link ClientMsgApplication#login(Consumer, Function, BiConsumer)} after logging out.
 	 */
 	public void logout() {
+		presence = null;
 		connection.send(new DisconnectRequest());
 		connection.stop();
 	}
@@ -139,11 +197,37 @@ public class ClientMsgApplication {
 		connection.send(new SendInstantMessageRequest(new InstantMessage(username, target, what)));
 	}
 	
+	/**
+	 * Sends a message to several other users at once. The message is sent to the server once, and the server passes
+	 * it on to each of the recipients, as if it was sent to each by {@link ClientMsgApplication#sendMessage(String,
+	 * String)}. It counts as a message to each recipient against the client's rate limit, if the server sets one, and
+	 * the server drops a message to more recipients than it allows.
+	 * 
+	 * @param targets The recipients of the message
+	 * @param what The message to send
+	 */
+	public void sendMessage(Collection<String> targets, String what) {
+		if (targets == null || targets.isEmpty() || what == null || what.isEmpty()) {
+			throw new IllegalArgumentException();
+		}
+		for (String target : targets) {
+			if (target == null || target.isEmpty()) {
+				throw new IllegalArgumentException();
+			}
+		}
+		connection.send(new MulticastMessageRequest(username, new ArrayList<String>(targets), what));
+	}
+	
 	/**
 	 * Requests the friendship of another user. Friends can see each other online using
 	 * {@link ClientMsgApplication#isOnline(String)}. Friend requests are handled similarly to messages. An incoming
 	 * friend request is consumed by the friendRequestsConsumer. An incoming friend request <i>reply</i> is consumed by
 	 * the friendRequestRepliesConsumer.
+	 * <p>
+	 * A server over the client's rate limit, or under load, answers the request by telling the client to retry later;
+	 * the request is then sent again, after waiting longer each time (see {@link #QUERY_TIMEOUT_IN_MILLISECONDS}),
+	 * until the server takes it.
+	 * </p>
 	 * 
 	 * @param who The recipient of the friend request.
 	 */
@@ -151,18 +235,42 @@ public class ClientMsgApplication {
 		if (who == null || who.isEmpty()) {
 			throw new IllegalArgumentException();
 		}
+		Exchange request = new FriendRequest(new FriendInvitation(username, who));
 		try {
-			friendRequestResponseSemaphore = new Semaphore(0);
-			connection.send(new FriendRequest(new FriendInvitation(username, who)));
-			// Wait for a response which would arrive asynchronously.
-			friendRequestResponseSemaphore.acquire();
+			for (long wait = QUERY_TIMEOUT_IN_MILLISECONDS;; wait = nextQueryTimeout(wait)) {
+				friendRequestResponseSemaphore = new Semaphore(0);
+				friendRequestTurnedAway = false;
+				connection.send(request);
+				// Wait for a response which would arrive asynchronously.
+				friendRequestResponseSemaphore.acquire();
+				if (!friendRequestTurnedAway) {
+					return;
+				}
+				Thread.sleep(wait);
+			}
 		} catch (InterruptedException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Subscribes the logged in client to the presence of its friends, until it logs out. The server pushes the
+	 * presence of the friends, and then the changes as they connect and disconnect, so
+	 * {@link ClientMsgApplication#isOnline(String)} answers for the friends at once, without asking the server. The
+	 * presence is as last pushed, so it may lag behind the server by the time an update takes to arrive.
+	 */
+	public void subscribePresence() {
+		presence = new ConcurrentHashMap<String, Boolean>();
+		connection.send(new PresenceSubscribeRequest());
+	}
+	
 	/**
 	 * Checks if another user is online; the client can only ask if friends are online
+	 * <p>
+	 * A client subscribed to the presence of its friends (see {@link ClientMsgApplication#subscribePresence()})
+	 * answers for a friend pushed by the server at once; other users are asked about, again if the server does not
+	 * answer in time (see {@link #QUERY_TIMEOUT_IN_MILLISECONDS}).
+	 * </p>
 	 * 
 	 * @param who The person to check if he is online
 	 * @return A wrapped <code>true</code> if the user is a friend and is offline; a wrapped <code>false</code> if the
@@ -172,10 +280,90 @@ public class ClientMsgApplication {
 		if (who == null || who.isEmpty()) {
 			throw new IllegalArgumentException();
 		}
-		connection.send(new IsOnlineRequest(who));
+		Map<String, Boolean> known = presence;
+		Boolean online = null == known ? null : known.get(who);
+		if (null != online) {
+			return Optional.of(online);
+		}
+		isOnlineResponseQueue.clear(); // late answers to earlier queries.
+		IsOnlineRequest request = new IsOnlineRequest(who);
 		try {
-			// Wait for a response which would arrive asynchronously.
-			return isOnlineResponseQueue.take();
+			// Wait for a response which would arrive asynchronously, asking again if the query was dropped.
+			for (long timeout = QUERY_TIMEOUT_IN_MILLISECONDS;; timeout = nextQueryTimeout(timeout)) {
+				connection.send(request);
+				long deadline = System.currentTimeMillis() + timeout;
+				for (long left = timeout; left > 0; left = deadline - System.currentTimeMillis()) {
+					IsOnlineResponse response = isOnlineResponseQueue.poll(left, TimeUnit.MILLISECONDS);
+					if (null != response && who.equals(response.who)) {
+						return response.answer;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static long nextQueryTimeout(long timeout) {
+		return Math.min(2 * timeout, MAX_QUERY_TIMEOUT_IN_MILLISECONDS);
+	}
+	
+	/**
+	 * Checks if several other users are online at once, in a single request to the server (see
+	 * {@link ClientMsgApplication#isOnline(String)}). The friends pushed by the server to a client subscribed to their
+	 * presence are answered at once, and only the other users are asked about; those not answered in time are asked
+	 * about again. The server reads the presence of all of them at once, so a user which has just logged in or out may
+	 * be answered by its earlier presence.
+	 * 
+	 * @param who The people to check if they are online
+	 * @return for each of the people, in order: a wrapped <code>true</code> if the user is a friend and is online; a
+	 *         wrapped <code>false</code> if the user is a friend and is offline; an empty {@link Optional} if the user
+	 *         isn't a friend of the client
+	 */
+	public Map<String, Optional<Boolean>> isOnline(Collection<String> who) {
+		if (who == null) {
+			throw new IllegalArgumentException();
+		}
+		Map<String, Optional<Boolean>> $ = new LinkedHashMap<String, Optional<Boolean>>();
+		Map<String, Boolean> known = presence;
+		List<String> asked = new ArrayList<String>();
+		for (String user : new LinkedHashSet<String>(who)) {
+			if (user == null || user.isEmpty()) {
+				throw new IllegalArgumentException();
+			}
+			Boolean online = null == known ? null : known.get(user);
+			$.put(user, null == online ? null : Optional.of(online));
+			if (null == online) {
+				asked.add(user);
+			}
+		}
+		if (asked.isEmpty()) {
+			return $;
+		}
+		isOnlineBatchResponseQueue.clear(); // late answers to earlier queries.
+		Set<String> unanswered = new LinkedHashSet<String>(asked);
+		try {
+			// Wait for the responses which would arrive asynchronously; users owned by other servers of a cluster are
+			// answered separately. Those left unanswered, as their query was dropped, are asked about again.
+			for (long timeout = QUERY_TIMEOUT_IN_MILLISECONDS;; timeout = nextQueryTimeout(timeout)) {
+				connection.send(new IsOnlineBatchRequest(new ArrayList<String>(unanswered)));
+				long deadline = System.currentTimeMillis() + timeout;
+				for (long left = timeout; left > 0; left = deadline - System.currentTimeMillis()) {
+					Map<String, Optional<Boolean>> answers =
+							isOnlineBatchResponseQueue.poll(left, TimeUnit.MILLISECONDS);
+					if (null == answers) {
+						break;
+					}
+					for (Map.Entry<String, Optional<Boolean>> answer : answers.entrySet()) {
+						if (unanswered.remove(answer.getKey())) {
+							$.put(answer.getKey(), answer.getValue());
+						}
+					}
+					if (unanswered.isEmpty()) {
+						return $;
+					}
+				}
+			}
 		} catch (InterruptedException e) {
 			throw new RuntimeException(e);
 		}
@@ -208,6 +396,11 @@ public class ClientMsgApplication {
 			messageConsumer.accept(request.message);
 		}
 
+		@Override
+		public void visit(MulticastMessageRequest request) {
+			throw new UnsupportedOperationException("The client should not get MulticastMessageRequest.");
+		}
+
 		@Override
 		public void visit(FriendRequest request) {
 			boolean answer = friendshipRequestHandler.apply(request.invitation.from);
@@ -232,7 +425,31 @@ public class ClientMsgApplication {
 		@Override
 		public void visit(IsOnlineResponse response) {
 			// Answer and notify isOnline method to return an answer.
-			isOnlineResponseQueue.add(response.answer);
+			isOnlineResponseQueue.add(response);
+		}
+
+		@Override
+		public void visit(IsOnlineBatchRequest request) {
+			throw new UnsupportedOperationException("The client should not get IsOnlineBatchRequest.");
+		}
+
+		@Override
+		public void visit(IsOnlineBatchResponse response) {
+			// Answer and notify isOnline method to return the answers.
+			isOnlineBatchResponseQueue.add(response.answers);
+		}
+
+		@Override
+		public void visit(PresenceSubscribeRequest request) {
+			throw new UnsupportedOperationException("The client should not get PresenceSubscribeRequest.");
+		}
+
+		@Override
+		public void visit(PresenceUpdate update) {
+			Map<String, Boolean> known = presence;
+			if (null != known) {
+				known.putAll(update.presence);
+			}
 		}
 
 		@Override
@@ -244,6 +461,37 @@ public class ClientMsgApplication {
 			// Login answered, release 'login' call.
 			loginResponseSemaphore.release();
 		}
+
+		@Override
+		public void visit(EncodedExchangeList exchangeList) {
+			// Decode and visit the messages in order.
+			for (String encoded : exchangeList.list) {
+				codec.decode(encoded).accept(this);
+			}
+			// Login answered, release 'login' call.
+			loginResponseSemaphore.release();
+		}
+
+		@Override
+		public void visit(ConnectRedirect redirect) {
+			// Login redirected, release 'login' call to connect to the home server.
+			ClientMsgApplication.this.redirect = redirect.server;
+			loginResponseSemaphore.release();
+		}
+
+		@Override
+		public void visit(ForwardedExchange forwarded) {
+			throw new UnsupportedOperationException("The client should not get ForwardedExchange.");
+		}
+
+		@Override
+		public void visit(RetryLater retry) {
+			if (retry.request instanceof FriendRequest) {
+				// Request turned away, release send call to send it again.
+				friendRequestTurnedAway = true;
+				friendRequestResponseSemaphore.release();
+			}
+		}
     	
     }
 }
@@ -7,12 +7,22 @@ import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
 import il.ac.technion.cs.sd.app.msg.exchange.ExchangeList;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchResponse;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.MulticastMessageRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceSubscribeRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceUpdate;
+import il.ac.technion.cs.sd.app.msg.exchange.RetryLater;
 import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
 import il.ac.technion.cs.sd.msg.ClientConnection;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -129,6 +139,13 @@ import org.mockito.Mockito;
 		assertEquals(msg2, messages.take());
 	}
 	
+	@Test
+	public void multicastMessageSentOnce() {
+		loginClient(im -> {}, s -> true, (x, y) -> {});
+		client.sendMessage(Arrays.asList("a", "b"), "c");
+		Mockito.verify(connection).send(new MulticastMessageRequest(clientAddress, Arrays.asList("a", "b"), "c"));
+	}
+	
 	@Test
 	public void friendReplyReceived() throws InterruptedException {
 		loginClient(im -> {}, s -> true, (x, y) -> replies.add(new FriendshipReply(x, y)));
@@ -153,6 +170,26 @@ import org.mockito.Mockito;
 		Mockito.verify(connection).send(new FriendResponse(invite2, Optional.of(true)));
 	}
 	
+	@Test(timeout = 5000)
+	public void turnedAwayFriendRequestsAreSentAgain() throws InterruptedException {
+		loginClient(im -> {}, s -> true, (x, y) -> replies.add(new FriendshipReply(x, y)));
+		
+		// The first request is turned away, as by a server over the client's rate limit.
+		FriendInvitation invitation = new FriendInvitation(clientAddress, "friendlie");
+		int[] sent = new int[1];
+		Mockito.doAnswer(invocation -> {
+			if (1 == ++sent[0]) {
+				sendToClient(new RetryLater(new FriendRequest(invitation)));
+			} else {
+				sendToClient(new FriendResponse(invitation, Optional.of(true)));
+			}
+			return null;
+		}).when(connection).send(new FriendRequest(invitation));
+		client.requestFriendship("friendlie");
+		Mockito.verify(connection, Mockito.times(2)).send(new FriendRequest(invitation));
+		assertEquals(new FriendshipReply("friendlie", true), replies.take());
+	}
+	
 	@Test
 	public void isOnlineReturned() throws InterruptedException {
 		loginClient(im -> {}, s -> true, (x, y) -> {});
@@ -168,4 +205,70 @@ import org.mockito.Mockito;
 		// Verify that a request was sent.
 		Mockito.verify(connection).send(new IsOnlineRequest("Someone"));
 	}
+	
+	@Test
+	public void isOnlineBatchReturned() {
+		loginClient(im -> {}, s -> true, (x, y) -> {});
+		client.subscribePresence();
+		sendToClient(new PresenceUpdate(Collections.singletonMap("Friend", true)));
+		
+		// When a request is sent via connection, answer it in two responses, as a cluster would.
+		Mockito.doAnswer(invocation -> {
+			sendToClient(new IsOnlineBatchResponse(Collections.singletonMap("Someone", Optional.of(false))));
+			sendToClient(new IsOnlineBatchResponse(Collections.singletonMap("Stranger", Optional.empty())));
+			return null;
+		}).when(connection).send(new IsOnlineBatchRequest(Arrays.asList("Someone", "Stranger")));
+		
+		Map<String, Optional<Boolean>> expected = new LinkedHashMap<String, Optional<Boolean>>();
+		expected.put("Someone", Optional.of(false));
+		expected.put("Friend", Optional.of(true));
+		expected.put("Stranger", Optional.empty());
+		Map<String, Optional<Boolean>> answers = client.isOnline(Arrays.asList("Someone", "Friend", "Stranger"));
+		assertEquals(expected, answers);
+		assertEquals(Arrays.asList("Someone", "Friend", "Stranger"), new ArrayList<String>(answers.keySet()));
+	}
+	
+	@Test(timeout = 5000)
+	public void droppedQueriesAreAskedAgain() {
+		loginClient(im -> {}, s -> true, (x, y) -> {});
+		
+		// The first query is dropped, as by a server under load; a late answer about another user is ignored.
+		int[] asked = new int[1];
+		Mockito.doAnswer(invocation -> {
+			if (++asked[0] > 1) {
+				sendToClient(new IsOnlineResponse("Stranger", Optional.empty()));
+				sendToClient(new IsOnlineResponse("Someone", Optional.of(true)));
+			}
+			return null;
+		}).when(connection).send(new IsOnlineRequest("Someone"));
+		assertEquals(Optional.of(true), client.isOnline("Someone"));
+		Mockito.verify(connection, Mockito.times(2)).send(new IsOnlineRequest("Someone"));
+		
+		// Only the users left unanswered are asked about again.
+		Mockito.doAnswer(invocation -> {
+			sendToClient(new IsOnlineBatchResponse(Collections.singletonMap("Someone", Optional.of(false))));
+			return null;
+		}).when(connection).send(new IsOnlineBatchRequest(Arrays.asList("Someone", "Stranger")));
+		Mockito.doAnswer(invocation -> {
+			sendToClient(new IsOnlineBatchResponse(Collections.singletonMap("Stranger", Optional.empty())));
+			return null;
+		}).when(connection).send(new IsOnlineBatchRequest(Arrays.asList("Stranger")));
+		Map<String, Optional<Boolean>> expected = new LinkedHashMap<String, Optional<Boolean>>();
+		expected.put("Someone", Optional.of(false));
+		expected.put("Stranger", Optional.empty());
+		assertEquals(expected, client.isOnline(Arrays.asList("Someone", "Stranger")));
+	}
+	
+	@Test
+	public void isOnlineAnsweredFromPushedPresence() {
+		loginClient(im -> {}, s -> true, (x, y) -> {});
+		client.subscribePresence();
+		Mockito.verify(connection).send(new PresenceSubscribeRequest());
+		
+		sendToClient(new PresenceUpdate(Collections.singletonMap("Someone", true)));
+		assertEquals(Optional.of(true), client.isOnline("Someone"));
+		sendToClient(new PresenceUpdate(Collections.singletonMap("Someone", false)));
+		assertEquals(Optional.of(false), client.isOnline("Someone"));
+		Mockito.verify(connection, Mockito.never()).send(new IsOnlineRequest("Someone"));
+	}
 }
@@ -1,12 +1,21 @@
 package il.ac.technion.cs.sd.app.msg;
 
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRedirect;
 import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.DisconnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.EncodedExchangeList;
 import il.ac.technion.cs.sd.app.msg.exchange.ExchangeList;
+import il.ac.technion.cs.sd.app.msg.exchange.ForwardedExchange;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchResponse;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.MulticastMessageRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceSubscribeRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceUpdate;
+import il.ac.technion.cs.sd.app.msg.exchange.RetryLater;
 import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
 
 /**
@@ -32,6 +41,12 @@ public interface ExchangeVisitor {
 	 * @param request the SendMessageRequest to handle.
 	 */
 	void visit(SendInstantMessageRequest request);
+	
+	/**
+	 * Accept and handle MulticastMessageRequest.
+	 * @param request the MulticastMessageRequest to handle.
+	 */
+	void visit(MulticastMessageRequest request);
 
 	/**
 	 * Accept and handle FriendRequest.
@@ -57,9 +72,57 @@ public interface ExchangeVisitor {
 	 */
 	void visit(IsOnlineResponse response);
 
+	/**
+	 * Accept and handle IsOnlineBatchRequest.
+	 * @param request the IsOnlineBatchRequest to handle.
+	 */
+	void visit(IsOnlineBatchRequest request);
+
+	/**
+	 * Accept and handle IsOnlineBatchResponse.
+	 * @param response the IsOnlineBatchResponse to handle.
+	 */
+	void visit(IsOnlineBatchResponse response);
+
+	/**
+	 * Accept and handle PresenceSubscribeRequest.
+	 * @param request the PresenceSubscribeRequest to handle.
+	 */
+	void visit(PresenceSubscribeRequest request);
+
+	/**
+	 * Accept and handle PresenceUpdate.
+	 * @param update the PresenceUpdate to handle.
+	 */
+	void visit(PresenceUpdate update);
+
 	/**
 	 * Accept and handle a list of exchanges.
 	 * @param exchangeList
 	 */
 	void visit(ExchangeList exchangeList);
+	
+	/**
+	 * Accept and handle a list of encoded exchanges.
+	 * @param exchangeList the EncodedExchangeList to handle.
+	 */
+	void visit(EncodedExchangeList exchangeList);
+	
+	/**
+	 * Accept and handle ConnectRedirect.
+	 * @param redirect the ConnectRedirect to handle.
+	 */
+	void visit(ConnectRedirect redirect);
+	
+	/**
+	 * Accept and handle an exchange forwarded between the servers of a cluster.
+	 * @param forwarded the ForwardedExchange to handle.
+	 */
+	void visit(ForwardedExchange forwarded);
+	
+	/**
+	 * Accept and handle RetryLater.
+	 * @param retry the RetryLater to handle.
+	 */
+	void visit(RetryLater retry);
 }
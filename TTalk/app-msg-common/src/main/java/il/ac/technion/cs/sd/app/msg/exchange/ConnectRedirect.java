@@ -0,0 +1,48 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * An answer to a ConnectRequest sent to a server of a cluster which does not own the client, naming the client's home
+ * server, which it should connect to instead.
+ */
+public class ConnectRedirect implements Exchange {
+	
+	/**
+	 * The address of the client's home server.
+	 */
+	final public String server;
+	
+	/**
+	 * Create a new ConnectRedirect.
+	 * @param server the address of the client's home server.
+	 */
+	public ConnectRedirect(String server) {
+		this.server = server;
+	}
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ConnectRedirect other = (ConnectRedirect)obj;
+		
+		if (server == null) {
+			if (other.server != null)
+				return false;
+		} else if (!server.equals(other.server))
+			return false;
+		
+		return true;
+	}
+
+}
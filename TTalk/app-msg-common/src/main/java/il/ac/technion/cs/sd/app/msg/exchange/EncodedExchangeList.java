@@ -0,0 +1,50 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import java.util.List;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * A list of exchanges, each encoded by an {@link il.ac.technion.cs.sd.msg.XStreamCodec}, passed on as they were kept
+ * by the server so they need not be decoded and encoded again.
+ */
+public class EncodedExchangeList implements Exchange {
+	
+	/**
+	 * The encoded exchanges passed on this exchange.
+	 */
+	public final List<String> list;
+	
+	/**
+	 * Create a new EncodedExchangeList
+	 * @param list The encoded exchanges passed on this exchange.
+	 */
+	public EncodedExchangeList(List<String> list) {
+		this.list = list;
+	}
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		EncodedExchangeList other = (EncodedExchangeList)obj;
+		
+		if (list == null) {
+			if (other.list != null)
+				return false;
+		} else if (!list.equals(other.list))
+			return false;
+		
+		return true;
+	}
+
+}
@@ -0,0 +1,72 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * An exchange passed from one server of a cluster to another, to be handled by the server which owns the user it
+ * concerns, on behalf of the client which sent it.
+ */
+public class ForwardedExchange implements Exchange {
+	
+	/**
+	 * The name of the client on whose behalf the exchange is passed.
+	 */
+	final public String from;
+	/**
+	 * The name of the user the exchange concerns, owned by the server it is passed to.
+	 */
+	final public String to;
+	/**
+	 * The exchange passed.
+	 */
+	final public Exchange exchange;
+	
+	/**
+	 * Create a new ForwardedExchange.
+	 * @param from the name of the client on whose behalf the exchange is passed.
+	 * @param to the name of the user the exchange concerns.
+	 * @param exchange the exchange passed.
+	 */
+	public ForwardedExchange(String from, String to, Exchange exchange) {
+		this.from = from;
+		this.to = to;
+		this.exchange = exchange;
+	}
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ForwardedExchange other = (ForwardedExchange)obj;
+		
+		if (from == null) {
+			if (other.from != null)
+				return false;
+		} else if (!from.equals(other.from))
+			return false;
+		
+		if (to == null) {
+			if (other.to != null)
+				return false;
+		} else if (!to.equals(other.to))
+			return false;
+		
+		if (exchange == null) {
+			if (other.exchange != null)
+				return false;
+		} else if (!exchange.equals(other.exchange))
+			return false;
+		
+		return true;
+	}
+
+}
@@ -0,0 +1,48 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import java.util.List;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * A request to check whether several users are online at once, answered by {@link IsOnlineBatchResponse}.
+ */
+public class IsOnlineBatchRequest implements Exchange {
+	
+	/**
+	 * The names of the clients to ask about.
+	 */
+	final public List<String> who;
+	
+	/**
+	 * Create a new IsOnlineBatchRequest.
+	 * @param who the clients that are being asked if online.
+	 */
+	public IsOnlineBatchRequest(List<String> who) {
+		this.who = who;
+	}
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		IsOnlineBatchRequest other = (IsOnlineBatchRequest)obj;
+		
+		if (who == null) {
+			if (other.who != null)
+				return false;
+		} else if (!who.equals(other.who))
+			return false;
+		
+		return true;
+	}
+}
@@ -0,0 +1,50 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import java.util.Map;
+import java.util.Optional;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * Response for IsOnlineBatch request. The users owned by other servers of a cluster are answered by their owners, so
+ * a request may be answered by several responses, each for some of the users.
+ */
+public class IsOnlineBatchResponse implements Exchange {
+	
+	/**
+	 * The response whether each user is online (or empty if the requesting user is not a friend), by name.
+	 */
+	final public Map<String, Optional<Boolean>> answers;
+	
+	/**
+	 * Create a new IsOnlineBatchResponse.
+	 * @param answers the answers to the request, by the name of the user asked about.
+	 */
+	public IsOnlineBatchResponse(Map<String, Optional<Boolean>> answers) {
+		this.answers = answers;
+	}
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		IsOnlineBatchResponse other = (IsOnlineBatchResponse)obj;
+		
+		if (answers == null) {
+			if (other.answers != null)
+				return false;
+		} else if (!answers.equals(other.answers))
+			return false;
+		
+		return true;
+	}
+}
@@ -0,0 +1,75 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import java.util.List;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * A request to send the same instant message from one client to several others. The server expands it to a
+ * {@link SendInstantMessageRequest} to each recipient, so the client sends the message once however many recipients
+ * it has.
+ */
+public class MulticastMessageRequest implements Exchange {
+
+	/**
+	 * The name of the sending client.
+	 */
+	public final String from;
+	/**
+	 * The names of the recipients.
+	 */
+	public final List<String> to;
+	/**
+	 * The content of the message.
+	 */
+	public final String content;
+
+	/**
+	 * Create a new MulticastMessageRequest.
+	 * @param from the name of the sending client.
+	 * @param to the names of the recipients.
+	 * @param content the content of the message.
+	 */
+	public MulticastMessageRequest(String from, List<String> to, String content) {
+		this.from = from;
+		this.to = to;
+		this.content = content;
+	}
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		MulticastMessageRequest other = (MulticastMessageRequest)obj;
+
+		if (from == null) {
+			if (other.from != null)
+				return false;
+		} else if (!from.equals(other.from))
+			return false;
+
+		if (to == null) {
+			if (other.to != null)
+				return false;
+		} else if (!to.equals(other.to))
+			return false;
+
+		if (content == null) {
+			if (other.content != null)
+				return false;
+		} else if (!content.equals(other.content))
+			return false;
+
+		return true;
+	}
+
+}
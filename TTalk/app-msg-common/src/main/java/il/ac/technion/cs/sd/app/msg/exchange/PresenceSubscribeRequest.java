@@ -0,0 +1,28 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * A request from the client to be notified of the presence of its friends, until it disconnects. The server answers
+ * with a {@link PresenceUpdate} of the current presence of the friends, and pushes further updates as they connect and
+ * disconnect.
+ */
+public class PresenceSubscribeRequest implements Exchange {
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		
+		return true;
+	}
+}
@@ -0,0 +1,50 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import java.util.Map;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * A notification pushed to a client subscribed to the presence of its friends (see
+ * {@link PresenceSubscribeRequest}). The changes made since the last notification are coalesced, so each friend
+ * appears once, by its latest presence.
+ */
+public class PresenceUpdate implements Exchange {
+	
+	/**
+	 * Whether each of the friends is online, by name.
+	 */
+	final public Map<String, Boolean> presence;
+	
+	/**
+	 * Create a new PresenceUpdate.
+	 * @param presence whether each of the friends is online, by name.
+	 */
+	public PresenceUpdate(Map<String, Boolean> presence) {
+		this.presence = presence;
+	}
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		PresenceUpdate other = (PresenceUpdate)obj;
+		
+		if (presence == null) {
+			if (other.presence != null)
+				return false;
+		} else if (!presence.equals(other.presence))
+			return false;
+		
+		return true;
+	}
+}
@@ -0,0 +1,48 @@
+package il.ac.technion.cs.sd.app.msg.exchange;
+
+import il.ac.technion.cs.sd.app.msg.ExchangeVisitor;
+
+/**
+ * An answer to a request the server turned away, over the client's rate limit or under load, without handling it.
+ * The client should send the request again later.
+ */
+public class RetryLater implements Exchange {
+	
+	/**
+	 * The request turned away.
+	 */
+	final public Exchange request;
+	
+	/**
+	 * Create a new RetryLater.
+	 * @param request the request turned away.
+	 */
+	public RetryLater(Exchange request) {
+		this.request = request;
+	}
+
+	@Override
+	public void accept(ExchangeVisitor v) {
+		v.visit(this);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		RetryLater other = (RetryLater)obj;
+		
+		if (request == null) {
+			if (other.request != null)
+				return false;
+		} else if (!request.equals(other.request))
+			return false;
+		
+		return true;
+	}
+
+}
@@ -1,14 +1,25 @@
 package il.ac.technion.cs.sd.app.msg;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Optional;
 
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRedirect;
 import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.DisconnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.EncodedExchangeList;
 import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.ForwardedExchange;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchResponse;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.MulticastMessageRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceSubscribeRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceUpdate;
+import il.ac.technion.cs.sd.app.msg.exchange.RetryLater;
 import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
 
 import org.junit.Test;
@@ -40,6 +51,14 @@ public class ExchangeTest {
 		Mockito.verify(visitor).visit((SendInstantMessageRequest)request);
 	}
 	
+	@Test
+	public void testMulticastMessageRequest() {
+		Exchange request = new MulticastMessageRequest("me", Arrays.asList("you", "them"), "whazzup?");
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		request.accept(visitor);
+		Mockito.verify(visitor).visit((MulticastMessageRequest)request);
+	}
+	
 	@Test
 	public void testFriendRequest() {
 		Exchange request = new FriendRequest(new FriendInvitation("me", "you"));
@@ -71,4 +90,68 @@ public class ExchangeTest {
 		response.accept(visitor);
 		Mockito.verify(visitor).visit((IsOnlineResponse)response);
 	}
+	
+	@Test
+	public void testIsOnlineBatchRequest() {
+		Exchange request = new IsOnlineBatchRequest(Arrays.asList("you", "them"));
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		request.accept(visitor);
+		Mockito.verify(visitor).visit((IsOnlineBatchRequest)request);
+	}
+	
+	@Test
+	public void testIsOnlineBatchResponse() {
+		Exchange response = new IsOnlineBatchResponse(Collections.singletonMap("you", Optional.of(true)));
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		response.accept(visitor);
+		Mockito.verify(visitor).visit((IsOnlineBatchResponse)response);
+	}
+	
+	@Test
+	public void testPresenceSubscribeRequest() {
+		Exchange request = new PresenceSubscribeRequest();
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		request.accept(visitor);
+		Mockito.verify(visitor).visit((PresenceSubscribeRequest)request);
+	}
+	
+	@Test
+	public void testPresenceUpdate() {
+		Exchange update = new PresenceUpdate(Collections.singletonMap("you", true));
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		update.accept(visitor);
+		Mockito.verify(visitor).visit((PresenceUpdate)update);
+	}
+	
+	@Test
+	public void testEncodedExchangeList() {
+		Exchange list = new EncodedExchangeList(Arrays.asList("<encoded/>"));
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		list.accept(visitor);
+		Mockito.verify(visitor).visit((EncodedExchangeList)list);
+	}
+	
+	@Test
+	public void testConnectRedirect() {
+		Exchange redirect = new ConnectRedirect("home");
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		redirect.accept(visitor);
+		Mockito.verify(visitor).visit((ConnectRedirect)redirect);
+	}
+	
+	@Test
+	public void testForwardedExchange() {
+		Exchange forwarded = new ForwardedExchange("me", "you", new IsOnlineRequest("you"));
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		forwarded.accept(visitor);
+		Mockito.verify(visitor).visit((ForwardedExchange)forwarded);
+	}
+	
+	@Test
+	public void testRetryLater() {
+		Exchange retry = new RetryLater(new FriendRequest(new FriendInvitation("me", "you")));
+		ExchangeVisitor visitor = Mockito.mock(ExchangeVisitor.class);
+		retry.accept(visitor);
+		Mockito.verify(visitor).visit((RetryLater)retry);
+	}
 }
@@ -0,0 +1,73 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A growable set of non-negative integers, one bit each.
+ * Reads take no locks; changes are synchronized.
+ */
+class AtomicBitSet {
+
+	private volatile AtomicLongArray words = new AtomicLongArray(1);
+
+	/**
+	 * @param i a non-negative integer.
+	 * @return whether i is in the set.
+	 */
+	boolean get(int i) {
+		AtomicLongArray w = words;
+		int index = i >>> 6;
+		return index < w.length() && 0 != (w.get(index) & (1L << i));
+	}
+
+	/**
+	 * Add an integer to the set.
+	 * @param i a non-negative integer.
+	 */
+	synchronized void set(int i) {
+		if (i < 0) {
+			throw new IllegalArgumentException("negative bit index: " + i);
+		}
+		int index = i >>> 6;
+		AtomicLongArray w = words;
+		if (index >= w.length()) {
+			AtomicLongArray grown = new AtomicLongArray(Math.max(index + 1, 2 * w.length()));
+			for (int j = 0; j < w.length(); ++j) {
+				grown.set(j, w.get(j));
+			}
+			words = w = grown;
+		}
+		w.set(index, w.get(index) | (1L << i));
+	}
+
+	/**
+	 * Remove an integer from the set.
+	 * @param i a non-negative integer.
+	 */
+	synchronized void clear(int i) {
+		AtomicLongArray w = words;
+		int index = i >>> 6;
+		if (index < w.length()) {
+			w.set(index, w.get(index) & ~(1L << i));
+		}
+	}
+
+	/**
+	 * Remove all integers from the set.
+	 */
+	synchronized void clear() {
+		words = new AtomicLongArray(1);
+	}
+
+	/**
+	 * @return the number of integers in the set.
+	 */
+	int cardinality() {
+		AtomicLongArray w = words;
+		int $ = 0;
+		for (int j = 0; j < w.length(); ++j) {
+			$ += Long.bitCount(w.get(j));
+		}
+		return $;
+	}
+}
@@ -0,0 +1,669 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.msg.Codec;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Saves and loads server data as binary snapshot files, streamed record by record through buffered file channels, so
+ * neither saving nor loading holds more than a record beyond the data itself.
+ *
+ * <p>
+ * The snapshot is split into shards by the hash of the user names; each user, together with the user's pending
+ * messages and the friendships in which the user has the smaller ID, is kept in one shard. Shards are loaded in
+ * parallel on a fork-join pool, and then merged into the data. Each shard file starts with a header holding a magic
+ * number, the format version, the journal generation covered by the snapshot, the shard's index, the number of shards,
+ * the number of users, a stamp identifying the save and a CRC32 checksum. It is followed by a record for each user,
+ * friendship and pending message, and ends with a record holding the number of records before it. Messages kept in a
+ * {@link PendingStore} are not saved; instead, a record holds the index entry of each user's stored messages, and the
+ * first shard holds the end of the store and the count of live records in each of its segments. Pending messages are
+ * saved with their deadlines, and stored messages with the latest of theirs. Each record holds its length, type,
+ * fields and a CRC32 checksum, as in the {@link Journal}.
+ * </p>
+ *
+ * <p>
+ * The first shard is kept in the data file, and the others in files named after the data file, the stamp and their
+ * index. The other shards are written first, and the data file is then replaced atomically, so a crash while saving
+ * leaves the previous snapshot intact. Files saved by an {@link XStreamDataSaver}, in the unsharded format of version
+ * 1, in the format of version 2, without stored messages, in the format of version 3, without the counts of live
+ * records, or in the format of version 4, without deadlines, are loaded as well, and replaced upon the next save.
+ * </p>
+ *
+ * <p>
+ * The number of shards and the parallelism of loading are configured by the system properties
+ * <code>ttalk.snapshot.shards</code> and <code>ttalk.snapshot.parallelism</code>, see {@link #fromSystemProperties}.
+ * Loading progress and timing are reported to a {@link LoadListener}, which logs them by default.
+ * </p>
+ */
+class BinaryDataSaver implements DataSaver<ServerData> {
+
+	static final int VERSION = 5;
+
+	static final String SHARDS_PROPERTY = "ttalk.snapshot.shards";
+	static final String PARALLELISM_PROPERTY = "ttalk.snapshot.parallelism";
+	static final int DEFAULT_SHARDS = 8;
+
+	private static final int MAGIC = 0x54545331; // "TTS1"
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// RECORD TYPES
+	private static final byte USER = 1;
+	private static final byte FRIENDSHIP = 2;
+	private static final byte PENDING = 3;
+	private static final byte END = 4;
+	private static final byte STORED = 5;
+	private static final byte STORE_END = 6;
+	private static final byte SEGMENT = 7;
+
+	/**
+	 * Receives the progress of loading a snapshot.
+	 */
+	interface LoadListener {
+		/**
+		 * Called when a shard was read, on the thread which read it.
+		 * @param shard the index of the shard.
+		 * @param shards the number of shards.
+		 * @param records the number of records in the shard.
+		 * @param nanos the time it took to read and decode the shard, in nanoseconds.
+		 */
+		void shardLoaded(int shard, int shards, long records, long nanos);
+
+		/**
+		 * Called when all shards were read and merged into the data.
+		 * @param shards the number of shards.
+		 * @param records the number of records in all shards.
+		 * @param nanos the time it took to load the snapshot, in nanoseconds.
+		 */
+		void loaded(int shards, long records, long nanos);
+	}
+
+	private static final Logger logger = Logger.getLogger(BinaryDataSaver.class.getName());
+
+	/**
+	 * Logs the progress of loading.
+	 */
+	static final LoadListener LOGGING = new LoadListener() {
+		@Override
+		public void shardLoaded(int shard, int shards, long records, long nanos) {
+			logger.log(Level.FINE, "loaded snapshot shard {0}/{1}: {2} records in {3} ms",
+					new Object[] { shard + 1, shards, records, TimeUnit.NANOSECONDS.toMillis(nanos) });
+		}
+
+		@Override
+		public void loaded(int shards, long records, long nanos) {
+			logger.log(Level.INFO, "loaded snapshot: {0} shards, {1} records in {2} ms",
+					new Object[] { shards, records, TimeUnit.NANOSECONDS.toMillis(nanos) });
+		}
+	};
+
+	final String fileName;
+	private final Codec<Exchange> codec;
+	private final int shards;
+	private final int parallelism;
+	private LoadListener listener = LOGGING;
+
+	/**
+	 * Creates a new DataSaver, with a single shard.
+	 * @param fileName the filename to use to save and load the data.
+	 */
+	BinaryDataSaver(String fileName) {
+		this(fileName, new XStreamCodec<Exchange>(), 1, 1);
+	}
+
+	/**
+	 * Creates a new DataSaver.
+	 * @param fileName the filename to use to save and load the data.
+	 * @param codec the codec for pending exchanges.
+	 * @param shards the number of shards to save.
+	 * @param parallelism the number of threads loading shards.
+	 */
+	BinaryDataSaver(String fileName, Codec<Exchange> codec, int shards, int parallelism) {
+		if (null == fileName || null == codec || shards <= 0 || parallelism <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.fileName = fileName;
+		this.codec = codec;
+		this.shards = shards;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Create a DataSaver configured by the system properties: <code>ttalk.snapshot.shards</code> (8 by default) and
+	 * <code>ttalk.snapshot.parallelism</code> (the number of processors by default).
+	 * @param fileName the filename to use to save and load the data.
+	 * @return the DataSaver.
+	 */
+	static BinaryDataSaver fromSystemProperties(String fileName) {
+		int shards = Integer.parseInt(System.getProperty(SHARDS_PROPERTY, Integer.toString(DEFAULT_SHARDS)));
+		int parallelism = Integer.parseInt(System.getProperty(PARALLELISM_PROPERTY,
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		return new BinaryDataSaver(fileName, new XStreamCodec<Exchange>(), shards, parallelism);
+	}
+
+	/**
+	 * Set the listener to the progress of loading.
+	 * @param listener the listener.
+	 */
+	void setLoadListener(LoadListener listener) {
+		if (null == listener) {
+			throw new IllegalArgumentException();
+		}
+		this.listener = listener;
+	}
+
+	private File shardFile(long stamp, int shard) {
+		return 0 == shard ? new File(fileName) : new File(fileName + "." + Long.toHexString(stamp) + "." + shard);
+	}
+
+	private int shardOf(String name) {
+		return Math.floorMod(UserRegistry.mix(name.hashCode()), shards);
+	}
+
+	/**
+	 * Save a snapshot of the data to the files.
+	 * @param data the data to save; either live data or data converted from a {@link ServerData.Snapshot}.
+	 */
+	@Override
+	public void save(ServerData data) {
+		ServerData.Snapshot snapshot = data.asSnapshot();
+		long stamp = System.currentTimeMillis();
+		while (shards > 1 && shardFile(stamp, 1).exists()) {
+			++stamp;
+		}
+		File temp = new File(fileName + ".tmp");
+		Writer[] out = new Writer[shards];
+		try {
+			for (int i = 0; i < shards; ++i) {
+				out[i] = new Writer(FileChannel.open((0 == i ? temp : shardFile(stamp, i)).toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+				out[i].header(snapshot.journalGeneration(), i, shards, snapshot.userCount(), stamp);
+			}
+			int[] shardOfUser = new int[snapshot.userCount()];
+			for (int id = 0; id < snapshot.userCount(); ++id) {
+				String name = snapshot.nameOf(id);
+				shardOfUser[id] = shardOf(name);
+				out[shardOfUser[id]].begin(USER).putInt(id).putString(name).end();
+			}
+			for (int id = 0; id < snapshot.userCount(); ++id) {
+				for (int friendId : snapshot.friendsOf(id)) {
+					if (friendId >= id) {
+						out[shardOfUser[id]].begin(FRIENDSHIP).putInt(id).putInt(friendId).end();
+					}
+				}
+			}
+			snapshot.forEachPending((id, messages, deadlines) -> {
+				for (int i = 0; i < messages.size(); ++i) {
+					out[shardOfUser[id]].begin(PENDING).putInt(id).putString(codec.encode(messages.get(i)))
+							.putLong(deadlines[i]).end();
+				}
+			});
+			snapshot.forEachStored((id, last, count, latest) -> {
+				out[shardOfUser[id]].begin(STORED).putInt(id).putLong(last).putInt(count).putLong(latest).end();
+			});
+			out[0].begin(STORE_END).putLong(snapshot.storeEnd()).end();
+			snapshot.forEachLiveSegment((segment, live) -> out[0].begin(SEGMENT).putInt(segment).putInt(live).end());
+			for (Writer shard : out) {
+				shard.begin(END).putLong(shard.records).end();
+				shard.flush();
+				shard.channel.force(false);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			for (Writer shard : out) {
+				if (null != shard) {
+					try {
+						shard.channel.close();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		}
+		try {
+			Files.move(temp.toPath(), new File(fileName).toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		deleteShards(stamp);
+	}
+
+	/**
+	 * Writes records through a buffer.
+	 */
+	private static class Writer {
+		final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private ByteBuffer record = ByteBuffer.allocate(256);
+		private final CRC32 crc = new CRC32();
+		long records = 0;
+
+		Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void header(long journalGeneration, int shard, int shards, int users, long stamp) {
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(journalGeneration);
+			buffer.putInt(shard).putInt(shards).putInt(users).putLong(stamp);
+			crc.reset();
+			crc.update(buffer.array(), 0, buffer.position());
+			buffer.putInt((int)crc.getValue());
+		}
+
+		Writer begin(byte type) {
+			record.clear();
+			record.putInt(0).put(type); // the length is set at the end.
+			return this;
+		}
+
+		Writer putInt(int value) {
+			ensure(4);
+			record.putInt(value);
+			return this;
+		}
+
+		Writer putLong(long value) {
+			ensure(8);
+			record.putLong(value);
+			return this;
+		}
+
+		Writer putString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			ensure(4 + bytes.length);
+			record.putInt(bytes.length).put(bytes);
+			return this;
+		}
+
+		void end() {
+			int length = record.position() - 4;
+			ensure(4);
+			record.putInt(0, length);
+			crc.reset();
+			crc.update(record.array(), 4, length);
+			record.putInt((int)crc.getValue());
+			record.flip();
+			if (record.remaining() > buffer.remaining()) {
+				flush();
+			}
+			if (record.remaining() > buffer.remaining()) {
+				write(record);
+			} else {
+				buffer.put(record);
+			}
+			++records;
+		}
+
+		private void ensure(int bytes) {
+			if (record.remaining() < bytes) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * record.capacity(), record.position() + bytes));
+				record.flip();
+				record = grown.put(record);
+			}
+		}
+
+		void flush() {
+			buffer.flip();
+			write(buffer);
+			buffer.clear();
+		}
+
+		private void write(ByteBuffer bytes) {
+			try {
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * The header of a shard file.
+	 */
+	private static class Header {
+		int version;
+		long journalGeneration;
+		int shard = 0;
+		int shards = 1;
+		int users = -1; // unknown in version 1.
+		long stamp = 0;
+	}
+
+	/**
+	 * The decoded records of a shard, to be merged into the data.
+	 */
+	private static class Shard {
+		int[] userIds = new int[16];
+		String[] userNames = new String[16];
+		int userCount = 0;
+		long[] friendships = new long[16]; // (ID << 32 | friend ID).
+		int friendshipCount = 0;
+		int[] pendingIds = new int[16];
+		List<Exchange> pending = new ArrayList<Exchange>();
+		long[] pendingDeadlines = new long[16];
+		int[] storedIds = new int[16];
+		long[] storedLast = new long[16];
+		int[] storedCounts = new int[16];
+		long[] storedLatest = new long[16];
+		int storedCount = 0;
+		long storeEnd = 0;
+		int[] segmentLive = null;
+		long records = 0;
+
+		void user(int id, String name) {
+			if (userCount == userIds.length) {
+				userIds = Arrays.copyOf(userIds, 2 * userCount);
+				userNames = Arrays.copyOf(userNames, 2 * userCount);
+			}
+			userIds[userCount] = id;
+			userNames[userCount++] = name;
+		}
+
+		void friendship(int id, int friendId) {
+			if (friendshipCount == friendships.length) {
+				friendships = Arrays.copyOf(friendships, 2 * friendshipCount);
+			}
+			friendships[friendshipCount++] = ((long)id << 32) | friendId;
+		}
+
+		void pending(int id, Exchange message, long expiresAt) {
+			if (pending.size() == pendingIds.length) {
+				pendingIds = Arrays.copyOf(pendingIds, 2 * pendingIds.length);
+				pendingDeadlines = Arrays.copyOf(pendingDeadlines, 2 * pendingDeadlines.length);
+			}
+			pendingIds[pending.size()] = id;
+			pendingDeadlines[pending.size()] = expiresAt;
+			pending.add(message);
+		}
+
+		void segment(int index, int live) {
+			if (null == segmentLive) {
+				segmentLive = new int[index + 1];
+			} else if (index >= segmentLive.length) {
+				segmentLive = Arrays.copyOf(segmentLive, Math.max(index + 1, 2 * segmentLive.length));
+			}
+			segmentLive[index] = live;
+		}
+
+		void stored(int id, long last, int count, long latest) {
+			if (storedCount == storedIds.length) {
+				storedIds = Arrays.copyOf(storedIds, 2 * storedCount);
+				storedLast = Arrays.copyOf(storedLast, 2 * storedCount);
+				storedCounts = Arrays.copyOf(storedCounts, 2 * storedCount);
+				storedLatest = Arrays.copyOf(storedLatest, 2 * storedCount);
+			}
+			storedIds[storedCount] = id;
+			storedLast[storedCount] = last;
+			storedLatest[storedCount] = latest;
+			storedCounts[storedCount++] = count;
+		}
+	}
+
+	/**
+	 * Loads the previously saved data from the files, if exists.
+	 * @return the previously saved data; or an empty optional in case there is no data saved/data was cleaned.
+	 */
+	@Override
+	public Optional<ServerData> load() {
+		long start = System.nanoTime();
+		File file = new File(fileName);
+		if (!file.exists()) {
+			return Optional.empty();
+		}
+		Header header;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			header = channel.size() < 4 ? null : readHeader(channel, file);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (null == header) {
+			return new XStreamDataSaver<ServerData>(fileName).load(); // saved by an earlier version.
+		}
+
+		List<ForkJoinTask<Shard>> tasks = new ArrayList<ForkJoinTask<Shard>>();
+		ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, header.shards));
+		try {
+			for (int i = 0; i < header.shards; ++i) {
+				File shardFile = shardFile(header.stamp, i);
+				int shard = i;
+				tasks.add(pool.submit(() -> readShard(shardFile, header, shard)));
+			}
+			List<Shard> loaded = new ArrayList<Shard>();
+			for (ForkJoinTask<Shard> task : tasks) {
+				loaded.add(task.join());
+			}
+			ServerData $ = merge(loaded, header);
+			long records = 0;
+			for (Shard shard : loaded) {
+				records += shard.records;
+			}
+			listener.loaded(header.shards, records, System.nanoTime() - start);
+			return Optional.of($);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Read the header of a shard file.
+	 * @return the header, or null if the file is not a binary snapshot.
+	 */
+	private Header readHeader(FileChannel channel, File file) throws IOException {
+		channel.position(0);
+		DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+		return readHeader(in, file);
+	}
+
+	private Header readHeader(DataInputStream in, File file) throws IOException {
+		try {
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			Header $ = new Header();
+			$.version = in.readInt();
+			$.journalGeneration = in.readLong();
+			switch ($.version) {
+			case 1:
+				break;
+			case 2:
+			case 3:
+			case 4:
+			case VERSION:
+				$.shard = in.readInt();
+				$.shards = in.readInt();
+				$.users = in.readInt();
+				$.stamp = in.readLong();
+				ByteBuffer bytes = ByteBuffer.allocate(36).putInt(MAGIC).putInt($.version).putLong($.journalGeneration)
+						.putInt($.shard).putInt($.shards).putInt($.users).putLong($.stamp);
+				CRC32 crc = new CRC32();
+				crc.update(bytes.array());
+				if (in.readInt() != (int)crc.getValue() || $.shards <= 0 || $.users < 0) {
+					throw new RuntimeException("corrupt snapshot: " + file);
+				}
+				break;
+			default:
+				throw new RuntimeException("unsupported snapshot version " + $.version + " in " + file);
+			}
+			return $;
+		} catch (EOFException e) {
+			throw new RuntimeException("truncated snapshot: " + file, e);
+		}
+	}
+
+	/**
+	 * Read and decode the records of a shard.
+	 */
+	private Shard readShard(File file, Header expected, int shard) {
+		long start = System.nanoTime();
+		Shard $ = new Shard();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+			Header header = readHeader(in, file);
+			if (null == header || header.version != expected.version || header.shard != shard
+					|| header.shards != expected.shards || header.stamp != expected.stamp
+					|| header.journalGeneration != expected.journalGeneration) {
+				throw new RuntimeException("mismatched snapshot shard: " + file);
+			}
+			CRC32 crc = new CRC32();
+			byte[] bytes = new byte[256];
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0) {
+					throw new RuntimeException("corrupt snapshot: " + file);
+				}
+				if (length > bytes.length) {
+					bytes = new byte[Math.max(length, 2 * bytes.length)];
+				}
+				in.readFully(bytes, 0, length);
+				crc.reset();
+				crc.update(bytes, 0, length);
+				if (in.readInt() != (int)crc.getValue()) {
+					throw new RuntimeException("corrupt snapshot: " + file);
+				}
+				ByteBuffer record = ByteBuffer.wrap(bytes, 0, length);
+				switch (record.get()) {
+				case USER:
+					// Users are numbered implicitly in version 1, which has a single shard.
+					int id = 1 == header.version ? $.userCount : record.getInt();
+					$.user(id, readString(record));
+					break;
+				case FRIENDSHIP:
+					$.friendship(record.getInt(), record.getInt());
+					break;
+				case PENDING:
+					int client = record.getInt();
+					Exchange message = codec.decode(readString(record));
+					$.pending(client, message, header.version >= 5 ? record.getLong() : Mailbox.NEVER);
+					break;
+				case STORED:
+					int owner = record.getInt();
+					long last = record.getLong();
+					int count = record.getInt();
+					$.stored(owner, last, count, header.version >= 5 ? record.getLong() : Mailbox.NEVER);
+					break;
+				case STORE_END:
+					$.storeEnd = record.getLong();
+					break;
+				case SEGMENT:
+					$.segment(record.getInt(), record.getInt());
+					break;
+				case END:
+					if (record.getLong() != $.records) {
+						throw new RuntimeException("corrupt snapshot: " + file);
+					}
+					listener.shardLoaded(shard, expected.shards, $.records, System.nanoTime() - start);
+					return $;
+				default:
+					throw new RuntimeException("corrupt snapshot: " + file);
+				}
+				++$.records;
+			}
+		} catch (EOFException e) {
+			throw new RuntimeException("truncated snapshot: " + file, e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Merge the decoded shards into new data: users in order of their IDs, and then friendships and pending messages.
+	 */
+	private static ServerData merge(List<Shard> shards, Header header) {
+		int users = header.users;
+		if (users < 0) {
+			users = 0;
+			for (Shard shard : shards) {
+				users += shard.userCount;
+			}
+		}
+		String[] names = new String[users];
+		for (Shard shard : shards) {
+			for (int i = 0; i < shard.userCount; ++i) {
+				names[shard.userIds[i]] = shard.userNames[i];
+			}
+		}
+		ServerData $ = new ServerData();
+		$.coverJournal(header.journalGeneration);
+		for (String name : names) {
+			$.restoreUser(name);
+		}
+		for (Shard shard : shards) {
+			for (int i = 0; i < shard.friendshipCount; ++i) {
+				$.restoreFriendship((int)(shard.friendships[i] >>> 32), (int)shard.friendships[i]);
+			}
+			for (int i = 0; i < shard.pending.size(); ++i) {
+				$.restorePending(shard.pendingIds[i], shard.pending.get(i), shard.pendingDeadlines[i]);
+			}
+			for (int i = 0; i < shard.storedCount; ++i) {
+				$.restoreStored(shard.storedIds[i], shard.storedLast[i], shard.storedCounts[i], shard.storedLatest[i]);
+			}
+		}
+		$.restoreStoreEnd(shards.get(0).storeEnd);
+		int[] segmentLive = shards.get(0).segmentLive;
+		for (int i = 0; null != segmentLive && i < segmentLive.length; ++i) {
+			$.restoreSegment(i, segmentLive[i]);
+		}
+		return $;
+	}
+
+	private static String readString(ByteBuffer record) {
+		int length = record.getInt();
+		String $ = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+		record.position(record.position() + length);
+		return $;
+	}
+
+	/**
+	 * Delete the shard files of other saves.
+	 * @param stamp the stamp of the save to keep, or -1 to delete all.
+	 */
+	private void deleteShards(long stamp) {
+		File file = new File(fileName).getAbsoluteFile();
+		String prefix = file.getName() + ".";
+		String keep = prefix + Long.toHexString(stamp) + ".";
+		File[] stale = file.getParentFile().listFiles((dir, name) -> name.startsWith(prefix)
+				&& name.substring(prefix.length()).matches("[0-9a-f]+\\.[0-9]+") && !name.startsWith(keep));
+		if (null != stale) {
+			for (File shard : stale) {
+				shard.delete();
+			}
+		}
+	}
+
+	/**
+	 * Clears all saved data, deletes the files used to save the data.
+	 */
+	@Override
+	public void clean() {
+		deleteShards(-1);
+		new File(fileName + ".tmp").delete();
+		new File(fileName).delete();
+	}
+}
@@ -0,0 +1,191 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+
+/**
+ * Forwards exchanges to the other servers of the cluster, off the shards. Each server is sent to by a thread of its
+ * own, in the order the exchanges were forwarded to it, so a slow or dead server holds back neither the shards nor the
+ * forwarding to the other servers.
+ *
+ * <p>
+ * An exchange given up on its way to a server, as the server was declared dead by its heartbeats, is sent again after
+ * {@link #RETRY_INTERVAL_IN_MILLISECONDS}, ahead of the later ones, until the server is back. At most a given number
+ * of exchanges wait for each server; later ones are dropped, and counted by {@link #dropped()}. Exchanges still
+ * waiting for a dead server as the forwarder is stopped are dropped as well.
+ * </p>
+ */
+class ClusterForwarder {
+
+	static final int DEFAULT_CAPACITY = 100_000;
+	static final long RETRY_INTERVAL_IN_MILLISECONDS = 100L;
+
+	private final BiConsumer<String, Exchange> sender;
+	private final int capacity;
+	private volatile Map<String, Server> servers = null;
+	private volatile CountDownLatch stopping = null;
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * The queue of exchanges to a server.
+	 */
+	private static class Server {
+		final ExecutorService executor;
+		final AtomicInteger backlog = new AtomicInteger();
+		boolean undelivered = false; // accessed only by the server's thread.
+
+		Server(ExecutorService executor) {
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * Create a stopped forwarder.
+	 * @param sender sends an exchange to a server, calling {@link #undelivered} on the same thread if it is given up.
+	 * @param capacity the most exchanges waiting for each server; 0 to send exchanges on the forwarding thread.
+	 */
+	ClusterForwarder(BiConsumer<String, Exchange> sender, int capacity) {
+		if (null == sender || capacity < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.sender = sender;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Start the threads sending to the servers.
+	 * @param others the addresses of the other servers of the cluster.
+	 */
+	void start(Collection<String> others) {
+		if (null != servers) {
+			throw new IllegalStateException("forwarder is already started");
+		}
+		if (0 == capacity) {
+			return;
+		}
+		stopping = new CountDownLatch(1);
+		Map<String, Server> $ = new HashMap<String, Server>();
+		for (String server : others) {
+			String name = "forward-" + server;
+			$.put(server, new Server(Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			})));
+		}
+		servers = $;
+	}
+
+	/**
+	 * Forward an exchange to a server, after the exchanges forwarded to it before. While the forwarder is stopped, or
+	 * if it has no capacity, the exchange is sent on the forwarding thread.
+	 * @param server the address of the server.
+	 * @param exchange the exchange.
+	 */
+	void forward(String server, Exchange exchange) {
+		Map<String, Server> current = servers;
+		Server s = null == current ? null : current.get(server);
+		if (null == s) {
+			sender.accept(server, exchange);
+			return;
+		}
+		if (s.backlog.incrementAndGet() > capacity) {
+			s.backlog.decrementAndGet();
+			dropped.increment();
+			return;
+		}
+		try {
+			s.executor.execute(() -> {
+				send(s, server, exchange);
+				s.backlog.decrementAndGet();
+			});
+		} catch (RejectedExecutionException e) {
+			// Being stopped; dropped rather than risk waiting for a dead server.
+			s.backlog.decrementAndGet();
+			dropped.increment();
+		}
+	}
+
+	private void send(Server s, String server, Exchange exchange) {
+		try {
+			while (true) {
+				s.undelivered = false;
+				sender.accept(server, exchange);
+				if (!s.undelivered) {
+					return;
+				}
+				if (stopping.await(RETRY_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+					dropped.increment();
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Note that an exchange was given up on its way to a server, to be sent again.
+	 * Must be called by the sender, on the thread it was called on.
+	 * @param server the address of the server.
+	 * @param exchange the exchange.
+	 */
+	void undelivered(String server, Exchange exchange) {
+		Map<String, Server> current = servers;
+		Server s = null == current ? null : current.get(server);
+		if (null != s) {
+			s.undelivered = true;
+		}
+	}
+
+	/**
+	 * @return the number of exchanges waiting to be sent to a server; 0 if the forwarder is stopped.
+	 */
+	int backlog(String server) {
+		Map<String, Server> current = servers;
+		Server s = null == current ? null : current.get(server);
+		return null == s ? 0 : s.backlog.get();
+	}
+
+	/**
+	 * @return the number of exchanges dropped, as too many were waiting for their server or it was dead as the
+	 * forwarder stopped.
+	 */
+	long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Stop the threads sending to the servers, waiting for the exchanges already forwarded to be sent, or given up.
+	 */
+	void stop() {
+		Map<String, Server> current = servers;
+		if (null == current) {
+			return;
+		}
+		stopping.countDown();
+		for (Server s : current.values()) {
+			s.executor.shutdown();
+		}
+		try {
+			for (Server s : current.values()) {
+				s.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			servers = null;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Assigns users to the servers of a cluster by consistent hashing. Each server is placed on a ring of hash values at
+ * several points (virtual nodes), and a user is owned by the server of the first point at or after the hash of its
+ * name, wrapping around. Adding a server moves only the users between its points and the points before them, which is
+ * about 1/N of them, and the virtual nodes keep the share of each server about even.
+ *
+ * <p>
+ * The servers of the cluster are named by the system property <code>ttalk.cluster.nodes</code>, a comma separated
+ * list of server addresses, and the number of virtual nodes of each server by <code>ttalk.cluster.vnodes</code>;
+ * without servers named, a server forms a cluster of its own. All servers of a cluster must be configured with the
+ * same servers, in any order. See {@link #fromSystemProperties}.
+ * </p>
+ */
+class ClusterRing {
+
+	static final String NODES_PROPERTY = "ttalk.cluster.nodes";
+	static final String VIRTUAL_NODES_PROPERTY = "ttalk.cluster.vnodes";
+	static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private final List<String> nodes;
+	private final int[] points; // the hash values of the virtual nodes, sorted.
+	private final String[] owners; // the server of each point.
+
+	/**
+	 * Create a ring.
+	 * @param nodes the addresses of the servers of the cluster.
+	 * @param virtualNodes the number of points of each server.
+	 */
+	ClusterRing(Collection<String> nodes, int virtualNodes) {
+		if (null == nodes || nodes.isEmpty() || virtualNodes <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(nodes)));
+		long[] sorted = new long[this.nodes.size() * virtualNodes];
+		List<String> byName = new ArrayList<String>(this.nodes);
+		Collections.sort(byName); // so ties between points are broken the same way by all servers.
+		for (int n = 0; n < byName.size(); ++n) {
+			for (int v = 0; v < virtualNodes; ++v) {
+				sorted[n * virtualNodes + v] = (long)hash(byName.get(n) + "#" + v) << 32 | n;
+			}
+		}
+		Arrays.sort(sorted);
+		this.points = new int[sorted.length];
+		this.owners = new String[sorted.length];
+		for (int i = 0; i < sorted.length; ++i) {
+			points[i] = (int)(sorted[i] >> 32);
+			owners[i] = byName.get((int)sorted[i]);
+		}
+	}
+
+	/**
+	 * Create the ring of a server, configured by the system properties (see class documentation).
+	 * @param self the address of the server.
+	 * @return the ring.
+	 */
+	static ClusterRing fromSystemProperties(String self) {
+		List<String> nodes = new ArrayList<String>();
+		for (String node : System.getProperty(NODES_PROPERTY, "").split(",")) {
+			if (!node.trim().isEmpty()) {
+				nodes.add(node.trim());
+			}
+		}
+		if (nodes.isEmpty()) {
+			nodes.add(self);
+		} else if (!nodes.contains(self)) {
+			throw new IllegalArgumentException("server " + self + " is not a node of the cluster " + nodes);
+		}
+		int virtualNodes = Integer.parseInt(
+				System.getProperty(VIRTUAL_NODES_PROPERTY, Integer.toString(DEFAULT_VIRTUAL_NODES)));
+		return new ClusterRing(nodes, virtualNodes);
+	}
+
+	/**
+	 * @return the addresses of the servers of the cluster.
+	 */
+	List<String> nodes() {
+		return nodes;
+	}
+
+	/**
+	 * @param address an address.
+	 * @return whether it is the address of a server of the cluster.
+	 */
+	boolean contains(String address) {
+		return nodes.contains(address);
+	}
+
+	/**
+	 * @param user the name of a user.
+	 * @return the address of the server which owns the user.
+	 */
+	String ownerOf(String user) {
+		if (1 == nodes.size()) {
+			return nodes.get(0);
+		}
+		int i = Arrays.binarySearch(points, hash(user));
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+	}
+
+	/**
+	 * Hash a name, spreading all of the bits of its hash code.
+	 */
+	private static int hash(String name) {
+		int h = name.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
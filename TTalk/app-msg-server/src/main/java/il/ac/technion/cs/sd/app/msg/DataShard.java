@@ -0,0 +1,264 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.function.ToIntFunction;
+
+/**
+ * The part of the data of a server owned by one of its shards (see {@link ShardExecutor}): the users hashed to the
+ * shard, with their presence, friends and pending messages, in a {@link ServerData} of their own. Each part is
+ * journaled, snapshotted, spilled and replicated by a {@link Journal}, {@link Snapshotter}, {@link PendingStore} and
+ * {@link Replicator} of its own, so the shards share no locks and no files, and none waits for the I/O of another.
+ *
+ * <p>
+ * A friendship is kept by the parts of both friends. The presence and friends of a user are read only by its part,
+ * on its shard, so the work which needs those of users of other shards is passed to their shards.
+ * </p>
+ *
+ * <p>
+ * A server with a single shard keeps its files by its own name, as it did before its data was partitioned; shard
+ * <code>i</code> of <code>n</code> keeps them by the name <code>server-i-of-n</code>. The number of shards the data
+ * was saved with is recorded, and once it changes, the data saved is partitioned anew as it is loaded (see
+ * {@link #repartition}). The standby of a server keeps a part for each shard of the server, and should be configured
+ * with the same number of shards.
+ * </p>
+ */
+class DataShard {
+
+	final String name; // the name the part is known by, to the standby as well.
+	ServerData data = new ServerData();
+	final DataSaver<ServerData> dataSaver;
+	final Journal journal;
+	final Snapshotter snapshotter;
+	final PendingStore pendingStore;
+	final Replicator replicator; // null unless replicating to a standby.
+	Standby standby; // null unless standing by.
+
+	private DataShard(String name, String files, boolean replicating, boolean standingBy) {
+		this.name = name;
+		this.dataSaver = BinaryDataSaver.fromSystemProperties("app-msg-data-" + files);
+		this.journal = Journal.fromSystemProperties("app-msg-journal-" + files);
+		this.snapshotter = Snapshotter.fromSystemProperties(dataSaver, journal);
+		this.pendingStore = PendingStore.fromSystemProperties("app-msg-pending-" + files);
+		this.replicator = replicating ? Replicator.fromSystemProperties(name) : null;
+		this.standby = standingBy ? Standby.of(name, journal, pendingStore) : null;
+	}
+
+	/**
+	 * @param server the name of a server.
+	 * @param shard the index of a shard.
+	 * @param shards the number of shards of the server.
+	 * @return the name the part of the shard is known by.
+	 */
+	static String nameOf(String server, int shard, int shards) {
+		return 1 == shards ? server : server + "-" + shard + "-of-" + shards;
+	}
+
+	/**
+	 * Create the parts of the data of a server.
+	 * @param server the name of the server.
+	 * @param shards the number of shards of the server; at least 1.
+	 * @param replicating whether the parts are replicated to the standby, if configured so (see {@link Replicator}).
+	 * @return the parts, by shard.
+	 */
+	static DataShard[] of(String server, int shards, boolean replicating) {
+		DataShard[] $ = new DataShard[shards];
+		for (int i = 0; i < shards; ++i) {
+			String name = nameOf(server, i, shards);
+			$[i] = new DataShard(name, name, replicating, false);
+		}
+		return $;
+	}
+
+	/**
+	 * Create the parts of the data of the standby of a server, which keeps files of its own.
+	 * @param server the name of the server.
+	 * @param shards the number of shards of the server; at least 1.
+	 * @return the parts, by shard.
+	 */
+	static DataShard[] standbyOf(String server, int shards) {
+		DataShard[] $ = new DataShard[shards];
+		for (int i = 0; i < shards; ++i) {
+			String name = nameOf(server, i, shards);
+			$[i] = new DataShard(name, Replicator.standbyAddressOf(name), false, true);
+		}
+		return $;
+	}
+
+	/**
+	 * Load the data saved, replay the journal of the changes made since, and start saving periodic snapshots.
+	 * @param expiry the time-to-live of pending messages added from now on, or null for them not to expire.
+	 */
+	void load(PendingExpiry expiry) {
+		open(expiry);
+		snapshotter.start(data);
+	}
+
+	private void open(PendingExpiry expiry) {
+		Optional<ServerData> loaded = dataSaver.load();
+		data = loaded.isPresent() ? loaded.get() : new ServerData();
+		data.storePendingIn(pendingStore);
+		data.expirePendingBy(expiry);
+		journal.open(data);
+	}
+
+	/**
+	 * Take over the data received by the standby, as it is in memory, journaling it from now on; if nothing was
+	 * received, the standby's own saved data is loaded instead.
+	 * @param expiry the time-to-live of pending messages added from now on, or null for them not to expire.
+	 */
+	void promote(PendingExpiry expiry) {
+		standby.stop();
+		ServerData received = standby.data();
+		standby = null;
+		if (null == received) {
+			load(expiry);
+			return;
+		}
+		data = received;
+		data.expirePendingBy(expiry);
+		journal.clean();
+		journal.open(data);
+		snapshotter.start(data);
+		snapshotter.save(data);
+	}
+
+	/**
+	 * Start replicating the loaded data to the standby, if configured so.
+	 */
+	void replicate() {
+		if (null != replicator) {
+			replicator.start(data, journal);
+		}
+	}
+
+	/**
+	 * @return the replication lag of the part in milliseconds (see
+	 * {@link ServerMailApplication#replicationLagInMilliseconds()}).
+	 */
+	long lagInMilliseconds() {
+		if (null != replicator) {
+			return replicator.lagInMilliseconds();
+		}
+		return null == standby ? 0 : standby.lagInMilliseconds();
+	}
+
+	/**
+	 * Stop saving snapshots, save the changes made since the last one, stop replicating, and close the files.
+	 */
+	void stop() {
+		if (null != standby) {
+			standby.stop();
+			pendingStore.close();
+			return;
+		}
+		snapshotter.stop();
+		if (journal.hasChanges()) {
+			snapshotter.save(data);
+		}
+		if (null != replicator) {
+			journal.replicateTo(null);
+			replicator.stop();
+		}
+		journal.close();
+		pendingStore.close();
+	}
+
+	/**
+	 * Delete the files of the part. The part should be stopped.
+	 */
+	void clean() {
+		data = new ServerData();
+		dataSaver.clean();
+		journal.clean();
+		pendingStore.clean();
+	}
+
+	/**
+	 * Partition the data a server saved with a different number of shards anew, into the given parts, unless it was
+	 * saved with as many shards as they are. Each part saved is loaded and its journal replayed, in turn, and its users
+	 * are copied to the parts owning them (see {@link ServerData#copyTo}), which are then saved, before the new number
+	 * of shards is recorded and the files of the parts saved before are deleted. Called before the parts are loaded.
+	 * @param server the name of the server.
+	 * @param parts the parts, by shard; their files are replaced.
+	 * @param shardOf gives the shard owning a user.
+	 * @param expiry the time-to-live of pending messages, or null for them not to expire.
+	 */
+	static void repartition(String server, DataShard[] parts, ToIntFunction<String> shardOf, PendingExpiry expiry) {
+		int saved = shardsSavedBy(server);
+		if (saved == parts.length) {
+			return;
+		}
+		for (DataShard part : parts) {
+			part.clean();
+		}
+		DataShard[] old = new DataShard[saved];
+		for (int i = 0; i < saved; ++i) {
+			String name = nameOf(server, i, saved);
+			old[i] = new DataShard(name, name, false, false);
+			old[i].open(expiry);
+			old[i].data.copyTo(user -> parts[shardOf.applyAsInt(user)].data);
+			old[i].journal.close();
+			old[i].pendingStore.close();
+		}
+		for (DataShard part : parts) {
+			part.dataSaver.save(part.data);
+		}
+		recordShards(server, parts.length);
+		for (DataShard part : old) {
+			part.clean();
+		}
+	}
+
+	/**
+	 * Delete the files of the parts of a server, those of the parts it saved with a different number of shards, if
+	 * any, and the record of that number. The parts should be stopped.
+	 * @param server the name of the server.
+	 * @param parts the parts, by shard.
+	 */
+	static void clean(String server, DataShard[] parts) {
+		for (DataShard part : parts) {
+			part.clean();
+		}
+		int saved = shardsSavedBy(server);
+		for (int i = 0; i < saved && saved != parts.length; ++i) {
+			String name = nameOf(server, i, saved);
+			new DataShard(name, name, false, false).clean();
+		}
+		layoutOf(server).delete();
+	}
+
+	private static File layoutOf(String server) {
+		return new File("app-msg-shards-" + server);
+	}
+
+	/**
+	 * @return the number of shards a server saved its data with; 1 if it was not recorded.
+	 */
+	private static int shardsSavedBy(String server) {
+		File layout = layoutOf(server);
+		if (!layout.exists()) {
+			return 1;
+		}
+		try {
+			return Integer.parseInt(new String(Files.readAllBytes(layout.toPath()), StandardCharsets.UTF_8).trim());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void recordShards(String server, int shards) {
+		File temp = new File(layoutOf(server).getPath() + ".tmp");
+		try {
+			Files.write(temp.toPath(), Integer.toString(shards).getBytes(StandardCharsets.UTF_8));
+			Files.move(temp.toPath(), layoutOf(server).toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Optional;
 
 /**
@@ -33,17 +35,21 @@ public class FileDataSaver<T> implements DataSaver<T> {
 	
 	/**
 	 * Save data to the file.
+	 * The data is written to a temporary file, which then replaces the file atomically, so a crash while saving leaves
+	 * the previously saved data intact.
 	 * @param data the data to save.
 	 */
 	@Override
 	public void save(T data) {
 		Serializable serializableData = (Serializable) data;
+		File temp = new File(fileName + ".tmp");
 		ObjectOutputStream oos = null;
 		try {
-			FileOutputStream fos = new FileOutputStream(fileName);
+			FileOutputStream fos = new FileOutputStream(temp);
 			oos = new ObjectOutputStream(fos);
 			oos.writeObject(serializableData);
 			oos.flush();
+			fos.getFD().sync();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -55,6 +61,12 @@ public class FileDataSaver<T> implements DataSaver<T> {
 				throw new RuntimeException(e);
 			}
 		}
+		try {
+			Files.move(temp.toPath(), new File(fileName).toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 	
 	/**
@@ -97,6 +109,7 @@ public class FileDataSaver<T> implements DataSaver<T> {
 	 */
 	@Override
 	public void clean() {
+		new File(fileName + ".tmp").delete();
 		File file = new File(fileName);
 		if (!file.exists()) {
 			return;
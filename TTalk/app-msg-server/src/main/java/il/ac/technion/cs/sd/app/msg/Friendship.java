@@ -4,10 +4,12 @@ package il.ac.technion.cs.sd.app.msg;
 /**
  * A class that represents a friendship between two people;
  * Practically, an unordered pair of strings.
+ * <br/>
+ * Friendships are indexed by {@link ServerData} per user; this class remains for loading older snapshots.
  */
 public class Friendship {
-	final private String friend1;
-	final private String friend2;
+	final String friend1;
+	final String friend2;
 
 	/**
 	 * Create a new friendship object. The order of the parameters is not important.
@@ -0,0 +1,571 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.msg.Codec;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary journal of the changes to a {@link ServerData}, so that changes made since its last snapshot
+ * survive a crash. Opening the journal replays it into the data loaded from the snapshot.
+ *
+ * <p>
+ * The journal starts with a header holding its generation. When a snapshot is taken the journal is cut: the current
+ * file is renamed after its generation, and the next generation is started in a new file. Each snapshot records the
+ * generation it covers, so a journal is never replayed into a snapshot which already includes it, and the generations
+ * it covers are deleted once it is saved. Each record holds its length, type, fields and a CRC32 checksum; a torn
+ * record at the end of the journal, written during a crash, is discarded upon opening.
+ * </p>
+ *
+ * <p>
+ * Records may also be shipped to a standby server as they are appended, see {@link Replicator}.
+ * </p>
+ *
+ * <p>
+ * Records are made durable according to a {@link SyncPolicy}. Configured by the system properties
+ * <code>ttalk.journal.sync</code> (<code>write</code>, <code>group</code> or <code>interval</code>; the default is
+ * <code>group</code>) and <code>ttalk.journal.interval</code> (in milliseconds), see {@link #fromSystemProperties}.
+ * </p>
+ */
+class Journal {
+
+	/**
+	 * When appended records are forced to the disk.
+	 */
+	enum SyncPolicy {
+		/**
+		 * Each append forces its record before returning.
+		 */
+		PER_WRITE,
+		/**
+		 * Each append waits until its record is forced; appends waiting together are forced together.
+		 */
+		GROUP_COMMIT,
+		/**
+		 * Appends return at once; records are forced periodically, and may be lost in a crash.
+		 */
+		INTERVAL
+	}
+
+	static final String SYNC_PROPERTY = "ttalk.journal.sync";
+	static final String INTERVAL_PROPERTY = "ttalk.journal.interval";
+	static final long DEFAULT_INTERVAL_IN_MILLISECONDS = 100L;
+
+	private static final int MAGIC = 0x54544A31; // "TTJ1"
+	private static final int HEADER_SIZE = 12;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// RECORD TYPES
+	private static final byte FRIENDSHIP = 1;
+	private static final byte PENDING = 2;
+	private static final byte DRAIN = 3;
+	private static final byte EXPIRING = 4; // a pending message which expires, with its deadline.
+	private static final byte EXPIRE = 5;
+
+	private final File file;
+	private final Codec<Exchange> codec;
+	private final SyncPolicy policy;
+	private final long intervalInMilliseconds;
+
+	private FileChannel channel = null;
+	private long generation;
+
+	private final Object lock = new Object(); // guards the buffer and the writes to the channel.
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private long appended; // position after the last appended record.
+	private Replicator replicator = null; // ships the appended records, if set.
+
+	private final Object syncLock = new Object(); // held while forcing.
+	private volatile long synced; // position up to which the journal was forced.
+
+	private Thread syncer = null; // forces the journal periodically, with the INTERVAL policy.
+	private final Semaphore syncerStop = new Semaphore(0);
+
+	/**
+	 * Create a journal.
+	 * @param fileName the name of the journal file.
+	 * @param codec the codec for pending exchanges.
+	 * @param policy the sync policy.
+	 * @param intervalInMilliseconds the time between syncs, with the INTERVAL policy.
+	 */
+	Journal(String fileName, Codec<Exchange> codec, SyncPolicy policy, long intervalInMilliseconds) {
+		if (null == fileName || null == codec || null == policy || intervalInMilliseconds <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.file = new File(fileName);
+		this.codec = codec;
+		this.policy = policy;
+		this.intervalInMilliseconds = intervalInMilliseconds;
+	}
+
+	/**
+	 * Create a journal configured by the system properties (see class documentation).
+	 * @param fileName the name of the journal file.
+	 * @return the journal.
+	 */
+	static Journal fromSystemProperties(String fileName) {
+		SyncPolicy policy;
+		String sync = System.getProperty(SYNC_PROPERTY, "group");
+		switch (sync) {
+		case "write":
+			policy = SyncPolicy.PER_WRITE;
+			break;
+		case "group":
+			policy = SyncPolicy.GROUP_COMMIT;
+			break;
+		case "interval":
+			policy = SyncPolicy.INTERVAL;
+			break;
+		default:
+			throw new IllegalArgumentException("unknown journal sync policy: " + sync);
+		}
+		long interval = Long.parseLong(
+				System.getProperty(INTERVAL_PROPERTY, Long.toString(DEFAULT_INTERVAL_IN_MILLISECONDS)));
+		return new Journal(fileName, new XStreamCodec<Exchange>(), policy, interval);
+	}
+
+	/**
+	 * Open the journal, replaying the generations which the snapshot does not cover into data loaded from it, and
+	 * journal all further changes to the data.
+	 * @param data the data loaded from the last snapshot, or new data if there is none.
+	 */
+	void open(ServerData data) {
+		if (null != channel) {
+			throw new IllegalStateException("journal is already open");
+		}
+		try {
+			for (File segment : segments()) {
+				// Cut generations which were not yet covered by a saved snapshot.
+				try (FileChannel c = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+					if (replay(c, data) >= 0) {
+						data.coverJournal(generation);
+					}
+				}
+			}
+			discardThrough(data.journalGeneration());
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			long end = channel.size() < HEADER_SIZE ? -1 : replay(channel, data);
+			if (end < 0) {
+				// No journal, or one which the snapshot covers.
+				reset(data.journalGeneration() + 1);
+			} else {
+				channel.truncate(end);
+				channel.position(end);
+				appended = synced = end;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (policy == SyncPolicy.INTERVAL) {
+			syncer = new Thread(() -> {
+				try {
+					while (!syncerStop.tryAcquire(intervalInMilliseconds, TimeUnit.MILLISECONDS)) {
+						sync(appended());
+					}
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}, "journal-sync-" + file.getName());
+			syncer.setDaemon(true);
+			syncer.start();
+		}
+		data.journalTo(this);
+	}
+
+	/**
+	 * Replay the records of a journal file into data.
+	 * @return the position after the last intact record, or -1 if the data already includes the journal.
+	 */
+	private long replay(FileChannel channel, ServerData data) throws IOException {
+		channel.position(0);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a journal: " + file);
+		}
+		generation = in.readLong();
+		if (generation <= data.journalGeneration()) {
+			return -1;
+		}
+		long $ = HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		while (true) {
+			byte[] record;
+			try {
+				int length = in.readInt();
+				if (length <= 0 || length > channel.size() - $) {
+					break;
+				}
+				record = new byte[length];
+				in.readFully(record);
+				crc.reset();
+				crc.update(record);
+				if (in.readInt() != (int)crc.getValue()) {
+					break;
+				}
+			} catch (EOFException e) {
+				break; // A record torn by a crash.
+			}
+			apply(data, ByteBuffer.wrap(record));
+			$ += 4 + record.length + 4;
+		}
+		return $;
+	}
+
+	/**
+	 * Apply records shipped from another journal to data, as they are replayed.
+	 * @param data the data.
+	 * @param records the records, as they were appended.
+	 * @return the number of records applied.
+	 */
+	int applyShipped(ServerData data, ByteBuffer records) {
+		int $ = 0;
+		CRC32 crc = new CRC32();
+		while (records.hasRemaining()) {
+			int length = records.getInt();
+			ByteBuffer record = records.slice();
+			record.limit(length);
+			crc.reset();
+			crc.update(records.array(), records.arrayOffset() + records.position(), length);
+			records.position(records.position() + length);
+			if (records.getInt() != (int)crc.getValue()) {
+				throw new RuntimeException("corrupt shipped journal record");
+			}
+			apply(data, record);
+			++$;
+		}
+		return $;
+	}
+
+	private void apply(ServerData data, ByteBuffer record) {
+		switch (record.get()) {
+		case FRIENDSHIP:
+			data.addFriendship(readString(record), readString(record));
+			break;
+		case PENDING: {
+			String client = readString(record);
+			data.addPendingClientMessage(client, codec.decode(readString(record)), Mailbox.NEVER);
+			break;
+		}
+		case EXPIRING: {
+			String client = readString(record);
+			Exchange message = codec.decode(readString(record));
+			data.addPendingClientMessage(client, message, Long.parseLong(readString(record)));
+			break;
+		}
+		case DRAIN:
+			data.clearPendingClientMessages(readString(record));
+			break;
+		case EXPIRE: {
+			String client = readString(record);
+			data.expirePending(client, Long.parseLong(readString(record)));
+			break;
+		}
+		default:
+			throw new RuntimeException("corrupt journal record in " + file);
+		}
+	}
+
+	private static String readString(ByteBuffer record) {
+		byte[] $ = new byte[record.getInt()];
+		record.get($);
+		return new String($, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Record a new friendship.
+	 */
+	void friendship(String friend1, String friend2) {
+		append(FRIENDSHIP, friend1, friend2);
+	}
+
+	/**
+	 * Record a message added to a client's pending messages, with the time it expires or {@link Mailbox#NEVER}.
+	 */
+	void pending(String client, Exchange message, long expiresAt) {
+		pending(client, codec.encode(message), expiresAt);
+	}
+
+	/**
+	 * Record a message added to a client's pending messages, encoded by the codec of the journal, with the time it
+	 * expires or {@link Mailbox#NEVER}.
+	 */
+	void pending(String client, String encoded, long expiresAt) {
+		if (Mailbox.NEVER == expiresAt) {
+			append(PENDING, client, encoded);
+		} else {
+			append(EXPIRING, client, encoded, Long.toString(expiresAt));
+		}
+	}
+
+	/**
+	 * Record the clearing of a client's pending messages.
+	 */
+	void drain(String client) {
+		append(DRAIN, client);
+	}
+
+	/**
+	 * Record the expiry of a client's pending messages at a given time.
+	 */
+	void expire(String client, long now) {
+		append(EXPIRE, client, Long.toString(now));
+	}
+
+	private void append(byte type, String... fields) {
+		byte[][] bytes = new byte[fields.length][];
+		int length = 1;
+		for (int i = 0; i < fields.length; ++i) {
+			bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+			length += 4 + bytes[i].length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(4 + length + 4);
+		record.putInt(length).put(type);
+		for (byte[] field : bytes) {
+			record.putInt(field.length).put(field);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, length);
+		record.putInt((int)crc.getValue());
+		record.flip();
+
+		long end;
+		Replicator shipTo;
+		long shipped = -1;
+		synchronized (lock) {
+			if (null == channel) {
+				throw new IllegalStateException("journal is closed");
+			}
+			shipTo = replicator;
+			if (null != shipTo) {
+				shipped = shipTo.ship(record.array());
+			}
+			try {
+				if (record.remaining() > buffer.remaining()) {
+					flush();
+				}
+				if (record.remaining() > buffer.remaining()) {
+					write(record);
+				} else {
+					buffer.put(record);
+				}
+				end = appended += 4 + length + 4;
+				if (policy == SyncPolicy.PER_WRITE) {
+					flush();
+					channel.force(false);
+					synced = end;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (policy == SyncPolicy.GROUP_COMMIT) {
+			sync(end);
+		}
+		if (null != shipTo) {
+			shipTo.await(shipped);
+		}
+	}
+
+	/**
+	 * Ship all further records to a standby, in the order they are appended, and note the cuts of the journal.
+	 * @param replicator the replicator, or null to stop shipping.
+	 */
+	void replicateTo(Replicator replicator) {
+		synchronized (lock) {
+			this.replicator = replicator;
+		}
+	}
+
+	private long appended() {
+		synchronized (lock) {
+			return appended;
+		}
+	}
+
+	/**
+	 * Force the journal to the disk, at least up to a given position. A caller which finds another forcing waits for
+	 * it, and then has nothing left to force if its records were included.
+	 */
+	private void sync(long upTo) {
+		synchronized (syncLock) {
+			if (synced >= upTo) {
+				return;
+			}
+			long end;
+			try {
+				synchronized (lock) {
+					if (null == channel) {
+						return;
+					}
+					flush();
+					end = appended;
+				}
+				channel.force(false);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			synced = end;
+		}
+	}
+
+	private void flush() throws IOException {
+		// Called under lock.
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+	}
+
+	private void write(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	/**
+	 * @return the generation of the journal; a snapshot saved now covers it.
+	 */
+	long generation() {
+		return generation;
+	}
+
+	/**
+	 * @return whether the journal holds changes which no saved snapshot covers: records appended to the current
+	 * generation, or generations which were cut but not discarded.
+	 */
+	boolean hasChanges() {
+		return appended() > HEADER_SIZE || segments().length > 0;
+	}
+
+	/**
+	 * Cut the journal before taking a snapshot: force the current generation and keep it in a file of its own, and
+	 * start the next generation. The caller must keep the data from changing until the snapshot is taken.
+	 * @return the generation which was cut; the snapshot covers it.
+	 */
+	long cut() {
+		synchronized (syncLock) {
+			synchronized (lock) {
+				if (null == channel) {
+					throw new IllegalStateException("journal is closed");
+				}
+				long $ = generation;
+				try {
+					flush();
+					channel.force(false);
+					channel.close();
+					Files.move(file.toPath(), segment($).toPath(), StandardCopyOption.ATOMIC_MOVE);
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+							StandardOpenOption.WRITE);
+					reset($ + 1);
+					if (null != replicator) {
+						replicator.cut($);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				return $;
+			}
+		}
+	}
+
+	/**
+	 * Delete the cut generations covered by a saved snapshot.
+	 * @param covered the generation covered by the snapshot.
+	 */
+	void discardThrough(long covered) {
+		for (File segment : segments()) {
+			if (generationOf(segment) <= covered) {
+				segment.delete();
+			}
+		}
+	}
+
+	private File segment(long generation) {
+		return new File(file.getPath() + "." + generation);
+	}
+
+	private long generationOf(File segment) {
+		return Long.parseLong(segment.getName().substring(file.getName().length() + 1));
+	}
+
+	/**
+	 * @return the files of the cut generations, from the oldest.
+	 */
+	private File[] segments() {
+		File dir = file.getAbsoluteFile().getParentFile();
+		String prefix = file.getName() + ".";
+		File[] $ = dir.listFiles((d, name) -> name.startsWith(prefix) && name.length() > prefix.length()
+				&& name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+		if (null == $) {
+			return new File[0];
+		}
+		Arrays.sort($, Comparator.comparingLong(this::generationOf));
+		return $;
+	}
+
+	private void reset(long newGeneration) throws IOException {
+		buffer.clear();
+		channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(newGeneration);
+		header.flip();
+		channel.position(0);
+		write(header);
+		channel.force(false);
+		generation = newGeneration;
+		appended = synced = HEADER_SIZE;
+	}
+
+	/**
+	 * Force and close the journal.
+	 */
+	void close() {
+		if (null == channel) {
+			return;
+		}
+		if (null != syncer) {
+			syncerStop.release();
+			try {
+				syncer.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} finally {
+				syncer = null;
+			}
+		}
+		sync(appended());
+		synchronized (lock) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Delete the journal files. The journal should be closed.
+	 */
+	void clean() {
+		discardThrough(Long.MAX_VALUE);
+		file.delete();
+	}
+}
@@ -0,0 +1,149 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sheds low-value requests when they queue up at the server, in the style of CoDel: the time requests wait to be
+ * handled (their sojourn time) is compared to a target delay as each request is admitted. A short burst above the
+ * target is absorbed, but once the delay stays above the target for a whole interval the queue is standing, and the
+ * shedder starts shedding until the delay falls below the target again.
+ *
+ * <p>
+ * While shedding, every {@link Priority#POLL poll} is shed, and {@link Priority#DEFERRABLE deferrable} requests
+ * are shed at a rate growing with the time spent shedding: the n-th is shed an interval divided by the square root of
+ * n after the previous one, as CoDel drops packets. {@link Priority#ESSENTIAL Essential} requests are never shed. A
+ * backlog over the depth limit, if there is one, sheds all polls and deferrable requests at once, without waiting for
+ * an interval to pass.
+ * </p>
+ *
+ * <p>
+ * Configured by the system properties <code>ttalk.shedding.target</code> and <code>ttalk.shedding.interval</code> (in
+ * milliseconds; a target of 0, the default, sheds nothing) and <code>ttalk.shedding.depth</code> (in requests; 0, the
+ * default, has no limit), see {@link #fromSystemProperties}.
+ * </p>
+ */
+class LoadShedder {
+
+	/**
+	 * The value of a request, by which it is shed.
+	 */
+	enum Priority {
+		/**
+		 * Never shed, e.g. connecting and delivering messages.
+		 */
+		ESSENTIAL,
+		/**
+		 * Shed at a growing rate while shedding, e.g. friend requests.
+		 */
+		DEFERRABLE,
+		/**
+		 * Shed first, e.g. presence queries, which are repeated anyway.
+		 */
+		POLL
+	}
+
+	static final String TARGET_PROPERTY = "ttalk.shedding.target";
+	static final String INTERVAL_PROPERTY = "ttalk.shedding.interval";
+	static final String DEPTH_PROPERTY = "ttalk.shedding.depth";
+	static final long DEFAULT_INTERVAL_IN_MILLISECONDS = 100L;
+
+	private final long target; // in nanoseconds; 0 if not shedding by delay.
+	private final long interval; // in nanoseconds.
+	private final int depth; // 0 if not shedding by depth.
+
+	// The state of the control law, guarded by this.
+	private long firstAboveAt = 0; // when the delay above the target becomes standing, or 0 if it is below it.
+	private volatile boolean shedding = false;
+	private long nextShedAt = 0; // when the next deferrable request is shed.
+	private int count = 0; // deferrable requests shed since shedding started.
+
+	private final LongAdder shed = new LongAdder();
+
+	/**
+	 * Create a load shedder.
+	 * @param targetInMilliseconds the target delay, or 0 not to shed by delay.
+	 * @param intervalInMilliseconds the time the delay stays above the target before shedding starts.
+	 * @param depth the most requests waiting before polls and deferrable requests are shed, or 0 for no limit.
+	 */
+	LoadShedder(long targetInMilliseconds, long intervalInMilliseconds, int depth) {
+		if (targetInMilliseconds < 0 || intervalInMilliseconds <= 0 || depth < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.target = TimeUnit.MILLISECONDS.toNanos(targetInMilliseconds);
+		this.interval = TimeUnit.MILLISECONDS.toNanos(intervalInMilliseconds);
+		this.depth = depth;
+	}
+
+	/**
+	 * Create a load shedder configured by the system properties (see class documentation).
+	 * @return the load shedder.
+	 */
+	static LoadShedder fromSystemProperties() {
+		return new LoadShedder(Long.parseLong(System.getProperty(TARGET_PROPERTY, "0")),
+				Long.parseLong(System.getProperty(INTERVAL_PROPERTY, Long.toString(DEFAULT_INTERVAL_IN_MILLISECONDS))),
+				Integer.parseInt(System.getProperty(DEPTH_PROPERTY, "0")));
+	}
+
+	/**
+	 * Decide whether to admit a request, given the current load.
+	 * @param priority the value of the request.
+	 * @param sojourn the time requests wait to be handled, in nanoseconds.
+	 * @param backlog the number of requests waiting to be handled.
+	 * @param now the current time, in nanoseconds.
+	 * @return whether the request is admitted; otherwise, it is shed.
+	 */
+	synchronized boolean admit(Priority priority, long sojourn, int backlog, long now) {
+		if (0 != target) {
+			update(sojourn, backlog, now);
+		}
+		boolean $;
+		if (Priority.ESSENTIAL == priority) {
+			$ = true;
+		} else if (0 != depth && backlog > depth) {
+			$ = false;
+		} else if (!shedding) {
+			$ = true;
+		} else if (Priority.POLL == priority) {
+			$ = false;
+		} else if (now - nextShedAt >= 0) {
+			++count;
+			nextShedAt = now + (long)(interval / Math.sqrt(count));
+			$ = false;
+		} else {
+			$ = true;
+		}
+		if (!$) {
+			shed.increment();
+		}
+		return $;
+	}
+
+	private void update(long sojourn, int backlog, long now) {
+		if (sojourn < target || 0 == backlog) {
+			// No standing queue.
+			firstAboveAt = 0;
+			shedding = false;
+		} else if (0 == firstAboveAt) {
+			firstAboveAt = now + interval;
+		} else if (!shedding && now - firstAboveAt >= 0) {
+			shedding = true;
+			count = 0;
+			nextShedAt = now;
+		}
+	}
+
+	/**
+	 * @return whether requests are being shed, as the delay stood above the target.
+	 */
+	boolean isShedding() {
+		return shedding;
+	}
+
+	/**
+	 * @return the number of requests shed.
+	 */
+	long shed() {
+		return shed.sum();
+	}
+}
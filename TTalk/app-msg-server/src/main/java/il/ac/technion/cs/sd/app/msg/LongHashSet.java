@@ -0,0 +1,98 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An open-addressed hash set of non-negative longs, with linear probing and no removal.
+ * Lookups take no locks and allocate nothing; additions are synchronized.
+ */
+class LongHashSet {
+
+	private static final long EMPTY = 0; // slots hold key + 1.
+
+	private volatile AtomicLongArray table = new AtomicLongArray(16);
+	private volatile int size = 0;
+
+	/**
+	 * @param key a non-negative long.
+	 * @return whether the key is in the set.
+	 */
+	boolean contains(long key) {
+		AtomicLongArray t = table;
+		int mask = t.length() - 1;
+		for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+			long slot = t.get(i);
+			if (EMPTY == slot) {
+				return false;
+			}
+			if (key + 1 == slot) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Add a key to the set.
+	 * @param key a non-negative long, less than {@link Long#MAX_VALUE}.
+	 * @return true if the key was added; false if it was already in the set.
+	 */
+	synchronized boolean add(long key) {
+		if (key < 0 || key == Long.MAX_VALUE) {
+			throw new IllegalArgumentException("key out of range: " + key);
+		}
+		if (contains(key)) {
+			return false;
+		}
+		if (2 * (size + 1) > table.length()) {
+			AtomicLongArray t = new AtomicLongArray(2 * table.length());
+			for (int i = 0; i < table.length(); ++i) {
+				long slot = table.get(i);
+				if (EMPTY != slot) {
+					insert(t, slot);
+				}
+			}
+			table = t;
+		}
+		insert(table, key + 1);
+		++size;
+		return true;
+	}
+
+	/**
+	 * @return the number of keys in the set.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the keys in the set, in no particular order.
+	 */
+	synchronized long[] toArray() {
+		long[] $ = new long[size];
+		int j = 0;
+		for (int i = 0; i < table.length(); ++i) {
+			long slot = table.get(i);
+			if (EMPTY != slot) {
+				$[j++] = slot - 1;
+			}
+		}
+		return $;
+	}
+
+	private static void insert(AtomicLongArray t, long slot) {
+		int mask = t.length() - 1;
+		int i = mix(slot - 1) & mask;
+		while (EMPTY != t.get(i)) {
+			i = (i + 1) & mask;
+		}
+		t.set(i, slot);
+	}
+
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+}
@@ -0,0 +1,317 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The pending messages of a client. The head of the mailbox is kept in memory as a linked stack, and the messages
+ * spilled to a {@link PendingStore} are indexed by the position of the last one and their number.
+ * <p>
+ * The {@link Contents} of a mailbox are immutable, and are replaced by compare-and-set: a message is added by pushing
+ * a node onto the stack, and all of the messages are drained at once by replacing the contents with empty ones, so
+ * neither takes a lock, and the stack is reversed as it is drained. A snapshot of the mailbox is taken by reading its
+ * contents.
+ * </p>
+ * <p>
+ * Once a store is set, messages are kept encoded by it, and the head is bounded by the store's limits. A message
+ * which does not fit in memory is appended to the store; if the contents were changed concurrently, the record is
+ * released and the message added again. Once a message is stored, later ones are stored too, so the messages are
+ * drained in order: those kept in memory, and then the stored ones.
+ * </p>
+ * <p>
+ * Each message may expire at a deadline, set as it is added (see {@link PendingExpiry}). The messages kept in memory
+ * are expired one by one, and the stored ones all at once, when the last of them expires, as they are only indexed
+ * as a whole; the contents hold the earliest deadline in memory and the latest stored one, so expired messages are
+ * found without reading them.
+ * </p>
+ * <p>
+ * A message may have a compaction key (see {@link PendingCompaction}): adding it removes the earlier messages kept in
+ * memory with the same key, which it supersedes, in the same compare-and-set. Stored messages are not compacted, as
+ * their keys are not indexed.
+ * </p>
+ */
+class Mailbox {
+
+	/**
+	 * The immutable contents of a mailbox.
+	 */
+	static final class Contents {
+		private final Node head; // the last message kept in memory; null if there is none.
+		final int count; // the number of messages kept in memory.
+		final long length; // the encoded length of the messages kept in memory, once a store is set.
+		final long storedLast; // the position of the last stored message.
+		final int storedCount; // the number of stored messages.
+		final long earliest; // the earliest deadline of the messages kept in memory; NEVER if there are none.
+		final long storedLatest; // the latest deadline of the stored messages.
+
+		private Contents(Node head, int count, long length, long storedLast, int storedCount, long earliest,
+				long storedLatest) {
+			this.head = head;
+			this.count = count;
+			this.length = length;
+			this.storedLast = storedLast;
+			this.storedCount = storedCount;
+			this.earliest = earliest;
+			this.storedLatest = storedLatest;
+		}
+
+		/**
+		 * @return whether there are no messages.
+		 */
+		boolean isEmpty() {
+			return 0 == count && 0 == storedCount;
+		}
+
+		/**
+		 * @return the earliest time at which messages can be expired; {@link Mailbox#NEVER} if none expire.
+		 */
+		long nextExpiry() {
+			return 0 == storedCount ? earliest : Math.min(earliest, storedLatest);
+		}
+
+		/**
+		 * @return the messages kept in memory, in the order they were added: decoded messages, or encoded ones once a
+		 * store is set.
+		 */
+		List<Object> inMemory() {
+			Object[] $ = new Object[count];
+			int i = count;
+			for (Node node = head; null != node; node = node.next) {
+				$[--i] = node.message;
+			}
+			return Arrays.asList($);
+		}
+
+		/**
+		 * @return the deadlines of the messages kept in memory, in the order they were added.
+		 */
+		long[] deadlines() {
+			long[] $ = new long[count];
+			int i = count;
+			for (Node node = head; null != node; node = node.next) {
+				$[--i] = node.expiresAt;
+			}
+			return $;
+		}
+
+		private Node[] nodes() {
+			Node[] $ = new Node[count];
+			int i = count;
+			for (Node node = head; null != node; node = node.next) {
+				$[--i] = node;
+			}
+			return $;
+		}
+
+		private Contents push(Node node) {
+			return push(node.message, node.key, node.expiresAt);
+		}
+
+		private Contents push(Object message, String key, long expiresAt) {
+			return new Contents(new Node(message, key, expiresAt, head), count + 1, length + lengthOf(message),
+					storedLast, storedCount, Math.min(earliest, expiresAt), storedLatest);
+		}
+
+		/**
+		 * @return the contents without the messages kept in memory which have a given compaction key.
+		 */
+		private Contents without(String key) {
+			Node node = head;
+			while (null != node && !key.equals(node.key)) {
+				node = node.next;
+			}
+			if (null == node) {
+				return this;
+			}
+			Contents $ = new Contents(null, 0, 0, storedLast, storedCount, NEVER, storedLatest);
+			for (Node n : nodes()) {
+				if (!key.equals(n.key)) {
+					$ = $.push(n);
+				}
+			}
+			return $;
+		}
+
+		private Contents store(long position, long expiresAt) {
+			return new Contents(head, count, length, position, storedCount + 1, earliest,
+					0 == storedCount ? expiresAt : Math.max(storedLatest, expiresAt));
+		}
+	}
+
+	private static final class Node {
+		final Object message;
+		final String key; // the compaction key; null if the message is not compacted.
+		final long expiresAt;
+		final Node next;
+
+		Node(Object message, String key, long expiresAt, Node next) {
+			this.message = message;
+			this.key = key;
+			this.expiresAt = expiresAt;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * @return the encoded length of a message kept in memory; 0 until a store is set.
+	 */
+	private static long lengthOf(Object message) {
+		return message instanceof String ? ((String)message).length() : 0;
+	}
+
+	/**
+	 * The deadline of messages which do not expire.
+	 */
+	static final long NEVER = Long.MAX_VALUE;
+
+	static final Contents EMPTY = new Contents(null, 0, 0, -1, 0, NEVER, NEVER);
+
+	private final int id;
+	private final AtomicReference<Contents> contents = new AtomicReference<Contents>(EMPTY);
+
+	/**
+	 * Create an empty mailbox.
+	 * @param id the ID of the client.
+	 */
+	Mailbox(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return the current contents of the mailbox.
+	 */
+	Contents contents() {
+		return contents.get();
+	}
+
+	/**
+	 * Add a message, kept in memory as it is; used until a store is set.
+	 * @param message the message.
+	 * @param key the compaction key of the message, or null if it is not compacted.
+	 * @param expiresAt the time the message expires, in milliseconds, or {@link #NEVER}.
+	 * @return the number of earlier messages the message superseded.
+	 */
+	int add(Exchange message, String key, long expiresAt) {
+		while (true) {
+			Contents c = contents.get();
+			Contents kept = null == key ? c : c.without(key);
+			if (contents.compareAndSet(c, kept.push(message, key, expiresAt))) {
+				return c.count - kept.count;
+			}
+		}
+	}
+
+	/**
+	 * Add an encoded message, kept in memory if it fits within the limits of the store, or appended to it otherwise.
+	 * @param encoded the message, encoded by the store.
+	 * @param key the compaction key of the message, or null if it is not compacted.
+	 * @param expiresAt the time the message expires, in milliseconds, or {@link #NEVER}.
+	 * @param store the store.
+	 * @param memory the encoded length of the messages kept in memory by all mailboxes.
+	 * @return the number of earlier messages the message superseded.
+	 */
+	int add(String encoded, String key, long expiresAt, PendingStore store, AtomicLong memory) {
+		int length = encoded.length();
+		while (true) {
+			Contents c = contents.get();
+			Contents kept = null == key ? c : c.without(key);
+			long growth = length - (c.length - kept.length);
+			if (0 == kept.storedCount && kept.count < store.headCount && kept.length + length <= store.headSize) {
+				if (memory.addAndGet(growth) <= store.memory) {
+					if (contents.compareAndSet(c, kept.push(encoded, key, expiresAt))) {
+						return c.count - kept.count;
+					}
+					memory.addAndGet(-growth);
+					continue;
+				}
+				memory.addAndGet(-growth);
+			}
+			long position = store.append(id, 0 == kept.storedCount ? -1 : kept.storedLast, encoded);
+			if (contents.compareAndSet(c, kept.store(position, expiresAt))) {
+				memory.addAndGet(kept.length - c.length);
+				return c.count - kept.count;
+			}
+			store.release(position); // the record is not referred to.
+		}
+	}
+
+	/**
+	 * Take all of the messages at once, leaving the mailbox empty.
+	 * @return the contents taken.
+	 */
+	Contents drain() {
+		return contents.getAndSet(EMPTY);
+	}
+
+	/**
+	 * Remove the messages which expired by a given time: those kept in memory one by one, and the stored ones all at
+	 * once, if the last of them expired.
+	 * @param now the time, in milliseconds.
+	 * @return the contents removed, which hold the expired messages kept in memory and the index of the stored
+	 * messages, if they expired.
+	 */
+	Contents expire(long now) {
+		while (true) {
+			Contents c = contents.get();
+			if (c.nextExpiry() > now) {
+				return EMPTY;
+			}
+			boolean storedExpired = c.storedCount > 0 && c.storedLatest <= now;
+			Contents left = storedExpired ? new Contents(null, 0, 0, -1, 0, NEVER, NEVER)
+					: new Contents(null, 0, 0, c.storedLast, c.storedCount, NEVER, c.storedLatest);
+			Contents gone = storedExpired ? new Contents(null, 0, 0, c.storedLast, c.storedCount, NEVER, c.storedLatest)
+					: EMPTY;
+			for (Node node : c.nodes()) {
+				if (node.expiresAt <= now) {
+					gone = gone.push(node);
+				} else {
+					left = left.push(node);
+				}
+			}
+			if (contents.compareAndSet(c, left)) {
+				return gone;
+			}
+		}
+	}
+
+	/**
+	 * Set the index of the stored messages, while loading a snapshot.
+	 * @param last the position of the last stored message.
+	 * @param count the number of stored messages.
+	 * @param latest the latest deadline of the stored messages.
+	 */
+	void restoreStored(long last, int count, long latest) {
+		Contents c = contents.get();
+		contents.set(new Contents(c.head, c.count, c.length, last, count, c.earliest, latest));
+	}
+
+	/**
+	 * Encode the messages kept in memory by a store, which is set after loading a snapshot. The messages beyond the
+	 * limits of the store are moved to it, unless there are stored messages already, which are later ones.
+	 * @param store the store.
+	 * @param memory the encoded length of the messages kept in memory by all mailboxes.
+	 */
+	void encodeIn(PendingStore store, AtomicLong memory) {
+		Contents loaded = contents.get();
+		Contents c = new Contents(null, 0, 0, loaded.storedLast, loaded.storedCount, NEVER, loaded.storedLatest);
+		Node[] nodes = loaded.nodes();
+		if (0 == loaded.storedCount) {
+			contents.set(c);
+			for (Node node : nodes) {
+				add(store.encode((Exchange)node.message), node.key, node.expiresAt, store, memory);
+			}
+			return;
+		}
+		// Keep the head in memory, whatever its length.
+		for (Node node : nodes) {
+			String encoded = store.encode((Exchange)node.message);
+			c = c.push(encoded, node.key, node.expiresAt);
+			memory.addAndGet(encoded.length());
+		}
+		contents.set(c);
+	}
+}
@@ -0,0 +1,79 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.FriendResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+
+/**
+ * The rules by which pending exchanges are compacted, by their type: a pending exchange with a compaction key
+ * supersedes the exchanges pending before it with the same key, which are removed as it is added (see
+ * {@link Mailbox}), so a client connecting after a while is sent only the exchanges which still matter.
+ *
+ * <p>
+ * A presence response supersedes the earlier responses about the same user, a friend request the earlier requests of
+ * the same inviter, and a friend response the earlier responses of the same invitee. Instant messages are never
+ * compacted, so their order is kept. Each rule is enabled by default, and configured by the system properties
+ * <code>ttalk.pending.compact.presence</code>, <code>ttalk.pending.compact.friendrequest</code> and
+ * <code>ttalk.pending.compact.friendresponse</code>, see {@link #fromSystemProperties}.
+ * </p>
+ */
+class PendingCompaction {
+
+	static final String PRESENCE_PROPERTY = "ttalk.pending.compact.presence";
+	static final String FRIEND_REQUEST_PROPERTY = "ttalk.pending.compact.friendrequest";
+	static final String FRIEND_RESPONSE_PROPERTY = "ttalk.pending.compact.friendresponse";
+
+	private final boolean presence;
+	private final boolean friendRequests;
+	private final boolean friendResponses;
+
+	/**
+	 * Create compaction rules.
+	 * @param presence whether a presence response supersedes the earlier ones about the same user.
+	 * @param friendRequests whether a friend request supersedes the earlier ones of the same inviter.
+	 * @param friendResponses whether a friend response supersedes the earlier ones of the same invitee.
+	 */
+	PendingCompaction(boolean presence, boolean friendRequests, boolean friendResponses) {
+		this.presence = presence;
+		this.friendRequests = friendRequests;
+		this.friendResponses = friendResponses;
+	}
+
+	/**
+	 * Create the compaction rules configured by the system properties (see class documentation).
+	 * @return the rules.
+	 */
+	static PendingCompaction fromSystemProperties() {
+		return new PendingCompaction(enabled(PRESENCE_PROPERTY), enabled(FRIEND_REQUEST_PROPERTY),
+				enabled(FRIEND_RESPONSE_PROPERTY));
+	}
+
+	private static boolean enabled(String property) {
+		return Boolean.parseBoolean(System.getProperty(property, "true"));
+	}
+
+	/**
+	 * @param exchange a pending exchange.
+	 * @return its compaction key, which the exchanges it supersedes share; null if it is not compacted.
+	 */
+	String keyOf(Exchange exchange) {
+		if (presence && exchange instanceof IsOnlineResponse) {
+			return "presence " + ((IsOnlineResponse)exchange).who;
+		}
+		if (friendRequests && exchange instanceof FriendRequest) {
+			return "request " + ((FriendRequest)exchange).invitation.from;
+		}
+		if (friendResponses && exchange instanceof FriendResponse) {
+			return "response " + ((FriendResponse)exchange).invitation.to;
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether any exchange is compacted.
+	 */
+	boolean compactsAny() {
+		return presence || friendRequests || friendResponses;
+	}
+}
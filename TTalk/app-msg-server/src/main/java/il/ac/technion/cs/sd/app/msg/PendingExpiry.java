@@ -0,0 +1,108 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.FriendResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time-to-live of pending exchanges, by their type: an exchange kept pending for a client who does not connect
+ * expires once its time-to-live passed, and is then dropped (see {@link PendingSweeper}). The deadline of each
+ * exchange is set as it is added, so changing a time-to-live does not affect the exchanges pending already.
+ *
+ * <p>
+ * By default, instant messages do not expire, friend requests and responses expire after a week, and presence
+ * responses, which nobody waits for once their client disconnected, after a minute. Configured by the system
+ * properties <code>ttalk.pending.ttl.message</code>, <code>ttalk.pending.ttl.friendrequest</code>,
+ * <code>ttalk.pending.ttl.friendresponse</code> and <code>ttalk.pending.ttl.presence</code> (in milliseconds; 0 does
+ * not expire), see {@link #fromSystemProperties}. Other exchanges do not expire.
+ * </p>
+ */
+class PendingExpiry {
+
+	static final String MESSAGE_TTL_PROPERTY = "ttalk.pending.ttl.message";
+	static final String FRIEND_REQUEST_TTL_PROPERTY = "ttalk.pending.ttl.friendrequest";
+	static final String FRIEND_RESPONSE_TTL_PROPERTY = "ttalk.pending.ttl.friendresponse";
+	static final String PRESENCE_TTL_PROPERTY = "ttalk.pending.ttl.presence";
+	static final long DEFAULT_MESSAGE_TTL = 0;
+	static final long DEFAULT_FRIEND_TTL = TimeUnit.DAYS.toMillis(7);
+	static final long DEFAULT_PRESENCE_TTL = TimeUnit.MINUTES.toMillis(1);
+
+	private final long messageTtl;
+	private final long friendRequestTtl;
+	private final long friendResponseTtl;
+	private final long presenceTtl;
+
+	/**
+	 * Create the time-to-live of pending exchanges.
+	 * @param messageTtl of instant messages, in milliseconds; 0 not to expire.
+	 * @param friendRequestTtl of friend requests, in milliseconds; 0 not to expire.
+	 * @param friendResponseTtl of friend responses, in milliseconds; 0 not to expire.
+	 * @param presenceTtl of presence responses, in milliseconds; 0 not to expire.
+	 */
+	PendingExpiry(long messageTtl, long friendRequestTtl, long friendResponseTtl, long presenceTtl) {
+		if (messageTtl < 0 || friendRequestTtl < 0 || friendResponseTtl < 0 || presenceTtl < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.messageTtl = messageTtl;
+		this.friendRequestTtl = friendRequestTtl;
+		this.friendResponseTtl = friendResponseTtl;
+		this.presenceTtl = presenceTtl;
+	}
+
+	/**
+	 * Create the time-to-live of pending exchanges configured by the system properties (see class documentation).
+	 * @return the time-to-live.
+	 */
+	static PendingExpiry fromSystemProperties() {
+		return new PendingExpiry(ttlOf(MESSAGE_TTL_PROPERTY, DEFAULT_MESSAGE_TTL),
+				ttlOf(FRIEND_REQUEST_TTL_PROPERTY, DEFAULT_FRIEND_TTL),
+				ttlOf(FRIEND_RESPONSE_TTL_PROPERTY, DEFAULT_FRIEND_TTL),
+				ttlOf(PRESENCE_TTL_PROPERTY, DEFAULT_PRESENCE_TTL));
+	}
+
+	private static long ttlOf(String property, long defaultTtl) {
+		return Long.parseLong(System.getProperty(property, Long.toString(defaultTtl)));
+	}
+
+	/**
+	 * @param exchange a pending exchange.
+	 * @return its time-to-live, in milliseconds; 0 if it does not expire.
+	 */
+	long ttlOf(Exchange exchange) {
+		if (exchange instanceof SendInstantMessageRequest) {
+			return messageTtl;
+		}
+		if (exchange instanceof FriendRequest) {
+			return friendRequestTtl;
+		}
+		if (exchange instanceof FriendResponse) {
+			return friendResponseTtl;
+		}
+		if (exchange instanceof IsOnlineResponse || exchange instanceof IsOnlineBatchResponse) {
+			return presenceTtl;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param exchange an exchange added to pending exchanges.
+	 * @param now the time it is added, in milliseconds.
+	 * @return the time it expires, in milliseconds, or {@link Mailbox#NEVER}.
+	 */
+	long deadlineOf(Exchange exchange, long now) {
+		long ttl = ttlOf(exchange);
+		return 0 == ttl ? Mailbox.NEVER : now + ttl;
+	}
+
+	/**
+	 * @return whether any exchange expires.
+	 */
+	boolean expiresAny() {
+		return 0 != messageTtl || 0 != friendRequestTtl || 0 != friendResponseTtl || 0 != presenceTtl;
+	}
+}
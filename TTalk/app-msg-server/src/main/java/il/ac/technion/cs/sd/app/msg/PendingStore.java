@@ -0,0 +1,479 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.msg.Codec;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segment files of encoded pending messages, to which the mailboxes of the {@link ServerData} spill the
+ * messages which do not fit in memory.
+ * <p>
+ * Each record holds its length, the ID of the client, the position of the client's previous record (or -1), the
+ * encoded message and a CRC32 checksum. The messages of a client are thus read by following the chain back from the
+ * client's last record; the position of each client's last record and the number of its records are indexed by the
+ * {@link ServerData}, which saves the index in its snapshots. A position is the index of a segment in its high 32 bits
+ * and the offset of the record in the segment in its low 32 bits; records do not span segments. The first segment is
+ * kept in the store file, and the others in files named after it and their index. Segments are memory-mapped for
+ * reading, and the messages are passed on as they were encoded, so they need not be decoded to be sent.
+ * </p>
+ * <p>
+ * The store counts the live records in each segment: those appended and not yet drained. A segment without live
+ * records is reclaimed once a snapshot which does not refer to it is saved (see {@link #reclaim}); the counts are
+ * saved in the snapshots as well.
+ * </p>
+ * <p>
+ * The store is not forced on each append: the {@link Journal} makes pending messages durable, and the store is forced
+ * before a snapshot which refers to it is saved. Upon opening, the store is truncated to the end recorded by the
+ * snapshot, and the messages added since are appended again as the journal is replayed.
+ * </p>
+ * <p>
+ * The store also holds the limits of the mailboxes' memory, configured by system properties, see
+ * {@link #fromSystemProperties}.
+ * </p>
+ */
+class PendingStore {
+
+	static final String SEGMENT_SIZE_PROPERTY = "ttalk.mailbox.segment";
+	static final String HEAD_COUNT_PROPERTY = "ttalk.mailbox.head.count";
+	static final String HEAD_SIZE_PROPERTY = "ttalk.mailbox.head.size";
+	static final String MEMORY_PROPERTY = "ttalk.mailbox.memory";
+	static final int DEFAULT_SEGMENT_SIZE = 1 << 26;
+	static final int DEFAULT_HEAD_COUNT = 64;
+	static final int DEFAULT_HEAD_SIZE = 1 << 16;
+	static final long DEFAULT_MEMORY = 1L << 26;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int HEADER_SIZE = 4 + 4 + 8; // length, client ID, previous record.
+
+	private final File file;
+	private final Codec<Exchange> codec;
+	private final int segmentSize;
+	final int headCount;
+	final int headSize;
+	final long memory;
+
+	private FileChannel channel = null; // of the last segment.
+	private int segment; // the index of the last segment.
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private int flushed; // the offset in the last segment of the start of the buffer.
+	private MappedByteBuffer[] maps = new MappedByteBuffer[4]; // by segment; the last one may be partial.
+	private int[] live = new int[4]; // the number of records not drained, by segment.
+
+	/**
+	 * Create a pending message store.
+	 * @param fileName the name of the store file.
+	 * @param codec the codec for the messages.
+	 * @param segmentSize the size at which segments are closed.
+	 * @param headCount the number of messages of a client kept in memory.
+	 * @param headSize the total length of the encoding of the messages of a client kept in memory.
+	 * @param memory the total length of the encoding of all messages kept in memory.
+	 */
+	PendingStore(String fileName, Codec<Exchange> codec, int segmentSize, int headCount, int headSize, long memory) {
+		if (null == fileName || null == codec || segmentSize <= 0 || headCount < 0 || headSize < 0 || memory < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.file = new File(fileName);
+		this.codec = codec;
+		this.segmentSize = segmentSize;
+		this.headCount = headCount;
+		this.headSize = headSize;
+		this.memory = memory;
+	}
+
+	/**
+	 * Create a pending message store with the default limits, encoding the messages with XStream.
+	 * @param fileName the name of the store file.
+	 */
+	PendingStore(String fileName) {
+		this(fileName, new XStreamCodec<Exchange>(), DEFAULT_SEGMENT_SIZE, DEFAULT_HEAD_COUNT, DEFAULT_HEAD_SIZE,
+				DEFAULT_MEMORY);
+	}
+
+	/**
+	 * Create a pending message store configured by the system properties: <code>ttalk.mailbox.segment</code> (the
+	 * segment size in bytes), <code>ttalk.mailbox.head.count</code> and <code>ttalk.mailbox.head.size</code> (the
+	 * number and total encoded length of a client's messages kept in memory) and <code>ttalk.mailbox.memory</code>
+	 * (the total encoded length of all messages kept in memory).
+	 * @param fileName the name of the store file.
+	 * @return the store.
+	 */
+	static PendingStore fromSystemProperties(String fileName) {
+		return new PendingStore(fileName, new XStreamCodec<Exchange>(),
+				Integer.parseInt(System.getProperty(SEGMENT_SIZE_PROPERTY, Integer.toString(DEFAULT_SEGMENT_SIZE))),
+				Integer.parseInt(System.getProperty(HEAD_COUNT_PROPERTY, Integer.toString(DEFAULT_HEAD_COUNT))),
+				Integer.parseInt(System.getProperty(HEAD_SIZE_PROPERTY, Integer.toString(DEFAULT_HEAD_SIZE))),
+				Long.parseLong(System.getProperty(MEMORY_PROPERTY, Long.toString(DEFAULT_MEMORY))));
+	}
+
+	private File segmentFile(int index) {
+		return 0 == index ? file : new File(file.getPath() + "." + index);
+	}
+
+	/**
+	 * Open the store, discarding anything written after a given position.
+	 * @param end the end of the store recorded by the last snapshot, or 0 if there is none.
+	 */
+	synchronized void open(long end) {
+		if (null != channel) {
+			throw new IllegalStateException("pending store is already open");
+		}
+		segment = (int)(end >>> 32);
+		int offset = (int)end;
+		for (File f : segments()) {
+			if (indexOf(f) > segment) {
+				f.delete();
+			}
+		}
+		try {
+			channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (channel.size() < offset) {
+				throw new RuntimeException("pending store " + file + " is shorter than its last snapshot");
+			}
+			channel.truncate(offset);
+			channel.position(offset);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		buffer.clear();
+		flushed = offset;
+		Arrays.fill(maps, null);
+		Arrays.fill(live, 0);
+	}
+
+	private int indexOf(File segmentFile) {
+		return Integer.parseInt(segmentFile.getName().substring(file.getName().length() + 1));
+	}
+
+	/**
+	 * @return the files of the segments after the first.
+	 */
+	private File[] segments() {
+		File dir = file.getAbsoluteFile().getParentFile();
+		String prefix = file.getName() + ".";
+		File[] $ = dir.listFiles((d, name) -> name.startsWith(prefix) && name.length() > prefix.length()
+				&& name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+		return null == $ ? new File[0] : $;
+	}
+
+	/**
+	 * Set the counts of live records in the segments, as saved in a snapshot, after opening the store.
+	 * @param counts the number of live records, by segment.
+	 */
+	synchronized void restoreLive(int[] counts) {
+		live = Arrays.copyOf(counts, Math.max(counts.length, segment + 1));
+	}
+
+	/**
+	 * Count the records of a client as live, after opening the store, when their counts were not saved.
+	 * @param id the client's ID.
+	 * @param last the position of the client's last record.
+	 * @param count the number of the client's records.
+	 */
+	void retain(int id, long last, int count) {
+		long[] positions = chain(id, last, count);
+		synchronized (this) {
+			for (long position : positions) {
+				count((int)(position >>> 32), 1);
+			}
+		}
+	}
+
+	private void count(int index, int delta) {
+		// Called under the lock of the store.
+		if (index >= live.length) {
+			live = Arrays.copyOf(live, Math.max(index + 1, 2 * live.length));
+		}
+		live[index] += delta;
+	}
+
+	/**
+	 * @return the number of live records, by segment, up to the last segment.
+	 */
+	synchronized int[] liveCounts() {
+		return Arrays.copyOf(live, segment + 1);
+	}
+
+	/**
+	 * Delete the segments without live records in a saved snapshot, which the data does not refer to anymore: as
+	 * records are only appended to the last segment, a segment before it which had no live records when the snapshot
+	 * was taken has none since, and the data loaded from the snapshot never refers to it.
+	 * @param counts the number of live records by segment, when the snapshot was taken.
+	 * @param end the end of the store, when the snapshot was taken.
+	 */
+	synchronized void reclaim(int[] counts, long end) {
+		int last = (int)(end >>> 32);
+		for (int i = 0; i < last; ++i) {
+			if ((i >= counts.length || 0 == counts[i]) && segmentFile(i).exists()) {
+				segmentFile(i).delete();
+				if (i < maps.length) {
+					maps[i] = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param message a message.
+	 * @return the message encoded for the store.
+	 */
+	String encode(Exchange message) {
+		return codec.encode(message);
+	}
+
+	/**
+	 * @param encoded a message encoded for the store.
+	 * @return the message.
+	 */
+	Exchange decode(String encoded) {
+		return codec.decode(encoded);
+	}
+
+	/**
+	 * Append a message of a client.
+	 * @param id the client's ID.
+	 * @param previous the position of the client's previous record, or -1 if there is none.
+	 * @param encoded the encoded message.
+	 * @return the position of the new record.
+	 */
+	synchronized long append(int id, long previous, String encoded) {
+		checkOpen();
+		byte[] bytes = encoded.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length + 4);
+		record.putInt(4 + 8 + bytes.length).putInt(id).putLong(previous).put(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, record.position() - 4);
+		record.putInt((int)crc.getValue());
+		record.flip();
+		if (flushed + buffer.position() > 0 && flushed + buffer.position() + record.limit() > segmentSize) {
+			nextSegment();
+		}
+		long $ = end();
+		count(segment, 1);
+		if (record.remaining() > buffer.remaining()) {
+			flush();
+		}
+		if (record.remaining() > buffer.remaining()) {
+			write(record);
+			flushed += record.limit();
+		} else {
+			buffer.put(record);
+		}
+		return $;
+	}
+
+	private void nextSegment() {
+		// Called under the lock of the store.
+		flush();
+		try {
+			channel.force(false);
+			channel.close();
+			++segment;
+			channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		flushed = 0;
+	}
+
+	/**
+	 * Read the messages of a client, leaving their records live.
+	 * @param id the client's ID.
+	 * @param last the position of the client's last record.
+	 * @param count the number of the client's records.
+	 * @return the messages, in the order they were appended.
+	 */
+	List<Exchange> read(int id, long last, int count) {
+		List<Exchange> $ = new ArrayList<Exchange>(count);
+		for (long position : chain(id, last, count)) {
+			$.add(codec.decode(readEncoded(position)));
+		}
+		return $;
+	}
+
+	/**
+	 * Read the messages of a client one at a time, as they were encoded, and release their records, which are no
+	 * longer live. The client's index entry should have been cleared.
+	 * @param id the client's ID.
+	 * @param last the position of the client's last record.
+	 * @param count the number of the client's records.
+	 * @param consumer accepts the encoded messages, in the order they were appended; <code>null</code> to release the
+	 * records without reading them.
+	 */
+	void drain(int id, long last, int count, Consumer<String> consumer) {
+		long[] positions = chain(id, last, count);
+		if (null != consumer) {
+			for (long position : positions) {
+				consumer.accept(readEncoded(position));
+			}
+		}
+		synchronized (this) {
+			for (long position : positions) {
+				count((int)(position >>> 32), -1);
+			}
+		}
+	}
+
+	/**
+	 * Release a record which is not referred to, as it is no longer live.
+	 * @param position the position of the record.
+	 */
+	synchronized void release(long position) {
+		count((int)(position >>> 32), -1);
+	}
+
+	/**
+	 * Follow the chain of a client's records back.
+	 * @return the positions of the records, in the order they were appended.
+	 */
+	private long[] chain(int id, long last, int count) {
+		long[] $ = new long[count];
+		long position = last;
+		for (int i = count - 1; i >= 0; --i) {
+			if (position < 0) {
+				throw new RuntimeException("corrupt pending store: " + file);
+			}
+			$[i] = position;
+			ByteBuffer map = mapOf(position);
+			int offset = (int)position;
+			if (map.getInt(offset + 4) != id) {
+				throw new RuntimeException("corrupt pending store: " + file);
+			}
+			position = map.getLong(offset + 8);
+		}
+		return $;
+	}
+
+	private String readEncoded(long position) {
+		ByteBuffer record = mapOf(position).duplicate();
+		record.position((int)position);
+		int length = record.getInt();
+		if (length < 12 || record.remaining() < length + 4) {
+			throw new RuntimeException("corrupt pending store: " + file);
+		}
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		if (record.getInt() != (int)crc.getValue()) {
+			throw new RuntimeException("corrupt pending store: " + file);
+		}
+		return new String(bytes, 12, length - 12, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Map the segment holding a record; records in a mapping are never changed, so they are read without locking.
+	 */
+	private synchronized ByteBuffer mapOf(long position) {
+		checkOpen();
+		int index = (int)(position >>> 32);
+		int offset = (int)position;
+		if (index > segment) {
+			throw new RuntimeException("corrupt pending store: " + file);
+		}
+		if (index >= maps.length) {
+			maps = Arrays.copyOf(maps, Math.max(index + 1, 2 * maps.length));
+		}
+		MappedByteBuffer $ = maps[index];
+		if (null == $ || $.capacity() < offset + HEADER_SIZE) {
+			if (index == segment && offset + HEADER_SIZE > flushed) {
+				flush();
+			}
+			try (FileChannel c = FileChannel.open(segmentFile(index).toPath(), StandardOpenOption.READ)) {
+				maps[index] = $ = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return $;
+	}
+
+	/**
+	 * @return the position after the last record.
+	 */
+	synchronized long end() {
+		return ((long)segment << 32) | (flushed + buffer.position());
+	}
+
+	/**
+	 * Force the records appended so far to the disk, before saving a snapshot which refers to them.
+	 */
+	synchronized void force() {
+		if (null == channel) {
+			return;
+		}
+		flush();
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void flush() {
+		// Called under the lock of the store.
+		buffer.flip();
+		flushed += buffer.remaining();
+		write(buffer);
+		buffer.clear();
+	}
+
+	private void write(ByteBuffer bytes) {
+		try {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void checkOpen() {
+		if (null == channel) {
+			throw new IllegalStateException("pending store is closed");
+		}
+	}
+
+	/**
+	 * Force and close the store.
+	 */
+	synchronized void close() {
+		if (null == channel) {
+			return;
+		}
+		force();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			channel = null;
+			Arrays.fill(maps, null);
+			Arrays.fill(live, 0);
+		}
+	}
+
+	/**
+	 * Delete the store files. The store should be closed.
+	 */
+	void clean() {
+		for (File f : segments()) {
+			f.delete();
+		}
+		file.delete();
+	}
+}
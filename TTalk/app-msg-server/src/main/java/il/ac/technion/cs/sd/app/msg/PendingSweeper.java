@@ -0,0 +1,124 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Drops expired pending messages (see {@link PendingExpiry}) of clients who do not connect to take them. Once started,
+ * a background thread periodically scans a batch of users, going on from where the last scan stopped and starting
+ * over once all of them were scanned, so each scan takes a bounded time however many users there are. The deadlines
+ * are read without locks, and the messages of each client found are dropped by the thread handling its requests.
+ *
+ * <p>
+ * Configured by the system properties <code>ttalk.pending.sweep.interval</code> (in milliseconds; a non-positive
+ * interval disables sweeping) and <code>ttalk.pending.sweep.batch</code> (in users), see
+ * {@link #fromSystemProperties}.
+ * </p>
+ */
+class PendingSweeper {
+
+	static final String INTERVAL_PROPERTY = "ttalk.pending.sweep.interval";
+	static final String BATCH_PROPERTY = "ttalk.pending.sweep.batch";
+	static final long DEFAULT_INTERVAL_IN_MILLISECONDS = 100L;
+	static final int DEFAULT_BATCH = 4096;
+
+	private final long intervalInMilliseconds;
+	private final int batch;
+	private final LongAdder expired = new LongAdder();
+
+	private Thread thread = null;
+	private final Semaphore stop = new Semaphore(0);
+
+	/**
+	 * Create a sweeper.
+	 * @param intervalInMilliseconds the time between scans; non-positive to disable sweeping.
+	 * @param batch the most users scanned at once.
+	 */
+	PendingSweeper(long intervalInMilliseconds, int batch) {
+		if (batch <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.intervalInMilliseconds = intervalInMilliseconds;
+		this.batch = batch;
+	}
+
+	/**
+	 * Create a sweeper configured by the system properties (see class documentation).
+	 * @return the sweeper.
+	 */
+	static PendingSweeper fromSystemProperties() {
+		long interval = Long.parseLong(
+				System.getProperty(INTERVAL_PROPERTY, Long.toString(DEFAULT_INTERVAL_IN_MILLISECONDS)));
+		int batch = Integer.parseInt(System.getProperty(BATCH_PROPERTY, Integer.toString(DEFAULT_BATCH)));
+		return new PendingSweeper(interval, batch);
+	}
+
+	/**
+	 * Start sweeping the pending messages of data periodically.
+	 * @param data the data, in parts which are scanned each in turn (see {@link DataShard}).
+	 * @param executor runs a task on behalf of a client, on the thread handling the client's requests.
+	 */
+	void start(List<ServerData> data, BiConsumer<String, Runnable> executor) {
+		if (null != thread) {
+			throw new IllegalStateException("sweeper is already started");
+		}
+		if (intervalInMilliseconds <= 0) {
+			return;
+		}
+		thread = new Thread(() -> {
+			try {
+				int[] from = new int[data.size()];
+				while (!stop.tryAcquire(intervalInMilliseconds, TimeUnit.MILLISECONDS)) {
+					for (int i = 0; i < from.length; ++i) {
+						from[i] = sweep(data.get(i), executor, from[i], System.currentTimeMillis());
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}, "pending-sweeper");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Scan a batch of users, and drop the expired pending messages of those who have any.
+	 * @param data the data.
+	 * @param executor runs a task on behalf of a client, on the thread handling the client's requests.
+	 * @param from the user ID to scan from.
+	 * @param now the current time, in milliseconds.
+	 * @return the user ID to scan from next.
+	 */
+	int sweep(ServerData data, BiConsumer<String, Runnable> executor, int from, long now) {
+		return data.findExpiredPending(from, batch, now,
+				client -> executor.accept(client, () -> expired.add(data.expirePending(client, now))));
+	}
+
+	/**
+	 * @return the number of pending messages dropped as they expired.
+	 */
+	long expired() {
+		return expired.sum();
+	}
+
+	/**
+	 * Stop sweeping, waiting for a scan in progress.
+	 */
+	void stop() {
+		if (null == thread) {
+			return;
+		}
+		stop.release();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			thread = null;
+			stop.drainPermits();
+		}
+	}
+}
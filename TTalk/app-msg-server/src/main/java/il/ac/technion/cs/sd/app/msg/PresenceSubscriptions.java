@@ -0,0 +1,116 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceUpdate;
+
+/**
+ * The clients subscribed to the presence of their friends, and the changes of presence waiting to be pushed to them.
+ * A change pushed to a subscriber is not sent at once: the first change schedules a flush on the subscriber's shard,
+ * and the changes pushed before the flush runs are coalesced with it, so a burst of changes (such as many friends
+ * connecting together) is sent as a single {@link PresenceUpdate}, in which each friend appears by its latest
+ * presence.
+ *
+ * <p>
+ * The changes of each subscriber are pushed and flushed on its shard, so they need no locks; a subscription ends as
+ * the client disconnects.
+ * </p>
+ */
+class PresenceSubscriptions {
+
+	private final BiConsumer<String, Runnable> executor;
+	private final BiConsumer<String, Exchange> sender;
+	private final Set<String> subscribers = ConcurrentHashMap.newKeySet();
+	private final Map<String, Map<String, Boolean>> unsent = new ConcurrentHashMap<String, Map<String, Boolean>>();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	/**
+	 * Create subscriptions.
+	 * @param executor runs a task on behalf of a client, on the thread handling the client's requests.
+	 * @param sender sends an exchange to a client.
+	 */
+	PresenceSubscriptions(BiConsumer<String, Runnable> executor, BiConsumer<String, Exchange> sender) {
+		this.executor = executor;
+		this.sender = sender;
+	}
+
+	/**
+	 * Subscribe a client to the presence of its friends.
+	 * Must be called on the client's shard.
+	 * @param client the name of the client.
+	 */
+	void subscribe(String client) {
+		subscribers.add(client);
+	}
+
+	/**
+	 * End the subscription of a client, dropping the changes not sent to it yet.
+	 * Must be called on the client's shard.
+	 * @param client the name of the client.
+	 */
+	void unsubscribe(String client) {
+		subscribers.remove(client);
+		unsent.remove(client);
+	}
+
+	/**
+	 * @param client the name of a client.
+	 * @return whether the client is subscribed.
+	 */
+	boolean isSubscribed(String client) {
+		return subscribers.contains(client);
+	}
+
+	/**
+	 * Push changes of presence to a subscriber, to be sent with the changes pushed before they are flushed. Changes
+	 * pushed to a client which is not subscribed are dropped.
+	 * Must be called on the subscriber's shard.
+	 * @param subscriber the name of the subscriber.
+	 * @param changes whether each of the subscriber's friends is online, by name.
+	 */
+	void push(String subscriber, Map<String, Boolean> changes) {
+		if (!subscribers.contains(subscriber)) {
+			return;
+		}
+		Map<String, Boolean> pending = unsent.get(subscriber);
+		if (null != pending) {
+			for (Map.Entry<String, Boolean> e : changes.entrySet()) {
+				if (null != pending.put(e.getKey(), e.getValue())) {
+					coalesced.increment();
+				}
+			}
+			return;
+		}
+		unsent.put(subscriber, new HashMap<String, Boolean>(changes));
+		executor.accept(subscriber, () -> flush(subscriber));
+	}
+
+	private void flush(String subscriber) {
+		Map<String, Boolean> changes = unsent.remove(subscriber);
+		if (null != changes) {
+			sender.accept(subscriber, new PresenceUpdate(changes));
+			sent.increment();
+		}
+	}
+
+	/**
+	 * @return the number of updates sent to subscribers.
+	 */
+	long sent() {
+		return sent.sum();
+	}
+
+	/**
+	 * @return the number of changes coalesced with a later change of the same friend before they were sent.
+	 */
+	long coalesced() {
+		return coalesced.sum();
+	}
+}
@@ -0,0 +1,242 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of requests the server admits, by token buckets: one of each client, and a global one covering the
+ * requests of all clients. A bucket holds up to a burst of tokens and is refilled at a steady rate; each request
+ * admitted takes a token from the client's bucket, and then from the global one. A request costing more, such as a
+ * message to several recipients, takes several tokens at once, or none if there are not enough of them; one costing
+ * more than a burst is never admitted. A request is checked as it is
+ * received, before it is handled, so the requests of a flooding client are turned away without delaying those of
+ * other clients.
+ *
+ * <p>
+ * The bucket of a client is forgotten when it is full, which is the same as having none, so a client can not reset its
+ * bucket by reconnecting: as the client disconnects, and otherwise by a sweep of the buckets left idle long enough to
+ * be refilled, run by the requests at most once in that time.
+ * </p>
+ *
+ * <p>
+ * Configured by the system properties <code>ttalk.ratelimit.client.rate</code> and
+ * <code>ttalk.ratelimit.global.rate</code> (in requests per second; 0, the default, does not limit) and
+ * <code>ttalk.ratelimit.client.burst</code> and <code>ttalk.ratelimit.global.burst</code> (in requests; by default, a
+ * second's worth), see {@link #fromSystemProperties}.
+ * </p>
+ */
+class RateLimiter {
+
+	static final String CLIENT_RATE_PROPERTY = "ttalk.ratelimit.client.rate";
+	static final String CLIENT_BURST_PROPERTY = "ttalk.ratelimit.client.burst";
+	static final String GLOBAL_RATE_PROPERTY = "ttalk.ratelimit.global.rate";
+	static final String GLOBAL_BURST_PROPERTY = "ttalk.ratelimit.global.burst";
+
+	private static final long SECOND_IN_NANOSECONDS = 1000000000L;
+	private static final long MIN_SWEEP_INTERVAL_IN_NANOSECONDS = SECOND_IN_NANOSECONDS;
+
+	/**
+	 * A bucket of tokens, refilled at a steady rate up to its capacity.
+	 */
+	static class TokenBucket {
+		private final double perNanosecond;
+		private final double capacity;
+		private double tokens;
+		private long refilledAt;
+
+		/**
+		 * Create a full bucket.
+		 * @param rate the tokens added per second.
+		 * @param burst the most tokens held.
+		 * @param now the current time, in nanoseconds.
+		 */
+		TokenBucket(double rate, double burst, long now) {
+			this.perNanosecond = rate / SECOND_IN_NANOSECONDS;
+			this.capacity = burst;
+			this.tokens = burst;
+			this.refilledAt = now;
+		}
+
+		private void refill(long now) {
+			if (now > refilledAt) {
+				tokens = Math.min(capacity, tokens + (now - refilledAt) * perNanosecond);
+				refilledAt = now;
+			}
+		}
+
+		/**
+		 * Take some tokens, if there are enough of them.
+		 * @param n the number of tokens.
+		 * @param now the current time, in nanoseconds.
+		 * @return whether the tokens were taken.
+		 */
+		synchronized boolean tryTake(int n, long now) {
+			refill(now);
+			if (tokens < n) {
+				return false;
+			}
+			tokens -= n;
+			return true;
+		}
+
+		/**
+		 * @param now the current time, in nanoseconds.
+		 * @return whether the bucket is full.
+		 */
+		synchronized boolean isFull(long now) {
+			refill(now);
+			return tokens >= capacity;
+		}
+	}
+
+	private final double clientRate;
+	private final double clientBurst;
+	private final TokenBucket global; // null if not limited.
+	private final ConcurrentMap<String, TokenBucket> clients = new ConcurrentHashMap<String, TokenBucket>();
+	private final long sweepIntervalInNanoseconds;
+	private final AtomicLong sweptAt;
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rejectedByClient = new LongAdder();
+	private final LongAdder rejectedByGlobal = new LongAdder();
+
+	/**
+	 * Create a rate limiter.
+	 * @param clientRate the requests admitted per second of each client, or 0 not to limit clients.
+	 * @param clientBurst the most requests of a client admitted at once.
+	 * @param globalRate the requests admitted per second of all clients, or 0 not to limit them.
+	 * @param globalBurst the most requests of all clients admitted at once.
+	 */
+	RateLimiter(double clientRate, double clientBurst, double globalRate, double globalBurst) {
+		if (clientRate < 0 || globalRate < 0 || (clientRate > 0 && clientBurst < 1)
+				|| (globalRate > 0 && globalBurst < 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.clientRate = clientRate;
+		this.clientBurst = clientBurst;
+		this.global = globalRate > 0 ? new TokenBucket(globalRate, globalBurst, System.nanoTime()) : null;
+		this.sweepIntervalInNanoseconds = clientRate > 0
+				? Math.max(MIN_SWEEP_INTERVAL_IN_NANOSECONDS, (long) (clientBurst / clientRate * SECOND_IN_NANOSECONDS))
+				: Long.MAX_VALUE;
+		this.sweptAt = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Create a rate limiter configured by the system properties (see class documentation).
+	 * @return the rate limiter.
+	 */
+	static RateLimiter fromSystemProperties() {
+		double clientRate = Double.parseDouble(System.getProperty(CLIENT_RATE_PROPERTY, "0"));
+		double globalRate = Double.parseDouble(System.getProperty(GLOBAL_RATE_PROPERTY, "0"));
+		return new RateLimiter(clientRate, burstOf(CLIENT_BURST_PROPERTY, clientRate),
+				globalRate, burstOf(GLOBAL_BURST_PROPERTY, globalRate));
+	}
+
+	private static double burstOf(String property, double rate) {
+		return Double.parseDouble(System.getProperty(property, Double.toString(Math.max(1, rate))));
+	}
+
+	/**
+	 * Admit a request of a client, if neither its bucket nor the global one is empty.
+	 * @param client the client.
+	 * @return whether the request is admitted.
+	 */
+	boolean tryAcquire(String client) {
+		return tryAcquire(client, 1);
+	}
+
+	/**
+	 * Admit a request of a client costing several tokens, if neither its bucket nor the global one holds fewer.
+	 * @param client the client.
+	 * @param n the number of tokens the request costs.
+	 * @return whether the request is admitted.
+	 */
+	boolean tryAcquire(String client, int n) {
+		return tryAcquire(client, n, System.nanoTime());
+	}
+
+	/**
+	 * Admit a request of a client costing several tokens at a given time.
+	 * @param client the client.
+	 * @param n the number of tokens the request costs.
+	 * @param now the current time, in nanoseconds.
+	 * @return whether the request is admitted.
+	 */
+	boolean tryAcquire(String client, int n, long now) {
+		if (n < 1) {
+			throw new IllegalArgumentException();
+		}
+		if (clientRate > 0) {
+			sweep(now);
+			boolean[] taken = new boolean[1];
+			// Taken inside the map, so a bucket is not swept between being looked up and being taken from.
+			clients.compute(client, (c, bucket) -> {
+				TokenBucket $ = null == bucket ? new TokenBucket(clientRate, clientBurst, now) : bucket;
+				taken[0] = $.tryTake(n, now);
+				return $;
+			});
+			if (!taken[0]) {
+				rejectedByClient.increment();
+				return false;
+			}
+		}
+		if (null != global && !global.tryTake(n, now)) {
+			rejectedByGlobal.increment();
+			return false;
+		}
+		admitted.increment();
+		return true;
+	}
+
+	/**
+	 * Forget the full buckets, if they were not swept in the last interval.
+	 * @param now the current time, in nanoseconds.
+	 */
+	private void sweep(long now) {
+		long last = sweptAt.get();
+		if (now - last < sweepIntervalInNanoseconds || !sweptAt.compareAndSet(last, now)) {
+			return;
+		}
+		for (String client : clients.keySet()) {
+			clients.computeIfPresent(client, (c, bucket) -> bucket.isFull(now) ? null : bucket);
+		}
+	}
+
+	/**
+	 * Forget the bucket of a client which disconnected, if it is full.
+	 * @param client the client.
+	 */
+	void forget(String client) {
+		long now = System.nanoTime();
+		clients.computeIfPresent(client, (c, bucket) -> bucket.isFull(now) ? null : bucket);
+	}
+
+	/**
+	 * @return the number of clients whose buckets are kept.
+	 */
+	int clientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * @return the number of requests admitted.
+	 */
+	long admitted() {
+		return admitted.sum();
+	}
+
+	/**
+	 * @return the number of requests rejected as their client's bucket was empty.
+	 */
+	long rejectedByClient() {
+		return rejectedByClient.sum();
+	}
+
+	/**
+	 * @return the number of requests rejected as the global bucket was empty.
+	 */
+	long rejectedByGlobal() {
+		return rejectedByGlobal.sum();
+	}
+}
@@ -0,0 +1,54 @@
+package il.ac.technion.cs.sd.app.msg;
+
+/**
+ * A message of the replication stream between a primary server and its standby (see {@link Replicator}). The primary
+ * sends journal records, numbered by sequence, preceded by a snapshot of its data which they follow; the standby asks
+ * for a new snapshot when it misses records.
+ */
+class Replication {
+
+	/**
+	 * The sequence number of the first record; of the record following the snapshot, if there is one.
+	 */
+	final long sequence;
+	/**
+	 * The snapshot of the primary's data, encoded by an XStream codec, or null.
+	 */
+	final String snapshot;
+	/**
+	 * The journal records, as they were appended, or null.
+	 */
+	final byte[] records;
+	/**
+	 * The time the first record was appended by the primary, or the snapshot taken, in milliseconds.
+	 */
+	final long sentAt;
+
+	/**
+	 * Create a new Replication message.
+	 * @param sequence the sequence number of the first record.
+	 * @param snapshot the encoded snapshot, or null.
+	 * @param records the journal records, or null.
+	 * @param sentAt the time the first record was appended, in milliseconds.
+	 */
+	Replication(long sequence, String snapshot, byte[] records, long sentAt) {
+		this.sequence = sequence;
+		this.snapshot = snapshot;
+		this.records = records;
+		this.sentAt = sentAt;
+	}
+
+	/**
+	 * @return a request of the standby for a new snapshot.
+	 */
+	static Replication resync() {
+		return new Replication(-1, null, null, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return whether this is a request for a new snapshot.
+	 */
+	boolean isResync() {
+		return null == snapshot && null == records;
+	}
+}
@@ -0,0 +1,425 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import il.ac.technion.cs.sd.msg.ClientConnection;
+import il.ac.technion.cs.sd.msg.Codec;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+/**
+ * Ships the changes to the data of a primary server to its {@link Standby}, as its journal records them. Each record
+ * appended to the journal is numbered and queued, and a background thread sends the queued records in batches, in
+ * order; a batch is acknowledged once the standby receives it.
+ *
+ * <p>
+ * The records follow a snapshot of the data, which is sent first, and again whenever the standby asks for it, e.g.
+ * after it restarted. The snapshot cuts the journal, so the records it includes are known: those numbered before the
+ * cut. If the standby falls behind by more records than the backlog holds, the queue is dropped and a new snapshot
+ * sent instead.
+ * </p>
+ *
+ * <p>
+ * With {@link Mode#ASYNC} replication, appending a record does not wait for the standby. With
+ * {@link Mode#SEMI_SYNC} replication, each append waits until the standby received its record, but no longer than a
+ * timeout. Once an append timed out, replication goes on as asynchronous replication until the standby acknowledges
+ * again, so a slow or dead standby costs a single timeout rather than one on every append. The lag of the standby is
+ * given by {@link #lagInRecords()} and {@link #lagInMilliseconds()}.
+ * </p>
+ *
+ * <p>
+ * The standby beats to the primary, if heartbeats are set, and the replicator watches it. Once the standby is declared
+ * dead, the records being sent to it are given up on, and it is only probed, by an empty batch, once every timeout.
+ * As the standby is reached again, it finds the records it missed by their sequence numbers and asks for a snapshot.
+ * </p>
+ *
+ * <p>
+ * Configured by the system properties <code>ttalk.replication</code> (<code>off</code>, <code>async</code> or
+ * <code>semisync</code>; the default is <code>off</code>), <code>ttalk.replication.timeout</code> (in milliseconds)
+ * and <code>ttalk.replication.backlog</code> (in records), see {@link #fromSystemProperties}. The standby of a server
+ * receives at {@link #standbyAddressOf}, and the server sends from {@link #primaryAddressOf}.
+ * </p>
+ */
+class Replicator {
+
+	/**
+	 * Whether appends wait for the standby.
+	 */
+	enum Mode {
+		/**
+		 * Appends return at once; the standby may lag behind.
+		 */
+		ASYNC,
+		/**
+		 * Each append waits until the standby received its record, or the timeout passed.
+		 */
+		SEMI_SYNC
+	}
+
+	static final String MODE_PROPERTY = "ttalk.replication";
+	static final String TIMEOUT_PROPERTY = "ttalk.replication.timeout";
+	static final String BACKLOG_PROPERTY = "ttalk.replication.backlog";
+	static final long DEFAULT_TIMEOUT_IN_MILLISECONDS = 1000L;
+	static final int DEFAULT_BACKLOG = 1 << 16;
+
+	private static final int MAX_BATCH = 256; // records sent together.
+
+	private static class Record {
+		final byte[] bytes;
+		final long appendedAt;
+
+		Record(byte[] bytes, long appendedAt) {
+			this.bytes = bytes;
+			this.appendedAt = appendedAt;
+		}
+	}
+
+	private final ClientConnection<Replication> connection;
+	private final Mode mode;
+	private final long timeoutInMilliseconds;
+	private final int backlog;
+	private final Codec<ServerData> codec = new XStreamCodec<ServerData>();
+
+	private final Object lock = new Object(); // guards all of the following.
+	private final ArrayDeque<Record> queue = new ArrayDeque<Record>();
+	private long next = 0; // the sequence number of the next record; those queued precede it.
+	private long acknowledged = 0; // the records numbered before it were received by the standby.
+	private long inFlightAt = -1; // the time the first record being sent was appended, if any.
+	private boolean resync = true; // a snapshot should be sent.
+	private boolean snapshotting = false; // a snapshot is being sent.
+	private boolean degraded = false; // appends do not wait for the standby, until it acknowledges again.
+	private boolean down = false; // the standby was declared dead, and is only probed.
+	private final Map<Long, Long> cuts = new LinkedHashMap<Long, Long>() { // the sequence number at each journal cut.
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return size() > 16;
+		}
+	};
+	private ServerData data = null;
+	private Thread sender = null;
+
+	/**
+	 * Create a replicator.
+	 * @param connection the connection to the standby.
+	 * @param mode whether appends wait for the standby.
+	 * @param timeoutInMilliseconds the longest time an append waits, with {@link Mode#SEMI_SYNC} replication.
+	 * @param backlog the most records queued for the standby.
+	 */
+	Replicator(ClientConnection<Replication> connection, Mode mode, long timeoutInMilliseconds, int backlog) {
+		if (null == connection || null == mode || timeoutInMilliseconds < 0 || backlog <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.connection = connection;
+		this.mode = mode;
+		this.timeoutInMilliseconds = timeoutInMilliseconds;
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Create the replicator of a server configured by the system properties (see class documentation).
+	 * @param server the address of the server.
+	 * @return the replicator, or null if replication is off.
+	 */
+	static Replicator fromSystemProperties(String server) {
+		Mode mode;
+		String replication = System.getProperty(MODE_PROPERTY, "off");
+		switch (replication) {
+		case "off":
+			return null;
+		case "async":
+			mode = Mode.ASYNC;
+			break;
+		case "semisync":
+			mode = Mode.SEMI_SYNC;
+			break;
+		default:
+			throw new IllegalArgumentException("unknown replication mode: " + replication);
+		}
+		long timeout = Long.parseLong(
+				System.getProperty(TIMEOUT_PROPERTY, Long.toString(DEFAULT_TIMEOUT_IN_MILLISECONDS)));
+		int backlog = Integer.parseInt(System.getProperty(BACKLOG_PROPERTY, Integer.toString(DEFAULT_BACKLOG)));
+		return new Replicator(new ClientConnection<Replication>(standbyAddressOf(server), primaryAddressOf(server)),
+				mode, timeout, backlog);
+	}
+
+	/**
+	 * @param server the address of a server.
+	 * @return the address its standby receives at.
+	 */
+	static String standbyAddressOf(String server) {
+		return server + "-standby";
+	}
+
+	/**
+	 * @param server the address of a server.
+	 * @return the address it replicates from.
+	 */
+	static String primaryAddressOf(String server) {
+		return server + "-primary";
+	}
+
+	/**
+	 * Start replicating data, which is journaled by an open journal: ship its records to the standby, after a
+	 * snapshot of the data.
+	 * @param data the data.
+	 * @param journal the journal.
+	 */
+	void start(ServerData data, Journal journal) {
+		if (null != sender) {
+			throw new IllegalStateException("replicator is already started");
+		}
+		this.data = data;
+		synchronized (lock) {
+			resync = true;
+		}
+		journal.replicateTo(this);
+		connection.watch(standby -> {
+			synchronized (lock) {
+				degraded = true;
+				lock.notifyAll();
+			}
+		});
+		connection.start(message -> {
+			if (message.isResync()) {
+				synchronized (lock) {
+					resync = true;
+					lock.notifyAll();
+				}
+			}
+		});
+		sender = new Thread(this::send, "replicator");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Queue a record appended to the journal. Called by the journal, in the order records are appended.
+	 * @param record the record, as appended.
+	 * @return the sequence number of the record.
+	 */
+	long ship(byte[] record) {
+		synchronized (lock) {
+			if (queue.size() == backlog) {
+				queue.clear(); // the standby is too far behind; a snapshot will be sent instead.
+				resync = true;
+			}
+			queue.add(new Record(record, System.currentTimeMillis()));
+			lock.notifyAll();
+			return next++;
+		}
+	}
+
+	/**
+	 * Note a cut of the journal. Called by the journal, in order with the records appended.
+	 * @param generation the generation which was cut.
+	 */
+	void cut(long generation) {
+		synchronized (lock) {
+			cuts.put(generation, next);
+		}
+	}
+
+	/**
+	 * Wait until the standby received a record, with {@link Mode#SEMI_SYNC} replication, but no longer than the
+	 * timeout. Once the timeout passes, appends do not wait until the standby acknowledges again.
+	 * @param sequence the sequence number of the record.
+	 */
+	void await(long sequence) {
+		if (mode != Mode.SEMI_SYNC) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() + timeoutInMilliseconds;
+		synchronized (lock) {
+			long left;
+			// The records are not waited for during a snapshot, which waits for the appends in progress.
+			while (acknowledged <= sequence && null != sender && !resync && !snapshotting && !degraded) {
+				if ((left = deadline - System.currentTimeMillis()) <= 0) {
+					degraded = true;
+					return;
+				}
+				try {
+					lock.wait(left);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of records not yet received by the standby.
+	 */
+	long lagInRecords() {
+		synchronized (lock) {
+			return next - acknowledged;
+		}
+	}
+
+	/**
+	 * @return the time since the first record not yet received by the standby was appended, in milliseconds; 0 if
+	 * the standby received all of them.
+	 */
+	long lagInMilliseconds() {
+		synchronized (lock) {
+			long oldest = inFlightAt >= 0 ? inFlightAt : queue.isEmpty() ? -1 : queue.peek().appendedAt;
+			return oldest < 0 ? 0 : System.currentTimeMillis() - oldest;
+		}
+	}
+
+	private void send() {
+		while (true) {
+			boolean snapshot;
+			boolean probing;
+			synchronized (lock) {
+				probing = down;
+				if (probing) {
+					try {
+						lock.wait(Math.max(1, timeoutInMilliseconds));
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+			if (probing && !probe()) {
+				continue;
+			}
+			synchronized (lock) {
+				while (null != sender && !resync && queue.isEmpty()) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				if (null == sender) {
+					return;
+				}
+				snapshot = snapshotting = resync;
+				resync = false;
+				lock.notifyAll();
+			}
+			if (snapshot) {
+				sendSnapshot();
+			} else {
+				sendRecords();
+			}
+		}
+	}
+
+	private void sendSnapshot() {
+		try {
+			ServerData.Snapshot snapshot = data.snapshot(); // cuts the journal.
+			long first;
+			synchronized (lock) {
+				first = cuts.get(snapshot.journalGeneration());
+				long queued = next - queue.size();
+				if (queued > first) {
+					resync = true; // records the snapshot does not include were dropped.
+					return;
+				}
+				for (; queued < first; ++queued) {
+					queue.poll(); // included in the snapshot.
+				}
+			}
+			if (!connection.deliver(
+					new Replication(first, codec.encode(snapshot.toData()), null, System.currentTimeMillis()))) {
+				giveUp();
+				return;
+			}
+			acknowledge(first);
+		} finally {
+			synchronized (lock) {
+				snapshotting = false;
+			}
+		}
+	}
+
+	private void sendRecords() {
+		long first;
+		long at;
+		int count;
+		byte[] records;
+		synchronized (lock) {
+			first = next - queue.size();
+			at = inFlightAt = queue.peek().appendedAt;
+			count = Math.min(queue.size(), MAX_BATCH);
+			Record[] batch = new Record[count];
+			int length = 0;
+			for (int i = 0; i < batch.length; ++i) {
+				batch[i] = queue.poll();
+				length += batch[i].bytes.length;
+			}
+			records = new byte[length];
+			length = 0;
+			for (Record record : batch) {
+				System.arraycopy(record.bytes, 0, records, length, record.bytes.length);
+				length += record.bytes.length;
+			}
+		}
+		if (!connection.deliver(new Replication(first, null, records, at))) {
+			giveUp();
+			return;
+		}
+		acknowledge(first + count);
+	}
+
+	/**
+	 * Send an empty batch to a standby declared dead. If it was reached, the standby asks for a snapshot in case it
+	 * missed records, and the records are sent again.
+	 * @return whether the standby was reached.
+	 */
+	private boolean probe() {
+		long first;
+		synchronized (lock) {
+			if (null == sender) {
+				return true;
+			}
+			first = next - queue.size();
+		}
+		if (!connection.deliver(new Replication(first, null, new byte[0], System.currentTimeMillis()))) {
+			return false;
+		}
+		synchronized (lock) {
+			down = false;
+		}
+		return true;
+	}
+
+	/**
+	 * Give up on the standby, which was declared dead; the records being sent to it are lost to it.
+	 */
+	private void giveUp() {
+		synchronized (lock) {
+			degraded = true;
+			down = true;
+			inFlightAt = -1;
+			lock.notifyAll();
+		}
+	}
+
+	private void acknowledge(long upTo) {
+		synchronized (lock) {
+			acknowledged = Math.max(acknowledged, upTo);
+			inFlightAt = -1;
+			degraded = false;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Stop replicating. Appends waiting for the standby are released.
+	 */
+	void stop() {
+		if (null == sender) {
+			return;
+		}
+		synchronized (lock) {
+			sender = null;
+			lock.notifyAll();
+		}
+		connection.stop();
+	}
+}
@@ -3,56 +3,258 @@ package il.ac.technion.cs.sd.app.msg;
 import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IntSummaryStatistics;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
- * A class which encapsulates all server related data: online users, friendships and user pending messages.  
+ * A class which encapsulates all server related data: online users, friendships and user pending messages.
+ * <p>
+ * Each user is given a dense integer ID once (see {@link UserRegistry}), and all other data is keyed by it: presence
+ * is a bitset, friendships are a hash set of ID pairs together with a friend list per user, and pending messages are
+ * kept in a {@link Mailbox} per user. Friend lists are copied on write and never changed once published, so presence
+ * and friendship queries take no locks and allocate nothing.
+ * </p>
+ * <p>
+ * The indexes are not saved; a snapshot holds the user names, the friendship pairs and the pending messages, and the
+ * indexes are rebuilt from it upon loading. Snapshots saved by earlier versions are loaded as well.
+ * </p>
+ * <p>
+ * Changes made since the last snapshot are recorded by a {@link Journal}, if one is set: friendships and pending
+ * messages are recorded before they are applied, and clearing pending messages after they were taken. Presence is not
+ * recorded, as no client is online after a restart.
+ * </p>
+ * <p>
+ * A consistent {@link Snapshot} is taken by pausing journaled changes only while references to the indexes are copied.
+ * Friend lists and the contents of mailboxes are immutable already, so the snapshot can be saved in the background
+ * while the data keeps changing. Messages are added to mailboxes and drained from them without locks, so requests of
+ * different clients may be handled in parallel. A server keeps the data of each of its shards apart (see
+ * {@link DataShard}), so each data is changed by a single thread, and its lock is contended only by its own snapshots.
+ * </p>
+ * <p>
+ * Once a {@link PendingStore} is set, the memory held by pending messages is bounded: only the head of each client's
+ * mailbox is kept in memory, up to the number of messages and total encoded length set by the store, and as long as
+ * the total encoded length of all of the messages in memory is under the store's limit. Later messages spill to the
+ * store, and only the position of each client's last stored message and their number are indexed; the messages are
+ * read when they are taken, as the client connects. Snapshots then hold the index rather than the stored messages.
+ * Messages are kept encoded by the store, in memory as well, so they can be sent as they are, without decoding them.
+ * </p>
+ * <p>
+ * Once a {@link PendingExpiry} is set, pending messages expire at a deadline set as they are added, and are dropped by
+ * {@link #expirePending}, which is journaled like draining. The deadlines are saved with the messages.
+ * </p>
+ * <p>
+ * Pending messages are compacted as they are added, by the {@link PendingCompaction} rules configured by the system
+ * properties: a message removes the earlier ones it supersedes from memory. Compaction is not journaled, as replaying
+ * the added messages compacts them again.
+ * </p>
  */
 public class ServerData {
-	private Set<String> online = Collections.synchronizedSet(new HashSet<String>());
-	private Set<Friendship> friendships = Collections.synchronizedSet(new HashSet<Friendship>());
-	
-	private Map<String, List<Exchange>> userQueues = new ConcurrentHashMap<String, List<Exchange>>();
-	
+
+	// INDEXES
+	private transient UserRegistry users;
+	private transient AtomicBitSet presence;
+	private transient LongHashSet friendPairs; // (smaller ID << 32 | larger ID) of each friendship.
+	private transient volatile AtomicReferenceArray<int[]> friendLists; // sorted friend IDs, by user ID.
+	private transient volatile AtomicReferenceArray<Mailbox> mailboxes; // by user ID; grown under the lock of users.
+	private transient ReadWriteLock changes; // journaled changes take the read lock; snapshots take the write lock.
+	private transient Journal journal = null;
+	private transient Snapshot view = null; // set on data converted from a snapshot, for saving.
+	private transient PendingStore store = null;
+	private transient long storeEnd; // the end of the store when the snapshot was taken.
+	private transient AtomicLong memory; // the encoded length of the messages kept in memory by the mailboxes.
+	private transient int[] segmentLive; // the live records by store segment, restored from a snapshot.
+	private transient PendingExpiry expiry = null;
+	private transient PendingCompaction compaction;
+	private transient LongAdder compacted; // the messages removed as they were superseded.
+
+	// SNAPSHOT
+	private String[] userNames = null;
+	private long[] friendshipPairs = null;
+	private Map<String, List<Exchange>> userQueues = null;
+	private Map<String, long[]> queueDeadlines = null; // of the messages of userQueues, in order; none never expire.
+	private long journalGeneration = 0; // the last journal generation included.
+
+	// Fields of snapshots saved by earlier versions, converted upon loading.
+	private Set<String> online = null; // not restored; all clients are offline after loading.
+	private Set<Friendship> friendships = null;
+	private Map<String, Set<String>> friends = null;
+
+	/**
+	 * Create empty server data.
+	 */
+	public ServerData() {
+		index();
+	}
+
+	/**
+	 * Create a snapshot, for saving.
+	 */
+	private ServerData(String[] userNames, long[] friendshipPairs, Map<String, List<Exchange>> userQueues,
+			Map<String, long[]> queueDeadlines, long journalGeneration) {
+		this.userNames = userNames;
+		this.friendshipPairs = friendshipPairs;
+		this.userQueues = userQueues;
+		this.queueDeadlines = queueDeadlines;
+		this.journalGeneration = journalGeneration;
+	}
+
+	/**
+	 * Create data backed by a snapshot, for saving.
+	 */
+	private ServerData(Snapshot view) {
+		this.view = view;
+	}
+
+	private void index() {
+		users = new UserRegistry();
+		presence = new AtomicBitSet();
+		friendPairs = new LongHashSet();
+		friendLists = new AtomicReferenceArray<int[]>(16);
+		mailboxes = new AtomicReferenceArray<Mailbox>(16);
+		changes = new ReentrantReadWriteLock();
+		storeEnd = 0;
+		memory = new AtomicLong();
+		segmentLive = null;
+		compaction = PendingCompaction.fromSystemProperties();
+		compacted = new LongAdder();
+	}
+
+	private Mailbox mailboxOf(int id) {
+		AtomicReferenceArray<Mailbox> boxes = mailboxes;
+		Mailbox $ = id < boxes.length() ? boxes.get(id) : null;
+		if (null != $) {
+			return $;
+		}
+		synchronized (users) {
+			boxes = mailboxes;
+			if (id >= boxes.length()) {
+				AtomicReferenceArray<Mailbox> grown = new AtomicReferenceArray<Mailbox>(
+						Math.max(id + 1, 2 * boxes.length()));
+				for (int i = 0; i < boxes.length(); ++i) {
+					grown.set(i, boxes.get(i));
+				}
+				mailboxes = boxes = grown;
+			}
+			$ = boxes.get(id);
+			if (null == $) {
+				boxes.set(id, $ = new Mailbox(id));
+			}
+			return $;
+		}
+	}
+
+	/**
+	 * @return the mailbox of a user, or null if the user has none yet.
+	 */
+	private Mailbox existingMailboxOf(int id) {
+		AtomicReferenceArray<Mailbox> boxes = mailboxes;
+		return id < boxes.length() ? boxes.get(id) : null;
+	}
+
 	/**
 	 * Set a client as connected to the server.
 	 * @param clientName the name of the client to connect.
 	 */
 	public void connect(String clientName) {
-		online.add(clientName);
+		presence.set(users.register(clientName));
 	}
-	
+
 	/**
 	 * Set a client as disconnected from the server.
 	 * @param clientName the name of the client to disconnect.
 	 */
 	public void disconnect(String clientName) {
-		online.remove(clientName);
+		int id = users.idOf(clientName);
+		if (id >= 0) {
+			presence.clear(id);
+		}
 	}
-	
+
 	/**
 	 * Check if a client is connected.
 	 * @param clientName the name of the client to check.
 	 * @return a boolean value indicating if the user is online.
 	 */
 	public boolean isConnected(String clientName) {
-		return online.contains(clientName);
+		int id = users.idOf(clientName);
+		return id >= 0 && presence.get(id);
 	}
-	
+
 	/**
 	 * Marks two clients as friends.
 	 * @param friend1 the name of one client to mark as friend.
 	 * @param friend2 the name of another client to mark as friend.
 	 */
 	public void addFriendship(String friend1, String friend2) {
-		friendships.add(new Friendship(friend1, friend2));
+		if (friend1 == null || friend2 == null) {
+			throw new IllegalArgumentException();
+		}
+		changes.readLock().lock();
+		try {
+			if (null != journal && !areFriends(friend1, friend2)) {
+				journal.friendship(friend1, friend2);
+			}
+			addFriendship(users.register(friend1), users.register(friend2));
+		} finally {
+			changes.readLock().unlock();
+		}
 	}
-	
+
+	private void addFriendship(int id1, int id2) {
+		synchronized (friendPairs) {
+			if (!friendPairs.add(pair(id1, id2))) {
+				return;
+			}
+			addFriend(id1, id2);
+			if (id1 != id2) {
+				addFriend(id2, id1);
+			}
+		}
+	}
+
+	private void addFriend(int id, int friendId) {
+		// Called under the lock of friendPairs.
+		AtomicReferenceArray<int[]> lists = friendLists;
+		if (id >= lists.length()) {
+			AtomicReferenceArray<int[]> grown = new AtomicReferenceArray<int[]>(Math.max(id + 1, 2 * lists.length()));
+			for (int i = 0; i < lists.length(); ++i) {
+				grown.set(i, lists.get(i));
+			}
+			friendLists = lists = grown;
+		}
+		int[] old = lists.get(id);
+		if (null == old) {
+			lists.set(id, new int[] { friendId });
+			return;
+		}
+		int at = -Arrays.binarySearch(old, friendId) - 1;
+		int[] $ = new int[old.length + 1];
+		System.arraycopy(old, 0, $, 0, at);
+		$[at] = friendId;
+		System.arraycopy(old, at, $, at + 1, old.length - at);
+		lists.set(id, $);
+	}
+
+	private static long pair(int id1, int id2) {
+		return id1 < id2 ? ((long)id1 << 32) | id2 : ((long)id2 << 32) | id1;
+	}
+
 	/**
 	 * Returns whether two clients are friends.
 	 * @param friend1 the name of one client to check.
@@ -60,21 +262,151 @@ public class ServerData {
 	 * @return a boolean indicating whether the two clients are friends.
 	 */
 	public boolean areFriends(String friend1, String friend2) {
-		return friendships.contains(new Friendship(friend1, friend2));
+		int id1 = users.idOf(friend1);
+		int id2 = users.idOf(friend2);
+		return id1 >= 0 && id2 >= 0 && friendPairs.contains(pair(id1, id2));
 	}
-	
+
+	/**
+	 * Check whether several users are online, as seen by a client which may only ask about its friends. The client is
+	 * looked up once, and each user by the friendship index and the presence bits, without locks.
+	 * @param client the name of the asking client.
+	 * @param names the names of the users to check.
+	 * @return whether each user is online, or an empty Optional if it is not a friend of the client, in the order of
+	 * names.
+	 */
+	public Map<String, Optional<Boolean>> presenceOf(String client, Collection<String> names) {
+		Map<String, Optional<Boolean>> $ = new LinkedHashMap<String, Optional<Boolean>>(2 * names.size());
+		int id = users.idOf(client);
+		for (String user : names) {
+			int friendId = id < 0 ? -1 : users.idOf(user);
+			if (friendId < 0 || !friendPairs.contains(pair(id, friendId))) {
+				$.put(user, Optional.empty());
+			} else {
+				$.put(user, Optional.of(presence.get(friendId)));
+			}
+		}
+		return $;
+	}
+
+	private int[] friendIdsOf(String client) {
+		int id = users.idOf(client);
+		AtomicReferenceArray<int[]> lists = friendLists;
+		return id < 0 || id >= lists.length() ? null : lists.get(id);
+	}
+
+	/**
+	 * Get the friends of a client.
+	 * @param client the name of the client.
+	 * @return an unmodifiable set of the names of the client's friends, which is not affected by later changes.
+	 */
+	public Set<String> friendsOf(String client) {
+		int[] ids = friendIdsOf(client);
+		if (null == ids) {
+			return Collections.emptySet();
+		}
+		Set<String> $ = new HashSet<String>(2 * ids.length);
+		for (int id : ids) {
+			$.add(users.nameOf(id));
+		}
+		return Collections.unmodifiableSet($);
+	}
+
+	/**
+	 * Get the number of friends of a client.
+	 * @param client the name of the client.
+	 * @return the number of the client's friends.
+	 */
+	public int degreeOf(String client) {
+		int[] ids = friendIdsOf(client);
+		return null == ids ? 0 : ids.length;
+	}
+
+	/**
+	 * Get statistics of the number of friends of the clients which have any.
+	 * The sum of the statistics is twice the number of friendships.
+	 * @return the statistics.
+	 */
+	public IntSummaryStatistics degreeStatistics() {
+		IntSummaryStatistics $ = new IntSummaryStatistics();
+		AtomicReferenceArray<int[]> lists = friendLists;
+		for (int i = 0; i < lists.length(); ++i) {
+			int[] ids = lists.get(i);
+			if (null != ids) {
+				$.accept(ids.length);
+			}
+		}
+		return $;
+	}
+
 	/**
 	 * Add a message to the queue of messages waiting for the client.
 	 * @param client the client to add the message to its queue.
 	 * @param message the message to add to the queue.
 	 */
 	public void addPendingClientMessage(String client, Exchange message) {
-		if (!userQueues.containsKey(client)) {
-			userQueues.put(client, Collections.synchronizedList(new ArrayList<Exchange>()));
+		PendingExpiry e = expiry;
+		addPendingClientMessage(client, message,
+				null == e ? Mailbox.NEVER : e.deadlineOf(message, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Add a message which expires at a given deadline to the queue of messages waiting for the client.
+	 * @param client the client to add the message to its queue.
+	 * @param message the message to add to the queue.
+	 * @param expiresAt the time the message expires, in milliseconds, or {@link Mailbox#NEVER}.
+	 */
+	void addPendingClientMessage(String client, Exchange message, long expiresAt) {
+		String key = compaction.keyOf(message);
+		changes.readLock().lock();
+		try {
+			if (null != store) {
+				String encoded = store.encode(message);
+				if (null != journal) {
+					journal.pending(client, encoded, expiresAt);
+				}
+				compacted.add(mailboxOf(users.register(client)).add(encoded, key, expiresAt, store, memory));
+				return;
+			}
+			if (null != journal) {
+				journal.pending(client, message, expiresAt);
+			}
+			compacted.add(mailboxOf(users.register(client)).add(message, key, expiresAt));
+		} finally {
+			changes.readLock().unlock();
 		}
-		userQueues.get(client).add(message);
 	}
-	
+
+	/**
+	 * Add a message, encoded by the {@link PendingStore}, to the queue of messages waiting for the client. If pending
+	 * messages expire or are compacted, the message is decoded to find its deadline and compaction key.
+	 * @param client the client to add the message to its queue.
+	 * @param encoded the encoded message to add to the queue.
+	 */
+	public void addEncodedPendingClientMessage(String client, String encoded) {
+		checkStore();
+		PendingExpiry e = expiry;
+		boolean expires = null != e && e.expiresAny();
+		Exchange message = expires || compaction.compactsAny() ? store.decode(encoded) : null;
+		long expiresAt = expires ? e.deadlineOf(message, System.currentTimeMillis()) : Mailbox.NEVER;
+		String key = null == message ? null : compaction.keyOf(message);
+		changes.readLock().lock();
+		try {
+			if (null != journal) {
+				journal.pending(client, encoded, expiresAt);
+			}
+			compacted.add(mailboxOf(users.register(client)).add(encoded, key, expiresAt, store, memory));
+		} finally {
+			changes.readLock().unlock();
+		}
+	}
+
+	private void checkStore() {
+		if (null == store) {
+			throw new IllegalStateException("no pending message store is set");
+		}
+	}
+
 	/**
 	 * Get the queue of the messages waiting for the client.
 	 * Also clears the queue.
@@ -82,18 +414,621 @@ public class ServerData {
 	 * @return the queue of all the client's pending messages.
 	 */
 	public List<Exchange> getAndClearPendingClientMessages(String client) {
-		if (!userQueues.containsKey(client)) {
-			return Collections.emptyList();
-		}
-		List<Exchange> $ = userQueues.get(client);
-		userQueues.remove(client);
+		List<Exchange> $ = new ArrayList<Exchange>();
+		takePending(client, $::add, null);
 		return $;
 	}
 
+	/**
+	 * Clear the queue of the messages waiting for the client, passing them to a consumer one at a time: the messages
+	 * kept in memory first, and then the stored ones, which are decoded as they are read.
+	 * @param client the name of the client to clear its queue.
+	 * @param consumer accepts the client's pending messages, in order.
+	 */
+	public void drainPendingClientMessages(String client, Consumer<Exchange> consumer) {
+		if (null == consumer) {
+			throw new IllegalArgumentException();
+		}
+		takePending(client, consumer, null);
+	}
+
+	/**
+	 * Clear the queue of the messages waiting for the client, passing them to a consumer one at a time as they were
+	 * encoded by the {@link PendingStore}, without decoding them.
+	 * @param client the name of the client to clear its queue.
+	 * @param consumer accepts the client's encoded pending messages, in order.
+	 */
+	public void drainEncodedPendingClientMessages(String client, Consumer<String> consumer) {
+		if (null == consumer) {
+			throw new IllegalArgumentException();
+		}
+		checkStore();
+		takePending(client, null, consumer);
+	}
+
+	/**
+	 * Clear the queue of the messages waiting for the client, without reading stored messages.
+	 * @param client the name of the client to clear its queue.
+	 */
+	void clearPendingClientMessages(String client) {
+		takePending(client, null, null);
+	}
+
+	private void takePending(String client, Consumer<Exchange> consumer, Consumer<String> encodedConsumer) {
+		int id = users.idOf(client);
+		if (id < 0) {
+			return;
+		}
+		Mailbox mailbox = existingMailboxOf(id);
+		if (null == mailbox) {
+			return;
+		}
+		changes.readLock().lock();
+		try {
+			Mailbox.Contents contents = mailbox.drain();
+			if (contents.isEmpty()) {
+				return;
+			}
+			memory.addAndGet(-contents.length);
+			if (null != journal) {
+				journal.drain(client);
+			}
+			Consumer<String> encoded = null != consumer ? e -> consumer.accept(store.decode(e)) : encodedConsumer;
+			for (Object message : contents.inMemory()) {
+				// Once a store is set, messages are kept encoded only.
+				if (message instanceof String) {
+					if (null != encoded) {
+						encoded.accept((String)message);
+					}
+				} else if (null != consumer) {
+					consumer.accept((Exchange)message);
+				}
+			}
+			if (contents.storedCount > 0) {
+				checkStore();
+				store.drain(id, contents.storedLast, contents.storedCount, encoded);
+			}
+		} finally {
+			changes.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Drop the pending messages of a client which expired by a given time. The messages kept in memory expire one by
+	 * one, and the stored ones all at once, when the last of them expires. Should be called by the thread handling the
+	 * client's requests.
+	 * @param client the name of the client.
+	 * @param now the time, in milliseconds.
+	 * @return the number of messages dropped.
+	 */
+	int expirePending(String client, long now) {
+		int id = users.idOf(client);
+		if (id < 0) {
+			return 0;
+		}
+		Mailbox mailbox = existingMailboxOf(id);
+		if (null == mailbox || mailbox.contents().nextExpiry() > now) {
+			return 0;
+		}
+		changes.readLock().lock();
+		try {
+			Mailbox.Contents gone = mailbox.expire(now);
+			if (gone.isEmpty()) {
+				return 0;
+			}
+			memory.addAndGet(-gone.length);
+			if (null != journal) {
+				journal.expire(client, now);
+			}
+			if (gone.storedCount > 0) {
+				checkStore();
+				store.drain(id, gone.storedLast, gone.storedCount, null);
+			}
+			return gone.count + gone.storedCount;
+		} finally {
+			changes.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find clients which have pending messages expired by a given time, scanning a range of user IDs. A scan of all of
+	 * the users starts from 0, and goes on from the returned ID until it returns 0.
+	 * @param from the user ID to start from.
+	 * @param count the most users to scan.
+	 * @param now the time, in milliseconds.
+	 * @param consumer accepts the names of the clients found.
+	 * @return the user ID to go on from, or 0 if all of the users were scanned.
+	 */
+	int findExpiredPending(int from, int count, long now, Consumer<String> consumer) {
+		AtomicReferenceArray<Mailbox> boxes = mailboxes;
+		int end = Math.min(boxes.length(), from + count);
+		for (int id = from; id < end; ++id) {
+			Mailbox mailbox = boxes.get(id);
+			if (null != mailbox && mailbox.contents().nextExpiry() <= now) {
+				consumer.accept(users.nameOf(id));
+			}
+		}
+		return end >= boxes.length() ? 0 : end;
+	}
+
+	/**
+	 * Expire pending messages from now on. Messages added before are kept until they are taken.
+	 * @param expiry the time-to-live of pending messages, or null for messages not to expire.
+	 */
+	void expirePendingBy(PendingExpiry expiry) {
+		this.expiry = expiry;
+	}
+
+	/**
+	 * @return the number of pending messages removed as later ones superseded them.
+	 */
+	public long compactedPending() {
+		return compacted.sum();
+	}
+
+	/**
+	 * @return the total encoded length of the pending messages kept in memory, which is accounted for once a
+	 * {@link PendingStore} is set.
+	 */
+	public long pendingMemory() {
+		return memory.get();
+	}
+
+	/**
+	 * @param client the name of a client.
+	 * @return the encoded length of the client's pending messages kept in memory, which is accounted for once a
+	 * {@link PendingStore} is set.
+	 */
+	public long pendingMemoryOf(String client) {
+		int id = users.idOf(client);
+		if (id < 0) {
+			return 0;
+		}
+		Mailbox mailbox = existingMailboxOf(id);
+		return null == mailbox ? 0 : mailbox.contents().length;
+	}
+
+	/**
+	 * Spill pending messages to a store from now on, bounding the memory they hold. Called after loading a snapshot,
+	 * before replaying the journal. The messages loaded to memory are accounted for, and those beyond the limits of
+	 * the store are moved to it, unless the client already has stored messages (which are later ones).
+	 * @param store the store, which is opened at the end recorded by the snapshot.
+	 */
+	void storePendingIn(PendingStore store) {
+		store.open(storeEnd);
+		this.store = store;
+		if (null != segmentLive) {
+			store.restoreLive(segmentLive);
+		}
+		AtomicReferenceArray<Mailbox> boxes = mailboxes;
+		for (int id = 0; id < boxes.length(); ++id) {
+			Mailbox mailbox = boxes.get(id);
+			if (null == mailbox) {
+				continue;
+			}
+			Mailbox.Contents contents = mailbox.contents();
+			if (null == segmentLive && contents.storedCount > 0) {
+				store.retain(id, contents.storedLast, contents.storedCount); // saved by an earlier version.
+			}
+			mailbox.encodeIn(store, memory);
+		}
+	}
+
 	/**
 	 * Clear all online users (before closing the server).
 	 */
 	public void disconnectAll() {
-		online.clear();
+		presence.clear();
+	}
+	
+	/**
+	 * Record all further changes in a journal.
+	 * @param journal the journal, or null to stop recording.
+	 */
+	void journalTo(Journal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * @return the last journal generation included in this data.
+	 */
+	long journalGeneration() {
+		return journalGeneration;
+	}
+	
+	/**
+	 * Mark a journal generation as included in this data, before saving a snapshot of it.
+	 * @param generation the generation of the journal recording the changes to this data.
+	 */
+	void coverJournal(long generation) {
+		this.journalGeneration = generation;
+	}
+
+	/**
+	 * A point-in-time view of server data, which is not affected by later changes to it. Presence is not included.
+	 */
+	static class Snapshot {
+		private final String[] names; // the names of IDs below userCount never change.
+		private final int userCount;
+		private final int[][] friendLists;
+		private final Mailbox.Contents[] mailboxes; // by user ID; null for users who have none.
+		private final long storeEnd;
+		private final int[] segmentLive;
+		private final PendingStore store;
+		private final long journalGeneration;
+
+		private Snapshot(String[] names, int userCount, int[][] friendLists, Mailbox.Contents[] mailboxes,
+				long storeEnd, int[] segmentLive, PendingStore store, long journalGeneration) {
+			this.names = names;
+			this.userCount = userCount;
+			this.friendLists = friendLists;
+			this.mailboxes = mailboxes;
+			this.storeEnd = storeEnd;
+			this.segmentLive = segmentLive;
+			this.store = store;
+			this.journalGeneration = journalGeneration;
+		}
+
+		/**
+		 * @return the last journal generation included in the snapshot.
+		 */
+		long journalGeneration() {
+			return journalGeneration;
+		}
+
+		/**
+		 * @return the number of users; their IDs are 0 to this number, exclusive.
+		 */
+		int userCount() {
+			return userCount;
+		}
+
+		/**
+		 * @param id a user ID.
+		 * @return the user's name.
+		 */
+		String nameOf(int id) {
+			return names[id];
+		}
+
+		/**
+		 * @param id a user ID.
+		 * @return the sorted IDs of the user's friends; not to be changed.
+		 */
+		int[] friendsOf(int id) {
+			int[] $ = id < friendLists.length ? friendLists[id] : null;
+			return null == $ ? new int[0] : $;
+		}
+
+		/**
+		 * A consumer of the pending messages kept in memory of a user.
+		 */
+		interface PendingConsumer {
+			void accept(int id, List<Exchange> messages, long[] deadlines);
+		}
+
+		/**
+		 * Pass the pending messages kept in memory of each user who has any to a consumer, in order of user IDs.
+		 * Messages kept encoded are decoded.
+		 * @param consumer accepts a user ID, the user's messages and their deadlines, in order.
+		 */
+		void forEachPending(PendingConsumer consumer) {
+			for (int id = 0; id < mailboxes.length; ++id) {
+				if (null != mailboxes[id] && mailboxes[id].count > 0) {
+					consumer.accept(id, messagesOf(mailboxes[id]), mailboxes[id].deadlines());
+				}
+			}
+		}
+
+		private List<Exchange> messagesOf(Mailbox.Contents contents) {
+			List<Exchange> $ = new ArrayList<Exchange>(contents.count);
+			for (Object message : contents.inMemory()) {
+				$.add(message instanceof String ? store.decode((String)message) : (Exchange)message);
+			}
+			return $;
+		}
+
+		/**
+		 * A consumer of the index entry of a user's stored messages.
+		 */
+		interface StoredConsumer {
+			void accept(int id, long last, int count, long latest);
+		}
+
+		/**
+		 * Pass the index entry of each user who has stored messages to a consumer, in order of user IDs.
+		 * @param consumer accepts a user ID, the position of the user's last stored message, their number and their
+		 * latest deadline.
+		 */
+		void forEachStored(StoredConsumer consumer) {
+			for (int id = 0; id < mailboxes.length; ++id) {
+				Mailbox.Contents c = mailboxes[id];
+				if (null != c && c.storedCount > 0) {
+					consumer.accept(id, c.storedLast, c.storedCount, c.storedLatest);
+				}
+			}
+		}
+
+		/**
+		 * @return the end of the pending message store when the snapshot was taken.
+		 */
+		long storeEnd() {
+			return storeEnd;
+		}
+
+		/**
+		 * A consumer of the count of live records in a segment of the store.
+		 */
+		interface SegmentConsumer {
+			void accept(int segment, int live);
+		}
+
+		/**
+		 * Pass the count of live records of each segment of the store which has any to a consumer.
+		 * @param consumer accepts the index of a segment and the number of its live records.
+		 */
+		void forEachLiveSegment(SegmentConsumer consumer) {
+			if (null == segmentLive) {
+				return;
+			}
+			for (int i = 0; i < segmentLive.length; ++i) {
+				if (segmentLive[i] > 0) {
+					consumer.accept(i, segmentLive[i]);
+				}
+			}
+		}
+
+		/**
+		 * Reclaim the segments of the store which the snapshot does not refer to, once it is saved.
+		 */
+		void reclaimStore() {
+			if (null != store) {
+				store.reclaim(segmentLive, storeEnd);
+			}
+		}
+
+		/**
+		 * Convert the snapshot to server data, for saving. The data is backed by the snapshot, and supports no
+		 * operations but saving.
+		 * @return server data holding the data of the snapshot.
+		 */
+		ServerData toData() {
+			return new ServerData(this);
+		}
+
+		/**
+		 * @return server data holding the data of the snapshot in its saved fields.
+		 */
+		private ServerData toSavedForm() {
+			String[] userNames = Arrays.copyOf(names, userCount);
+			int pairs = 0;
+			for (int id = 0; id < friendLists.length; ++id) {
+				pairs += null == friendLists[id] ? 0 : friendLists[id].length;
+			}
+			long[] friendshipPairs = new long[pairs];
+			pairs = 0;
+			for (int id = 0; id < friendLists.length; ++id) {
+				if (null != friendLists[id]) {
+					for (int friendId : friendLists[id]) {
+						if (friendId >= id) {
+							friendshipPairs[pairs++] = pair(id, friendId);
+						}
+					}
+				}
+			}
+			Map<String, List<Exchange>> userQueues = new HashMap<String, List<Exchange>>();
+			Map<String, long[]> queueDeadlines = new HashMap<String, long[]>();
+			forEachPending((id, messages, deadlines) -> {
+				userQueues.put(names[id], messages);
+				queueDeadlines.put(names[id], deadlines);
+			});
+			forEachStored((id, last, count, latest) -> {
+				// Stored messages follow those kept in memory, and all expire at the latest deadline.
+				List<Exchange> messages = userQueues.computeIfAbsent(names[id], x -> new ArrayList<Exchange>());
+				long[] deadlines = queueDeadlines.getOrDefault(names[id], new long[0]);
+				int inMemory = deadlines.length;
+				messages.addAll(store.read(id, last, count));
+				deadlines = Arrays.copyOf(deadlines, messages.size());
+				Arrays.fill(deadlines, inMemory, deadlines.length, latest);
+				queueDeadlines.put(names[id], deadlines);
+			});
+			return new ServerData(userNames, Arrays.copyOf(friendshipPairs, pairs), userQueues, queueDeadlines,
+					journalGeneration);
+		}
+	}
+
+	/**
+	 * Take a snapshot of the data, cutting the journal (if set) at the same point.
+	 * Journaled changes wait only while references to the data are copied.
+	 * @return the snapshot, which covers the generation of the journal which was cut.
+	 */
+	Snapshot snapshot() {
+		return snapshot(true);
+	}
+
+	private Snapshot snapshot(boolean cutJournal) {
+		Snapshot $;
+		changes.writeLock().lock();
+		try {
+			if (cutJournal && null != journal) {
+				journalGeneration = journal.cut();
+			}
+			int userCount = users.size();
+			String[] names = users.names(); // read after the size, so it holds all of the names counted.
+			AtomicReferenceArray<int[]> lists = friendLists;
+			int[][] friends = new int[Math.min(userCount, lists.length())][];
+			for (int id = 0; id < friends.length; ++id) {
+				friends[id] = lists.get(id);
+			}
+			AtomicReferenceArray<Mailbox> boxes = mailboxes;
+			Mailbox.Contents[] contents = new Mailbox.Contents[Math.min(userCount, boxes.length())];
+			for (int id = 0; id < contents.length; ++id) {
+				Mailbox mailbox = boxes.get(id);
+				contents[id] = null == mailbox ? null : mailbox.contents();
+			}
+			$ = new Snapshot(names, userCount, friends, contents, null == store ? storeEnd : store.end(),
+					null == store ? segmentLive : store.liveCounts(), store, journalGeneration);
+		} finally {
+			changes.writeLock().unlock();
+		}
+		if (null != store) {
+			store.force(); // the snapshot refers to the stored messages.
+		}
+		return $;
+	}
+
+	/**
+	 * Get a snapshot of the data, for saving, without cutting the journal.
+	 * @return the snapshot backing this data, if converted from one, or a new snapshot.
+	 */
+	Snapshot asSnapshot() {
+		return null != view ? view : snapshot(false);
+	}
+
+	/**
+	 * Copy the friendships and pending messages of the users to the data owning each of them, as the data of a server
+	 * is partitioned anew (see {@link DataShard}). A friendship is copied to the data of both friends, and the pending
+	 * messages of a user to its own, with their deadlines. Presence is not copied.
+	 * @param owner gives the data owning a user.
+	 */
+	void copyTo(Function<String, ServerData> owner) {
+		ServerData saved = asSnapshot().toSavedForm();
+		for (long pair : saved.friendshipPairs) {
+			String friend1 = saved.userNames[(int)(pair >>> 32)];
+			String friend2 = saved.userNames[(int)pair];
+			owner.apply(friend1).addFriendship(friend1, friend2);
+			owner.apply(friend2).addFriendship(friend1, friend2);
+		}
+		for (Map.Entry<String, List<Exchange>> e : saved.userQueues.entrySet()) {
+			ServerData data = owner.apply(e.getKey());
+			long[] deadlines = saved.queueDeadlines.get(e.getKey());
+			int i = 0;
+			for (Exchange message : e.getValue()) {
+				data.addPendingClientMessage(e.getKey(), message, deadlines[i++]);
+			}
+		}
+	}
+
+	/**
+	 * Register a user while loading a snapshot. Users are registered in order of their IDs.
+	 * @param name the user's name.
+	 * @return the user's ID.
+	 */
+	int restoreUser(String name) {
+		return users.register(name);
+	}
+
+	/**
+	 * Add a friendship while loading a snapshot, without journaling it.
+	 * @param id1 the ID of one friend.
+	 * @param id2 the ID of the other friend.
+	 */
+	void restoreFriendship(int id1, int id2) {
+		addFriendship(id1, id2);
+	}
+
+	/**
+	 * Add the index entry of a user's stored messages while loading a snapshot.
+	 * @param id the ID of the client.
+	 * @param last the position of the client's last stored message.
+	 * @param count the number of the client's stored messages.
+	 * @param latest the latest deadline of the client's stored messages.
+	 */
+	void restoreStored(int id, long last, int count, long latest) {
+		mailboxOf(id).restoreStored(last, count, latest);
+	}
+
+	/**
+	 * Set the count of live records in a segment of the pending message store, while loading a snapshot.
+	 * @param segment the index of the segment.
+	 * @param live the number of its live records.
+	 */
+	void restoreSegment(int segment, int live) {
+		if (null == segmentLive) {
+			segmentLive = new int[segment + 1];
+		} else if (segment >= segmentLive.length) {
+			segmentLive = Arrays.copyOf(segmentLive, segment + 1);
+		}
+		segmentLive[segment] = live;
+	}
+
+	/**
+	 * Set the end of the pending message store recorded by a snapshot, while loading it.
+	 * @param end the end of the store.
+	 */
+	void restoreStoreEnd(long end) {
+		storeEnd = end;
+	}
+
+	/**
+	 * Add a pending message while loading a snapshot, without journaling it.
+	 * @param id the ID of the client.
+	 * @param message the message to add to the client's queue.
+	 * @param expiresAt the time the message expires, in milliseconds, or {@link Mailbox#NEVER}.
+	 */
+	void restorePending(int id, Exchange message, long expiresAt) {
+		mailboxOf(id).add(message, compaction.keyOf(message), expiresAt);
+	}
+
+	/**
+	 * Replace this object with a snapshot of its data, upon serialization. Presence is not saved.
+	 * @return the snapshot.
+	 */
+	private Object writeReplace() {
+		if (null != view) {
+			return view.toSavedForm();
+		}
+		if (null == users) {
+			return this; // Already a snapshot.
+		}
+		return snapshot(false).toSavedForm();
+	}
+
+	/**
+	 * Rebuild the indexes of a loaded snapshot. Called upon deserialization, which leaves fields missing from the
+	 * snapshot null and does not initialize transient fields.
+	 * @return this object.
+	 */
+	private Object readResolve() {
+		index();
+		if (null != userNames) {
+			for (String name : userNames) {
+				users.register(name);
+			}
+		}
+		if (null != friendshipPairs) {
+			for (long pair : friendshipPairs) {
+				addFriendship((int)(pair >>> 32), (int)pair);
+			}
+		}
+		if (null != friendships) {
+			for (Friendship f : friendships) {
+				addFriendship(f.friend1, f.friend2);
+			}
+		}
+		if (null != friends) {
+			for (Map.Entry<String, Set<String>> e : friends.entrySet()) {
+				for (String friend : e.getValue()) {
+					addFriendship(e.getKey(), friend);
+				}
+			}
+		}
+		if (null != userQueues) {
+			for (Map.Entry<String, List<Exchange>> e : userQueues.entrySet()) {
+				long[] deadlines = null == queueDeadlines ? null : queueDeadlines.get(e.getKey());
+				int i = 0;
+				for (Exchange message : e.getValue()) {
+					addPendingClientMessage(e.getKey(), message, null == deadlines ? Mailbox.NEVER : deadlines[i++]);
+				}
+			}
+		}
+		userNames = null;
+		friendshipPairs = null;
+		userQueues = null;
+		queueDeadlines = null;
+		online = null;
+		friendships = null;
+		friends = null;
+		return this;
 	}
 }
@@ -1,16 +1,33 @@
 package il.ac.technion.cs.sd.app.msg;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
 
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRedirect;
 import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.DisconnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.EncodedExchangeList;
 import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
 import il.ac.technion.cs.sd.app.msg.exchange.ExchangeList;
+import il.ac.technion.cs.sd.app.msg.exchange.ForwardedExchange;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchResponse;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.MulticastMessageRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceSubscribeRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceUpdate;
+import il.ac.technion.cs.sd.app.msg.exchange.RetryLater;
 import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
 import il.ac.technion.cs.sd.msg.ServerConnection;
 
@@ -22,10 +39,26 @@ import il.ac.technion.cs.sd.msg.ServerConnection;
 public class ServerMailApplication {
 	
 	private ServerConnection<Exchange> connection;
+	/**
+	 * The system property setting the most recipients of a multicast message a client may send; larger ones are
+	 * turned away.
+	 */
+	static final String MAX_RECIPIENTS_PROPERTY = "ttalk.multicast.max.recipients";
+	static final int DEFAULT_MAX_RECIPIENTS = 1000;
+	
 	final private String address;
 	
-	private ServerData data = new ServerData();
-	private DataSaver<ServerData> dataSaver;
+	private ShardExecutor shards;
+	private DataShard[] parts; // the data of the users of each shard.
+	private ClusterRing ring;
+	private ClusterForwarder forwarder;
+	private RateLimiter limiter;
+	private LoadShedder shedder;
+	private int maxRecipients;
+	private final LongAdder oversized = new LongAdder();
+	private PendingExpiry expiry;
+	private PendingSweeper sweeper;
+	private PresenceSubscriptions subscriptions;
 	
     // TODO: add createWithMockConnection factory method. 
 	
@@ -40,13 +73,46 @@ public class ServerMailApplication {
 			throw new IllegalArgumentException();
 		}
 		this.address = name;
-		this.data = new ServerData();
-		this.dataSaver = new XStreamDataSaver<ServerData>("app-msg-data-" + address);
+		this.shards = ShardExecutor.fromSystemProperties();
+		this.parts = DataShard.of(address, Math.max(1, shards.shards()), true);
+		this.ring = ClusterRing.fromSystemProperties(address);
+		this.forwarder = new ClusterForwarder((server, exchange) -> forward(server, exchange),
+				ClusterForwarder.DEFAULT_CAPACITY);
+		this.limiter = RateLimiter.fromSystemProperties();
+		this.shedder = LoadShedder.fromSystemProperties();
+		this.maxRecipients = maxRecipientsFromSystemProperties();
+		this.expiry = PendingExpiry.fromSystemProperties();
+		this.sweeper = PendingSweeper.fromSystemProperties();
+		this.subscriptions = new PresenceSubscriptions(shards::execute,
+				(client, update) -> this.connection.send(client, update));
 		this.connection = new ServerConnection<Exchange>(address);
 	}
 	
+	private static int maxRecipientsFromSystemProperties() {
+		int $ = Integer.parseInt(System.getProperty(MAX_RECIPIENTS_PROPERTY, Integer.toString(DEFAULT_MAX_RECIPIENTS)));
+		if ($ < 1) {
+			throw new IllegalArgumentException(MAX_RECIPIENTS_PROPERTY + " must be positive");
+		}
+		return $;
+	}
+	
 	/**
-	 * Creates a new mail server, using a mock connection.
+	 * Creates a hot standby of a mail server, which keeps a copy of the server's data in memory as the server
+	 * replicates it (see {@link Replicator}), until it is promoted to take the server's place (see {@link #promote()}).
+	 * The standby keeps files of its own, and the data of each shard of the server apart, so it should be configured
+	 * with as many shards as the server (see {@link DataShard}).
+	 * @param name The name of the server it stands by for.
+	 * @return the standby.
+	 */
+	public static ServerMailApplication createStandby(String name) {
+		ServerMailApplication $ = new ServerMailApplication(name);
+		$.parts = DataShard.standbyOf(name, $.parts.length);
+		return $;
+	}
+	
+	/**
+	 * Creates a new mail server, using a mock connection. Requests are handled on the thread which receives them, so
+	 * their effects can be verified as soon as they are received.
 	 * @param name The name of the server by which it is known.
 	 * @param connection The mock connection to use.
 	 * @return
@@ -65,8 +131,17 @@ public class ServerMailApplication {
 			throw new IllegalArgumentException();
 		}
 		this.address = name;
-		this.data = new ServerData();
-		this.dataSaver = new XStreamDataSaver<ServerData>("app-msg-data-" + address);
+		this.shards = new ShardExecutor(0);
+		this.parts = DataShard.of(address, 1, false);
+		this.ring = ClusterRing.fromSystemProperties(address);
+		this.forwarder = new ClusterForwarder((server, exchange) -> forward(server, exchange), 0);
+		this.limiter = RateLimiter.fromSystemProperties();
+		this.shedder = LoadShedder.fromSystemProperties();
+		this.maxRecipients = maxRecipientsFromSystemProperties();
+		this.expiry = PendingExpiry.fromSystemProperties();
+		this.sweeper = PendingSweeper.fromSystemProperties();
+		this.subscriptions = new PresenceSubscriptions(shards::execute,
+				(client, update) -> this.connection.send(client, update));
 		this.connection = connection;
 	}
 	
@@ -79,20 +154,309 @@ public class ServerMailApplication {
 	
 	/**
 	 * Starts the server; any previously sent mails, data and indices are loaded.
+	 * Changes made since the last save are recovered from the journal, even if the server was not stopped.
+	 * Snapshots of the data are saved periodically in the background (see {@link Snapshotter}).
 	 * This should be a <b>non-blocking</b> call.
+	 * <p>
+	 * Clients declared dead by their heartbeats (if set) are disconnected, and exchanges given up on their way to them
+	 * are kept pending until they connect again.
+	 * </p>
+	 * <p>
+	 * Requests are handled by the shard of the requesting client (see {@link ShardExecutor}), and the work on behalf of
+	 * another client is passed to its own shard, so each client's state is changed by a single thread. Each shard owns
+	 * the data of its users, which it journals and saves by itself (see {@link DataShard}); a friendship is kept by the
+	 * shards of both friends, and the presence of friends is read by their own shards. Replies are sent off the shards,
+	 * in order for each client, so a slow or dead client holds back neither the shards nor the replies to others.
+	 * </p>
+	 * <p>
+	 * Servers configured as a cluster (see {@link ClusterRing}) own the users assigned to them. A client connecting to
+	 * a server which does not own it is redirected to its home server, and the work on behalf of a user owned by
+	 * another server is forwarded to that server, off the shards (see {@link ClusterForwarder}). The servers of the
+	 * cluster beat to each other, if heartbeats are set, so the work forwarded to a dead server waits for it to be
+	 * back without holding back the rest.
+	 * </p>
+	 * <p>
+	 * A server replicating to a standby starts shipping its changes to it. A standby starts receiving them, and does
+	 * not serve clients until it is promoted.
+	 * </p>
+	 * <p>
+	 * The rate of requests admitted of each client, and of all of them, may be limited (see {@link RateLimiter}); a
+	 * multicast message costs as many requests as it has recipients, and one to more recipients than set by
+	 * {@link #MAX_RECIPIENTS_PROPERTY} is turned away.
+	 * Requests over the limit are turned away as they are received: an instant message or a presence query is dropped,
+	 * the client asking again for the answers it waits for, and each friend request is answered by a
+	 * {@link RetryLater}, so the client sends it again later.
+	 * </p>
+	 * <p>
+	 * When requests queue up, waiting to be received or on the shards, for longer than a target delay, presence
+	 * queries and then friend requests are shed the same way (see {@link LoadShedder}), while connecting and
+	 * delivering messages go on.
+	 * </p>
+	 * <p>
+	 * Pending exchanges expire after a time-to-live by their type (see {@link PendingExpiry}), and are dropped in the
+	 * background if their clients do not connect to take them (see {@link PendingSweeper}). Exchanges superseded by
+	 * later ones, such as earlier presence responses about the same friend, are dropped as the later ones are added
+	 * (see {@link PendingCompaction}).
+	 * </p>
+	 * <p>
+	 * Clients subscribed to the presence of their friends are pushed the changes as their friends connect, disconnect
+	 * or are declared dead, coalesced on their shards (see {@link PresenceSubscriptions}).
+	 * </p>
 	 */
 	public void start() {
-		connection.start((sender, message) -> message.accept(new Visitor(sender)));
+		if (isStandby()) {
+			for (DataShard part : parts) {
+				part.standby.start();
+			}
+			return;
+		}
 		loadData();
+		for (DataShard part : parts) {
+			part.replicate();
+		}
+		serve();
+	}
+	
+	private boolean isStandby() {
+		return null != parts[0].standby;
+	}
+	
+	/**
+	 * Promotes a standby to take the place of its server, which should have stopped. The data received from the
+	 * server is taken over as it is in memory, saved, and journaled from now on, and the standby starts serving the
+	 * clients at the server's address. Presence is not replicated, so clients are offline until they log in again.
+	 */
+	public void promote() {
+		if (!isStandby()) {
+			throw new IllegalStateException("only a standby can be promoted");
+		}
+		for (DataShard part : parts) {
+			part.promote(expiry);
+		}
+		serve();
+	}
+	
+	/**
+	 * @return the replication lag in milliseconds: on a server replicating to a standby, the time since the first
+	 * change the standby did not receive yet was made; on a standby, the delay of the last changes it applied; 0 on
+	 * other servers. The data of each shard is replicated apart, and the longest lag of all is given.
+	 */
+	public long replicationLagInMilliseconds() {
+		long $ = 0;
+		for (DataShard part : parts) {
+			$ = Math.max($, part.lagInMilliseconds());
+		}
+		return $;
+	}
+	
+	/**
+	 * @return the number of requests admitted by the rate limits.
+	 */
+	public long admittedRequests() {
+		return limiter.admitted();
+	}
+	
+	/**
+	 * @return the number of requests turned away as their clients exceeded their rate limit.
+	 */
+	public long rejectedClientRequests() {
+		return limiter.rejectedByClient();
+	}
+	
+	/**
+	 * @return the number of requests turned away as the clients together exceeded the global rate limit.
+	 */
+	public long rejectedGlobalRequests() {
+		return limiter.rejectedByGlobal();
+	}
+	
+	/**
+	 * @return the number of multicast messages turned away as they had too many recipients.
+	 */
+	public long rejectedOversizedRequests() {
+		return oversized.sum();
+	}
+	
+	/**
+	 * @return the number of requests shed under load.
+	 */
+	public long shedRequests() {
+		return shedder.shed();
+	}
+	
+	/**
+	 * @return the number of pending exchanges dropped as they expired.
+	 */
+	public long expiredPending() {
+		return sweeper.expired();
+	}
+	
+	/**
+	 * @return the number of pending exchanges dropped as later ones superseded them.
+	 */
+	public long compactedPending() {
+		long $ = 0;
+		for (DataShard part : parts) {
+			$ += part.data.compactedPending();
+		}
+		return $;
+	}
+	
+	/**
+	 * @return the number of exchanges dropped on their way to other servers of the cluster.
+	 */
+	public long droppedForwards() {
+		return forwarder.dropped();
+	}
+	
+	/**
+	 * @return the number of presence updates pushed to subscribed clients.
+	 */
+	public long presenceUpdates() {
+		return subscriptions.sent();
+	}
+	
+	/**
+	 * Start handling the requests of clients, and sweeping expired pending exchanges. The load and the rate limits are
+	 * checked as requests are received; the servers of the cluster are not limited.
+	 */
+	private void serve() {
+		List<String> others = new ArrayList<String>(ring.nodes());
+		others.remove(address);
+		shards.start();
+		forwarder.start(others);
+		List<ServerData> data = new ArrayList<ServerData>();
+		for (DataShard part : parts) {
+			data.add(part.data);
+		}
+		sweeper.start(data, shards::execute);
+		for (String server : others) {
+			connection.beatTo(server);
+		}
+		connection.watch(client -> {
+			if (!ring.contains(client)) {
+				shards.execute(client, () -> disconnect(client));
+			}
+		}, (client, exchange) -> {
+			if (ring.contains(client)) {
+				forwarder.undelivered(client, exchange);
+			} else {
+				shards.execute(client, () -> addPending(client, exchange));
+			}
+		});
+		connection.start((sender, message) -> {
+			if (ring.contains(sender) || !isLimited(message) || isAdmitted(sender, message)) {
+				handle(sender, message);
+			} else {
+				message.accept(new Rejecter(sender));
+			}
+		});
+	}
+	
+	/**
+	 * Admit a limited request of a client, unless it is a multicast message to too many recipients, under the current
+	 * load and the client's rate limits. A multicast message costs a token for each of its recipients.
+	 */
+	private boolean isAdmitted(String client, Exchange message) {
+		int cost = 1;
+		if (message instanceof MulticastMessageRequest) {
+			cost = new HashSet<String>(((MulticastMessageRequest)message).to).size();
+			if (cost > maxRecipients) {
+				oversized.increment();
+				return false;
+			}
+		}
+		return admit(message) && limiter.tryAcquire(client, Math.max(1, cost));
+	}
+	
+	/**
+	 * Admit a request under the current load (see {@link LoadShedder}). Requests wait to be received, and then on the
+	 * shards, so the delay of each is the sum of both.
+	 */
+	private boolean admit(Exchange message) {
+		return shedder.admit(priorityOf(message),
+				connection.receiveSojournInNanoseconds() + shards.sojournInNanoseconds(),
+				connection.receiveBacklog() + shards.backlog(), System.nanoTime());
+	}
+	
+	/**
+	 * @return whether a request may be turned away by the rate limits or shed under load; connecting, disconnecting
+	 * and answering friend requests, among others, are always handled, and take no tokens.
+	 */
+	private static boolean isLimited(Exchange message) {
+		return message instanceof SendInstantMessageRequest || message instanceof MulticastMessageRequest
+				|| message instanceof FriendRequest || message instanceof IsOnlineRequest
+				|| message instanceof IsOnlineBatchRequest;
+	}
+	
+	private static LoadShedder.Priority priorityOf(Exchange message) {
+		if (message instanceof IsOnlineRequest || message instanceof IsOnlineBatchRequest) {
+			return LoadShedder.Priority.POLL;
+		}
+		if (message instanceof FriendRequest) {
+			return LoadShedder.Priority.DEFERRABLE;
+		}
+		return LoadShedder.Priority.ESSENTIAL;
+	}
+	
+	private void handle(String sender, Exchange message) {
+		shards.execute(sender, () -> message.accept(new Visitor(sender)));
+	}
+	
+	/**
+	 * Disconnect a client, ending its presence subscription and notifying its subscribed friends, and forgetting its
+	 * rate limit if it has not used it lately.
+	 * Must be called on the client's shard.
+	 */
+	private void disconnect(String client) {
+		ServerData data = dataOf(client);
+		boolean wasConnected = data.isConnected(client);
+		data.disconnect(client);
+		subscriptions.unsubscribe(client);
+		limiter.forget(client);
+		if (wasConnected) {
+			notifyFriends(client, false);
+		}
+	}
+	
+	/**
+	 * Notify the friends of a user subscribed to its presence that it connected or disconnected.
+	 * Must be called on the user's shard.
+	 */
+	private void notifyFriends(String user, boolean online) {
+		for (String friend : dataOf(user).friendsOf(user)) {
+			pushPresence(friend, user, online);
+		}
+	}
+	
+	/**
+	 * Push the presence of a user to a subscriber, by the subscriber's owner. The subscribers owned by this server are
+	 * checked at once, so the change is passed only to the shards of those subscribed.
+	 */
+	private void pushPresence(String subscriber, String user, boolean online) {
+		if (!address.equals(ring.ownerOf(subscriber)) || subscriptions.isSubscribed(subscriber)) {
+			route(subscriber, subscriber, new PresenceUpdate(Collections.singletonMap(user, online)));
+		}
 	}
 	
 	/**
 	 * Stops the server. A stopped server can't accept messages, but doesn't delete any data (messages that weren't received).
 	 */
 	public void stop() {
+		if (isStandby()) {
+			for (DataShard part : parts) {
+				part.stop();
+			}
+			return;
+		}
+		sweeper.stop();
+		shards.stop();
+		forwarder.stop();
 		connection.stop();
-		data.disconnectAll();
-		saveData();
+		for (DataShard part : parts) {
+			part.data.disconnectAll();
+			part.stop();
+		}
 	}
 	
 	/**
@@ -100,35 +464,101 @@ public class ServerMailApplication {
 	 * run on a new, clean server. you may assume the server is stopped before this method is called.
 	 */
 	public void clean() {
-		data = new ServerData();
-		dataSaver.clean();
+		DataShard.clean(address, parts);
 	}
 	
 	/**
-	 * Store all of this server's current data in a file. 
+	 * Load a previously stored data to the server, replay the journal of the changes made since, and start saving
+	 * periodic snapshots, for each shard. Pending messages are kept in a {@link PendingStore}, and read only as their
+	 * clients connect. Data saved with a different number of shards is partitioned anew first.
+	 * The data of a shard is empty if there is no previously saved data.
 	 */
-	private void saveData() {
-		dataSaver.save(data);
+	private void loadData() {
+		DataShard.repartition(address, parts, shards::shardOf, expiry);
+		for (DataShard part : parts) {
+			part.load(expiry);
+		}
 	}
 	
 	/**
-	 * Load a previously stored data to the server. Returns empty serverData if there is no previously saved data.
+	 * @return the data of the shard owning a user; to be read and changed on that shard only.
 	 */
-	private void loadData() {
-		Optional<ServerData> loaded_data = dataSaver.load();
-		if (loaded_data.isPresent()) {
-			data = loaded_data.get();
+	private ServerData dataOf(String user) {
+		return parts[shards.shardOf(user)].data;
+	}
+	
+	/**
+	 * Send an exchange to another server of the cluster, waiting until it is delivered, and telling the forwarder if it
+	 * was given up. Called by the forwarder.
+	 */
+	private void forward(String server, Exchange exchange) {
+		if (!connection.deliver(server, exchange)) {
+			forwarder.undelivered(server, exchange);
+		}
+	}
+	
+	/**
+	 * Pass an exchange to be handled for the user it concerns by the user's owner: by the user's shard if it is owned
+	 * by this server, or forwarded to the server owning it otherwise.
+	 * @param user the user the exchange concerns.
+	 * @param client the client on whose behalf the exchange is passed.
+	 * @param exchange the exchange.
+	 */
+	private void route(String user, String client, Exchange exchange) {
+		String owner = ring.ownerOf(user);
+		if (address.equals(owner)) {
+			shards.execute(user, () -> exchange.accept(new OwnerVisitor(client)));
 		} else {
-			data = new ServerData();
+			forwarder.forward(owner, new ForwardedExchange(client, user, exchange));
+		}
+	}
+	
+	/**
+	 * Ask the shard of friends of a client, owned by this server, whether they are online; the answers are routed back
+	 * to the client.
+	 * @param client the client asking.
+	 * @param friends the friends, all of the same shard.
+	 */
+	private void askShard(String client, List<String> friends) {
+		Exchange request = new IsOnlineBatchRequest(friends);
+		shards.execute(friends.get(0), () -> request.accept(new OwnerVisitor(client)));
+	}
+	
+	/**
+	 * Expand a multicast message to an instant message to each of its recipients, delivered or kept pending by the
+	 * recipient's shard. The recipients owned by another server of the cluster are forwarded to it together, in a
+	 * single multicast message. A recipient listed more than once gets the message once.
+	 * @param client the client on whose behalf the message is sent.
+	 * @param request the multicast message.
+	 */
+	private void multicast(String client, MulticastMessageRequest request) {
+		Map<String, List<String>> byOwner = new LinkedHashMap<String, List<String>>();
+		for (String to : new LinkedHashSet<String>(request.to)) {
+			byOwner.computeIfAbsent(ring.ownerOf(to), owner -> new ArrayList<String>()).add(to);
+		}
+		for (Map.Entry<String, List<String>> e : byOwner.entrySet()) {
+			List<String> recipients = e.getValue();
+			if (!address.equals(e.getKey())) {
+				forwarder.forward(e.getKey(), new ForwardedExchange(client, recipients.get(0),
+						new MulticastMessageRequest(request.from, recipients, request.content)));
+				continue;
+			}
+			for (String to : recipients) {
+				// The content is shared by the messages, rather than copied to each.
+				Exchange message = new SendInstantMessageRequest(new InstantMessage(request.from, to, request.content));
+				shards.execute(to, () -> sendIfOnline(to, message));
+			}
 		}
 	}
 	
 	/**
 	 * Send an exchange to a client if he is online.
 	 * If not, adds the exchange to the client pending messages queue.
+	 * Must be called on the client's shard.
 	 * @param exchange the request/response to send.
 	 */
 	private boolean sendIfOnline(String client, Exchange exchange) {
+		ServerData data = dataOf(client);
 		if (data.isConnected(client)) {
 			connection.send(client, exchange);
 			return true;
@@ -137,6 +567,31 @@ public class ServerMailApplication {
 		return false;
 	}
 	
+	/**
+	 * Add an exchange which could not be delivered to the client's pending messages.
+	 * A list of pending exchanges is added back in order; encoded ones are kept as they are.
+	 * A redirect is not kept, as the client is not owned by this server, and neither is a presence update, which is
+	 * stale by the time the client connects again.
+	 * Must be called on the client's shard.
+	 */
+	private void addPending(String client, Exchange exchange) {
+		ServerData data = dataOf(client);
+		if (exchange instanceof ExchangeList) {
+			for (Exchange e : ((ExchangeList)exchange).list) {
+				data.addPendingClientMessage(client, e);
+			}
+		} else if (exchange instanceof EncodedExchangeList) {
+			for (String encoded : ((EncodedExchangeList)exchange).list) {
+				data.addEncodedPendingClientMessage(client, encoded);
+			}
+		} else if (!(exchange instanceof ConnectRedirect || exchange instanceof PresenceUpdate)) {
+			data.addPendingClientMessage(client, exchange);
+		}
+	}
+	
+	/**
+	 * Handles the requests of a client, on its shard.
+	 */
 	private class Visitor implements ExchangeVisitor {
 		
 		String client;
@@ -147,23 +602,43 @@ public class ServerMailApplication {
 
 		@Override
 		public void visit(ConnectRequest request) {
+			String home = ring.ownerOf(client);
+			if (!address.equals(home)) {
+				connection.send(client, new ConnectRedirect(home));
+				return;
+			}
+			ServerData data = dataOf(client);
+			boolean wasConnected = data.isConnected(client);
 			data.connect(client);
-			List<Exchange> pendingMessages = data.getAndClearPendingClientMessages(client);
-			sendIfOnline(client, new ExchangeList(pendingMessages));
+			// Pending messages are sent as they were stored, without decoding them.
+			List<String> pendingMessages = new ArrayList<String>();
+			data.drainEncodedPendingClientMessages(client, pendingMessages::add);
+			sendIfOnline(client, new EncodedExchangeList(pendingMessages));
+			if (!wasConnected) {
+				notifyFriends(client, true);
+			}
 		}
 
 		@Override
 		public void visit(DisconnectRequest request) {
-			data.disconnect(client);
+			disconnect(client);
 		}
 
 		@Override
 		public void visit(SendInstantMessageRequest request) {
-			if (request.message.from != client) {
+			if (!request.message.from.equals(client)) {
 				throw new UnsupportedOperationException("A client attempts to send a message by a different name.");
 			}
 			
-			sendIfOnline(request.message.to, request);
+			route(request.message.to, client, request);
+		}
+
+		@Override
+		public void visit(MulticastMessageRequest request) {
+			if (!request.from.equals(client)) {
+				throw new UnsupportedOperationException("A client attempts to send a message by a different name.");
+			}
+			multicast(client, request);
 		}
 
 		@Override
@@ -171,14 +646,12 @@ public class ServerMailApplication {
 			if (!request.invitation.from.equals(client)) {
 				throw new UnsupportedOperationException("A client attempts to send a friend request by a different name.");
 			}
-			if (!sendIfOnline(request.invitation.to, request)) {
-				sendIfOnline(client, new FriendResponse(request.invitation, Optional.empty()));
-			}
+			route(request.invitation.to, client, request);
 		}
 
 		@Override
 		public void visit(FriendResponse response) {
-			if (response.invitation.to != client) {
+			if (!response.invitation.to.equals(client)) {
 				throw new UnsupportedOperationException("A client attempts to answer a friend request by a different name.");
 			}
 			if (!response.isAccepted.isPresent()) {
@@ -186,20 +659,24 @@ public class ServerMailApplication {
 			}
 			
 			if (response.isAccepted.get()) {
-				data.addFriendship(response.invitation.from, response.invitation.to);
+				// Kept by the inviter's shard as well, as the response is passed to it.
+				dataOf(client).addFriendship(response.invitation.from, response.invitation.to);
+				// The new friend's presence is pushed to the inviter; the inviter's is pushed back by its owner.
+				pushPresence(response.invitation.from, client, true);
 			}
 			
-			sendIfOnline(response.invitation.from, response);
+			route(response.invitation.from, client, response);
 		}
 
 		@Override
 		public void visit(IsOnlineRequest request) {
 			// If users are not friend, return an empty response.
-			Optional<Boolean> response = Optional.empty();
-			if (data.areFriends(client, request.who)) {
-				response = Optional.of(data.isConnected(request.who));
+			if (!dataOf(client).areFriends(client, request.who)) {
+				sendIfOnline(client, new IsOnlineResponse(request.who, Optional.empty()));
+				return;
 			}
-			sendIfOnline(client, new IsOnlineResponse(request.who, response));
+			// The presence is read by the friend's owner, after the requests it received before this one.
+			route(request.who, client, request);
 		}
 
 		@Override
@@ -207,9 +684,336 @@ public class ServerMailApplication {
 			throw new UnsupportedOperationException("The server should not get IsOnlineResponse.");
 		}
 
+		@Override
+		public void visit(IsOnlineBatchRequest request) {
+			// The friends of the client's shard are read at once; those of other shards, and those owned by other
+			// servers, are answered by their own shards and servers, together.
+			ServerData data = dataOf(client);
+			Map<String, Optional<Boolean>> answers = new LinkedHashMap<String, Optional<Boolean>>();
+			Map<String, List<String>> byOwner = new LinkedHashMap<String, List<String>>();
+			Map<Integer, List<String>> byShard = new LinkedHashMap<Integer, List<String>>();
+			for (String who : request.who) {
+				String owner = ring.ownerOf(who);
+				int shard = shards.shardOf(who);
+				if (!data.areFriends(client, who)) {
+					answers.put(who, Optional.empty());
+				} else if (!address.equals(owner)) {
+					byOwner.computeIfAbsent(owner, o -> new ArrayList<String>()).add(who);
+				} else if (shard != shards.shardOf(client)) {
+					byShard.computeIfAbsent(shard, x -> new ArrayList<String>()).add(who);
+				} else {
+					answers.put(who, Optional.of(data.isConnected(who)));
+				}
+			}
+			for (Map.Entry<String, List<String>> e : byOwner.entrySet()) {
+				List<String> friends = e.getValue();
+				forwarder.forward(e.getKey(),
+						new ForwardedExchange(client, friends.get(0), new IsOnlineBatchRequest(friends)));
+			}
+			for (List<String> friends : byShard.values()) {
+				askShard(client, friends);
+			}
+			if (!answers.isEmpty() || (byOwner.isEmpty() && byShard.isEmpty())) {
+				sendIfOnline(client, new IsOnlineBatchResponse(answers));
+			}
+		}
+
+		@Override
+		public void visit(IsOnlineBatchResponse response) {
+			throw new UnsupportedOperationException("The server should not get IsOnlineBatchResponse.");
+		}
+
+		@Override
+		public void visit(PresenceSubscribeRequest request) {
+			ServerData data = dataOf(client);
+			if (!data.isConnected(client)) {
+				return;
+			}
+			subscriptions.subscribe(client);
+			// The presence of the friends of other shards, or owned by other servers, is read by their own shards and
+			// servers, and routed back.
+			Map<String, Boolean> presence = new HashMap<String, Boolean>();
+			for (String friend : data.friendsOf(client)) {
+				String owner = ring.ownerOf(friend);
+				if (!address.equals(owner)) {
+					forwarder.forward(owner, new ForwardedExchange(client, friend, request));
+				} else if (shards.shardOf(friend) != shards.shardOf(client)) {
+					shards.execute(friend, () -> pushPresence(client, friend, dataOf(friend).isConnected(friend)));
+				} else {
+					presence.put(friend, data.isConnected(friend));
+				}
+			}
+			subscriptions.push(client, presence);
+		}
+
+		@Override
+		public void visit(PresenceUpdate update) {
+			throw new UnsupportedOperationException("The server should not get PresenceUpdate.");
+		}
+
 		@Override
 		public void visit(ExchangeList exchangeList) {
 			throw new UnsupportedOperationException("The server should not get ExchangeList.");
 		}
+
+		@Override
+		public void visit(EncodedExchangeList exchangeList) {
+			throw new UnsupportedOperationException("The server should not get EncodedExchangeList.");
+		}
+
+		@Override
+		public void visit(ConnectRedirect redirect) {
+			throw new UnsupportedOperationException("The server should not get ConnectRedirect.");
+		}
+
+		@Override
+		public void visit(ForwardedExchange forwarded) {
+			if (!ring.contains(client)) {
+				throw new UnsupportedOperationException("A client attempts to forward an exchange.");
+			}
+			if (forwarded.exchange instanceof MulticastMessageRequest) {
+				// Expanded at once, so each message is passed to its recipient's shard before later exchanges.
+				multicast(forwarded.from, (MulticastMessageRequest)forwarded.exchange);
+				return;
+			}
+			if (forwarded.exchange instanceof PresenceSubscribeRequest) {
+				// The presence of the friend is read on its shard, and routed back to the subscriber.
+				shards.execute(forwarded.to, () -> pushPresence(forwarded.from, forwarded.to,
+						dataOf(forwarded.to).isConnected(forwarded.to)));
+				return;
+			}
+			if (forwarded.exchange instanceof IsOnlineBatchRequest) {
+				// The friends on this server are answered by their shards.
+				Map<Integer, List<String>> byShard = new LinkedHashMap<Integer, List<String>>();
+				for (String who : ((IsOnlineBatchRequest)forwarded.exchange).who) {
+					byShard.computeIfAbsent(shards.shardOf(who), x -> new ArrayList<String>()).add(who);
+				}
+				for (List<String> friends : byShard.values()) {
+					askShard(forwarded.from, friends);
+				}
+				return;
+			}
+			shards.execute(forwarded.to, () -> forwarded.exchange.accept(new OwnerVisitor(forwarded.from)));
+		}
+
+		@Override
+		public void visit(RetryLater retry) {
+			throw new UnsupportedOperationException("The server should not get RetryLater.");
+		}
+	}
+	
+	/**
+	 * Turns away the requests of a client over its rate limit or shed under load, on the thread receiving them.
+	 * Each friend request is answered by a {@link RetryLater}, without a lookup, so the client sends it again later;
+	 * the answer is sent like any other reply, without waiting for the client's acknowledgement. An instant message is
+	 * dropped, and so is a presence query, which the client asks again.
+	 * Requests which are not limited never get here (see {@link #isLimited}).
+	 */
+	private class Rejecter implements ExchangeVisitor {
+		
+		String client;
+		
+		Rejecter(String requestingClient) {
+			this.client = requestingClient;
+		}
+
+		@Override
+		public void visit(ConnectRequest request) {
+			throw new UnsupportedOperationException("ConnectRequest is not limited.");
+		}
+
+		@Override
+		public void visit(DisconnectRequest request) {
+			throw new UnsupportedOperationException("DisconnectRequest is not limited.");
+		}
+
+		@Override
+		public void visit(SendInstantMessageRequest request) {
+			// Dropped.
+		}
+
+		@Override
+		public void visit(MulticastMessageRequest request) {
+			// Dropped.
+		}
+
+		@Override
+		public void visit(FriendRequest request) {
+			// Not an empty response, which tells the client that the request waits for the target to connect.
+			connection.send(client, new RetryLater(request));
+		}
+
+		@Override
+		public void visit(FriendResponse response) {
+			throw new UnsupportedOperationException("FriendResponse is not limited.");
+		}
+
+		@Override
+		public void visit(IsOnlineRequest request) {
+			// Dropped, as an empty answer would tell the client the user is not a friend; the client asks again.
+		}
+
+		@Override
+		public void visit(IsOnlineResponse response) {
+			throw new UnsupportedOperationException("IsOnlineResponse is not limited.");
+		}
+
+		@Override
+		public void visit(IsOnlineBatchRequest request) {
+			// Dropped, as an IsOnlineRequest.
+		}
+
+		@Override
+		public void visit(IsOnlineBatchResponse response) {
+			throw new UnsupportedOperationException("IsOnlineBatchResponse is not limited.");
+		}
+
+		@Override
+		public void visit(PresenceSubscribeRequest request) {
+			throw new UnsupportedOperationException("PresenceSubscribeRequest is not limited.");
+		}
+
+		@Override
+		public void visit(PresenceUpdate update) {
+			throw new UnsupportedOperationException("PresenceUpdate is not limited.");
+		}
+
+		@Override
+		public void visit(ExchangeList exchangeList) {
+			throw new UnsupportedOperationException("ExchangeList is not limited.");
+		}
+
+		@Override
+		public void visit(EncodedExchangeList exchangeList) {
+			throw new UnsupportedOperationException("EncodedExchangeList is not limited.");
+		}
+
+		@Override
+		public void visit(ConnectRedirect redirect) {
+			throw new UnsupportedOperationException("ConnectRedirect is not limited.");
+		}
+
+		@Override
+		public void visit(ForwardedExchange forwarded) {
+			throw new UnsupportedOperationException("ForwardedExchange is not limited.");
+		}
+
+		@Override
+		public void visit(RetryLater retry) {
+			throw new UnsupportedOperationException("RetryLater is not limited.");
+		}
+	}
+	
+	/**
+	 * Handles the work on behalf of a client for a user owned by this server, on the user's shard. The requests of the
+	 * client were checked by the server it is connected to.
+	 */
+	private class OwnerVisitor implements ExchangeVisitor {
+		
+		String client;
+		
+		OwnerVisitor(String requestingClient) {
+			this.client = requestingClient;
+		}
+
+		@Override
+		public void visit(ConnectRequest request) {
+			throw new UnsupportedOperationException("ConnectRequest should not be forwarded.");
+		}
+
+		@Override
+		public void visit(DisconnectRequest request) {
+			throw new UnsupportedOperationException("DisconnectRequest should not be forwarded.");
+		}
+
+		@Override
+		public void visit(SendInstantMessageRequest request) {
+			sendIfOnline(request.message.to, request);
+		}
+
+		@Override
+		public void visit(MulticastMessageRequest request) {
+			throw new UnsupportedOperationException("MulticastMessageRequest is expanded as it is received.");
+		}
+
+		@Override
+		public void visit(FriendRequest request) {
+			if (!sendIfOnline(request.invitation.to, request)) {
+				route(client, client, new FriendResponse(request.invitation, Optional.empty()));
+			}
+		}
+
+		@Override
+		public void visit(FriendResponse response) {
+			// The friendship is kept by the shards of both friends, on this server or on their owners.
+			FriendInvitation invitation = response.invitation;
+			ServerData data = dataOf(invitation.from);
+			if (response.isAccepted.orElse(false)) {
+				data.addFriendship(invitation.from, invitation.to);
+				pushPresence(invitation.to, invitation.from, data.isConnected(invitation.from));
+			}
+			sendIfOnline(invitation.from, response);
+		}
+
+		@Override
+		public void visit(IsOnlineRequest request) {
+			route(client, client,
+					new IsOnlineResponse(request.who, Optional.of(dataOf(request.who).isConnected(request.who))));
+		}
+
+		@Override
+		public void visit(IsOnlineResponse response) {
+			sendIfOnline(client, response);
+		}
+
+		@Override
+		public void visit(IsOnlineBatchRequest request) {
+			// The friends asked about are all of this shard (see askShard).
+			Map<String, Optional<Boolean>> answers = new LinkedHashMap<String, Optional<Boolean>>();
+			for (String who : request.who) {
+				answers.put(who, Optional.of(dataOf(who).isConnected(who)));
+			}
+			route(client, client, new IsOnlineBatchResponse(answers));
+		}
+
+		@Override
+		public void visit(IsOnlineBatchResponse response) {
+			sendIfOnline(client, response);
+		}
+
+		@Override
+		public void visit(PresenceSubscribeRequest request) {
+			throw new UnsupportedOperationException("PresenceSubscribeRequest is answered as it is received.");
+		}
+
+		@Override
+		public void visit(PresenceUpdate update) {
+			subscriptions.push(client, update.presence);
+		}
+
+		@Override
+		public void visit(ExchangeList exchangeList) {
+			throw new UnsupportedOperationException("ExchangeList should not be forwarded.");
+		}
+
+		@Override
+		public void visit(EncodedExchangeList exchangeList) {
+			throw new UnsupportedOperationException("EncodedExchangeList should not be forwarded.");
+		}
+
+		@Override
+		public void visit(ConnectRedirect redirect) {
+			throw new UnsupportedOperationException("ConnectRedirect should not be forwarded.");
+		}
+
+		@Override
+		public void visit(ForwardedExchange forwarded) {
+			throw new UnsupportedOperationException("ForwardedExchange should not be forwarded again.");
+		}
+
+		@Override
+		public void visit(RetryLater retry) {
+			throw new UnsupportedOperationException("RetryLater should not be forwarded.");
+		}
 	}
 }
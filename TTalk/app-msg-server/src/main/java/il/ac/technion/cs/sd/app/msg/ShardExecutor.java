@@ -0,0 +1,218 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes the work of the server on shards, which partition the users by the hash of their names. Each shard is
+ * owned by a single thread, which runs the tasks of its users one at a time and in the order they were submitted, so
+ * the state of a user (its presence and pending messages) is only changed by its shard, one change at a time. Work on
+ * behalf of another user, such as forwarding a message to it, is passed to that user's shard as a task of its own.
+ *
+ * <p>
+ * Shards partition the data as well as the work: each shard owns the data of its users (see {@link DataShard}), with
+ * a journal, snapshots and pending store of its own, which only its thread changes. Shards share no locks and no
+ * files, and pass each other the work on behalf of their users as tasks, so the throughput of the server grows with
+ * the number of shards. Replies are sent off the shards, by a sender for each client (see
+ * {@link il.ac.technion.cs.sd.msg.ServerConnection#send}), so a slow client does not hold back the shards either.
+ * </p>
+ *
+ * <p>
+ * The number of shards is configured by the system property <code>ttalk.server.shards</code>, and defaults to the
+ * number of available processors; with no shards, tasks are run on the submitting thread. See
+ * {@link #fromSystemProperties}.
+ * </p>
+ *
+ * <p>
+ * The number of tasks waiting on the shards is given by {@link #backlog()}, and the time the last task started waited
+ * by {@link #sojournInNanoseconds()}.
+ * </p>
+ *
+ * <p>
+ * The shards are stopped in two phases (see {@link #stop()}), so that no task runs alongside a shard still draining.
+ * </p>
+ */
+class ShardExecutor {
+
+	static final String SHARDS_PROPERTY = "ttalk.server.shards";
+
+	private final int shards;
+	private volatile ExecutorService[] executors = null;
+	private volatile CountDownLatch stopping = null; // set while stopping; counted down once the shards are stopped.
+	private final ThreadLocal<Boolean> onShard = ThreadLocal.withInitial(() -> false);
+	private final AtomicInteger unfinished = new AtomicInteger(); // tasks submitted to the shards and not yet run.
+	private final AtomicInteger backlog = new AtomicInteger();
+	private volatile long sojourn = 0; // the time the last task started waited, in nanoseconds.
+
+	/**
+	 * Create a stopped shard executor.
+	 * @param shards the number of shards; 0 to run tasks on the submitting thread.
+	 */
+	ShardExecutor(int shards) {
+		if (shards < 0) {
+			throw new IllegalArgumentException("number of shards cannot be negative");
+		}
+		this.shards = shards;
+	}
+
+	/**
+	 * Create a shard executor configured by the system properties (see class documentation).
+	 * @return the shard executor.
+	 */
+	static ShardExecutor fromSystemProperties() {
+		int shards = Integer.parseInt(System.getProperty(SHARDS_PROPERTY,
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		return new ShardExecutor(shards);
+	}
+
+	/**
+	 * @return the number of shards.
+	 */
+	int shards() {
+		return shards;
+	}
+
+	/**
+	 * @param user the name of a user.
+	 * @return the shard which owns the user.
+	 */
+	int shardOf(String user) {
+		return 0 == shards ? 0 : Math.floorMod(UserRegistry.mix(user.hashCode()), shards);
+	}
+
+	/**
+	 * Start the threads of the shards.
+	 */
+	void start() {
+		if (null != executors) {
+			throw new IllegalStateException("shard executor is already started");
+		}
+		ExecutorService[] $ = new ExecutorService[shards];
+		for (int i = 0; i < shards; ++i) {
+			String name = "shard-" + i;
+			$[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(() -> {
+					onShard.set(true);
+					r.run();
+				}, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		executors = $;
+	}
+
+	/**
+	 * Submit a task on behalf of a user, to be run by the user's shard after the tasks submitted to it before. While
+	 * the executor is stopped, or if there are no shards, the task is run on the submitting thread. While it is being
+	 * stopped, a task submitted by a shard is run by its user's shard as usual, and one submitted from outside the
+	 * shards is held back, and run on the submitting thread once the shards are stopped.
+	 * @param user the name of the user.
+	 * @param task the task.
+	 */
+	void execute(String user, Runnable task) {
+		ExecutorService[] current = executors;
+		if (null == current || 0 == shards) {
+			task.run();
+			return;
+		}
+		// Counted before checking for stopping, so that stop() waits for the task if this check missed it.
+		unfinished.incrementAndGet();
+		if (null != stopping && !onShard.get()) {
+			finished();
+			runOnceStopped(task);
+			return;
+		}
+		long submittedAt = System.nanoTime();
+		backlog.incrementAndGet();
+		try {
+			current[shardOf(user)].execute(() -> {
+				backlog.decrementAndGet();
+				sojourn = System.nanoTime() - submittedAt;
+				try {
+					task.run();
+				} finally {
+					finished();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Stopped after the check above, which is only possible once no task is left on the shards.
+			backlog.decrementAndGet();
+			finished();
+			runOnceStopped(task);
+		}
+	}
+	
+	private void finished() {
+		if (0 == unfinished.decrementAndGet() && null != stopping) {
+			synchronized (unfinished) {
+				unfinished.notifyAll();
+			}
+		}
+	}
+	
+	private void runOnceStopped(Runnable task) {
+		CountDownLatch current = stopping;
+		try {
+			if (null != current) {
+				current.await();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		task.run();
+	}
+
+	/**
+	 * @return the number of tasks waiting to be run by the shards.
+	 */
+	int backlog() {
+		return backlog.get();
+	}
+
+	/**
+	 * @return the time the task started last on any shard waited to be run, in nanoseconds; 0 if no tasks are
+	 * waiting, as the shards are then keeping up.
+	 */
+	long sojournInNanoseconds() {
+		return 0 == backlog.get() ? 0 : sojourn;
+	}
+
+	/**
+	 * Stop the threads of the shards, waiting for the tasks already submitted to be run. First, work from outside the
+	 * shards is held back, while the shards run the tasks submitted to them and those they pass to each other; once
+	 * none is left, the threads of the shards are stopped, and the work held back is run on the threads which
+	 * submitted it.
+	 */
+	void stop() {
+		ExecutorService[] current = executors;
+		if (null == current) {
+			return;
+		}
+		CountDownLatch done = new CountDownLatch(1);
+		stopping = done;
+		try {
+			synchronized (unfinished) {
+				while (unfinished.get() > 0) {
+					unfinished.wait();
+				}
+			}
+			for (ExecutorService executor : current) {
+				executor.shutdown();
+			}
+			for (ExecutorService executor : current) {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executors = null;
+			stopping = null;
+			done.countDown();
+		}
+	}
+}
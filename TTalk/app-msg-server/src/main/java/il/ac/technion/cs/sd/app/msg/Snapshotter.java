@@ -0,0 +1,110 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves snapshots of server data, discards the journal generations they cover and reclaims the pending store
+ * segments they do not refer to. Once started, a snapshot is saved periodically on a background thread, if the data
+ * changed since the last one, while requests keep being handled.
+ *
+ * <p>
+ * The interval between snapshots is configured by the system property <code>ttalk.snapshot.interval</code> (in
+ * milliseconds); a non-positive interval disables periodic snapshots. See {@link #fromSystemProperties}.
+ * </p>
+ */
+class Snapshotter {
+
+	static final String INTERVAL_PROPERTY = "ttalk.snapshot.interval";
+	static final long DEFAULT_INTERVAL_IN_MILLISECONDS = 60000L;
+
+	private final DataSaver<ServerData> dataSaver;
+	private final Journal journal;
+	private final long intervalInMilliseconds;
+
+	private Thread thread = null;
+	private final Semaphore stop = new Semaphore(0);
+
+	/**
+	 * Create a snapshotter.
+	 * @param dataSaver saves the snapshots.
+	 * @param journal the journal of the changes to the data.
+	 * @param intervalInMilliseconds the time between periodic snapshots; non-positive to disable them.
+	 */
+	Snapshotter(DataSaver<ServerData> dataSaver, Journal journal, long intervalInMilliseconds) {
+		if (null == dataSaver || null == journal) {
+			throw new IllegalArgumentException();
+		}
+		this.dataSaver = dataSaver;
+		this.journal = journal;
+		this.intervalInMilliseconds = intervalInMilliseconds;
+	}
+
+	/**
+	 * Create a snapshotter configured by the system properties (see class documentation).
+	 * @param dataSaver saves the snapshots.
+	 * @param journal the journal of the changes to the data.
+	 * @return the snapshotter.
+	 */
+	static Snapshotter fromSystemProperties(DataSaver<ServerData> dataSaver, Journal journal) {
+		long interval = Long.parseLong(
+				System.getProperty(INTERVAL_PROPERTY, Long.toString(DEFAULT_INTERVAL_IN_MILLISECONDS)));
+		return new Snapshotter(dataSaver, journal, interval);
+	}
+
+	/**
+	 * Start saving periodic snapshots of data.
+	 * @param data the data, which is journaled by the open journal.
+	 */
+	void start(ServerData data) {
+		if (null != thread) {
+			throw new IllegalStateException("snapshotter is already started");
+		}
+		if (intervalInMilliseconds <= 0) {
+			return;
+		}
+		thread = new Thread(() -> {
+			try {
+				while (!stop.tryAcquire(intervalInMilliseconds, TimeUnit.MILLISECONDS)) {
+					if (journal.hasChanges()) {
+						save(data);
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}, "snapshotter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Save a snapshot of data, discard the journal generations it covers and reclaim the store segments it does not
+	 * refer to.
+	 * @param data the data, which is journaled by the open journal.
+	 */
+	synchronized void save(ServerData data) {
+		ServerData.Snapshot snapshot = data.snapshot();
+		dataSaver.save(snapshot.toData());
+		journal.discardThrough(snapshot.journalGeneration());
+		snapshot.reclaimStore();
+	}
+
+	/**
+	 * Stop saving periodic snapshots, waiting for a snapshot being saved.
+	 */
+	void stop() {
+		if (null == thread) {
+			return;
+		}
+		stop.release();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			thread = null;
+			stop.drainPermits();
+		}
+	}
+}
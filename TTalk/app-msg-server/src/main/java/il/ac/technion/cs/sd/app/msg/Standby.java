@@ -0,0 +1,132 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.nio.ByteBuffer;
+
+import il.ac.technion.cs.sd.msg.Codec;
+import il.ac.technion.cs.sd.msg.ServerConnection;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+/**
+ * Keeps a copy of the data of a primary server in memory, as its {@link Replicator} ships it: a snapshot of the data,
+ * followed by the journal records of the changes made since, which are applied as they are received. Records received
+ * out of sequence, e.g. after the standby restarted, are dropped, and a new snapshot is requested instead.
+ *
+ * <p>
+ * Pending messages are kept in a {@link PendingStore} of the standby, which is emptied whenever a snapshot is loaded.
+ * The data is not journaled while standing by; once the standby is promoted, the data is taken over as it is.
+ * </p>
+ */
+class Standby {
+
+	private final ServerConnection<Replication> connection;
+	private final String primary;
+	private final Journal journal;
+	private final PendingStore store;
+	private final Codec<ServerData> codec = new XStreamCodec<ServerData>();
+
+	private volatile ServerData data = null; // null until a snapshot is received.
+	private long next = -1; // the sequence number of the next record expected.
+	private boolean resyncing = false; // whether a new snapshot was requested.
+	private volatile long lag = 0;
+
+	/**
+	 * Create a standby.
+	 * @param connection the connection receiving from the primary.
+	 * @param primary the address the primary replicates from.
+	 * @param journal applies the shipped records; it is not opened.
+	 * @param store keeps the pending messages; it is opened upon receiving a snapshot.
+	 */
+	Standby(ServerConnection<Replication> connection, String primary, Journal journal, PendingStore store) {
+		if (null == connection || null == primary || null == journal || null == store) {
+			throw new IllegalArgumentException();
+		}
+		this.connection = connection;
+		this.primary = primary;
+		this.journal = journal;
+		this.store = store;
+	}
+
+	/**
+	 * Create the standby of a server.
+	 * @param server the address of the server.
+	 * @param journal applies the shipped records; it is not opened.
+	 * @param store keeps the pending messages; it is opened upon receiving a snapshot.
+	 * @return the standby.
+	 */
+	static Standby of(String server, Journal journal, PendingStore store) {
+		return new Standby(new ServerConnection<Replication>(Replicator.standbyAddressOf(server)),
+				Replicator.primaryAddressOf(server), journal, store);
+	}
+
+	/**
+	 * Start receiving from the primary, asking it for a snapshot. The request is sent in the background, as the
+	 * primary may not be started yet. The standby beats to the primary, if heartbeats are set, so that the primary can
+	 * tell when it is gone.
+	 */
+	void start() {
+		connection.beatTo(primary);
+		connection.start((from, message) -> receive(message));
+		requestSnapshot();
+	}
+
+	/**
+	 * Handle a message of the primary.
+	 * @param message the message.
+	 */
+	synchronized void receive(Replication message) {
+		if (null != message.snapshot) {
+			ServerData loaded = codec.decode(message.snapshot);
+			store.close();
+			loaded.storePendingIn(store);
+			data = loaded;
+			next = message.sequence;
+			resyncing = false;
+		} else if (null == message.records) {
+			return; // the standby does not get requests.
+		} else if (null == data || message.sequence != next) {
+			// Records were missed; they are dropped until a new snapshot arrives.
+			if (!resyncing) {
+				resyncing = true;
+				requestSnapshot();
+			}
+			return;
+		} else {
+			next += journal.applyShipped(data, ByteBuffer.wrap(message.records));
+		}
+		lag = Math.max(0, System.currentTimeMillis() - message.sentAt);
+	}
+
+	private void requestSnapshot() {
+		Thread thread = new Thread(() -> {
+			try {
+				connection.send(primary, Replication.resync());
+			} catch (RuntimeException e) {
+				// The standby was stopped before the primary was reached.
+			}
+		}, "standby-resync");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the data received from the primary, or null if no snapshot was received yet.
+	 */
+	ServerData data() {
+		return data;
+	}
+
+	/**
+	 * @return the time between the primary appending the last records received and their being applied, in
+	 * milliseconds.
+	 */
+	long lagInMilliseconds() {
+		return lag;
+	}
+
+	/**
+	 * Stop receiving from the primary.
+	 */
+	void stop() {
+		connection.stop();
+	}
+}
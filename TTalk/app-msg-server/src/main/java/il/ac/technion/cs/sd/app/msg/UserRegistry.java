@@ -0,0 +1,125 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Maps user names to dense integer IDs (0, 1, 2, ...), in order of registration. IDs are never reused.
+ * <p>
+ * Names are kept in an array indexed by ID, and looked up through an open-addressed table of IDs, so a registered user
+ * costs a reference and a few table slots, rather than a map entry and a boxed integer.<br>
+ * Lookups take no locks; registration is synchronized.
+ * </p>
+ */
+class UserRegistry {
+
+	private static final int EMPTY = 0; // table slots hold ID + 1.
+
+	private volatile String[] names = new String[16];
+	private volatile AtomicIntegerArray table = new AtomicIntegerArray(32);
+	private volatile int size = 0;
+
+	/**
+	 * Get the ID of a user.
+	 * @param name the user's name.
+	 * @return the user's ID, or -1 if the user is not registered.
+	 */
+	int idOf(String name) {
+		if (null == name) {
+			return -1;
+		}
+		AtomicIntegerArray t = table;
+		int mask = t.length() - 1;
+		for (int i = mix(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+			int slot = t.get(i);
+			if (EMPTY == slot) {
+				return -1;
+			}
+			// The name was written before the slot was, so reading the slot makes it visible.
+			if (name.equals(names[slot - 1])) {
+				return slot - 1;
+			}
+		}
+	}
+
+	/**
+	 * Get the ID of a user, registering the user if needed.
+	 * @param name the user's name.
+	 * @return the user's ID.
+	 */
+	synchronized int register(String name) {
+		if (null == name) {
+			throw new IllegalArgumentException("user name cannot be null");
+		}
+		int $ = idOf(name);
+		if ($ >= 0) {
+			return $;
+		}
+		$ = size;
+		if ($ == names.length) {
+			names = Arrays.copyOf(names, 2 * $);
+		}
+		names[$] = name;
+		size = $ + 1;
+		if (2 * size > table.length()) {
+			rehash(2 * table.length());
+		}
+		insert(table, name, $);
+		return $;
+	}
+
+	/**
+	 * Get the name of a user.
+	 * @param id the user's ID.
+	 * @return the user's name.
+	 */
+	String nameOf(int id) {
+		if (id < 0 || id >= size) {
+			throw new IllegalArgumentException("unknown user ID: " + id);
+		}
+		return names[id];
+	}
+
+	/**
+	 * Get the names of the users, indexed by ID, without copying them. The names of the users counted by
+	 * {@link #size()} before this call never change.
+	 * @return the array of names, which may be longer than the number of users.
+	 */
+	String[] names() {
+		return names;
+	}
+
+	/**
+	 * @return the number of registered users; their IDs are 0 to this number, exclusive.
+	 */
+	int size() {
+		return size;
+	}
+
+	private void rehash(int capacity) {
+		AtomicIntegerArray t = new AtomicIntegerArray(capacity);
+		for (int id = 0; id < size - 1; ++id) {
+			insert(t, names[id], id);
+		}
+		table = t;
+	}
+
+	private static void insert(AtomicIntegerArray t, String name, int id) {
+		int mask = t.length() - 1;
+		int i = mix(name.hashCode()) & mask;
+		while (EMPTY != t.get(i)) {
+			i = (i + 1) & mask;
+		}
+		t.set(i, id + 1);
+	}
+
+	/**
+	 * Spread the bits of a hash code, so that similar codes are not clustered in the table.
+	 */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+}
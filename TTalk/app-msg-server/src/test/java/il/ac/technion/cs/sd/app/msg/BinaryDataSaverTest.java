@@ -0,0 +1,209 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryDataSaverTest {
+	
+	private static final String fileName = "BinaryDataSaverTestFile";
+	
+	private final Exchange msg1 = new ConnectRequest();
+	private final Exchange msg2 = new IsOnlineRequest("Yossi");
+	
+	private BinaryDataSaver saver;
+	private ServerData data;
+
+	@Before
+	public void setUp() {
+		saver = new BinaryDataSaver(fileName);
+		data = new ServerData();
+		data.addFriendship("Danny", "Yossi");
+		data.addFriendship("Danny", "Moshe");
+		data.addPendingClientMessage("Yossi", msg1);
+		data.addPendingClientMessage("Yossi", msg2);
+		data.addPendingClientMessage("Haim", msg2);
+		data.coverJournal(7);
+	}
+
+	@After
+	public void tearDown() {
+		saver.clean();
+	}
+	
+	private BinaryDataSaver sharded(int shards) {
+		return new BinaryDataSaver(fileName, new XStreamCodec<Exchange>(), shards, 2);
+	}
+	
+	private int shardFiles() {
+		return new File(".").list((dir, name) -> name.startsWith(fileName + ".")).length;
+	}
+	
+	private void verify(ServerData loaded) {
+		assertTrue(loaded.areFriends("Yossi", "Danny"));
+		assertTrue(loaded.areFriends("Moshe", "Danny"));
+		assertFalse(loaded.areFriends("Moshe", "Yossi"));
+		assertEquals(2, loaded.degreeOf("Danny"));
+		assertEquals(Arrays.asList(msg1, msg2), loaded.getAndClearPendingClientMessages("Yossi"));
+		assertEquals(Arrays.asList(msg2), loaded.getAndClearPendingClientMessages("Haim"));
+		assertTrue(loaded.getAndClearPendingClientMessages("Danny").isEmpty());
+		assertEquals(7, loaded.journalGeneration());
+	}
+
+	@Test
+	public void verifyEmptyAtFirst() {
+		assertFalse(saver.load().isPresent());
+	}
+	
+	@Test
+	public void saveAndLoad() {
+		saver.save(data);
+		verify(saver.load().get());
+	}
+	
+	@Test
+	public void saveSnapshotAndLoad() {
+		ServerData.Snapshot snapshot = data.snapshot();
+		data.addFriendship("Moshe", "Yossi");
+		saver.save(snapshot.toData());
+		verify(saver.load().get());
+	}
+	
+	@Test
+	public void loadDataSavedByXStreamDataSaver() {
+		new XStreamDataSaver<ServerData>(fileName).save(data);
+		verify(saver.load().get());
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void corruptSnapshotIsNotLoaded() throws IOException {
+		saver.save(data);
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+			file.seek(30);
+			file.write(file.read() ^ 0xFF);
+		}
+		saver.load();
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void truncatedSnapshotIsNotLoaded() throws IOException {
+		saver.save(data);
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+			file.setLength(file.length() - 10);
+		}
+		saver.load();
+	}
+	
+	@Test
+	public void saveAndLoadShards() {
+		saver = sharded(4);
+		AtomicInteger shardsLoaded = new AtomicInteger();
+		AtomicInteger loaded = new AtomicInteger();
+		saver.setLoadListener(new BinaryDataSaver.LoadListener() {
+			@Override
+			public void shardLoaded(int shard, int shards, long records, long nanos) {
+				assertEquals(4, shards);
+				shardsLoaded.incrementAndGet();
+			}
+			
+			@Override
+			public void loaded(int shards, long records, long nanos) {
+				assertEquals(4, shards);
+				assertEquals(4 + 2 + 3 + 1, records); // users, friendships, pending messages and the store end.
+				loaded.incrementAndGet();
+			}
+		});
+		saver.save(data);
+		assertEquals(3, shardFiles());
+		verify(saver.load().get());
+		assertEquals(4, shardsLoaded.get());
+		assertEquals(1, loaded.get());
+	}
+	
+	@Test
+	public void resavingDeletesOldShards() {
+		saver = sharded(4);
+		saver.save(data);
+		saver.save(data);
+		assertEquals(3, shardFiles());
+		saver = sharded(2);
+		saver.save(data);
+		assertEquals(1, shardFiles());
+		verify(saver.load().get());
+		saver.clean();
+		assertEquals(0, shardFiles());
+	}
+	
+	@Test
+	public void shardCountIsReadFromTheSnapshot() {
+		sharded(4).save(data);
+		verify(sharded(1).load().get());
+	}
+	
+	@Test
+	public void storedMessagesAreNotLoaded() {
+		PendingStore store = new PendingStore("BinaryDataSaverTestStore");
+		try {
+			data.storePendingIn(store);
+			ServerData.Snapshot snapshot = data.snapshot();
+			data.addPendingClientMessage("Haim", msg1); // after the snapshot.
+			saver.save(snapshot.toData());
+			store.close();
+			
+			ServerData loaded = saver.load().get();
+			loaded.storePendingIn(store);
+			verify(loaded);
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+	
+	@Test
+	public void liveSegmentsAreSaved() {
+		PendingStore store = new PendingStore("BinaryDataSaverTestStore", new XStreamCodec<Exchange>(), 64, 0, 0, 0);
+		try {
+			data.storePendingIn(store); // spills all of the messages, one in each segment.
+			data.getAndClearPendingClientMessages("Haim");
+			int[] live = new int[4];
+			data.snapshot().forEachLiveSegment((segment, count) -> live[segment] = count);
+			assertArrayEquals(new int[] {1, 1, 0, 0}, live);
+			saver.save(data);
+			store.close();
+			
+			ServerData loaded = saver.load().get();
+			loaded.storePendingIn(store);
+			int[] loadedLive = new int[4];
+			loaded.snapshot().forEachLiveSegment((segment, count) -> loadedLive[segment] = count);
+			assertArrayEquals(live, loadedLive);
+			assertEquals(Arrays.asList(msg1, msg2), loaded.getAndClearPendingClientMessages("Yossi"));
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+	
+	@Test
+	public void deadlinesAreSaved() {
+		data.addPendingClientMessage("Moshe", msg1, 10);
+		data.addPendingClientMessage("Moshe", msg2, 20);
+		sharded(2).save(data);
+		
+		ServerData loaded = sharded(2).load().get();
+		assertEquals(1, loaded.expirePending("Moshe", 15));
+		assertEquals(Arrays.asList(msg2), loaded.getAndClearPendingClientMessages("Moshe"));
+	}
+}
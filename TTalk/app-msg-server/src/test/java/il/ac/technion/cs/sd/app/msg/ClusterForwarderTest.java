@@ -0,0 +1,129 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
+
+public class ClusterForwarderTest {
+
+	private static final int EXCHANGES = 1000;
+
+	@Test
+	public void exchangesAreSentInlineWithoutCapacity() {
+		Thread[] sentBy = new Thread[1];
+		ClusterForwarder forwarder = new ClusterForwarder((server, exchange) -> sentBy[0] = Thread.currentThread(), 0);
+		forwarder.start(Arrays.asList("OtherServer"));
+		forwarder.forward("OtherServer", new IsOnlineRequest("Danny"));
+		assertEquals(Thread.currentThread(), sentBy[0]);
+		forwarder.stop();
+	}
+
+	@Test(timeout = 5000)
+	public void exchangesToAServerAreSentInOrder() {
+		List<Exchange> sent = Collections.synchronizedList(new ArrayList<Exchange>());
+		ClusterForwarder forwarder = new ClusterForwarder((server, exchange) -> sent.add(exchange), EXCHANGES);
+		forwarder.start(Arrays.asList("OtherServer"));
+		for (int i = 0; i < EXCHANGES; ++i) {
+			forwarder.forward("OtherServer", new IsOnlineRequest("Danny" + i));
+		}
+		forwarder.stop();
+		assertEquals(EXCHANGES, sent.size());
+		for (int i = 0; i < EXCHANGES; ++i) {
+			assertEquals(new IsOnlineRequest("Danny" + i), sent.get(i));
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void aStuckServerHoldsBackNeitherTheForwardingThreadNorOtherServers() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingQueue<String> sent = new LinkedBlockingQueue<String>();
+		ClusterForwarder forwarder = new ClusterForwarder((server, exchange) -> {
+			if ("StuckServer".equals(server)) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			sent.add(server);
+		}, EXCHANGES);
+		forwarder.start(Arrays.asList("StuckServer", "OtherServer"));
+		forwarder.forward("StuckServer", new IsOnlineRequest("Danny"));
+		forwarder.forward("StuckServer", new IsOnlineRequest("Yossi"));
+		forwarder.forward("OtherServer", new IsOnlineRequest("Danny"));
+		assertEquals("OtherServer", sent.take());
+		assertEquals(2, forwarder.backlog("StuckServer"));
+		release.countDown();
+		forwarder.stop();
+	}
+
+	@Test(timeout = 5000)
+	public void undeliveredExchangesAreSentAgainBeforeLaterOnes() {
+		List<Exchange> sent = Collections.synchronizedList(new ArrayList<Exchange>());
+		AtomicInteger failures = new AtomicInteger(2);
+		ClusterForwarder[] forwarder = new ClusterForwarder[1];
+		forwarder[0] = new ClusterForwarder((server, exchange) -> {
+			sent.add(exchange);
+			if (failures.getAndDecrement() > 0) {
+				forwarder[0].undelivered(server, exchange);
+			}
+		}, EXCHANGES);
+		forwarder[0].start(Arrays.asList("OtherServer"));
+		forwarder[0].forward("OtherServer", new IsOnlineRequest("Danny"));
+		forwarder[0].forward("OtherServer", new IsOnlineRequest("Yossi"));
+		while (forwarder[0].backlog("OtherServer") > 0) {
+			Thread.yield();
+		}
+		forwarder[0].stop();
+		assertEquals(Arrays.asList(new IsOnlineRequest("Danny"), new IsOnlineRequest("Danny"),
+				new IsOnlineRequest("Danny"), new IsOnlineRequest("Yossi")), sent);
+		assertEquals(0, forwarder[0].dropped());
+	}
+
+	@Test(timeout = 5000)
+	public void exchangesOverCapacityAreDropped() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		ClusterForwarder forwarder = new ClusterForwarder((server, exchange) -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}, 2);
+		forwarder.start(Arrays.asList("OtherServer"));
+		for (int i = 0; i < 5; ++i) {
+			forwarder.forward("OtherServer", new IsOnlineRequest("Danny" + i));
+		}
+		assertEquals(3, forwarder.dropped());
+		release.countDown();
+		forwarder.stop();
+	}
+
+	@Test(timeout = 5000)
+	public void exchangesForADeadServerAreDroppedAsTheForwarderStops() throws InterruptedException {
+		ClusterForwarder[] forwarder = new ClusterForwarder[1];
+		CountDownLatch tried = new CountDownLatch(1);
+		forwarder[0] = new ClusterForwarder((server, exchange) -> {
+			forwarder[0].undelivered(server, exchange);
+			tried.countDown();
+		}, EXCHANGES);
+		forwarder[0].start(Arrays.asList("DeadServer"));
+		forwarder[0].forward("DeadServer", new IsOnlineRequest("Danny"));
+		assertTrue(tried.await(1, TimeUnit.SECONDS));
+		forwarder[0].stop();
+		assertEquals(1, forwarder[0].dropped());
+	}
+}
@@ -0,0 +1,79 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ClusterRingTest {
+
+	private static final int USERS = 10000;
+
+	private static String user(int i) {
+		return "user" + i;
+	}
+
+	@Test
+	public void aSingleServerOwnsAllUsers() {
+		ClusterRing ring = new ClusterRing(Arrays.asList("Server"), ClusterRing.DEFAULT_VIRTUAL_NODES);
+		for (int i = 0; i < 100; ++i) {
+			assertEquals("Server", ring.ownerOf(user(i)));
+		}
+	}
+
+	@Test
+	public void ownersDoNotDependOnTheOrderOfServers() {
+		ClusterRing ring = new ClusterRing(Arrays.asList("A", "B", "C"), ClusterRing.DEFAULT_VIRTUAL_NODES);
+		ClusterRing other = new ClusterRing(Arrays.asList("C", "A", "B"), ClusterRing.DEFAULT_VIRTUAL_NODES);
+		for (int i = 0; i < USERS; ++i) {
+			assertEquals(ring.ownerOf(user(i)), other.ownerOf(user(i)));
+		}
+	}
+
+	@Test
+	public void usersAreSpreadEvenly() {
+		ClusterRing ring = new ClusterRing(Arrays.asList("A", "B", "C", "D"), ClusterRing.DEFAULT_VIRTUAL_NODES);
+		Map<String, Integer> owned = new HashMap<String, Integer>();
+		for (int i = 0; i < USERS; ++i) {
+			owned.merge(ring.ownerOf(user(i)), 1, Integer::sum);
+		}
+		assertEquals(4, owned.size());
+		for (int count : owned.values()) {
+			assertTrue("owns " + count, count > USERS / 4 * 2 / 3 && count < USERS / 4 * 4 / 3);
+		}
+	}
+
+	@Test
+	public void addingAServerMovesOnlyUsersToIt() {
+		ClusterRing ring = new ClusterRing(Arrays.asList("A", "B", "C", "D"), ClusterRing.DEFAULT_VIRTUAL_NODES);
+		ClusterRing grown = new ClusterRing(Arrays.asList("A", "B", "C", "D", "E"), ClusterRing.DEFAULT_VIRTUAL_NODES);
+		int moved = 0;
+		for (int i = 0; i < USERS; ++i) {
+			String owner = grown.ownerOf(user(i));
+			if (!owner.equals(ring.ownerOf(user(i)))) {
+				assertEquals("E", owner);
+				++moved;
+			}
+		}
+		assertTrue("moved " + moved, moved > USERS / 5 * 2 / 3 && moved < USERS / 5 * 4 / 3);
+	}
+
+	@Test
+	public void serversFormAClusterOfTheirOwnByDefault() {
+		ClusterRing ring = ClusterRing.fromSystemProperties("Server");
+		assertEquals(Arrays.asList("Server"), ring.nodes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void aServerMustBeANodeOfItsCluster() {
+		System.setProperty(ClusterRing.NODES_PROPERTY, "A,B");
+		try {
+			ClusterRing.fromSystemProperties("Server");
+		} finally {
+			System.clearProperty(ClusterRing.NODES_PROPERTY);
+		}
+	}
+}
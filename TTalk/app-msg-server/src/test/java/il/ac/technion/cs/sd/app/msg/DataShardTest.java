@@ -0,0 +1,63 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DataShardTest {
+	
+	private static final String SERVER = "DataShardTestServer";
+	
+	private final ShardExecutor shards = new ShardExecutor(2);
+	
+	@After
+	public void tearDown() {
+		DataShard.clean(SERVER, DataShard.of(SERVER, 1, false));
+		DataShard.clean(SERVER, DataShard.of(SERVER, 2, false));
+	}
+	
+	private DataShard[] load(int count) {
+		DataShard[] $ = DataShard.of(SERVER, count, false);
+		DataShard.repartition(SERVER, $, 1 == count ? user -> 0 : shards::shardOf, null);
+		for (DataShard part : $) {
+			part.load(null);
+		}
+		return $;
+	}
+	
+	private static void stop(DataShard[] parts) {
+		for (DataShard part : parts) {
+			part.stop();
+		}
+	}
+	
+	@Test
+	public void namesOfASingleShardAreThoseOfTheServer() {
+		assertEquals(SERVER, DataShard.nameOf(SERVER, 0, 1));
+		assertEquals(SERVER + "-1-of-2", DataShard.nameOf(SERVER, 1, 2));
+	}
+	
+	@Test
+	public void friendshipsArePartitionedAnewAsTheNumberOfShardsChanges() {
+		String danny = "Danny";
+		String yossi = "Yossi";
+		for (int i = 0; shards.shardOf(danny) == shards.shardOf(yossi); ++i) {
+			yossi = "Yossi" + i;
+		}
+		DataShard[] parts = load(1);
+		parts[0].data.addFriendship(danny, yossi);
+		stop(parts);
+		
+		parts = load(2);
+		assertTrue(parts[shards.shardOf(danny)].data.areFriends(danny, yossi));
+		assertTrue(parts[shards.shardOf(yossi)].data.areFriends(yossi, danny));
+		parts[shards.shardOf(danny)].data.addFriendship(danny, "Moshe");
+		stop(parts);
+		
+		parts = load(1);
+		assertTrue(parts[0].data.areFriends(danny, yossi));
+		assertTrue(parts[0].data.areFriends(danny, "Moshe"));
+		stop(parts);
+	}
+}
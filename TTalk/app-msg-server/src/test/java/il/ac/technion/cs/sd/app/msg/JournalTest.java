@@ -0,0 +1,146 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class JournalTest {
+	
+	private static final String fileName = "JournalTestFile";
+	
+	private final Exchange msg1 = new ConnectRequest();
+	private final Exchange msg2 = new IsOnlineRequest("Yossi");
+	
+	private Journal journal;
+	
+	private ServerData open(Journal.SyncPolicy policy, ServerData data) {
+		journal = new Journal(fileName, new XStreamCodec<Exchange>(), policy, 10L);
+		journal.open(data);
+		return data;
+	}
+	
+	@After
+	public void tearDown() {
+		journal.close();
+		journal.clean();
+	}
+	
+	private void recordChanges(ServerData data) {
+		data.addFriendship("Danny", "Yossi");
+		data.addPendingClientMessage("Danny", msg1);
+		data.addPendingClientMessage("Yossi", msg1);
+		data.getAndClearPendingClientMessages("Danny");
+		data.addPendingClientMessage("Yossi", msg2);
+	}
+	
+	private void verifyChanges(ServerData data) {
+		assertTrue(data.areFriends("Yossi", "Danny"));
+		assertTrue(data.getAndClearPendingClientMessages("Danny").isEmpty());
+		assertEquals(Arrays.asList(msg1, msg2), data.getAndClearPendingClientMessages("Yossi"));
+	}
+
+	@Test
+	public void changesAreReplayedAfterCrash() {
+		for (Journal.SyncPolicy policy : Arrays.asList(Journal.SyncPolicy.PER_WRITE, Journal.SyncPolicy.GROUP_COMMIT)) {
+			recordChanges(open(policy, new ServerData()));
+			// Crash: the journal is not closed. 
+			
+			ServerData recovered = new ServerData();
+			open(policy, recovered);
+			verifyChanges(recovered);
+			journal.close();
+			journal.clean();
+		}
+	}
+	
+	@Test
+	public void changesAreReplayedAfterClose() {
+		recordChanges(open(Journal.SyncPolicy.INTERVAL, new ServerData()));
+		journal.close();
+		
+		ServerData recovered = new ServerData();
+		open(Journal.SyncPolicy.INTERVAL, recovered);
+		verifyChanges(recovered);
+	}
+	
+	@Test
+	public void coveredJournalIsNotReplayed() {
+		ServerData data = new ServerData();
+		open(Journal.SyncPolicy.GROUP_COMMIT, data);
+		data.addPendingClientMessage("Danny", msg1);
+		data.coverJournal(journal.generation());
+		// Crash before truncating the journal.
+		journal.close();
+		
+		open(Journal.SyncPolicy.GROUP_COMMIT, data);
+		assertEquals(Arrays.asList(msg1), data.getAndClearPendingClientMessages("Danny"));
+	}
+	
+	@Test
+	public void tornRecordIsDiscarded() throws IOException {
+		ServerData data = new ServerData();
+		open(Journal.SyncPolicy.GROUP_COMMIT, data);
+		data.addPendingClientMessage("Danny", msg1);
+		journal.close();
+		try (FileOutputStream out = new FileOutputStream(fileName, true)) {
+			out.write(new byte[] { 0, 0, 0, 100, 2, 0 });
+		}
+		
+		ServerData recovered = new ServerData();
+		open(Journal.SyncPolicy.GROUP_COMMIT, recovered);
+		recovered.addPendingClientMessage("Danny", msg2);
+		journal.close();
+		
+		recovered = new ServerData();
+		open(Journal.SyncPolicy.GROUP_COMMIT, recovered);
+		assertEquals(Arrays.asList(msg1, msg2), recovered.getAndClearPendingClientMessages("Danny"));
+	}
+
+	@Test
+	public void cutGenerationsAreReplayedUntilDiscarded() {
+		ServerData data = new ServerData();
+		open(Journal.SyncPolicy.GROUP_COMMIT, data);
+		data.addFriendship("Danny", "Yossi");
+		ServerData.Snapshot snapshot = data.snapshot();
+		data.addPendingClientMessage("Danny", msg1);
+		// Crash before the snapshot is saved.
+		journal.close();
+		
+		ServerData recovered = new ServerData();
+		open(Journal.SyncPolicy.GROUP_COMMIT, recovered);
+		assertTrue(recovered.areFriends("Danny", "Yossi"));
+		journal.close();
+		
+		// The snapshot is saved, so the generation it covers is discarded.
+		journal.discardThrough(snapshot.journalGeneration());
+		recovered = new ServerData();
+		recovered.coverJournal(snapshot.journalGeneration());
+		open(Journal.SyncPolicy.GROUP_COMMIT, recovered);
+		assertFalse(recovered.areFriends("Danny", "Yossi"));
+		assertEquals(Arrays.asList(msg1), recovered.getAndClearPendingClientMessages("Danny"));
+	}
+	
+	@Test
+	public void expiryIsReplayed() {
+		ServerData data = open(Journal.SyncPolicy.GROUP_COMMIT, new ServerData());
+		data.addPendingClientMessage("Danny", msg1, 10);
+		data.addPendingClientMessage("Danny", msg2, 20);
+		data.addPendingClientMessage("Yossi", msg1, 10);
+		data.expirePending("Danny", 15);
+		journal.close();
+		
+		ServerData recovered = open(Journal.SyncPolicy.GROUP_COMMIT, new ServerData());
+		assertEquals(1, recovered.expirePending("Yossi", 15));
+		assertEquals(Arrays.asList(msg2), recovered.getAndClearPendingClientMessages("Danny"));
+	}
+}
@@ -0,0 +1,95 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+import il.ac.technion.cs.sd.app.msg.LoadShedder.Priority;
+
+import org.junit.Test;
+
+public class LoadShedderTest {
+
+	private static final long MILLISECOND = 1000000L;
+
+	private final LoadShedder shedder = new LoadShedder(5, 100, 0);
+
+	/**
+	 * Keep requests waiting above the target for a whole interval, so shedding starts.
+	 * @return the time shedding started.
+	 */
+	private long standQueue() {
+		for (long t = 0; t < 100; t += 10) {
+			assertTrue(shedder.admit(Priority.POLL, 10 * MILLISECOND, 5, t * MILLISECOND));
+		}
+		assertFalse(shedder.admit(Priority.POLL, 10 * MILLISECOND, 5, 100 * MILLISECOND));
+		assertTrue(shedder.isShedding());
+		return 100 * MILLISECOND;
+	}
+
+	@Test
+	public void nothingIsShedBelowTheTarget() {
+		for (long t = 0; t < 1000; t += 10) {
+			assertTrue(shedder.admit(Priority.POLL, 1 * MILLISECOND, 5, t * MILLISECOND));
+		}
+		assertFalse(shedder.isShedding());
+	}
+
+	@Test
+	public void burstsAreAbsorbed() {
+		for (long t = 0; t < 1000; t += 10) {
+			long sojourn = t % 100 < 50 ? 10 * MILLISECOND : 0; // above the target for half of each interval.
+			assertTrue(shedder.admit(Priority.POLL, sojourn, 5, t * MILLISECOND));
+		}
+		assertEquals(0, shedder.shed());
+	}
+
+	@Test
+	public void aDrainedQueueIsNotStanding() {
+		for (long t = 0; t < 1000; t += 10) {
+			assertTrue(shedder.admit(Priority.POLL, 10 * MILLISECOND, 0, t * MILLISECOND));
+		}
+	}
+
+	@Test
+	public void pollsAreShedFromAStandingQueueButEssentialRequestsAreNot() {
+		long now = standQueue();
+		assertFalse(shedder.admit(Priority.POLL, 10 * MILLISECOND, 5, now));
+		assertTrue(shedder.admit(Priority.ESSENTIAL, 10 * MILLISECOND, 5, now));
+		assertEquals(2, shedder.shed());
+	}
+
+	@Test
+	public void deferrableRequestsAreShedAtAGrowingRate() {
+		long now = standQueue();
+		assertFalse(shedder.admit(Priority.DEFERRABLE, 10 * MILLISECOND, 5, now));
+		assertTrue(shedder.admit(Priority.DEFERRABLE, 10 * MILLISECOND, 5, now + 99 * MILLISECOND));
+		assertFalse(shedder.admit(Priority.DEFERRABLE, 10 * MILLISECOND, 5, now + 100 * MILLISECOND));
+		now += 100 * MILLISECOND;
+		// The next is shed sooner: after 100ms / sqrt(2).
+		assertTrue(shedder.admit(Priority.DEFERRABLE, 10 * MILLISECOND, 5, now + 70 * MILLISECOND));
+		assertFalse(shedder.admit(Priority.DEFERRABLE, 10 * MILLISECOND, 5, now + 71 * MILLISECOND));
+	}
+
+	@Test
+	public void sheddingStopsOnceTheDelayIsBelowTheTarget() {
+		long now = standQueue();
+		assertTrue(shedder.admit(Priority.POLL, 1 * MILLISECOND, 5, now + 10 * MILLISECOND));
+		assertFalse(shedder.isShedding());
+		assertTrue(shedder.admit(Priority.POLL, 10 * MILLISECOND, 5, now + 20 * MILLISECOND));
+	}
+
+	@Test
+	public void aBacklogOverTheDepthShedsAtOnce() {
+		LoadShedder shedder = new LoadShedder(0, 100, 10);
+		assertTrue(shedder.admit(Priority.DEFERRABLE, 0, 10, 0));
+		assertFalse(shedder.admit(Priority.DEFERRABLE, 0, 11, 0));
+		assertFalse(shedder.admit(Priority.POLL, 0, 11, 0));
+		assertTrue(shedder.admit(Priority.ESSENTIAL, 0, 11, 0));
+	}
+
+	@Test
+	public void nothingIsShedByDefault() {
+		LoadShedder shedder = LoadShedder.fromSystemProperties();
+		for (long t = 0; t < 1000; t += 10) {
+			assertTrue(shedder.admit(Priority.POLL, 1000 * MILLISECOND, 100000, t * MILLISECOND));
+		}
+	}
+}
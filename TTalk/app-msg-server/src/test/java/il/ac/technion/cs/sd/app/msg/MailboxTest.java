@@ -0,0 +1,173 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import org.junit.Test;
+
+public class MailboxTest {
+
+	private static final String fileName = "MailboxTestStore";
+
+	private static final int THREADS = 4;
+	private static final int MESSAGES = 500;
+
+	@Test
+	public void drainedMessagesAreInOrder() {
+		Mailbox mailbox = new Mailbox(0);
+		Exchange msg1 = new ConnectRequest();
+		Exchange msg2 = new IsOnlineRequest("Yossi");
+		mailbox.add(msg1, null, Mailbox.NEVER);
+		mailbox.add(msg2, null, Mailbox.NEVER);
+		Mailbox.Contents snapshot = mailbox.contents();
+		mailbox.add(msg1, null, Mailbox.NEVER);
+		assertEquals(Arrays.asList(msg1, msg2), snapshot.inMemory());
+		assertEquals(Arrays.asList(msg1, msg2, msg1), mailbox.drain().inMemory());
+		assertTrue(mailbox.contents().isEmpty());
+	}
+
+	@Test
+	public void expiredMessagesAreRemovedInOrder() {
+		Mailbox mailbox = new Mailbox(0);
+		Exchange msg1 = new ConnectRequest();
+		Exchange msg2 = new IsOnlineRequest("Yossi");
+		Exchange msg3 = new IsOnlineRequest("Moshe");
+		mailbox.add(msg1, null, 20);
+		mailbox.add(msg2, null, Mailbox.NEVER);
+		mailbox.add(msg3, null, 10);
+		assertEquals(10, mailbox.contents().nextExpiry());
+		assertTrue(mailbox.expire(9).isEmpty());
+		assertEquals(Arrays.asList(msg3), mailbox.expire(10).inMemory());
+		assertEquals(20, mailbox.contents().nextExpiry());
+		assertEquals(Arrays.asList(msg1), mailbox.expire(30).inMemory());
+		assertEquals(Mailbox.NEVER, mailbox.contents().nextExpiry());
+		assertEquals(Arrays.asList(msg2), mailbox.drain().inMemory());
+	}
+
+	@Test
+	public void aMessageSupersedesEarlierOnesWithTheSameKey() {
+		Mailbox mailbox = new Mailbox(0);
+		Exchange msg1 = new IsOnlineRequest("Yossi");
+		Exchange msg2 = new ConnectRequest();
+		Exchange msg3 = new IsOnlineRequest("Moshe");
+		assertEquals(0, mailbox.add(msg1, "Yossi", 10));
+		assertEquals(0, mailbox.add(msg2, null, Mailbox.NEVER));
+		assertEquals(0, mailbox.add(msg3, "Moshe", Mailbox.NEVER));
+		assertEquals(0, mailbox.add(msg2, null, Mailbox.NEVER));
+		assertEquals(1, mailbox.add(msg1, "Yossi", 20));
+		assertEquals(20, mailbox.contents().nextExpiry());
+		assertEquals(Arrays.asList(msg2, msg3, msg2, msg1), mailbox.drain().inMemory());
+	}
+
+	@Test
+	public void noMessageIsLostWhileAddingAndDrainingConcurrently() throws Exception {
+		Mailbox mailbox = new Mailbox(0);
+		List<Object> drained = addConcurrently(THREADS,
+				i -> mailbox.add(new IsOnlineRequest(Integer.toString(i)), null, Mailbox.NEVER),
+				() -> drained(mailbox.drain()));
+		drained.addAll(drained(mailbox.drain()));
+		assertInOrder(drained, o -> Integer.parseInt(((IsOnlineRequest)o).who));
+	}
+
+	@Test
+	public void noMessageIsLostWhileSpillingConcurrently() throws Exception {
+		PendingStore store = new PendingStore(fileName, new XStreamCodec<Exchange>(), 1 << 12, 8, 1 << 10, 1 << 12);
+		store.open(0);
+		try {
+			Mailbox mailbox = new Mailbox(0);
+			AtomicLong memory = new AtomicLong();
+			List<Object> drained = addConcurrently(THREADS,
+					i -> mailbox.add(Integer.toString(i), null, Mailbox.NEVER, store, memory),
+					() -> drained(mailbox.drain(), store, memory));
+			drained.addAll(drained(mailbox.drain(), store, memory));
+			assertInOrder(drained, o -> Integer.parseInt((String)o));
+			assertEquals(0, memory.get());
+			for (int live : store.liveCounts()) {
+				assertEquals(0, live);
+			}
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+
+	private interface Adder {
+		void add(int i);
+	}
+
+	private interface Drainer {
+		List<Object> drain();
+	}
+
+	private interface Index {
+		int of(Object message);
+	}
+
+	/**
+	 * Add messages numbered by thread and sequence from several threads, while draining from another.
+	 */
+	private static List<Object> addConcurrently(int threads, Adder adder, Drainer drainer) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+		try {
+			List<Future<?>> adding = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; ++t) {
+				int thread = t;
+				adding.add(executor.submit(() -> {
+					for (int i = 0; i < MESSAGES; ++i) {
+						adder.add(thread * MESSAGES + i);
+					}
+				}));
+			}
+			Future<List<Object>> draining = executor.submit(() -> {
+				List<Object> $ = new ArrayList<Object>();
+				while (!adding.stream().allMatch(Future::isDone)) {
+					$.addAll(drainer.drain());
+				}
+				return $;
+			});
+			for (Future<?> f : adding) {
+				f.get();
+			}
+			return draining.get();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static List<Object> drained(Mailbox.Contents contents) {
+		return new ArrayList<Object>(contents.inMemory());
+	}
+
+	private static List<Object> drained(Mailbox.Contents contents, PendingStore store, AtomicLong memory) {
+		memory.addAndGet(-contents.length);
+		List<Object> $ = new ArrayList<Object>(contents.inMemory());
+		if (contents.storedCount > 0) {
+			store.drain(0, contents.storedLast, contents.storedCount, $::add);
+		}
+		return $;
+	}
+
+	/**
+	 * Assert that all of the messages were drained once, and that the messages of each thread are in order.
+	 */
+	private static void assertInOrder(List<Object> drained, Index index) {
+		assertEquals(THREADS * MESSAGES, drained.size());
+		int[] next = new int[THREADS];
+		for (Object message : drained) {
+			int i = index.of(message);
+			assertEquals(next[i / MESSAGES]++, i % MESSAGES);
+		}
+	}
+}
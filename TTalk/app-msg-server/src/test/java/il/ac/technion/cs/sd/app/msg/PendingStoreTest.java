@@ -0,0 +1,134 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PendingStoreTest {
+	
+	private static final String fileName = "PendingStoreTestFile";
+	
+	private final Exchange msg1 = new ConnectRequest();
+	private final Exchange msg2 = new IsOnlineRequest("Yossi");
+	
+	private PendingStore store;
+	
+	@Before
+	public void setUp() {
+		store = new PendingStore(fileName);
+		store.open(0);
+	}
+	
+	@After
+	public void tearDown() {
+		store.close();
+		store.clean();
+	}
+	
+	@Test
+	public void messagesAreReadInOrder() {
+		long last1 = store.append(1, -1, store.encode(msg1));
+		long last2 = store.append(2, -1, store.encode(msg2));
+		last1 = store.append(1, last1, store.encode(msg2));
+		assertEquals(Arrays.asList(msg1, msg2), store.read(1, last1, 2));
+		assertEquals(Arrays.asList(msg2), store.read(2, last2, 1));
+	}
+	
+	@Test
+	public void messagesAreReadAfterReopening() {
+		long last = store.append(1, -1, store.encode(msg1));
+		last = store.append(1, last, store.encode(msg2));
+		store.close();
+		store.open(store.end());
+		assertEquals(Arrays.asList(msg1, msg2), store.read(1, last, 2));
+	}
+	
+	@Test
+	public void recordsAfterTheGivenEndAreDiscarded() {
+		long last = store.append(1, -1, store.encode(msg1));
+		long end = store.end();
+		store.append(1, last, store.encode(msg2));
+		store.close();
+		store.open(end);
+		assertEquals(end, store.end());
+		last = store.append(1, last, store.encode(msg1));
+		assertEquals(Arrays.asList(msg1, msg1), store.read(1, last, 2));
+	}
+	
+	@Test
+	public void recordsAreReadAcrossSegments() {
+		store.close();
+		store = new PendingStore(fileName, new XStreamCodec<Exchange>(), 64, 0, 0, 0);
+		store.open(0);
+		long last = -1;
+		for (int i = 0; i < 10; ++i) {
+			last = store.append(1, last, store.encode(0 == i % 2 ? msg1 : msg2));
+		}
+		assertTrue(store.end() >>> 32 > 0);
+		store.close();
+		store.open(store.end());
+		assertEquals(Arrays.asList(msg1, msg2, msg1, msg2, msg1, msg2, msg1, msg2, msg1, msg2),
+				store.read(1, last, 10));
+	}
+	
+	@Test
+	public void laterSegmentsAreDiscardedUponOpening() {
+		store.close();
+		store = new PendingStore(fileName, new XStreamCodec<Exchange>(), 64, 0, 0, 0);
+		store.open(0);
+		long last = store.append(1, -1, store.encode(msg1));
+		long end = store.end();
+		store.append(1, last, store.encode(msg2));
+		store.append(1, last, store.encode(msg2));
+		store.close();
+		store.open(end);
+		assertEquals(end, store.end());
+		last = store.append(1, last, store.encode(msg1));
+		assertEquals(Arrays.asList(msg1, msg1), store.read(1, last, 2));
+	}
+	
+	@Test
+	public void messagesAreDrainedAsTheyWereEncoded() {
+		long last = store.append(1, -1, store.encode(msg1));
+		last = store.append(1, last, store.encode(msg2));
+		List<String> drained = new ArrayList<String>();
+		store.drain(1, last, 2, drained::add);
+		assertEquals(Arrays.asList(store.encode(msg1), store.encode(msg2)), drained);
+		assertArrayEquals(new int[] {0}, store.liveCounts());
+	}
+	
+	@Test
+	public void drainedSegmentsAreReclaimed() {
+		store.close();
+		store = new PendingStore(fileName, new XStreamCodec<Exchange>(), 64, 0, 0, 0);
+		store.open(0);
+		long last1 = store.append(1, -1, store.encode(msg1));
+		long last2 = store.append(2, -1, store.encode(msg2));
+		last1 = store.append(1, last1, store.encode(msg1));
+		store.drain(1, last1, 2, null);
+		assertArrayEquals(new int[] {0, 1, 0}, store.liveCounts());
+		store.reclaim(store.liveCounts(), store.end());
+		assertFalse(new File(fileName).exists());
+		assertTrue(new File(fileName + ".1").exists());
+		assertTrue(new File(fileName + ".2").exists()); // the last segment is kept.
+		assertEquals(Arrays.asList(msg2), store.read(2, last2, 1));
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void readingAnotherClientsRecordFails() {
+		long last = store.append(1, -1, store.encode(msg1));
+		store.read(2, last, 1);
+	}
+}
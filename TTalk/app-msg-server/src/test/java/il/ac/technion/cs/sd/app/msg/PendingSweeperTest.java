@@ -0,0 +1,64 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
+
+import org.junit.Test;
+
+public class PendingSweeperTest {
+
+	private final Exchange msg = new ConnectRequest();
+
+	@Test
+	public void usersAreScannedInBatches() {
+		ServerData data = new ServerData();
+		for (int i = 0; i < 20; ++i) {
+			data.addPendingClientMessage("User" + i, msg, 10);
+		}
+		PendingSweeper sweeper = new PendingSweeper(100, 8);
+		List<String> swept = new ArrayList<String>();
+		int from = sweeper.sweep(data, (client, task) -> {
+			swept.add(client);
+			task.run();
+		}, 0, 10);
+		assertEquals(8, from);
+		assertEquals(8, swept.size());
+		assertEquals(8, sweeper.expired());
+		while (0 != from) {
+			from = sweeper.sweep(data, (client, task) -> task.run(), from, 10);
+		}
+		assertEquals(20, sweeper.expired());
+		assertTrue(data.getAndClearPendingClientMessages("User0").isEmpty());
+	}
+
+	@Test
+	public void unexpiredMessagesAreKept() {
+		ServerData data = new ServerData();
+		data.addPendingClientMessage("Danny", msg, 20);
+		PendingSweeper sweeper = new PendingSweeper(100, 8);
+		sweeper.sweep(data, (client, task) -> task.run(), 0, 10);
+		assertEquals(0, sweeper.expired());
+		assertEquals(Arrays.asList(msg), data.getAndClearPendingClientMessages("Danny"));
+	}
+
+	@Test
+	public void deadlinesAreSetByType() {
+		PendingExpiry expiry = new PendingExpiry(0, 100, 200, 10);
+		Exchange message = new SendInstantMessageRequest(new InstantMessage("Danny", "Yossi", "Hi"));
+		assertEquals(Mailbox.NEVER, expiry.deadlineOf(message, 1000));
+		assertEquals(1100, expiry.deadlineOf(new FriendRequest(new FriendInvitation("Danny", "Yossi")), 1000));
+		assertEquals(1010, expiry.deadlineOf(new IsOnlineResponse("Danny", Optional.of(true)), 1000));
+		assertEquals(Mailbox.NEVER, expiry.deadlineOf(msg, 1000));
+		assertFalse(new PendingExpiry(0, 0, 0, 0).expiresAny());
+	}
+}
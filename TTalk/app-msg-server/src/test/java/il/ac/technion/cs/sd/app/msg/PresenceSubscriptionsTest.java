@@ -0,0 +1,60 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceUpdate;
+
+import org.junit.Test;
+
+public class PresenceSubscriptionsTest {
+
+	private final List<Runnable> tasks = new ArrayList<Runnable>();
+	private final List<Exchange> sent = new ArrayList<Exchange>();
+	private final PresenceSubscriptions subscriptions = new PresenceSubscriptions((client, task) -> tasks.add(task),
+			(client, update) -> sent.add(update));
+
+	private void runTasks() {
+		List<Runnable> $ = new ArrayList<Runnable>(tasks);
+		tasks.clear();
+		$.forEach(Runnable::run);
+	}
+
+	@Test
+	public void changesPushedBeforeTheFlushAreCoalesced() {
+		subscriptions.subscribe("Danny");
+		subscriptions.push("Danny", Collections.singletonMap("Yossi", true));
+		subscriptions.push("Danny", Collections.singletonMap("Moshe", true));
+		subscriptions.push("Danny", Collections.singletonMap("Yossi", false));
+		assertEquals(1, tasks.size());
+		runTasks();
+		Map<String, Boolean> expected = new HashMap<String, Boolean>();
+		expected.put("Yossi", false);
+		expected.put("Moshe", true);
+		assertEquals(Arrays.asList(new PresenceUpdate(expected)), sent);
+		assertEquals(1, subscriptions.coalesced());
+		
+		subscriptions.push("Danny", Collections.singletonMap("Moshe", false));
+		runTasks();
+		assertEquals(new PresenceUpdate(Collections.singletonMap("Moshe", false)), sent.get(1));
+		assertEquals(2, subscriptions.sent());
+	}
+
+	@Test
+	public void changesAreNotPushedToClientsNotSubscribed() {
+		subscriptions.push("Danny", Collections.singletonMap("Yossi", true));
+		subscriptions.subscribe("Danny");
+		subscriptions.push("Danny", Collections.singletonMap("Yossi", false));
+		subscriptions.unsubscribe("Danny");
+		runTasks();
+		assertTrue(sent.isEmpty());
+		assertFalse(subscriptions.isSubscribed("Danny"));
+	}
+}
@@ -0,0 +1,99 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	private static final long MILLISECOND = 1000000L;
+
+	@Test
+	public void requestsAreAdmittedUpToTheBurst() {
+		RateLimiter limiter = new RateLimiter(10, 2, 0, 0);
+		assertTrue(limiter.tryAcquire("Danny", 1, 0));
+		assertTrue(limiter.tryAcquire("Danny", 1, 0));
+		assertFalse(limiter.tryAcquire("Danny", 1, 0));
+		assertEquals(2, limiter.admitted());
+		assertEquals(1, limiter.rejectedByClient());
+	}
+
+	@Test
+	public void costlierRequestsTakeSeveralTokensOrNone() {
+		RateLimiter limiter = new RateLimiter(10, 5, 10, 8);
+		assertTrue(limiter.tryAcquire("Danny", 3, 0));
+		assertFalse(limiter.tryAcquire("Danny", 3, 0));
+		assertTrue(limiter.tryAcquire("Danny", 2, 0));
+		assertFalse(limiter.tryAcquire("Yossi", 6, 0)); // More than a burst.
+		assertTrue(limiter.tryAcquire("Yossi", 3, 0));
+		assertFalse(limiter.tryAcquire("Moshe", 1, 0)); // The global bucket is empty.
+		assertEquals(2, limiter.rejectedByClient());
+		assertEquals(1, limiter.rejectedByGlobal());
+	}
+
+	@Test
+	public void bucketsAreRefilledAtTheRate() {
+		RateLimiter limiter = new RateLimiter(10, 1, 0, 0);
+		assertTrue(limiter.tryAcquire("Danny", 1, 0));
+		assertFalse(limiter.tryAcquire("Danny", 1, 50 * MILLISECOND));
+		assertTrue(limiter.tryAcquire("Danny", 1, 100 * MILLISECOND));
+		assertFalse(limiter.tryAcquire("Danny", 1, 100 * MILLISECOND));
+	}
+
+	@Test
+	public void clientsHaveBucketsOfTheirOwn() {
+		RateLimiter limiter = new RateLimiter(10, 1, 0, 0);
+		assertTrue(limiter.tryAcquire("Danny", 1, 0));
+		assertFalse(limiter.tryAcquire("Danny", 1, 0));
+		assertTrue(limiter.tryAcquire("Yossi", 1, 0));
+	}
+
+	@Test
+	public void theGlobalBucketLimitsAllClients() {
+		RateLimiter limiter = new RateLimiter(0, 0, 10, 2);
+		assertTrue(limiter.tryAcquire("Danny", 1, 0));
+		assertTrue(limiter.tryAcquire("Yossi", 1, 0));
+		assertFalse(limiter.tryAcquire("Moshe", 1, 0));
+		assertEquals(1, limiter.rejectedByGlobal());
+		assertEquals(0, limiter.rejectedByClient());
+	}
+
+	@Test
+	public void requestsAreNotLimitedByDefault() {
+		RateLimiter limiter = RateLimiter.fromSystemProperties();
+		for (int i = 0; i < 10000; ++i) {
+			assertTrue(limiter.tryAcquire("Danny", 1, 0));
+		}
+		assertEquals(0, limiter.clientCount());
+	}
+
+	@Test
+	public void onlyFullBucketsAreForgotten() {
+		RateLimiter limiter = new RateLimiter(0.001, 1, 0, 0);
+		assertTrue(limiter.tryAcquire("Danny", 1, System.nanoTime()));
+		limiter.forget("Danny");
+		assertEquals(1, limiter.clientCount());
+
+		limiter = new RateLimiter(10, 1, 0, 0);
+		assertTrue(limiter.tryAcquire("Danny", 1, System.nanoTime() - 1000 * MILLISECOND));
+		limiter.forget("Danny");
+		assertEquals(0, limiter.clientCount());
+	}
+
+	@Test
+	public void idleBucketsAreSwept() {
+		RateLimiter limiter = new RateLimiter(1, 1, 0, 0);
+		long start = System.nanoTime();
+		assertTrue(limiter.tryAcquire("Danny", 1, start));
+		assertTrue(limiter.tryAcquire("Yossi", 1, start + 500 * MILLISECOND));
+		assertEquals(2, limiter.clientCount());
+
+		// Danny's bucket was refilled long ago, Yossi's was just taken from.
+		assertFalse(limiter.tryAcquire("Yossi", 1, start + 1000 * MILLISECOND + 1));
+		assertEquals(1, limiter.clientCount());
+
+		// Swept at most once an interval.
+		assertTrue(limiter.tryAcquire("Moshe", 1, start + 1500 * MILLISECOND));
+		assertEquals(2, limiter.clientCount());
+	}
+}
@@ -0,0 +1,220 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
+import il.ac.technion.cs.sd.msg.ClientConnection;
+import il.ac.technion.cs.sd.msg.Connection;
+import il.ac.technion.cs.sd.msg.ServerConnection;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ReplicatorTest {
+
+	private static final String journalFileName = "ReplicatorTestJournal";
+	private static final String standbyJournalFileName = "ReplicatorTestStandbyJournal";
+	private static final String standbyStoreFileName = "ReplicatorTestStandbyStore";
+
+	private final Exchange msg1 = new ConnectRequest();
+	private final Exchange msg2 = new IsOnlineRequest("Yossi");
+
+	private final ServerData data = new ServerData();
+	private final Journal journal = new Journal(journalFileName, new XStreamCodec<Exchange>(),
+			Journal.SyncPolicy.GROUP_COMMIT, 10L);
+	private final Journal standbyJournal = new Journal(standbyJournalFileName, new XStreamCodec<Exchange>(),
+			Journal.SyncPolicy.GROUP_COMMIT, 10L);
+	private final PendingStore standbyStore = new PendingStore(standbyStoreFileName);
+
+	private volatile boolean dropping = false; // whether records sent to the standby are lost.
+	private volatile boolean stalled = false; // whether sending to the standby waits.
+	private volatile boolean dead = false; // whether the standby was declared dead.
+	private final AtomicInteger refused = new AtomicInteger(); // the messages sent while the standby was dead.
+	private volatile Consumer<Replication> primaryHandler;
+	private Standby standby;
+	private Replicator replicator;
+
+	/**
+	 * Delivers to the standby directly, on the sending thread.
+	 */
+	private class ToStandby extends ClientConnection<Replication> {
+		ToStandby() {
+			super("standby", new Connection<Replication>("primary"));
+		}
+
+		@Override
+		public void start(Consumer<Replication> handler) {
+			primaryHandler = handler;
+		}
+
+		@Override
+		public boolean deliver(Replication content) {
+			while (stalled) {
+				Thread.yield();
+			}
+			if (dead) {
+				refused.incrementAndGet();
+				return false;
+			}
+			if (!dropping || null != content.snapshot) {
+				standby.receive(content);
+			}
+			return true;
+		}
+
+		@Override
+		public void stop() {
+		}
+	}
+
+	/**
+	 * Delivers to the primary directly, on the sending thread.
+	 */
+	private class ToPrimary extends ServerConnection<Replication> {
+		ToPrimary() {
+			super(new Connection<Replication>("standby"));
+		}
+
+		@Override
+		public void start(BiConsumer<String, Replication> handler) {
+		}
+
+		@Override
+		public void send(String to, Replication content) {
+			while (null == primaryHandler) {
+				Thread.yield(); // the primary is not started yet.
+			}
+			primaryHandler.accept(content);
+		}
+
+		@Override
+		public void stop() {
+		}
+	}
+
+	private void start(Replicator.Mode mode) {
+		start(mode, 1000L);
+	}
+	
+	private void start(Replicator.Mode mode, long timeoutInMilliseconds) {
+		standby = new Standby(new ToPrimary(), "primary", standbyJournal, standbyStore);
+		replicator = new Replicator(new ToStandby(), mode, timeoutInMilliseconds, 1000);
+		journal.open(data);
+		standby.start();
+		replicator.start(data, journal);
+		waitUntil(() -> null != standby.data());
+	}
+
+	@After
+	public void tearDown() {
+		replicator.stop();
+		standby.stop();
+		journal.close();
+		journal.clean();
+		standbyStore.close();
+		standbyStore.clean();
+	}
+
+	private static void waitUntil(BooleanSupplier condition) {
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (!condition.getAsBoolean()) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			try {
+				Thread.sleep(5L);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private void recordChanges() {
+		data.addFriendship("Danny", "Yossi");
+		data.addPendingClientMessage("Danny", msg1);
+		data.addPendingClientMessage("Yossi", msg1);
+		data.getAndClearPendingClientMessages("Danny");
+		data.addPendingClientMessage("Yossi", msg2);
+	}
+
+	private void verifyChanges(ServerData replica) {
+		assertTrue(replica.areFriends("Yossi", "Danny"));
+		assertTrue(replica.getAndClearPendingClientMessages("Danny").isEmpty());
+		assertEquals(Arrays.asList(msg1, msg2), replica.getAndClearPendingClientMessages("Yossi"));
+	}
+
+	@Test
+	public void changesReachTheStandby() {
+		start(Replicator.Mode.ASYNC);
+		recordChanges();
+		waitUntil(() -> 0 == replicator.lagInRecords());
+		verifyChanges(standby.data());
+		assertEquals(0, replicator.lagInMilliseconds());
+	}
+
+	@Test
+	public void changesBeforeTheSnapshotReachTheStandby() {
+		recordChanges();
+		start(Replicator.Mode.ASYNC);
+		verifyChanges(standby.data());
+	}
+
+	@Test
+	public void semiSyncChangesAreReceivedWhenMade() {
+		start(Replicator.Mode.SEMI_SYNC);
+		data.addFriendship("Danny", "Yossi");
+		assertEquals(0, replicator.lagInRecords());
+		assertTrue(standby.data().areFriends("Yossi", "Danny"));
+	}
+
+	@Test
+	public void standbyResyncsAfterMissingRecords() {
+		start(Replicator.Mode.SEMI_SYNC);
+		ServerData first = standby.data();
+		dropping = true;
+		data.addFriendship("Danny", "Yossi");
+		dropping = false;
+		data.addPendingClientMessage("Danny", msg1);
+		waitUntil(() -> first != standby.data() && 0 == replicator.lagInRecords());
+		assertTrue(standby.data().areFriends("Yossi", "Danny"));
+		assertEquals(Arrays.asList(msg1), standby.data().getAndClearPendingClientMessages("Danny"));
+	}
+
+	@Test
+	public void semiSyncAppendsWaitForASlowStandbyOnlyOnce() {
+		start(Replicator.Mode.SEMI_SYNC, 100L);
+		stalled = true;
+		data.addFriendship("Danny", "Yossi"); // waits for the timeout.
+		long before = System.currentTimeMillis();
+		data.addPendingClientMessage("Danny", msg1);
+		assertTrue(System.currentTimeMillis() - before < 100L);
+		stalled = false;
+		waitUntil(() -> 0 == replicator.lagInRecords());
+		
+		// The standby acknowledged again, so appends wait for it again.
+		data.addFriendship("Danny", "Moshe");
+		assertEquals(0, replicator.lagInRecords());
+		assertTrue(standby.data().areFriends("Moshe", "Danny"));
+	}
+
+	@Test
+	public void aDeadStandbyIsGivenUpOnUntilItIsBack() {
+		start(Replicator.Mode.SEMI_SYNC, 100L);
+		ServerData first = standby.data();
+		dead = true;
+		data.addFriendship("Danny", "Yossi");
+		data.addPendingClientMessage("Danny", msg1);
+		waitUntil(() -> refused.get() >= 2); // given up on, and probed since.
+		dead = false;
+		waitUntil(() -> first != standby.data() && 0 == replicator.lagInRecords());
+		assertTrue(standby.data().areFriends("Yossi", "Danny"));
+		assertEquals(Arrays.asList(msg1), standby.data().getAndClearPendingClientMessages("Danny"));
+	}
+}
@@ -2,11 +2,20 @@ package il.ac.technion.cs.sd.app.msg;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IntSummaryStatistics;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
 
 import org.junit.Test;
 
@@ -57,6 +66,46 @@ public class ServerDataTest {
 		assertFalse(data.areFriends("c", "b"));
 	}
 
+	@Test
+	public void testFriendsOf() {
+		assertTrue(data.friendsOf("a").isEmpty());
+		assertEquals(0, data.degreeOf("a"));
+		
+		data.addFriendship("a", "b");
+		data.addFriendship("c", "a");
+		data.addFriendship("b", "a");
+		assertEquals(new HashSet<String>(Arrays.asList("b", "c")), data.friendsOf("a"));
+		assertEquals(new HashSet<String>(Arrays.asList("a")), data.friendsOf("b"));
+		assertEquals(2, data.degreeOf("a"));
+		assertEquals(1, data.degreeOf("c"));
+	}
+	
+	@Test
+	public void testPresenceOf() {
+		data.addFriendship("a", "b");
+		data.addFriendship("a", "c");
+		data.connect("b");
+		data.connect("d");
+		Map<String, Optional<Boolean>> presence = data.presenceOf("a", Arrays.asList("d", "c", "b", "e"));
+		assertEquals(Arrays.asList("d", "c", "b", "e"), new ArrayList<String>(presence.keySet()));
+		assertEquals(Arrays.asList(Optional.empty(), Optional.of(false), Optional.of(true), Optional.empty()),
+				new ArrayList<Optional<Boolean>>(presence.values()));
+		assertEquals(Optional.empty(), data.presenceOf("e", Arrays.asList("a")).get("a"));
+	}
+
+	@Test
+	public void testDegreeStatistics() {
+		data.addFriendship("a", "b");
+		data.addFriendship("a", "c");
+		data.addFriendship("a", "d");
+		
+		IntSummaryStatistics stats = data.degreeStatistics();
+		assertEquals(4, stats.getCount());
+		assertEquals(6, stats.getSum());
+		assertEquals(3, stats.getMax());
+		assertEquals(1, stats.getMin());
+	}
+
 	@Test
 	public void testPendingClientMessage() {
 		Exchange msg1 = new ConnectRequest();
@@ -76,4 +125,196 @@ public class ServerDataTest {
 		
 		assertTrue(data.getAndClearPendingClientMessages("Danny").isEmpty());
 	}
+
+	@Test
+	public void testSnapshotIsNotAffectedByLaterChanges() {
+		Exchange msg1 = new ConnectRequest();
+		Exchange msg2 = new FriendRequest(new FriendInvitation("Danny", "Yossi"));
+		data.addFriendship("Danny", "Yossi");
+		data.addPendingClientMessage("Danny", msg1);
+		data.addPendingClientMessage("Yossi", msg1);
+		
+		ServerData.Snapshot snapshot = data.snapshot();
+		data.addFriendship("Danny", "Moshe");
+		data.addPendingClientMessage("Danny", msg2);
+		data.getAndClearPendingClientMessages("Yossi");
+		
+		XStreamCodec<ServerData> codec = new XStreamCodec<ServerData>();
+		ServerData saved = codec.decode(codec.encode(snapshot.toData()));
+		assertTrue(saved.areFriends("Danny", "Yossi"));
+		assertFalse(saved.areFriends("Danny", "Moshe"));
+		assertEquals(Arrays.asList(msg1), saved.getAndClearPendingClientMessages("Danny"));
+		assertEquals(Arrays.asList(msg1), saved.getAndClearPendingClientMessages("Yossi"));
+		assertEquals(Arrays.asList(msg1, msg2), data.getAndClearPendingClientMessages("Danny"));
+	}
+	
+	@Test
+	public void testStoredPendingClientMessage() {
+		Exchange msg1 = new ConnectRequest();
+		Exchange msg2 = new FriendRequest(new FriendInvitation("Danny", "Yossi"));
+		data.addPendingClientMessage("Danny", msg1);
+		PendingStore store = new PendingStore("ServerDataTestStore");
+		try {
+			data.storePendingIn(store);
+			data.addPendingClientMessage("Danny", msg2);
+			data.addPendingClientMessage("Yossi", msg2);
+			assertEquals(Arrays.asList(msg1, msg2), data.getAndClearPendingClientMessages("Danny"));
+			assertTrue(data.getAndClearPendingClientMessages("Danny").isEmpty());
+			data.clearPendingClientMessages("Yossi");
+			assertTrue(data.getAndClearPendingClientMessages("Yossi").isEmpty());
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+	
+	@Test
+	public void testPendingClientMessagesBeyondTheHeadSpillToTheStore() {
+		Exchange msg1 = new ConnectRequest();
+		Exchange msg2 = new FriendRequest(new FriendInvitation("Danny", "Yossi"));
+		PendingStore store = new PendingStore("ServerDataTestStore", new XStreamCodec<Exchange>(), 1 << 10, 1,
+				1 << 10, 1 << 20);
+		try {
+			data.storePendingIn(store);
+			data.addPendingClientMessage("Danny", msg1);
+			long head = data.pendingMemoryOf("Danny");
+			assertTrue(head > 0);
+			assertEquals(head, data.pendingMemory());
+			data.addPendingClientMessage("Danny", msg2);
+			data.addPendingClientMessage("Danny", msg1);
+			assertEquals(head, data.pendingMemory());
+			List<Exchange> drained = new ArrayList<Exchange>();
+			data.drainPendingClientMessages("Danny", drained::add);
+			assertEquals(Arrays.asList(msg1, msg2, msg1), drained);
+			assertEquals(0, data.pendingMemory());
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+	
+	@Test
+	public void testEncodedPendingClientMessagesAreDrainedAsTheyAre() {
+		Exchange msg1 = new ConnectRequest();
+		Exchange msg2 = new FriendRequest(new FriendInvitation("Danny", "Yossi"));
+		PendingStore store = new PendingStore("ServerDataTestStore", new XStreamCodec<Exchange>(), 1 << 10, 1,
+				1 << 10, 1 << 20);
+		try {
+			data.storePendingIn(store);
+			data.addPendingClientMessage("Danny", msg1);
+			data.addEncodedPendingClientMessage("Danny", store.encode(msg2));
+			List<String> drained = new ArrayList<String>();
+			data.drainEncodedPendingClientMessages("Danny", drained::add);
+			assertEquals(Arrays.asList(store.encode(msg1), store.encode(msg2)), drained);
+			assertTrue(data.getAndClearPendingClientMessages("Danny").isEmpty());
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+	
+	@Test
+	public void testPendingClientMessagesSpillWhenMemoryIsFull() {
+		Exchange msg = new ConnectRequest();
+		PendingStore store = new PendingStore("ServerDataTestStore", new XStreamCodec<Exchange>(), 1 << 10, 10,
+				1 << 10, 1);
+		try {
+			data.storePendingIn(store);
+			data.addPendingClientMessage("Danny", msg);
+			data.addPendingClientMessage("Yossi", msg);
+			assertEquals(0, data.pendingMemory());
+			assertEquals(Arrays.asList(msg), data.getAndClearPendingClientMessages("Danny"));
+			assertEquals(Arrays.asList(msg), data.getAndClearPendingClientMessages("Yossi"));
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+	
+	@Test
+	public void testExpiredPendingClientMessagesAreDropped() {
+		Exchange msg1 = new ConnectRequest();
+		Exchange msg2 = new FriendRequest(new FriendInvitation("Danny", "Yossi"));
+		data.expirePendingBy(new PendingExpiry(0, 1000, 0, 0));
+		data.addPendingClientMessage("Danny", msg1);
+		data.addPendingClientMessage("Danny", msg2, 10);
+		data.addPendingClientMessage("Yossi", msg2, 20);
+		List<String> found = new ArrayList<String>();
+		assertEquals(0, data.findExpiredPending(0, 16, 15, found::add));
+		assertEquals(Arrays.asList("Danny"), found);
+		assertEquals(0, data.expirePending("Yossi", 15));
+		assertEquals(1, data.expirePending("Danny", 15));
+		assertEquals(Arrays.asList(msg1), data.getAndClearPendingClientMessages("Danny"));
+		assertEquals(Arrays.asList(msg2), data.getAndClearPendingClientMessages("Yossi"));
+	}
+	
+	@Test
+	public void testStoredPendingClientMessagesExpireTogether() {
+		Exchange msg1 = new ConnectRequest();
+		Exchange msg2 = new FriendRequest(new FriendInvitation("Danny", "Yossi"));
+		PendingStore store = new PendingStore("ServerDataTestStore", new XStreamCodec<Exchange>(), 1 << 10, 1,
+				1 << 10, 1 << 20);
+		try {
+			data.storePendingIn(store);
+			data.addPendingClientMessage("Danny", msg1, 10);
+			data.addPendingClientMessage("Danny", msg2, 10); // stored.
+			data.addPendingClientMessage("Danny", msg1, 20); // stored.
+			assertEquals(1, data.expirePending("Danny", 15));
+			assertEquals(0, data.pendingMemory());
+			assertEquals(2, data.expirePending("Danny", 20));
+			assertTrue(data.getAndClearPendingClientMessages("Danny").isEmpty());
+			for (int live : store.liveCounts()) {
+				assertEquals(0, live);
+			}
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+	
+	@Test
+	public void testSupersededPendingClientMessagesAreCompacted() {
+		Exchange request = new FriendRequest(new FriendInvitation("Danny", "Yossi"));
+		Exchange message = new SendInstantMessageRequest(new InstantMessage("Moshe", "Yossi", "Hi"));
+		Exchange offline = new IsOnlineResponse("Moshe", Optional.of(false));
+		Exchange online = new IsOnlineResponse("Moshe", Optional.of(true));
+		PendingStore store = new PendingStore("ServerDataTestStore", new XStreamCodec<Exchange>(), 1 << 10, 10,
+				1 << 10, 1 << 20);
+		try {
+			data.storePendingIn(store);
+			data.addPendingClientMessage("Yossi", request);
+			data.addPendingClientMessage("Yossi", offline);
+			data.addPendingClientMessage("Yossi", message);
+			data.addEncodedPendingClientMessage("Yossi", store.encode(request));
+			data.addPendingClientMessage("Yossi", message);
+			long memory = data.pendingMemory();
+			data.addPendingClientMessage("Yossi", online);
+			assertEquals(memory + store.encode(online).length() - store.encode(offline).length(), data.pendingMemory());
+			assertEquals(2, data.compactedPending());
+			assertEquals(Arrays.asList(message, request, message, online),
+					data.getAndClearPendingClientMessages("Yossi"));
+		} finally {
+			store.close();
+			store.clean();
+		}
+	}
+	
+	@Test
+	public void testCopyToTheDataOwningEachUser() {
+		Exchange message = new SendInstantMessageRequest(new InstantMessage("Moshe", "Yossi", "Hi"));
+		data.addFriendship("Danny", "Yossi");
+		data.addPendingClientMessage("Yossi", message, 42L);
+		data.connect("Danny");
+		ServerData danny = new ServerData();
+		ServerData others = new ServerData();
+		data.copyTo(user -> "Danny".equals(user) ? danny : others);
+		assertTrue(danny.areFriends("Danny", "Yossi"));
+		assertTrue(others.areFriends("Yossi", "Danny"));
+		assertFalse(danny.isConnected("Danny"));
+		assertEquals(0, danny.getAndClearPendingClientMessages("Yossi").size());
+		List<String> expired = new ArrayList<String>();
+		others.findExpiredPending(0, 10, 43L, expired::add);
+		assertEquals(Arrays.asList("Yossi"), expired);
+		assertEquals(Arrays.asList(message), others.getAndClearPendingClientMessages("Yossi"));
+	}
 }
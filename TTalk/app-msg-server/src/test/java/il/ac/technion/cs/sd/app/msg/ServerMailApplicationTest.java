@@ -1,20 +1,35 @@
 package il.ac.technion.cs.sd.app.msg;
 
 import static org.junit.Assert.*;
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRedirect;
 import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.DisconnectRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
-import il.ac.technion.cs.sd.app.msg.exchange.ExchangeList;
+import il.ac.technion.cs.sd.app.msg.exchange.EncodedExchangeList;
+import il.ac.technion.cs.sd.app.msg.exchange.ForwardedExchange;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.FriendResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineBatchResponse;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineRequest;
 import il.ac.technion.cs.sd.app.msg.exchange.IsOnlineResponse;
+import il.ac.technion.cs.sd.app.msg.exchange.MulticastMessageRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceSubscribeRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.PresenceUpdate;
+import il.ac.technion.cs.sd.app.msg.exchange.RetryLater;
 import il.ac.technion.cs.sd.app.msg.exchange.SendInstantMessageRequest;
 import il.ac.technion.cs.sd.msg.ServerConnection;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import org.junit.After;
 import org.junit.Before;
@@ -28,6 +43,8 @@ private static final String serverAddress = "ServerAddress";
 	ServerMailApplication server;
 	
 	BiConsumer<String, Exchange> serverConsumer;
+	Consumer<String> onDead;
+	BiConsumer<String, Exchange> onUndelivered;
 	ServerConnection<Exchange> connection;
 
 	@SuppressWarnings("unchecked")
@@ -42,6 +59,13 @@ private static final String serverAddress = "ServerAddress";
 			return null;
 		}).when(connection).start(Mockito.any());
 		
+		// Get the liveness handlers sent to connection's watch method.
+		Mockito.doAnswer(invocation -> {
+			onDead = (Consumer<String>) invocation.getArguments()[0];
+			onUndelivered = (BiConsumer<String, Exchange>) invocation.getArguments()[1];
+			return null;
+		}).when(connection).watch(Mockito.any(), Mockito.any());
+		
 		server.start();
 		Mockito.verify(connection).start(Mockito.any());
 	}
@@ -56,7 +80,46 @@ private static final String serverAddress = "ServerAddress";
 	private void sendToServer(String sender, Exchange exchange) {
 		serverConsumer.accept(sender, exchange);
 	}
+	
+	private static EncodedExchangeList encoded(Exchange... exchanges) {
+		XStreamCodec<Exchange> codec = new XStreamCodec<Exchange>();
+		List<String> $ = new ArrayList<String>();
+		for (Exchange exchange : exchanges) {
+			$.add(codec.encode(exchange));
+		}
+		return new EncodedExchangeList($);
+	}
 
+	/**
+	 * Restart the server as a node of a cluster with another server.
+	 * @return the ring of the cluster.
+	 */
+	private ClusterRing restartInClusterWith(String other) throws Exception {
+		restartWith(ClusterRing.NODES_PROPERTY, serverAddress + "," + other);
+		return new ClusterRing(Arrays.asList(serverAddress, other), ClusterRing.DEFAULT_VIRTUAL_NODES);
+	}
+	
+	/**
+	 * Restart the server configured by a system property.
+	 */
+	private void restartWith(String property, String value) throws Exception {
+		server.stop();
+		System.setProperty(property, value);
+		try {
+			setUp();
+		} finally {
+			System.clearProperty(property);
+		}
+	}
+	
+	private static String userOwnedBy(ClusterRing ring, String server) {
+		for (int i = 0; ; ++i) {
+			if (server.equals(ring.ownerOf("aClient" + i))) {
+				return "aClient" + i;
+			}
+		}
+	}
+	
 	@Test
 	public void testGetAddress() {
 		assertEquals(serverAddress, server.getAddress());
@@ -79,7 +142,30 @@ private static final String serverAddress = "ServerAddress";
 		sendToServer("aClient", request2);
 		Mockito.verify(connection, Mockito.never()).send(Mockito.anyString(), Mockito.any());
 		sendToServer("aTarget", new ConnectRequest());
-		Mockito.verify(connection).send("aTarget", new ExchangeList(Arrays.asList(request1, request2)));
+		Mockito.verify(connection).send("aTarget", encoded(request1, request2));
+	}
+	
+	@Test
+	public void multicastExpandedToEachTarget() {
+		sendToServer("aTarget", new ConnectRequest());
+		sendToServer("aClient", new MulticastMessageRequest("aClient",
+				Arrays.asList("aTarget", "anotherTarget", "aTarget"), "Howdy!"));
+		Mockito.verify(connection).send("aTarget",
+				new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!")));
+		
+		sendToServer("anotherTarget", new ConnectRequest());
+		Mockito.verify(connection).send("anotherTarget",
+				encoded(new SendInstantMessageRequest(new InstantMessage("aClient", "anotherTarget", "Howdy!"))));
+	}
+	
+	@Test
+	public void multicastForwardedToTheOwnerOfRemoteTargets() throws Exception {
+		ClusterRing ring = restartInClusterWith("OtherServer");
+		String local = userOwnedBy(ring, serverAddress);
+		String remote = userOwnedBy(ring, "OtherServer");
+		sendToServer(local, new MulticastMessageRequest(local, Arrays.asList(remote, local, remote), "Howdy!"));
+		Exchange forwarded = new MulticastMessageRequest(local, Arrays.asList(remote), "Howdy!");
+		Mockito.verify(connection).deliver("OtherServer", new ForwardedExchange(local, remote, forwarded));
 	}
 	
 	@Test
@@ -100,6 +186,20 @@ private static final String serverAddress = "ServerAddress";
 		Mockito.verify(connection).send("aClient", response);
 	}
 	
+	@Test
+	public void senderNameNeedNotBeTheSameObjectAsTheDecodedName() {
+		// The sender's name comes from the frame, never from the decoded exchange.
+		sendToServer("aTarget", new ConnectRequest());
+		sendToServer("aFriend", new ConnectRequest());
+		Exchange request = new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!"));
+		sendToServer(new String("aClient"), request);
+		Mockito.verify(connection).send("aTarget", request);
+		
+		Exchange response = new FriendResponse(new FriendInvitation("aClient", "aFriend"), Optional.of(true));
+		sendToServer(new String("aFriend"), response);
+		Mockito.verify(connection).send("aClient", response);
+	}
+	
 	@Test
 	public void emptyIsOnlineResponseToNotFriends() {
 		sendToServer("aClient", new ConnectRequest());
@@ -126,6 +226,67 @@ private static final String serverAddress = "ServerAddress";
 		Mockito.verify(connection).send("aClient", new IsOnlineResponse("aFriend", Optional.of(false)));
 	}
 	
+	@Test
+	public void isOnlineBatchAnsweredAtOnce() {
+		sendToServer("aClient", new ConnectRequest());
+		sendToServer("aFriend", new ConnectRequest());
+		sendToServer("aFriend", new FriendResponse(new FriendInvitation("aClient", "aFriend"), Optional.of(true)));
+		sendToServer("anotherFriend", new FriendResponse(new FriendInvitation("aClient", "anotherFriend"),
+				Optional.of(true)));
+		
+		sendToServer("aClient", new IsOnlineBatchRequest(Arrays.asList("aFriend", "aStranger", "anotherFriend")));
+		Map<String, Optional<Boolean>> answers = new LinkedHashMap<String, Optional<Boolean>>();
+		answers.put("aFriend", Optional.of(true));
+		answers.put("aStranger", Optional.empty());
+		answers.put("anotherFriend", Optional.of(false));
+		Mockito.verify(connection).send("aClient", new IsOnlineBatchResponse(answers));
+	}
+	
+	@Test
+	public void isOnlineBatchOfRemoteFriendsForwardedToTheirOwner() throws Exception {
+		ClusterRing ring = restartInClusterWith("OtherServer");
+		String local = userOwnedBy(ring, serverAddress);
+		String remote = userOwnedBy(ring, "OtherServer");
+		sendToServer(local, new ConnectRequest());
+		sendToServer("OtherServer", new ForwardedExchange(remote, local,
+				new FriendResponse(new FriendInvitation(local, remote), Optional.of(true))));
+		
+		sendToServer(local, new IsOnlineBatchRequest(Arrays.asList(remote)));
+		Mockito.verify(connection).deliver("OtherServer",
+				new ForwardedExchange(local, remote, new IsOnlineBatchRequest(Arrays.asList(remote))));
+		Mockito.verify(connection, Mockito.never()).send(Mockito.eq(local), Mockito.any(IsOnlineBatchResponse.class));
+		
+		// The owner of the remote friend answers it.
+		Exchange answer = new IsOnlineBatchResponse(Collections.singletonMap(remote, Optional.of(true)));
+		sendToServer("OtherServer", new ForwardedExchange(local, local, answer));
+		Mockito.verify(connection).send(local, answer);
+	}
+	
+	@Test
+	public void presencePushedToSubscribedFriends() {
+		sendToServer("aClient", new ConnectRequest());
+		sendToServer("aFriend", new ConnectRequest());
+		sendToServer("aFriend", new FriendResponse(new FriendInvitation("aClient", "aFriend"), Optional.of(true)));
+		sendToServer("aFriend", new DisconnectRequest());
+		// Not subscribed yet, so nothing is pushed.
+		Mockito.verify(connection, Mockito.never()).send(Mockito.eq("aClient"), Mockito.any(PresenceUpdate.class));
+		
+		sendToServer("aClient", new PresenceSubscribeRequest());
+		Mockito.verify(connection).send("aClient", new PresenceUpdate(Collections.singletonMap("aFriend", false)));
+		sendToServer("aFriend", new ConnectRequest());
+		Mockito.verify(connection).send("aClient", new PresenceUpdate(Collections.singletonMap("aFriend", true)));
+		
+		// A dead friend is pushed as disconnected.
+		onDead.accept("aFriend");
+		Mockito.verify(connection, Mockito.times(2)).send("aClient",
+				new PresenceUpdate(Collections.singletonMap("aFriend", false)));
+		// A subscription ends as its client disconnects.
+		sendToServer("aClient", new DisconnectRequest());
+		sendToServer("aClient", new ConnectRequest());
+		sendToServer("aFriend", new ConnectRequest());
+		Mockito.verify(connection).send("aClient", new PresenceUpdate(Collections.singletonMap("aFriend", true)));
+	}
+	
 	@Test
 	public void testClientQueueSavedAfterStopAndStart() throws Exception {
 		Exchange request1 = new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!"));
@@ -139,7 +300,7 @@ private static final String serverAddress = "ServerAddress";
 		
 		
 		sendToServer("aTarget", new ConnectRequest());
-		Mockito.verify(connection).send("aTarget", new ExchangeList(Arrays.asList(request1, request2)));
+		Mockito.verify(connection).send("aTarget", encoded(request1, request2));
 	}
 
 	@Test
@@ -156,7 +317,193 @@ private static final String serverAddress = "ServerAddress";
 		
 		sendToServer("aTarget", new ConnectRequest());
 		Thread.sleep(100);
-		Mockito.verify(connection).send("aTarget", new ExchangeList(Arrays.asList()));
+		Mockito.verify(connection).send("aTarget", encoded());
+	}
+	
+	@Test
+	public void deadClientsAreDisconnected() {
+		sendToServer("aTarget", new ConnectRequest());
+		onDead.accept("aTarget");
+		
+		Exchange request = new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!"));
+		sendToServer("aClient", request);
+		Mockito.verify(connection, Mockito.never()).send("aTarget", request);
+		
+		sendToServer("aTarget", new ConnectRequest());
+		Mockito.verify(connection).send("aTarget", encoded(request));
+	}
+	
+	@Test
+	public void undeliveredExchangesArePending() {
+		sendToServer("aTarget", new ConnectRequest());
+		Exchange request = new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!"));
+		sendToServer("aClient", request);
+		Mockito.verify(connection).send("aTarget", request);
+		
+		onDead.accept("aTarget");
+		onUndelivered.accept("aTarget", request);
+		
+		sendToServer("aTarget", new ConnectRequest());
+		Mockito.verify(connection).send("aTarget", encoded(request));
+	}
+	
+	@Test
+	public void otherServersOfTheClusterAreWatchedButNotDisconnected() throws Exception {
+		ClusterRing ring = restartInClusterWith("OtherServer");
+		String local = userOwnedBy(ring, serverAddress);
+		String remote = userOwnedBy(ring, "OtherServer");
+		Mockito.verify(connection).beatTo("OtherServer");
+		sendToServer(local, new ConnectRequest());
+		
+		Exchange forwarded = new ForwardedExchange(local, remote,
+				new SendInstantMessageRequest(new InstantMessage(local, remote, "Howdy!")));
+		onDead.accept("OtherServer");
+		onUndelivered.accept("OtherServer", forwarded);
+		
+		// Nothing is kept pending for the other server, as if it was a client.
+		sendToServer("OtherServer", new ConnectRequest());
+		Mockito.verify(connection, Mockito.never()).send("OtherServer", encoded(forwarded));
+	}
+	
+	@Test
+	public void undeliveredPendingExchangesArePendingAgain() {
+		Exchange request = new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!"));
+		sendToServer("aClient", request);
+		sendToServer("aTarget", new ConnectRequest());
+		Mockito.verify(connection).send("aTarget", encoded(request));
+		
+		onDead.accept("aTarget");
+		onUndelivered.accept("aTarget", encoded(request));
+		
+		sendToServer("aTarget", new ConnectRequest());
+		Mockito.verify(connection, Mockito.times(2)).send("aTarget", encoded(request));
+	}
+
+	@Test
+	public void clientsAreRedirectedToTheirHomeServer() throws Exception {
+		ClusterRing ring = restartInClusterWith("OtherServer");
+		String remote = userOwnedBy(ring, "OtherServer");
+		sendToServer(remote, new ConnectRequest());
+		Mockito.verify(connection).send(remote, new ConnectRedirect("OtherServer"));
+	}
+	
+	@Test
+	public void requestsForRemoteUsersAreForwardedToTheirOwner() throws Exception {
+		ClusterRing ring = restartInClusterWith("OtherServer");
+		String local = userOwnedBy(ring, serverAddress);
+		String remote = userOwnedBy(ring, "OtherServer");
+		sendToServer(local, new ConnectRequest());
+		
+		Exchange request = new SendInstantMessageRequest(new InstantMessage(local, remote, "Howdy!"));
+		sendToServer(local, request);
+		Mockito.verify(connection).deliver("OtherServer", new ForwardedExchange(local, remote, request));
+	}
+	
+	@Test
+	public void forwardedRequestsAreHandledByTheOwner() throws Exception {
+		ClusterRing ring = restartInClusterWith("OtherServer");
+		String local = userOwnedBy(ring, serverAddress);
+		String remote = userOwnedBy(ring, "OtherServer");
+		sendToServer(local, new ConnectRequest());
+		
+		Exchange request = new SendInstantMessageRequest(new InstantMessage(remote, local, "Howdy!"));
+		sendToServer("OtherServer", new ForwardedExchange(remote, local, request));
+		Mockito.verify(connection).send(local, request);
+		
+		sendToServer("OtherServer", new ForwardedExchange(remote, local, new IsOnlineRequest(local)));
+		Mockito.verify(connection).deliver("OtherServer",
+				new ForwardedExchange(remote, remote, new IsOnlineResponse(local, Optional.of(true))));
 	}
 
+	
+	@Test
+	public void requestsOverTheRateLimitAreTurnedAway() throws Exception {
+		restartWith(RateLimiter.CLIENT_RATE_PROPERTY, "0.001"); // a single request, not refilled during the test.
+		sendToServer("aClient", new ConnectRequest()); // Not limited.
+		sendToServer("aClient", new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!")));
+		sendToServer("aClient", new IsOnlineRequest("aTarget"));
+		sendToServer("aClient", new IsOnlineBatchRequest(Arrays.asList("aTarget")));
+		Exchange request = new FriendRequest(new FriendInvitation("aClient", "aTarget"));
+		sendToServer("aClient", request);
+		// Each friend request turned away is answered, so the client sends it again later.
+		sendToServer("aClient", request);
+		Mockito.verify(connection, Mockito.times(2)).send("aClient", new RetryLater(request));
+		Mockito.verify(connection, Mockito.never()).send(Mockito.eq("aClient"), Mockito.any(FriendResponse.class));
+		sendToServer("aClient", new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Again!")));
+		assertEquals(5, server.rejectedClientRequests());
+		// Presence queries are dropped rather than answered as if the target was not a friend.
+		Mockito.verify(connection, Mockito.never()).send(Mockito.eq("aClient"), Mockito.any(IsOnlineResponse.class));
+		Mockito.verify(connection, Mockito.never()).send(Mockito.eq("aClient"),
+				Mockito.any(IsOnlineBatchResponse.class));
+		
+		// Other clients are not limited by the flooding client.
+		sendToServer("aTarget", new ConnectRequest());
+		Mockito.verify(connection).send("aTarget",
+				encoded(new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!"))));
+		Exchange reply = new SendInstantMessageRequest(new InstantMessage("aTarget", "aClient", "Howdy back!"));
+		sendToServer("aTarget", reply);
+		Mockito.verify(connection).send("aClient", reply);
+		assertEquals(2, server.admittedRequests());
+		assertEquals(0, server.rejectedGlobalRequests());
+		
+		// Neither connecting nor disconnecting takes tokens, so they are never turned away.
+		sendToServer("aClient", new DisconnectRequest());
+		sendToServer("aClient", new ConnectRequest());
+		assertEquals(5, server.rejectedClientRequests());
+	}
+	
+	@Test
+	public void multicastMessagesTakeATokenForEachRecipient() throws Exception {
+		System.setProperty(RateLimiter.CLIENT_BURST_PROPERTY, "3");
+		try {
+			restartWith(RateLimiter.CLIENT_RATE_PROPERTY, "0.001"); // three requests, not refilled during the test.
+		} finally {
+			System.clearProperty(RateLimiter.CLIENT_BURST_PROPERTY);
+		}
+		sendToServer("aTarget", new ConnectRequest());
+		sendToServer("aClient", new MulticastMessageRequest("aClient",
+				Arrays.asList("aTarget", "anotherTarget", "aTarget"), "Howdy!"));
+		Mockito.verify(connection).send("aTarget",
+				new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!")));
+		
+		// A single token is left.
+		sendToServer("aClient", new MulticastMessageRequest("aClient", Arrays.asList("aTarget", "anotherTarget"),
+				"Again!"));
+		Mockito.verify(connection, Mockito.never()).send("aTarget",
+				new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Again!")));
+		assertEquals(1, server.rejectedClientRequests());
+		sendToServer("aClient", new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Once!")));
+		Mockito.verify(connection).send("aTarget",
+				new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Once!")));
+		assertEquals(2, server.admittedRequests());
+	}
+	
+	@Test
+	public void multicastMessagesToTooManyRecipientsAreTurnedAway() throws Exception {
+		restartWith(ServerMailApplication.MAX_RECIPIENTS_PROPERTY, "2");
+		sendToServer("aTarget", new ConnectRequest());
+		sendToServer("aClient", new MulticastMessageRequest("aClient",
+				Arrays.asList("aTarget", "anotherTarget", "thirdTarget"), "Too many!"));
+		assertEquals(1, server.rejectedOversizedRequests());
+		
+		// Recipients listed more than once are counted once.
+		sendToServer("aClient", new MulticastMessageRequest("aClient",
+				Arrays.asList("aTarget", "anotherTarget", "aTarget"), "Howdy!"));
+		Mockito.verify(connection).send("aTarget",
+				new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Howdy!")));
+		Mockito.verify(connection, Mockito.never()).send("aTarget",
+				new SendInstantMessageRequest(new InstantMessage("aClient", "aTarget", "Too many!")));
+		assertEquals(1, server.rejectedOversizedRequests());
+	}
+	
+	@Test
+	public void pollsAreShedWhenRequestsQueueUp() throws Exception {
+		restartWith(LoadShedder.DEPTH_PROPERTY, "10");
+		Mockito.when(connection.receiveBacklog()).thenReturn(100);
+		sendToServer("aClient", new ConnectRequest());
+		Mockito.verify(connection).send("aClient", encoded());
+		sendToServer("aClient", new IsOnlineRequest("aTarget"));
+		Mockito.verify(connection, Mockito.never()).send(Mockito.eq("aClient"), Mockito.any(IsOnlineResponse.class));
+		assertEquals(1, server.shedRequests());
+	}
 }
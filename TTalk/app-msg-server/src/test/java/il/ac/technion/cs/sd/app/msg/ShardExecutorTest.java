@@ -0,0 +1,146 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ShardExecutorTest {
+
+	private static final int TASKS = 1000;
+
+	@Test
+	public void tasksAreRunInlineWithoutShards() {
+		ShardExecutor shards = new ShardExecutor(0);
+		shards.start();
+		Thread[] ran = new Thread[1];
+		shards.execute("Danny", () -> ran[0] = Thread.currentThread());
+		assertEquals(Thread.currentThread(), ran[0]);
+		shards.stop();
+	}
+
+	@Test(timeout = 5000)
+	public void tasksOfAUserAreRunInOrderByItsShard() {
+		ShardExecutor shards = new ShardExecutor(4);
+		shards.start();
+		List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+		List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		for (int i = 0; i < TASKS; ++i) {
+			int task = i;
+			shards.execute("Danny", () -> {
+				ran.add(task);
+				threads.add(Thread.currentThread().getName());
+			});
+		}
+		shards.stop();
+		assertEquals(TASKS, ran.size());
+		for (int i = 0; i < TASKS; ++i) {
+			assertEquals(i, (int)ran.get(i));
+			assertEquals("shard-" + shards.shardOf("Danny"), threads.get(i));
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void shardsRunConcurrently() throws InterruptedException {
+		ShardExecutor shards = new ShardExecutor(2);
+		String first = "Danny";
+		String second = "Yossi";
+		for (int i = 0; shards.shardOf(first) == shards.shardOf(second); ++i) {
+			second = "Yossi" + i;
+		}
+		shards.start();
+		// Each task waits for the other one, which is only possible if they are run by different threads.
+		CountDownLatch latch = new CountDownLatch(2);
+		boolean[] met = new boolean[2];
+		shards.execute(first, () -> met[0] = meet(latch));
+		shards.execute(second, () -> met[1] = meet(latch));
+		shards.stop();
+		assertTrue(met[0]);
+		assertTrue(met[1]);
+	}
+
+	@Test(timeout = 5000)
+	public void waitingTasksAreMeasured() throws InterruptedException {
+		ShardExecutor shards = new ShardExecutor(1);
+		shards.start();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch blocked = new CountDownLatch(1);
+		shards.execute("Danny", () -> {
+			started.countDown();
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		started.await();
+		long[] sojourn = new long[1];
+		shards.execute("Danny", () -> sojourn[0] = shards.sojournInNanoseconds());
+		shards.execute("Danny", () -> {});
+		assertEquals(2, shards.backlog());
+		Thread.sleep(20);
+		blocked.countDown();
+		shards.stop();
+		assertTrue(sojourn[0] >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(0, shards.backlog());
+		assertEquals(0, shards.sojournInNanoseconds());
+	}
+
+	@Test
+	public void tasksAreRunInlineOnceStopped() {
+		ShardExecutor shards = new ShardExecutor(2);
+		shards.start();
+		shards.stop();
+		Thread[] ran = new Thread[1];
+		shards.execute("Danny", () -> ran[0] = Thread.currentThread());
+		assertEquals(Thread.currentThread(), ran[0]);
+	}
+
+	@Test(timeout = 5000)
+	public void workFromOutsideIsHeldBackUntilTheShardsAreStopped() throws InterruptedException {
+		ShardExecutor shards = new ShardExecutor(2);
+		shards.start();
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		shards.execute("Danny", () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			ran.add("first");
+			shards.execute("Yossi", () -> ran.add("passed on by " + Thread.currentThread().getName()));
+		});
+		Thread stopper = new Thread(shards::stop);
+		stopper.start();
+		Thread.sleep(50);
+		Thread outside = new Thread(() -> shards.execute("Danny", () -> ran.add("outside")));
+		outside.start();
+		Thread.sleep(50);
+		assertTrue(ran.isEmpty());
+		release.countDown();
+		stopper.join();
+		outside.join();
+		assertEquals(Arrays.asList("first", "passed on by shard-" + shards.shardOf("Yossi"), "outside"), ran);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeNumberOfShardsIsRejected() {
+		new ShardExecutor(-1);
+	}
+
+	private static boolean meet(CountDownLatch latch) {
+		latch.countDown();
+		try {
+			return latch.await(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import il.ac.technion.cs.sd.app.msg.exchange.ConnectRequest;
+import il.ac.technion.cs.sd.app.msg.exchange.Exchange;
+import il.ac.technion.cs.sd.msg.XStreamCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotterTest {
+	
+	private final Exchange msg = new ConnectRequest();
+	
+	private DataSaver<ServerData> dataSaver;
+	private Journal journal;
+	
+	@Before
+	public void setUp() {
+		dataSaver = new XStreamDataSaver<ServerData>("SnapshotterTestFile");
+		journal = new Journal("SnapshotterTestJournal", new XStreamCodec<Exchange>(), Journal.SyncPolicy.GROUP_COMMIT,
+				10L);
+	}
+	
+	@After
+	public void tearDown() {
+		journal.close();
+		journal.clean();
+		dataSaver.clean();
+	}
+	
+	private ServerData load() {
+		ServerData $ = dataSaver.load().orElse(new ServerData());
+		journal.open($);
+		return $;
+	}
+	
+	@Test
+	public void savedSnapshotCoversTheJournal() {
+		ServerData data = load();
+		data.addFriendship("Danny", "Yossi");
+		new Snapshotter(dataSaver, journal, 0L).save(data);
+		assertFalse(journal.hasChanges());
+		data.addPendingClientMessage("Danny", msg);
+		assertTrue(journal.hasChanges());
+		journal.close();
+		
+		ServerData loaded = load();
+		assertTrue(loaded.areFriends("Danny", "Yossi"));
+		assertEquals(Arrays.asList(msg), loaded.getAndClearPendingClientMessages("Danny"));
+	}
+	
+	@Test(timeout = 5000)
+	public void snapshotsAreSavedPeriodically() throws InterruptedException {
+		ServerData data = load();
+		Snapshotter snapshotter = new Snapshotter(dataSaver, journal, 10L);
+		snapshotter.start(data);
+		data.addFriendship("Danny", "Yossi");
+		Optional<ServerData> saved;
+		while (!(saved = dataSaver.load()).isPresent()) {
+			Thread.sleep(10);
+		}
+		snapshotter.stop();
+		assertTrue(saved.get().areFriends("Danny", "Yossi"));
+	}
+}
@@ -0,0 +1,33 @@
+package il.ac.technion.cs.sd.app.msg;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class UserRegistryTest {
+	
+	private UserRegistry users = new UserRegistry();
+
+	@Test
+	public void idsAreDenseAndStable() {
+		assertEquals(-1, users.idOf("Haim"));
+		assertEquals(0, users.register("Haim"));
+		assertEquals(1, users.register("Moshe"));
+		assertEquals(0, users.register("Haim"));
+		assertEquals(1, users.idOf("Moshe"));
+		assertEquals("Moshe", users.nameOf(1));
+		assertEquals(2, users.size());
+	}
+	
+	@Test
+	public void manyUsersAreRegistered() {
+		for (int i = 0; i < 10000; ++i) {
+			assertEquals(i, users.register("user" + i));
+		}
+		for (int i = 0; i < 10000; ++i) {
+			assertEquals(i, users.idOf("user" + i));
+			assertEquals("user" + i, users.nameOf(i));
+		}
+		assertEquals(-1, users.idOf("user10000"));
+	}
+}
@@ -126,6 +126,11 @@ public class ClientConnection<Message> {
 	 * <br>
 	 * Where msg is the received message, of type Message used for this ClientConnection's initialization.
 	 * </p>
+	 * 
+	 * <p>
+	 * If {@link Heartbeats} are set, the connection beats to its server while started, so that the server can tell
+	 * when this client is gone without disconnecting.
+	 * </p>
 	 *
 	 * @param handler - A User (application) defined handler for all incoming messages, of type {@link Consumer}&lt;Message&gt;.<br>
 	 * @see stop
@@ -135,6 +140,7 @@ public class ClientConnection<Message> {
 			throw new IllegalArgumentException("handler cannot be null");
 		}
 		
+		this.conn.beatTo(myServer);
 		this.conn.start(env -> handler.accept(env.content)); // connection state validation is done inside this.conn
 	}
 	
@@ -173,6 +179,41 @@ public class ClientConnection<Message> {
 	}
 	
 	
+	/**
+	 * Send out a message, reporting whether it reached the server. This is a <b>blocking</b> call.
+	 * 
+	 * @param content - User-defined message object to be sent.
+	 * @return true if the message was delivered; false if the server was declared dead first (see {@link #watch}).
+	 */
+	public boolean deliver(Message content) {
+		if ("".equals(content)) {
+			throw new RuntimeException("client will not send empty messages");
+		}
+		
+		return conn.deliver(this.myServer, content); // contents and connection state validation is done inside conn
+	}
+	
+	
+	/**
+	 * Watch the server, if {@link Heartbeats} are set and the server beats to this client. Should be called before
+	 * {@link #start}.
+	 * 
+	 * <p>
+	 * A server which has not been heard from for the set number of heartbeat intervals is declared dead, and messages
+	 * to it are no longer re-sent until it is heard from again (see {@link #deliver}).
+	 * </p>
+	 * 
+	 * @param onDead - Called with the server's address once it is declared dead.
+	 */
+	public void watch(Consumer<String> onDead) {
+		if (null == onDead) {
+			throw new IllegalArgumentException("handler cannot be null");
+		}
+		
+		this.conn.watch(onDead);
+	}
+	
+	
 	/**
 	 * Terminate this connection. Stops all handling of incoming messages, receiving and sending messages,
 	 * as well as killing its messenger.
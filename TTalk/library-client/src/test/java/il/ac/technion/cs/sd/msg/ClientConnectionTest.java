@@ -23,13 +23,14 @@ public class ClientConnectionTest {
 	private Messenger m;
 	Codec<Envelope<String>> codec;
 	Consumer<String> consumer;
+	private long lastSeq = 0;
 	List<String> receivedEnvelopes = new ArrayList<String>();
 
 	private Consumer<String> defaultConsumer = (msg) -> receivedEnvelopes.add(msg);
 
 	private void sendToConnection(Envelope<String> toSend)
 			throws InterruptedException {
-		consumer.accept(codec.encode(toSend));
+		consumer.accept(Frame.data(1L, ++lastSeq, toSend.from, toSend.from, toSend.to, codec.encode(toSend)));
 		Thread.sleep(2L); // give connection threads chance to do their thing
 	}
 
@@ -2,6 +2,9 @@ package il.ac.technion.cs.sd.msg;
 
 /**
  * A class for encoding/decoding an object into a string.
+ * <br>
+ * <b>Notice:</b> a {@link Connection} sends the addresses of an {@link Envelope} separately, so the envelopes
+ * it encodes have <b><code>null</code></b> addresses.
  * @param <T> The object type to encode/decode.
  */
 public interface Codec<T> {
@@ -1,7 +1,16 @@
 package il.ac.technion.cs.sd.msg;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
@@ -30,77 +39,232 @@ import java.util.function.Consumer;
  * void handleMessage({@link Envelope}&lt;Message&gt; m)
  * </code><br><br>
  * 
+ * <p>
+ * Every start of a connection begins a new session, identified by an epoch which is greater than the epochs of all
+ * previous sessions. Each outgoing frame carries the epoch and a sequence number (see {@link Frame}), and each ACK
+ * names the frame it acknowledges. The first frame of a session acts as a handshake: its receiver adopts the new epoch,
+ * and from then on drops frames of older sessions of the same sender before decoding them. Retransmitted frames whose
+ * ACK was lost are ACKed again, but are not handled twice.
+ * Epochs are taken from the clock; if it was stepped back across a restart, the receiver answers the frames of the new
+ * session with a reset naming the epoch it holds, and the sender moves past that epoch and re-sends.
+ * </p>
+ * 
+ * <p>
+ * Messages are sent to each endpoint one at a time, each re-sent until it is ACKed, in a lane of its own per
+ * destination endpoint (see {@link KeyedExecutor}). An endpoint which is slow to ACK, or does not ACK at all, holds
+ * back only the messages sent to it.
+ * </p>
+ * 
+ * <p>
+ * Frames carry short IDs instead of addresses: the receiver of a frame assigns its sending endpoint a peer ID,
+ * returned in the ACK and valid only until the receiver is restarted (frames name the receiver's epoch along with the
+ * ID, and a receiver drops IDs of its earlier epochs), and the sender assigns aliases to the addresses it sends,
+ * defining each one in the first frame using it. Receivers expand the aliases through a table of interned addresses,
+ * so after the first message, neither the frame nor its decoding carries or allocates address strings.
+ * </p>
+ * 
+ * <p>
+ * With {@link Heartbeats} set, a connection can beat to an endpoint (see {@link #beatTo}), and watch the addresses
+ * beating to it (see {@link #watch}). A watching connection hears from an address through every message and beat it
+ * sends, and every ACK of a message to it, and stops re-sending a message once its destination is declared dead,
+ * instead of re-sending it until it is back.
+ * </p>
+ * 
  * @param <Message> User-defined type of message to be handled by this connection. Using application should send a prototype of all
  * messages it uses (either incoming or outgoing) and handle internally each possible sub-type of Message.
  */
 public class Connection<Message> {
 	
-	static class EnvelopeWithSemaphore<Message> {
-		public final Semaphore sem;
-		public final Envelope<Message> env;
-
-		public EnvelopeWithSemaphore(Envelope<Message> env, Semaphore sem) {
-			this.env = env;
-			this.sem = sem;
+	/**
+	 * A frame sent and not yet ACKed.
+	 */
+	private static class Outstanding {
+		final long seq;
+		final String endpoint;
+		final String to;
+		long epoch; // the epoch the frame is sent in. Moved forward by its sender upon a reset.
+		final BlockingQueue<Frame> answers = new LinkedBlockingQueue<Frame>(); // ACKs and resets of the frame.
+		
+		Outstanding(long seq, String endpoint, String to, long epoch) {
+			this.seq = seq;
+			this.endpoint = endpoint;
+			this.to = to;
+			this.epoch = epoch;
+		}
+	}
+	
+	/**
+	 * What is known about a remote endpoint this connection sends to. Used by the sender of the endpoint, apart from
+	 * {@link #myId} and {@link #idEpoch} which are also read by the beater.
+	 */
+	private static class Peer {
+		int myId = Frame.NONE; // the peer ID the remote endpoint has given this connection.
+		long idEpoch = 0; // the epoch of the remote endpoint when it gave the peer ID.
+		long aliasEpoch = 0; // our epoch in which the aliases were defined; receivers forget them in later ones.
+		final Map<String, Integer> aliases = new HashMap<String, Integer>(); // addresses defined at the remote endpoint.
+		
+		/**
+		 * Get the alias of an address, assigning a new one if there is none yet.
+		 * @return the alias, negated and less 1 if it is new and should be defined.
+		 */
+		int aliasOf(String address) {
+			Integer $ = aliases.get(address);
+			if (null != $) {
+				return $;
+			}
+			$ = aliases.size();
+			aliases.put(address, $);
+			return -$ - 1;
+		}
+	}
+	
+	/**
+	 * What is known about the current session of a remote endpoint this connection receives from.
+	 */
+	private static class Session {
+		final int id;
+		final String endpoint;
+		long epoch = Long.MIN_VALUE;
+		long lastSeq = 0;
+		final ArrayList<String> aliases = new ArrayList<String>(); // interned addresses, by alias.
+		
+		Session(int id, String endpoint) {
+			this.id = id;
+			this.endpoint = endpoint;
+		}
+		
+		/**
+		 * Expand an alias, defining it first if it has a definition.
+		 * @return the address, or null if the alias is unknown.
+		 */
+		String resolve(int alias, String definition) {
+			if (null != definition) {
+				while (aliases.size() <= alias) {
+					aliases.add(null);
+				}
+				if (!definition.equals(aliases.get(alias))) {
+					aliases.set(alias, definition);
+				}
+			}
+			return alias < aliases.size() ? aliases.get(alias) : null;
+		}
+	}
+	
+	/**
+	 * When an address beating to this connection, or beaten to by it, was last heard from and sent to.
+	 */
+	private static class Liveness {
+		volatile long lastSent;
+		volatile long lastHeard;
+		volatile boolean dead = false;
+		
+		Liveness(long now) {
+			this.lastSent = now;
+			this.lastHeard = now;
 		}
 	}
 	
 	public static final long ACK_TIMEOUT_IN_MILLISECONDS = 25L; // time to wait for an ACK before re-sending
 
 	// CONSTANTS
-	private static final String ACK = "";
+	private static final String EMPTY = "";
+	
+	// Last epoch given to a session in this JVM. Epochs are based on the clock, so they also grow across restarts,
+	// unless the clock is stepped back (see Frame#RESET).
+	private static final AtomicLong lastEpoch = new AtomicLong();
 	
 	// INSTANCE VARIABLES
 	private Dispatcher<Envelope<Message>> receiver; // thread taking each incoming message from queue and dispatching a handler.
-	private Dispatcher<EnvelopeWithSemaphore<Message>> sender; // thread taking each outgoing message from queue and dispatching a handler.
+	private KeyedExecutor<String> senders; // lanes sending the outgoing messages, by destination endpoint.
+	private volatile boolean stopping = false; // set while stopping, so that messages not ACKed are given up.
 	
-	private Messenger messenger = null;
+	private Transport transport = null;
 	
 	private final Codec<Envelope<Message>> codec;
-	private final MessengerFactory messengerFactory;
+	private final TransportFactory transportFactory;
 	private final String myAddress;
 	
-	private Semaphore ackNotifier;
+	private volatile long epoch; // epoch of the current session. Moved forward by the senders upon a reset.
+	private long startEpoch; // epoch given on the last start, naming the peer IDs assigned since.
+	private final AtomicLong lastSeq = new AtomicLong(); // sequence number of the last frame sent in this session.
+	// Frames sent and not yet ACKed, by sequence number.
+	private final Map<Long, Outstanding> outstanding = new ConcurrentHashMap<Long, Outstanding>();
+	
+	// Remote endpoints this connection sends to, by address. Cleared upon start, as aliases belong to a session.
+	private final Map<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+	
+	// Sessions of the remote endpoints, by endpoint address and by their peer ID (index). Written under the lock of
+	// the sessions map; sessionsById can be read without locking.
+	private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private volatile Session[] sessionsById = new Session[16];
+	
+	// Addresses which are not endpoints by themselves (e.g: logical connections of a ConnectionMultiplexer), mapped to
+	// the endpoint through which they are reachable. Learned from the header of incoming frames.
+	private final Map<String, String> routes = new ConcurrentHashMap<String, String>();
+	
+	// HEARTBEATS
+	private Optional<Heartbeats> heartbeats = Heartbeats.fromSystemProperties();
+	private Thread beater = null; // thread sending beats and declaring deaths, while started with heartbeats set.
+	private final Semaphore beaterStop = new Semaphore(0); // released to stop the beater, which is not interrupted.
+	// Endpoints beaten to, by address, mapped to the addresses on whose behalf they are beaten to.
+	private final Map<String, Map<String, Liveness>> beatTargets =
+			new ConcurrentHashMap<String, Map<String, Liveness>>();
+	private final Map<String, Liveness> watched = new ConcurrentHashMap<String, Liveness>(); // by source address.
+	private volatile Consumer<String> onDead = null; // null if not watching.
 	
 	/**
 	 * Constructor. Creates a connection for accepting and handling incoming messages as well as sending back outgoing replies, 
-	 * using a custom {@link Codec} to encode/decode messages into the set Message type of the connection, and a custom MessengerFactory.<br>
+	 * using a custom {@link Codec} to encode/decode messages into the set Message type of the connection, and a custom TransportFactory.<br>
 	 * <b>Notice:</b> created Connection is inactive until {@link #start(Consumer)} is invoked. 
 	 * 
-	 * @param myAddress - This connection's address.
+	 * @param myAddress - This connection's address, containing neither ':' nor line breaks.
 	 * @param codec - Custom {@link Codec} for encoding/decoding messages.
-	 * @param messengerFactory - {@link MessengerFactory}, used for creating {@link Messenger messengers} to handle low-level communication.
+	 * @param transportFactory - {@link TransportFactory}, used for starting the {@link Transport} which handles low-level communication.
 	 */
-	public Connection(String myAddress, Codec<Envelope<Message>> codec, MessengerFactory messengerFactory) {
-		if (null == myAddress || "".equals(myAddress)) {
-			throw new IllegalArgumentException("invalid server address - empty or null");
+	public Connection(String myAddress, Codec<Envelope<Message>> codec, TransportFactory transportFactory) {
+		if (!Frame.isAddress(myAddress)) {
+			throw new IllegalArgumentException("invalid server address - empty, null, or with ':' or a line break");
 		}
 		
 		if (null == codec) {
 			throw new IllegalArgumentException("got null codec");
 		}
 
-		this.messengerFactory = messengerFactory;
+		this.transportFactory = transportFactory;
 		this.myAddress = myAddress;
 		this.codec = codec;
 	}
 	
 	/**
 	 * Constructor. Creates a connection for accepting and handling incoming messages as well as sending back outgoing replies, 
-	 * using a custom {@link Codec} to encode/decode messages into the set Message type of the connection, and the default MessengerFactory.<br>
+	 * using a custom {@link Codec} to encode/decode messages into the set Message type of the connection, and a custom MessengerFactory.<br>
+	 * <b>Notice:</b> created Connection is inactive until {@link #start(Consumer)} is invoked. 
+	 * 
+	 * @param myAddress - This connection's address.
+	 * @param codec - Custom {@link Codec} for encoding/decoding messages.
+	 * @param messengerFactory - {@link MessengerFactory}, used for creating {@link Messenger messengers} to handle low-level communication.
+	 */
+	public Connection(String myAddress, Codec<Envelope<Message>> codec, MessengerFactory messengerFactory) {
+		this(myAddress, codec, new MessengerTransportFactory(messengerFactory));
+	}
+	
+	/**
+	 * Constructor. Creates a connection for accepting and handling incoming messages as well as sending back outgoing replies, 
+	 * using a custom {@link Codec} to encode/decode messages into the set Message type of the connection, and the default
+	 * TransportFactory (see {@link TransportFactory#fromSystemProperties()}).<br>
 	 * <b>Notice:</b> created Connection is inactive until {@link #start(Consumer)} is invoked. 
 	 * 
 	 * @param myAddress - This connection's address.
 	 * @param codec - Custom {@link Codec} for encoding/decoding messages.
 	 */
 	public Connection(String myAddress, Codec<Envelope<Message>> codec) {
-		this(myAddress, codec, new MessengerFactory());
+		this(myAddress, codec, TransportFactory.fromSystemProperties());
 	}
 	
 	
 	/**
 	 * Constructor. Creates a connection for accepting and handling incoming messages as well as sending back outgoing replies, 
-	 * using a default {@link Codec} to encode/decode messages into the set Message type of the connection, and the default MessengerFactory.<br>
+	 * using a default {@link Codec} to encode/decode messages into the set Message type of the connection, and the default TransportFactory.<br>
 	 * <b>Notice:</b> created Connection is inactive until {@link #start(Consumer)} is invoked. 
 	 * 
 	 * @param myAddress - This connection's address.
@@ -118,95 +282,487 @@ public class Connection<Message> {
 	 * @see {@link #sendAck(String to)}
 	 */
 	protected void send(String to, Message message) {
-		if (null == to || "".equals(to)) {
-			throw new IllegalArgumentException("recepient address cannot be null nor enpty");
+		deliver(to, message);
+	}
+	
+	/**
+	 * Send a message as {@link #send} does, telling whether it was delivered.
+	 * 
+	 * @param to - Address of destination to whom the message will be sent.
+	 * @param message - Contents of message to be sent.
+	 * @return true if the message was delivered; false if it was given up, as its destination was declared dead
+	 * (see {@link #watch}).
+	 */
+	protected boolean deliver(String to, Message message) {
+		return sendAs(myAddress, to, message);
+	}
+	
+	/**
+	 * Send a message as {@link #deliver} does, without waiting for it to be delivered. Messages to the same destination
+	 * are sent in the order they were posted.
+	 * This is a <b>non-blocking</b> call.
+	 * 
+	 * @param to - Address of destination to whom the message will be sent.
+	 * @param message - Contents of message to be sent.
+	 * @param onDone - Called on a sending thread with whether the message was delivered (see {@link #postAs}).
+	 */
+	protected void post(String to, Message message, Consumer<Boolean> onDone) {
+		postAs(myAddress, to, message, onDone);
+	}
+	
+	/**
+	 * Send a message on behalf of some address reachable through this connection. Replies to that address will be
+	 * routed to this connection, and should be handled by it according to their destination.
+	 * This is a <b>blocking</b> call, as {@link #deliver}.
+	 * 
+	 * @param from - Address of the source of the message.
+	 * @param to - Address of destination to whom the message will be sent.
+	 * @param message - Contents of message to be sent.
+	 * @return true if the message was delivered; false if it was given up, as its destination was declared dead.
+	 */
+	boolean sendAs(String from, String to, Message message) {
+		Semaphore sem = new Semaphore(0);
+		boolean[] $ = new boolean[1];
+		postAs(from, to, message, delivered -> {
+			$[0] = delivered;
+			sem.release();
+		});
+		try {
+			sem.acquire();
+			return $[0];
+		} catch (InterruptedException e) {
+			// Should not be interrupted.
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Send a message as {@link #sendAs} does, without waiting for it to be delivered. Messages to the same endpoint are
+	 * sent in the order they were posted.
+	 * This is a <b>non-blocking</b> call.
+	 * 
+	 * @param from - Address of the source of the message.
+	 * @param to - Address of destination to whom the message will be sent.
+	 * @param message - Contents of message to be sent.
+	 * @param onDone - Called on a sending thread with true if the message was delivered, or false if it was given up,
+	 * as its destination was declared dead or this connection was stopped.
+	 */
+	void postAs(String from, String to, Message message, Consumer<Boolean> onDone) {
+		if (!Frame.isAddress(to)) {
+			throw new IllegalArgumentException("recipient address cannot be null, empty, or hold ':' or a line break");
 		}
 		
 		if (null == message) {
 			throw new IllegalArgumentException("contents to send cannot be null");
 		}
 		
-		if (messenger == null) {
+		if (transport == null) {
 			throw new RuntimeException("cannot send when connection is inactive");
 		}
 		
-		if (ACK.equals(message)) { // send an ACK - no need to wait for incoming ACK in return
+		if (EMPTY.equals(message)) {
 			throw new UnsupportedOperationException("don't use send() to send empty messages.");
 		}
 		
-		Envelope<Message> env = Envelope.wrap(myAddress, to, message);
-		Semaphore sem = new Semaphore(0);
-		sender.enqueue(new EnvelopeWithSemaphore<Message>(env, sem));
-		try {
-			sem.acquire();
-		} catch (InterruptedException e) {
-			// Should not be interrupted.
-			throw new RuntimeException(e);
-		}
+		Envelope<Message> env = Envelope.wrap(from, to, message);
+		String endpoint = routes.getOrDefault(to, to);
+		senders.execute(endpoint, () -> onDone.accept(safeSend(env, endpoint)));
 	}
 	
 	
 	/**
-	 * Do actual sending, with validation of arrival at the receiver side, re-sending periodically, until an ACK is received.
+	 * Do actual sending, with validation of arrival at the receiver side, re-sending periodically, until an ACK is received
+	 * or the receiver is declared dead. Runs in the lane of the destination endpoint, so that the peer of the endpoint
+	 * is used by one sender at a time.
 	 * <br><br>
 	 * This is a <b>blocking</b> call.
 	 * 
 	 * @param env - Envelope to be sent.
+	 * @param endpoint - The endpoint through which its destination is reachable.
+	 * @return true if the message was ACKed.
 	 */
-	private void safeSend(EnvelopeWithSemaphore<Message> ews) {
-		Envelope<Message> env = ews.env;
-		this.ackNotifier = new Semaphore(0);
+	private boolean safeSend(Envelope<Message> env, String endpoint) {
+		String body = this.codec.encode(Envelope.unaddressed(env.content));
+		Outstanding o = new Outstanding(lastSeq.incrementAndGet(), endpoint, env.to, epoch);
+		Peer peer = peers.computeIfAbsent(o.endpoint, x -> new Peer());
+		if (peer.aliasEpoch != o.epoch) {
+			peer.aliases.clear(); // Defined in an earlier session of ours, which the remote endpoint has forgotten.
+			peer.aliasEpoch = o.epoch;
+		}
+		int from = peer.aliasOf(env.from);
+		int to = peer.aliasOf(env.to);
+		String frame = Frame.data(o.epoch, o.seq, peer.myId, peer.idEpoch, myAddress, from < 0 ? -from - 1 : from,
+				from < 0 ? env.from : null, to < 0 ? -to - 1 : to, to < 0 ? env.to : null, body);
+		outstanding.put(o.seq, o);
+		boolean $ = false;
 		while (true) {
 			try {
-				this.messenger.send(env.to, this.codec.encode(env));
-				if (this.ackNotifier.tryAcquire(ACK_TIMEOUT_IN_MILLISECONDS,TimeUnit.MILLISECONDS)) {
+				try {
+					transmit(o.endpoint, env.from, frame);
+				} catch (IOException e) {
+					// Not taken by the transport (e.g. the receiver is stuck); re-sent like a lost frame.
+				}
+				Frame answer = awaitAnswer(o);
+				if (null != answer && answer.kind == Frame.ACK) {
 					// Ack received, quit trying. 
+					if (peer.myId != answer.peerId || peer.idEpoch != answer.peerEpoch) {
+						if (peer.myId != Frame.NONE) {
+							peer.aliases.clear(); // The remote endpoint was restarted, and has forgotten our aliases.
+						}
+						peer.myId = answer.peerId;
+						peer.idEpoch = answer.peerEpoch;
+					}
+					$ = true;
 					break;
 				}
-				// Ack not received until timeout, try again.
-			} catch (InterruptedException | MessengerException e) {
+				if (null != answer) {
+					// The receiver holds a later epoch of ours, given before our clock went back. Start a new session
+					// past it; receivers forget the aliases of the old one, and so do the senders of other endpoints
+					// once they send in the new one.
+					o.epoch = moveEpochPast(answer.peerEpoch);
+					peer.aliases.clear();
+					peer.aliasEpoch = o.epoch;
+					frame = Frame.data(o.epoch, o.seq, myAddress, env.from, env.to, body);
+					continue;
+				}
+				if (stopping || isDead(env.to)) {
+					// Doomed; leave the message to the sending application.
+					break;
+				}
+				// Ack not received until timeout, try again. The receiver might not know our IDs (e.g. if it was
+				// restarted), and would not be able to ACK, so send the frame self-contained.
+				frame = Frame.data(o.epoch, o.seq, Frame.NONE, 0, myAddress, from < 0 ? -from - 1 : from, env.from,
+						to < 0 ? -to - 1 : to, env.to, body);
+			} catch (InterruptedException e) {
 				throw new RuntimeException(e);
 			}
 		}
-		ews.sem.release();
+		outstanding.remove(o.seq);
+		return $;
+	}
+	
+	/**
+	 * Wait for an ACK or a reset of an outstanding frame as sent in its current epoch, up to the ACK timeout.
+	 * @return the answer, or null if none arrived in time.
+	 */
+	private Frame awaitAnswer(Outstanding o) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_IN_MILLISECONDS);
+		for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+			Frame $ = o.answers.poll(left, TimeUnit.NANOSECONDS);
+			if (null != $ && $.epoch == o.epoch) {
+				return $;
+			}
+			// Otherwise, a late answer to the frame as sent before a reset.
+		}
+		return null;
+	}
+	
+	/**
+	 * Move the epoch of this connection past an epoch a receiver holds, unless the sender of another endpoint already
+	 * has.
+	 * 
+	 * @param held - The epoch held by the receiver.
+	 * @return the epoch of this connection.
+	 */
+	private synchronized long moveEpochPast(long held) {
+		if (epoch <= held) {
+			epoch = lastEpoch.updateAndGet(last -> Math.max(last, held) + 1);
+		}
+		return epoch;
 	}
 
 	
 	/**
-	 * Sends an ACK (empty string) to a given address, guaranteed to be received by the recipient.
+	 * Sends an ACK for a received frame to a given address. ACKs are not re-sent; if one is lost, or not taken by the
+	 * transport, the frame is re-sent and ACKed again.
 	 * <br><br>
 	 * This is a <b>non-blocking</b> call.
 	 * 
-	 * @param to - Address of the ACK receiver.
+	 * @param session - The session of the frame's sender.
+	 * @param frame - The received frame.
+	 * @param to - The destination of the frame, which is alive as it is ACKed; null if not known.
 	 */
-	private void sendAck(String to) {
+	private void sendAck(Session session, Frame frame, String to) {
 		try {
-			this.messenger.send(to, ACK);
-		} catch (MessengerException e) {
-			throw new RuntimeException(e);
+			transmit(session.endpoint, to, Frame.ack(frame.epoch, frame.seq, session.id, startEpoch));
+		} catch (IOException e) {
+			// A lost ACK; the frame is re-sent.
+		}
+	}
+	
+	/**
+	 * Sends a reset for a frame of an old epoch of its sender. Like ACKs, resets are not re-sent.
+	 * <br><br>
+	 * This is a <b>non-blocking</b> call.
+	 * 
+	 * @param session - The session of the frame's sender, holding a later epoch.
+	 * @param frame - The received frame.
+	 */
+	private void sendReset(Session session, Frame frame) {
+		try {
+			transmit(session.endpoint, null, Frame.reset(frame.epoch, frame.seq, session.epoch));
+		} catch (IOException e) {
+			// A lost reset; the frame is re-sent, and reset again.
+		}
+	}
+	
+	/**
+	 * Send a frame through the transport, noting it as a beat if it is sent to an endpoint beaten to on behalf of the
+	 * given source.
+	 * 
+	 * @param source - The address the frame shows to be alive, or null if none.
+	 */
+	private void transmit(String endpoint, String source, String frame) throws IOException {
+		this.transport.send(endpoint, frame);
+		if (null != source && !beatTargets.isEmpty()) {
+			Map<String, Liveness> sources = beatTargets.get(endpoint);
+			Liveness l = null == sources ? null : sources.get(source);
+			if (null != l) {
+				l.lastSent = System.currentTimeMillis();
+			}
 		}
 	}
 	
 	/**
 	 * Receive a raw incoming message, and put it in a FIFO queue for appropriate handling. If incoming message is
 	 * an ACK, than it is handled immediately, and not pushed into the incoming message queue for further handling. 
-	 *  
-	 * @param inMsg - Raw incoming message, as received from messenger.
+	 * 
+	 * <p>
+	 * Frames of dead sessions, and ACKs for anything but the frames currently sent, are dropped without being decoded.
+	 * A message sent through an endpoint other than its source address was sent on behalf of an address reachable
+	 * through that endpoint; the ACK, and any later message to that address, is sent to the endpoint.
+	 * </p>
+	 * 
+	 * @param inMsg - Raw incoming message, as received from the transport.
 	 */
 	private void receiveIncomingMessage(String inMsg) {
 		if (null == inMsg) {
 			throw new RuntimeException("Received a null incoming message");
 		}
 
-		if (inMsg.equals(ACK)) {
-			ackNotifier.release();
+		Frame frame = Frame.parse(inMsg);
+		if (frame.kind == Frame.ACK || frame.kind == Frame.RESET) {
+			Outstanding o = outstanding.get(frame.seq);
+			if (null != o && (frame.kind == Frame.ACK || frame.peerEpoch > frame.epoch)) {
+				heard(o.to);
+				o.answers.add(frame); // Checked against the epoch the frame is sent in by its sender.
+			}
+			return;
+		}
+		if (frame.kind == Frame.BEAT) {
+			receiveBeat(frame);
 			return;
 		}
-		Envelope<Message> env = codec.decode(inMsg);
-		sendAck(env.from);
+		
+		Session session = null == frame.endpoint ? sessionOf(frame.peerId, frame.peerEpoch) :
+			sessions.computeIfAbsent(frame.endpoint, x -> newSession(x));
+		if (null == session) {
+			return; // An ID given in a previous epoch of this connection; the sender will re-send in full.
+		}
+		Envelope<Message> env;
+		synchronized (session) {
+			if (frame.epoch < session.epoch) {
+				// A late frame from a dead session of the sender, or a sender whose clock went back: not handled, but
+				// answered, so that a live sender can move past the epoch we hold.
+				sendReset(session, frame);
+				return;
+			}
+			if (frame.epoch == session.epoch && frame.seq <= session.lastSeq) {
+				sendAck(session, frame, null); // Already handled; the sender has not got our ACK.
+				return;
+			}
+			if (frame.epoch > session.epoch) {
+				// The first frame of a new session of the sender, which has new aliases.
+				session.epoch = frame.epoch;
+				session.lastSeq = 0;
+				session.aliases.clear();
+			}
+			String from = session.resolve(frame.fromAlias, frame.fromDefinition);
+			String to = session.resolve(frame.toAlias, frame.toDefinition);
+			if (null == from || null == to) {
+				return; // Unknown aliases; the sender will re-send in full.
+			}
+			env = Envelope.wrap(from, to, codec.decode(frame.body()).content);
+			if (!session.endpoint.equals(from)) {
+				routes.put(from, session.endpoint);
+			} else if (!routes.isEmpty()) {
+				routes.remove(from); // The source is an endpoint by itself now.
+			}
+			if (!accepts(env)) {
+				// Not ACKed: to the sender, this is as if the message was sent to a stopped connection.
+				return;
+			}
+			session.lastSeq = frame.seq;
+		}
+		heard(env.from);
+		sendAck(session, frame, env.to);
 		this.receiver.enqueue(env);
 	}
 	
+	private void receiveBeat(Frame frame) {
+		if (null == onDead) {
+			return;
+		}
+		String endpoint = frame.endpoint;
+		if (null == endpoint) {
+			Session session = sessionOf(frame.peerId, frame.peerEpoch);
+			if (null == session || session.epoch != frame.epoch) {
+				return; // An ID given in a previous epoch of this connection, or by a previous session of the sender.
+			}
+			endpoint = session.endpoint;
+		}
+		String source = null == frame.fromDefinition ? endpoint : frame.fromDefinition;
+		watched.computeIfAbsent(source, x -> new Liveness(System.currentTimeMillis()));
+		heard(source);
+	}
+	
+	/**
+	 * Note that an address is alive, if it is watched.
+	 */
+	private void heard(String address) {
+		if (watched.isEmpty()) {
+			return;
+		}
+		Liveness l = watched.get(address);
+		if (null != l) {
+			l.lastHeard = System.currentTimeMillis();
+			l.dead = false;
+		}
+	}
+	
+	private boolean isDead(String address) {
+		Liveness l = watched.isEmpty() ? null : watched.get(address);
+		return null != l && l.dead;
+	}
+	
+	/**
+	 * Send due beats and declare deaths. Runs on the beater thread, once per interval.
+	 */
+	private void tick(Heartbeats hb) {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Map<String, Liveness>> e : beatTargets.entrySet()) {
+			Peer peer = peers.get(e.getKey());
+			for (Map.Entry<String, Liveness> s : e.getValue().entrySet()) {
+				if (now - s.getValue().lastSent >= hb.intervalInMilliseconds) {
+					String source = myAddress.equals(s.getKey()) ? null : s.getKey();
+					try {
+						transmit(e.getKey(), s.getKey(), null == peer ?
+								Frame.beat(epoch, Frame.NONE, 0, myAddress, source) :
+								Frame.beat(epoch, peer.myId, peer.idEpoch, myAddress, source));
+					} catch (IOException x) {
+						// A lost beat; the next one is sent on the next tick.
+					}
+				}
+			}
+		}
+		Consumer<String> onDead = this.onDead;
+		if (null == onDead) {
+			return;
+		}
+		for (Map.Entry<String, Liveness> e : watched.entrySet()) {
+			Liveness l = e.getValue();
+			if (!l.dead && now - l.lastHeard > hb.deadlineInMilliseconds()) {
+				l.dead = true;
+				onDead.accept(e.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Set the heartbeat settings of this connection, overriding the ones set by the system properties. Takes effect
+	 * on the next start.
+	 * 
+	 * @param heartbeats - The heartbeat settings, or null to turn heartbeats off.
+	 */
+	public void setHeartbeats(Heartbeats heartbeats) {
+		this.heartbeats = Optional.ofNullable(heartbeats);
+	}
+	
+	/**
+	 * Beat to an endpoint while this connection is started, if heartbeats are set.
+	 * 
+	 * @param endpoint - Address of the endpoint.
+	 */
+	void beatTo(String endpoint) {
+		beatAs(myAddress, endpoint);
+	}
+	
+	/**
+	 * Beat to an endpoint on behalf of some address reachable through this connection (see {@link #sendAs}), until
+	 * {@link #stopBeatingAs} is called with that address.
+	 * 
+	 * @param source - Address on whose behalf to beat.
+	 * @param endpoint - Address of the endpoint.
+	 */
+	void beatAs(String source, String endpoint) {
+		if (!Frame.isAddress(endpoint)) {
+			throw new IllegalArgumentException("endpoint address cannot be null, empty, or hold ':' or a line break");
+		}
+		beatTargets.computeIfAbsent(endpoint, x -> new ConcurrentHashMap<String, Liveness>())
+			.putIfAbsent(source, new Liveness(0L));
+	}
+	
+	/**
+	 * Stop beating on behalf of an address.
+	 * 
+	 * @param source - Address on whose behalf beats are no longer sent.
+	 */
+	void stopBeatingAs(String source) {
+		for (Map<String, Liveness> sources : beatTargets.values()) {
+			sources.remove(source);
+		}
+	}
+	
+	/**
+	 * Watch the addresses beating to this connection while it is started, if heartbeats are set. Each address is
+	 * watched by itself, even if it is reachable through an endpoint shared with others (see
+	 * {@link ConnectionMultiplexer}). Once an address is declared dead, messages to it are no longer re-sent (see
+	 * {@link #deliver}) until it is heard from again.
+	 * 
+	 * @param onDead - Called with each address declared dead, on the heartbeat thread.
+	 */
+	void watch(Consumer<String> onDead) {
+		if (null == onDead) {
+			throw new IllegalArgumentException("got null death handler");
+		}
+		this.onDead = onDead;
+	}
+	
+	private Session newSession(String endpoint) {
+		// Called under the lock of the sessions map.
+		int id = sessions.size();
+		Session[] byId = sessionsById;
+		if (id == byId.length) {
+			byId = java.util.Arrays.copyOf(byId, 2 * id);
+		}
+		Session $ = new Session(id, endpoint);
+		byId[id] = $;
+		sessionsById = byId;
+		return $;
+	}
+	
+	/**
+	 * Find a session by the peer ID assigned to its endpoint. IDs assigned before this connection was last started
+	 * are not trusted, as a restarted connection may have assigned them to other endpoints.
+	 */
+	private Session sessionOf(int peerId, long peerEpoch) {
+		if (peerEpoch != startEpoch) {
+			return null;
+		}
+		Session[] byId = sessionsById;
+		return peerId >= 0 && peerId < byId.length ? byId[peerId] : null;
+	}
+	
+	/**
+	 * Decide whether an incoming message is handled by this connection. All messages are, unless overridden.
+	 * 
+	 * @param env - The incoming message.
+	 * @return true if the message should be ACKed and handled; false if it should be ignored.
+	 */
+	boolean accepts(Envelope<Message> env) {
+		return true;
+	}
+	
 	/**
 	 * Starts this Connection, enabling it to send and receive messages.
 	 * 
@@ -232,19 +788,39 @@ public class Connection<Message> {
 	 * @param handler - User-defined consumer to handle incoming messages.
 	 */
 	public void start(Consumer<Envelope<Message>> handler) {
-		if (messenger != null) { // already started - ignoring call
+		if (transport != null) { // already started - ignoring call
 			return;
 		}
+		epoch = lastEpoch.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+		startEpoch = epoch;
+		lastSeq.set(0);
+		peers.clear();
 		receiver = new Dispatcher<Envelope<Message>>(x -> handler.accept(x));
-		sender = new Dispatcher<EnvelopeWithSemaphore<Message>>(x -> safeSend(x));
+		senders = new KeyedExecutor<String>("send-" + myAddress, 0); // Senders mostly wait for ACKs.
 		receiver.start();
-		sender.start();
+		senders.start();
 		
 		try {
-			messenger = messengerFactory.start(myAddress, x -> receiveIncomingMessage(x));
-		} catch (MessengerException e) {
+			transport = transportFactory.start(myAddress, x -> receiveIncomingMessage(x));
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		
+		if (heartbeats.isPresent()) {
+			Heartbeats hb = heartbeats.get();
+			watched.clear();
+			beater = new Thread(() -> {
+				try {
+					while (!beaterStop.tryAcquire(hb.intervalInMilliseconds, TimeUnit.MILLISECONDS)) {
+						tick(hb);
+					}
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}, "heartbeat-" + myAddress);
+			beater.setDaemon(true);
+			beater.start();
+		}
 	}
 	
 	
@@ -256,20 +832,34 @@ public class Connection<Message> {
 	 * If the Connection was already stopped upon invocation, this does nothing.
 	 */
 	public void stop() {
-		if (messenger == null) {
+		if (transport == null) {
 			// Already stopped; Do nothing.
 			return;
 		}
 		
 		receiver.stop();
-		sender.stop();
+		stopping = true; // Each message still queued is sent once, and given up unless it is ACKed in time.
+		senders.stop();
+		stopping = false;
+		
+		if (null != beater) {
+			beaterStop.release();
+			try {
+				beater.join();
+			} catch (InterruptedException e) {
+				// Should not be interrupted.
+				throw new RuntimeException(e);
+			} finally {
+				beater = null;
+			}
+		}
 		
 		try {
-			this.messenger.kill();
-		} catch (MessengerException e) {
+			this.transport.kill();
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		} finally {
-			this.messenger = null;
+			this.transport = null;
 		}
 	}
 	
@@ -281,6 +871,33 @@ public class Connection<Message> {
 	public String myAddress() {
 		return this.myAddress;
 	}
+	
+	/**
+	 * @return the epoch given to this connection when it was last started, which names the peer IDs it assigns.
+	 */
+	long epoch() {
+		return startEpoch;
+	}
+	
+	/**
+	 * Get the number of incoming messages waiting to be handled.
+	 * 
+	 * @return the receive backlog; 0 if this Connection is stopped.
+	 */
+	public int receiveBacklog() {
+		Dispatcher<Envelope<Message>> current = receiver;
+		return null == transport || null == current ? 0 : current.backlog();
+	}
+	
+	/**
+	 * Get the time the incoming message being handled, or the last one handled, waited to be handled.
+	 * 
+	 * @return the sojourn time of incoming messages, in nanoseconds; 0 if this Connection is stopped.
+	 */
+	public long receiveSojournInNanoseconds() {
+		Dispatcher<Envelope<Message>> current = receiver;
+		return null == transport || null == current ? 0 : current.sojournInNanoseconds();
+	}
 }
 
 
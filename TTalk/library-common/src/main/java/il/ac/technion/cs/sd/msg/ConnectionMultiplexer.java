@@ -0,0 +1,200 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Multiplexes many logical {@link Connection connections} over a single endpoint.
+ * 
+ * <p>
+ * A regular Connection owns a {@link Transport} endpoint, a handler {@link Dispatcher} and its senders. A multiplexer
+ * owns the endpoint and the senders once, together with the ACK and re-sending machinery, and each of its logical
+ * connections costs only an entry in a map. Incoming messages are demultiplexed to the logical connection named by
+ * {@link Envelope#to}, and handled on a small pool of threads shared by all logical connections (see
+ * {@link KeyedExecutor}), one message of each logical connection at a time and in order, so a slow handler holds back
+ * only its own connection (unless the handlers of several connections block the whole pool).
+ * Messages sent by a logical connection name the multiplexer's endpoint in their frame header, so their receivers
+ * send ACKs and replies back through it.
+ * </p>
+ * 
+ * A typical usage, e.g. by a load tester holding many clients:<br><br>
+ * 
+ * <code>
+ * ConnectionMultiplexer&lt;Message&gt; mux = new ConnectionMultiplexer&lt;Message&gt;("tester");
+ * <br>mux.start();
+ * <br>ClientConnection&lt;Message&gt; client = new ClientConnection&lt;Message&gt;("server", mux.connection("user42"));
+ * <br>client.start(x -> handle(x));
+ * <br>...
+ * <br>mux.stop();
+ * </code><br><br>
+ * 
+ * <b>Notice:</b> logical connections share the endpoint's senders, which send to each endpoint one message at a time,
+ * so sends from different logical connections to the same endpoint are serialized; sends to other endpoints are not.
+ *
+ * @param <Message> User-defined type of message to be handled by the logical connections.
+ */
+public class ConnectionMultiplexer<Message> {
+	
+	// Threads running the handlers of all logical connections. Handlers which block hold back the others only once
+	// this many of them are blocked at once.
+	private static final int HANDLER_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	
+	// INSTANCE VARIABLES
+	private final Connection<Message> endpoint;
+	private final Codec<Envelope<Message>> codec;
+	private final TransportFactory transportFactory;
+	private final Map<String, Consumer<Envelope<Message>>> handlers =
+			new ConcurrentHashMap<String, Consumer<Envelope<Message>>>();
+	private volatile KeyedExecutor<String> handling = null; // runs the handlers, by logical address.
+	
+	/**
+	 * Constructor. Creates a multiplexer over a single endpoint, using a custom {@link Codec} and {@link TransportFactory}.<br>
+	 * <b>Notice:</b> created multiplexer is inactive until {@link #start()} is invoked.
+	 * 
+	 * @param address - Address of the shared endpoint. Must differ from all logical addresses.
+	 * @param codec - Custom {@link Codec} for encoding/decoding messages.
+	 * @param transportFactory - {@link TransportFactory}, used for starting the shared endpoint.
+	 */
+	public ConnectionMultiplexer(String address, Codec<Envelope<Message>> codec, TransportFactory transportFactory) {
+		this.codec = codec;
+		this.transportFactory = transportFactory;
+		this.endpoint = new Connection<Message>(address, codec, transportFactory) {
+			@Override
+			boolean accepts(Envelope<Message> env) {
+				return handlers.containsKey(env.to);
+			}
+		};
+	}
+	
+	/**
+	 * Constructor. Creates a multiplexer over a single endpoint, using the default {@link Codec} and {@link TransportFactory}.<br>
+	 * <b>Notice:</b> created multiplexer is inactive until {@link #start()} is invoked.
+	 * 
+	 * @param address - Address of the shared endpoint. Must differ from all logical addresses.
+	 */
+	public ConnectionMultiplexer(String address) {
+		this(address, new XStreamCodec<Envelope<Message>>(), TransportFactory.fromSystemProperties());
+	}
+	
+	/**
+	 * Start the shared endpoint. Logical connections can send and receive messages only while it is started.
+	 * Calling this method when the multiplexer is already started will be ignored.
+	 */
+	public synchronized void start() {
+		if (null != handling) { // already started - ignoring call
+			return;
+		}
+		handling = new KeyedExecutor<String>("mux-" + myAddress(), HANDLER_THREADS);
+		handling.start();
+		endpoint.start(env -> dispatch(env));
+	}
+	
+	/**
+	 * Stop the shared endpoint, and with it all logical connections.
+	 * If the multiplexer was already stopped upon invocation, this does nothing.
+	 */
+	public synchronized void stop() {
+		if (null == handling) {
+			return;
+		}
+		endpoint.stop();
+		handlers.clear(); // Messages still queued are dropped, as their connections are stopped.
+		handling.stop();
+		handling = null;
+	}
+	
+	/**
+	 * Get a logical connection with a given address. The connection is inactive until its own start() is invoked, 
+	 * which registers its handler with this multiplexer.
+	 * 
+	 * @param address - Address of the logical connection.
+	 * @return a new logical connection, which can be used as any other {@link Connection}.
+	 */
+	public Connection<Message> connection(String address) {
+		return new LogicalConnection(address);
+	}
+	
+	/**
+	 * Get the number of currently started logical connections.
+	 * 
+	 * @return the number of started logical connections.
+	 */
+	public int size() {
+		return handlers.size();
+	}
+	
+	/**
+	 * Get the address of the shared endpoint.
+	 * 
+	 * @return the address of the shared endpoint.
+	 */
+	public String myAddress() {
+		return endpoint.myAddress();
+	}
+	
+	private void dispatch(Envelope<Message> env) {
+		KeyedExecutor<String> current = handling;
+		if (null == current) {
+			return; // Stopped while the message arrived.
+		}
+		try {
+			current.execute(env.to, () -> {
+				Consumer<Envelope<Message>> handler = handlers.get(env.to);
+				if (null != handler) { // The logical connection may have been stopped since the message arrived.
+					handler.accept(env);
+				}
+			});
+		} catch (RuntimeException e) {
+			// Stopped while enqueuing; dropped as if it was stopped before the message arrived.
+		}
+	}
+	
+	/**
+	 * A connection whose traffic goes through the multiplexer's endpoint.
+	 */
+	private class LogicalConnection extends Connection<Message> {
+		
+		LogicalConnection(String address) {
+			super(address, codec, transportFactory); // Never started: the shared endpoint does all the work.
+			if (address.equals(endpoint.myAddress())) {
+				throw new IllegalArgumentException("logical address cannot be the multiplexer's own address");
+			}
+		}
+		
+		@Override
+		public void start(Consumer<Envelope<Message>> handler) {
+			if (null == handler) {
+				throw new IllegalArgumentException("handler cannot be null");
+			}
+			handlers.putIfAbsent(myAddress(), handler); // already started - ignoring call
+		}
+		
+		@Override
+		public void stop() {
+			handlers.remove(myAddress());
+			endpoint.stopBeatingAs(myAddress());
+		}
+		
+		@Override
+		protected boolean deliver(String to, Message message) {
+			if (!handlers.containsKey(myAddress())) {
+				throw new RuntimeException("cannot send when connection is inactive");
+			}
+			return endpoint.sendAs(myAddress(), to, message);
+		}
+		
+		@Override
+		protected void post(String to, Message message, Consumer<Boolean> onDone) {
+			if (!handlers.containsKey(myAddress())) {
+				throw new RuntimeException("cannot send when connection is inactive");
+			}
+			endpoint.postAs(myAddress(), to, message, onDone);
+		}
+		
+		@Override
+		void beatTo(String to) {
+			endpoint.beatAs(myAddress(), to); // So that each logical connection is watched by itself.
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package il.ac.technion.cs.sd.msg;
 
-import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
@@ -10,19 +9,36 @@ import java.util.function.Consumer;
  * Handle messages in FIFO order, possibly from multiple producers at once, with a user-defined action for each message.
  * Messages can be added to the dispatcher via {@link #enqueue} by multiple threads, in a non-blocking fashion.
  * Actual handling will is performed by FIFO (serial), one message at a time.
+ * <p>
+ * The time each message waited in the queue before being handled (its sojourn time) is measured, and can be read
+ * by the handler through {@link #sojournInNanoseconds()}, together with the {@link #backlog()} behind it, e.g. to
+ * shed load when messages queue up.
+ * </p>
  *
  * @param <T> Type of "jobs" to be enqueued for handling.
  */
 public class Dispatcher<T> {
 	
+	// An element of the queue, with the time it was added.
+	private static class Queued<T> {
+		final T element;
+		final long enqueuedAt;
+		
+		Queued(T element) {
+			this.element = element;
+			this.enqueuedAt = System.nanoTime();
+		}
+	}
+	
 	// Send stop signal to the queue by adding an empty element to the queue.
 	// Empty elements are not allowed otherwise.
-	private final Optional<T> STOP_DISPATCHER_ELEMENT = Optional.empty();
+	private final Queued<T> STOP_DISPATCHER_ELEMENT = new Queued<T>(null);
 	
 	// INSTANCE VARIABLES
-	private final BlockingQueue<Optional<T>> queue;
+	private final BlockingQueue<Queued<T>> queue;
 	private final Consumer<T> handler;
 	private Thread thread;  // The actual asyncronous thread that dispatches.
+	private volatile long sojourn = 0; // The time the last element taken waited in the queue, in nanoseconds.
 
 	private Semaphore stoppingDone;
 	
@@ -35,7 +51,7 @@ public class Dispatcher<T> {
 			throw new IllegalArgumentException();
 		}
 		this.handler = handler;
-		this.queue = new LinkedBlockingQueue<Optional<T>>();
+		this.queue = new LinkedBlockingQueue<Queued<T>>();
 		stoppingDone = new Semaphore(0);
 	}
 	
@@ -46,11 +62,12 @@ public class Dispatcher<T> {
 		thread = new Thread(() -> {
 			while (true) {
 				try {
-					Optional<T> element = queue.take();
-					if (element.equals(STOP_DISPATCHER_ELEMENT)) {
+					Queued<T> element = queue.take();
+					if (element == STOP_DISPATCHER_ELEMENT) {
 						break;
 					}
-					handler.accept(element.get());
+					sojourn = System.nanoTime() - element.enqueuedAt;
+					handler.accept(element.element);
 				} catch (InterruptedException e) {
 					// Should not be interrupted.
 					throw new RuntimeException(e);
@@ -95,6 +112,20 @@ public class Dispatcher<T> {
 		if (null == thread) {
 			throw new RuntimeException("cannot enqueue - dispatcher is stopped.");
 		}
-		this.queue.add(Optional.of(element));
+		this.queue.add(new Queued<T>(element));
+	}
+	
+	/**
+	 * @return the number of messages waiting to be handled.
+	 */
+	public int backlog() {
+		return queue.size();
+	}
+	
+	/**
+	 * @return the time the message being handled, or the last one handled, waited in the queue, in nanoseconds.
+	 */
+	public long sojournInNanoseconds() {
+		return sojourn;
 	}
 }
@@ -37,6 +37,16 @@ public class Envelope<Message> {
 		return new Envelope<Message>(from, to, content);
 	}
 	
+	/**
+	 * Get an Envelope without addresses, used for encoding the content of a message whose addresses are sent separately.
+	 * 
+	 * @param content - A non-null Message to be wrapped in the Envelope.
+	 * @return A new Envelope encapsulating the supplied message, with <b><code>null</code></b> addresses.
+	 */
+	static <Message> Envelope<Message> unaddressed(Message content) {
+		return new Envelope<Message>(null, null, content);
+	}
+	
 	/**
 	 * C'tor for an Envelope. Intended for internal use only.<br><br> 
 	 * You should probably use {@link wrap} instead.
@@ -0,0 +1,320 @@
+package il.ac.technion.cs.sd.msg;
+
+/**
+ * The wire format of the frames exchanged by {@link Connection connections}.
+ * 
+ * <p>
+ * A data frame starts with a header line carrying its sender's epoch and sequence number, the sending endpoint's
+ * peer ID, and the aliases of its source and destination addresses, followed by the encoded {@link Envelope} without
+ * its addresses, so that receivers can drop stale and duplicate frames without decoding them:<br>
+ * <code>#&lt;epoch&gt;:&lt;seq&gt;:&lt;peer ID&gt;:&lt;from alias&gt;:&lt;to alias&gt;\n&lt;encoded envelope&gt;</code>
+ * </p>
+ * 
+ * <p>
+ * Peer IDs are assigned by the receiver, and returned in the ACK of the first frame from a new endpoint. A peer ID is
+ * only valid during the epoch of the receiver which assigned it, so it is written together with that epoch:
+ * <code>&lt;ID&gt;.&lt;receiver epoch&gt;</code>. Until the sender knows its peer ID, it sends <code>-</code> instead,
+ * and the endpoint address on a line of its own after the header line. Address aliases are assigned by the sender; an
+ * alias is defined by appending <code>=</code> to it, and the defined address follows on a line of its own (after the
+ * endpoint, from before to). As addresses are written on lines of their own, and may be parsed along with the header,
+ * they may contain neither line breaks nor <code>:</code> (see {@link #isAddress}).
+ * </p>
+ * 
+ * <p>
+ * An ACK frame acknowledges a single data frame, and tells the sender its peer ID (with the receiver's epoch):<br>
+ * <code>!&lt;epoch&gt;:&lt;seq&gt;:&lt;peer ID&gt;</code><br>
+ * A receiver which does not know an ID used in a frame, or which was restarted since assigning it, cannot tell who
+ * sent the frame, and does not ACK it. Therefore a frame is re-sent self-contained: with its endpoint, and defining
+ * both of its addresses.
+ * </p>
+ * 
+ * <p>
+ * A heartbeat frame tells its receiver that the sender is alive, and is not acknowledged (see {@link Heartbeats}). It
+ * carries the sender's epoch and peer ID, or <code>-</code> and the endpoint address on a line of its own. A beat on
+ * behalf of an address reachable through the endpoint (see {@link ConnectionMultiplexer}) names that address on a
+ * last line:<br>
+ * <code>~&lt;epoch&gt;:&lt;peer ID&gt;</code>
+ * </p>
+ * 
+ * <p>
+ * A reset frame answers a data frame of an epoch older than the one its receiver holds for the sender, naming that
+ * epoch, so that a sender whose epochs went back (e.g. as its clock was stepped back across a restart) can move past it
+ * instead of re-sending a frame which is never ACKed:<br>
+ * <code>^&lt;epoch&gt;:&lt;seq&gt;:&lt;held epoch&gt;</code>
+ * </p>
+ */
+class Frame {
+	
+	static final char DATA = '#';
+	static final char ACK = '!';
+	static final char BEAT = '~';
+	static final char RESET = '^';
+	
+	static final int NONE = -1;
+	
+	private static final char UNKNOWN_PEER = '-';
+	private static final char DEFINITION = '=';
+	private static final char PEER_EPOCH = '.';
+	
+	final char kind;
+	final long epoch;
+	final long seq;
+	/**
+	 * The peer ID of the sending endpoint (for data frames and heartbeats), or the peer ID assigned to the receiver
+	 * (for ACKs).
+	 * {@link #NONE} if not known.
+	 */
+	final int peerId;
+	/**
+	 * The epoch of the connection which assigned {@link #peerId}; 0 if the peer ID is not known.
+	 * For resets, the epoch the receiver holds for the sender.
+	 */
+	final long peerEpoch;
+	/**
+	 * The address of the sending endpoint, if it is sent in full; null otherwise.
+	 */
+	final String endpoint;
+	final int fromAlias;
+	/**
+	 * The address of the source, if its alias is defined by this frame (for beats: if it is not the sending endpoint);
+	 * null otherwise.
+	 */
+	final String fromDefinition;
+	final int toAlias;
+	/**
+	 * The address of the destination, if its alias is defined by this frame; null otherwise.
+	 */
+	final String toDefinition;
+	
+	private final String raw;
+	private final int bodyOffset;
+	
+	private Frame(char kind, long epoch, long seq, int peerId, long peerEpoch, String endpoint, int fromAlias,
+			String fromDefinition, int toAlias, String toDefinition, String raw, int bodyOffset) {
+		this.kind = kind;
+		this.epoch = epoch;
+		this.seq = seq;
+		this.peerId = peerId;
+		this.peerEpoch = peerEpoch;
+		this.endpoint = endpoint;
+		this.fromAlias = fromAlias;
+		this.fromDefinition = fromDefinition;
+		this.toAlias = toAlias;
+		this.toDefinition = toDefinition;
+		this.raw = raw;
+		this.bodyOffset = bodyOffset;
+	}
+	
+	/**
+	 * Build a data frame.
+	 * @param epoch the epoch of the sending connection.
+	 * @param seq the sequence number of the frame within its epoch.
+	 * @param peerId the peer ID of the sending endpoint at the receiver, or {@link #NONE} if not known yet.
+	 * @param peerEpoch the epoch of the receiver which assigned the peer ID.
+	 * @param endpoint the address of the sending endpoint, sent if its peer ID is not known.
+	 * @param fromAlias the alias of the source address.
+	 * @param fromDefinition the source address, if its alias is to be defined by this frame; null otherwise.
+	 * @param toAlias the alias of the destination address.
+	 * @param toDefinition the destination address, if its alias is to be defined by this frame; null otherwise.
+	 * @param body the encoded envelope.
+	 * @return the frame.
+	 */
+	static String data(long epoch, long seq, int peerId, long peerEpoch, String endpoint, int fromAlias,
+			String fromDefinition, int toAlias, String toDefinition, String body) {
+		StringBuilder $ = new StringBuilder(body.length() + 64).append(DATA).append(epoch).append(':').append(seq)
+				.append(':');
+		appendPeer($, peerId, peerEpoch).append(':').append(fromAlias);
+		if (null != fromDefinition) {
+			$.append(DEFINITION);
+		}
+		$.append(':').append(toAlias);
+		if (null != toDefinition) {
+			$.append(DEFINITION);
+		}
+		$.append('\n');
+		if (peerId == NONE) {
+			$.append(endpoint).append('\n');
+		}
+		if (null != fromDefinition) {
+			$.append(fromDefinition).append('\n');
+		}
+		if (null != toDefinition) {
+			$.append(toDefinition).append('\n');
+		}
+		return $.append(body).toString();
+	}
+	
+	/**
+	 * Build a self-contained data frame, sending the endpoint and defining both addresses.
+	 * @param epoch the epoch of the sending connection.
+	 * @param seq the sequence number of the frame within its epoch.
+	 * @param endpoint the address of the sending endpoint.
+	 * @param from the source address.
+	 * @param to the destination address.
+	 * @param body the encoded envelope.
+	 * @return the frame.
+	 */
+	static String data(long epoch, long seq, String endpoint, String from, String to, String body) {
+		return data(epoch, seq, NONE, 0, endpoint, 0, from, 1, to, body);
+	}
+	
+	/**
+	 * Build an ACK frame for a data frame.
+	 * @param epoch the epoch of the acknowledged frame.
+	 * @param seq the sequence number of the acknowledged frame.
+	 * @param peerId the peer ID assigned to the sender of the acknowledged frame.
+	 * @param peerEpoch the epoch of the connection assigning the peer ID.
+	 * @return the frame.
+	 */
+	static String ack(long epoch, long seq, int peerId, long peerEpoch) {
+		return appendPeer(new StringBuilder(48).append(ACK).append(epoch).append(':').append(seq).append(':'), peerId,
+				peerEpoch).toString();
+	}
+	
+	/**
+	 * Build a heartbeat frame.
+	 * @param epoch the epoch of the sending connection.
+	 * @param peerId the peer ID of the sending endpoint at the receiver, or {@link #NONE} if not known.
+	 * @param peerEpoch the epoch of the receiver which assigned the peer ID.
+	 * @param endpoint the address of the sending endpoint, sent if its peer ID is not known.
+	 * @param source the address the beat is sent on behalf of, or null if it is the sending endpoint itself.
+	 * @return the frame.
+	 */
+	static String beat(long epoch, int peerId, long peerEpoch, String endpoint, String source) {
+		StringBuilder $ = appendPeer(new StringBuilder(48).append(BEAT).append(epoch).append(':'), peerId, peerEpoch);
+		if (peerId == NONE) {
+			$.append('\n').append(endpoint);
+		}
+		return null == source ? $.toString() : $.append('\n').append(source).toString();
+	}
+	
+	/**
+	 * Build a reset frame for a data frame of an old epoch.
+	 * @param epoch the epoch of the data frame.
+	 * @param seq the sequence number of the data frame.
+	 * @param heldEpoch the epoch held for the sender of the data frame.
+	 * @return the frame.
+	 */
+	static String reset(long epoch, long seq, long heldEpoch) {
+		return RESET + Long.toString(epoch) + ':' + seq + ':' + heldEpoch;
+	}
+	
+	/**
+	 * @param address an address.
+	 * @return whether the address may be written into frames: it is neither null nor empty, and contains neither a
+	 * line break nor <code>:</code>.
+	 */
+	static boolean isAddress(String address) {
+		return null != address && !address.isEmpty() && address.indexOf('\n') < 0 && address.indexOf('\r') < 0
+				&& address.indexOf(':') < 0;
+	}
+	
+	private static StringBuilder appendPeer(StringBuilder $, int peerId, long peerEpoch) {
+		return peerId == NONE ? $.append(UNKNOWN_PEER) : $.append(peerId).append(PEER_EPOCH).append(peerEpoch);
+	}
+	
+	/**
+	 * Parse the header of a frame. The body of a data frame is not copied until {@link #body()} is called.
+	 * @param frame the raw frame.
+	 * @return the parsed frame.
+	 * @throws IllegalArgumentException if the frame is malformed.
+	 */
+	static Frame parse(String frame) {
+		if (null == frame || frame.isEmpty()) {
+			throw new IllegalArgumentException("empty frame");
+		}
+		char kind = frame.charAt(0);
+		int lineEnd = frame.indexOf('\n');
+		if (lineEnd < 0) {
+			lineEnd = frame.length();
+		}
+		String[] fields = frame.substring(1, lineEnd).split(":");
+		try {
+			switch (kind) {
+			case ACK:
+				return new Frame(kind, Long.parseLong(fields[0]), Long.parseLong(fields[1]), peerIdOf(fields[2]),
+						peerEpochOf(fields[2]), null, NONE, null, NONE, null, frame, frame.length());
+			case RESET:
+				return new Frame(kind, Long.parseLong(fields[0]), Long.parseLong(fields[1]), NONE,
+						Long.parseLong(fields[2]), null, NONE, null, NONE, null, frame, frame.length());
+			case BEAT:
+				return parseBeat(frame, fields, lineEnd);
+			case DATA:
+				int offset = lineEnd + 1;
+				int peerId = NONE;
+				long peerEpoch = 0;
+				String endpoint = null;
+				if (fields[2].charAt(0) == UNKNOWN_PEER) {
+					int end = frame.indexOf('\n', offset);
+					endpoint = frame.substring(offset, end);
+					offset = end + 1;
+				} else {
+					peerId = peerIdOf(fields[2]);
+					peerEpoch = peerEpochOf(fields[2]);
+				}
+				String fromDefinition = null;
+				if (isDefinition(fields[3])) {
+					int end = frame.indexOf('\n', offset);
+					fromDefinition = frame.substring(offset, end);
+					offset = end + 1;
+				}
+				String toDefinition = null;
+				if (isDefinition(fields[4])) {
+					int end = frame.indexOf('\n', offset);
+					toDefinition = frame.substring(offset, end);
+					offset = end + 1;
+				}
+				return new Frame(kind, Long.parseLong(fields[0]), Long.parseLong(fields[1]), peerId, peerEpoch,
+						endpoint, aliasOf(fields[3]), fromDefinition, aliasOf(fields[4]), toDefinition, frame, offset);
+			default:
+				throw new IllegalArgumentException("unknown frame kind: " + kind);
+			}
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			throw new IllegalArgumentException("malformed frame header", e);
+		}
+	}
+	
+	private static Frame parseBeat(String frame, String[] fields, int lineEnd) {
+		String lines = lineEnd < frame.length() ? frame.substring(lineEnd + 1) : null;
+		if (fields[1].charAt(0) != UNKNOWN_PEER) {
+			return new Frame(BEAT, Long.parseLong(fields[0]), 0, peerIdOf(fields[1]), peerEpochOf(fields[1]), null,
+					NONE, lines, NONE, null, frame, frame.length());
+		}
+		if (null == lines) {
+			throw new IllegalArgumentException("beat without a peer ID or an endpoint");
+		}
+		int end = lines.indexOf('\n');
+		return end < 0 ?
+				new Frame(BEAT, Long.parseLong(fields[0]), 0, NONE, 0, lines, NONE, null, NONE, null, frame,
+						frame.length()) :
+				new Frame(BEAT, Long.parseLong(fields[0]), 0, NONE, 0, lines.substring(0, end), NONE,
+						lines.substring(end + 1), NONE, null, frame, frame.length());
+	}
+	
+	private static int peerIdOf(String field) {
+		int end = field.indexOf(PEER_EPOCH);
+		if (end < 0) {
+			throw new IllegalArgumentException("peer ID without epoch: " + field);
+		}
+		return Integer.parseInt(field.substring(0, end));
+	}
+	
+	private static long peerEpochOf(String field) {
+		return Long.parseLong(field.substring(field.indexOf(PEER_EPOCH) + 1));
+	}
+	
+	private static boolean isDefinition(String field) {
+		return field.charAt(field.length() - 1) == DEFINITION;
+	}
+	
+	private static int aliasOf(String field) {
+		return Integer.parseInt(isDefinition(field) ? field.substring(0, field.length() - 1) : field);
+	}
+	
+	/**
+	 * @return the encoded envelope carried by a data frame.
+	 */
+	String body() {
+		return raw.substring(bodyOffset);
+	}
+}
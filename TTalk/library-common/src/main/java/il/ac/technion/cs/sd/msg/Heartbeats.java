@@ -0,0 +1,74 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.Optional;
+
+/**
+ * Heartbeat settings of a {@link Connection}.
+ *
+ * <p>
+ * A connection beating to an endpoint makes sure that endpoint hears from it at least once per interval. Beats are
+ * small unacknowledged frames sent on the same path as ACKs, and only when nothing else (neither a message nor an ACK)
+ * was sent to the endpoint during the last interval, so busy connections send no beats at all.<br>
+ * A connection watching the endpoints beating to it declares an endpoint dead once it has not heard anything from it
+ * for the given number of intervals, until it hears from it again.
+ * </p>
+ *
+ * <p>
+ * Connections created without explicit settings use {@link #fromSystemProperties()}: heartbeats are off unless
+ * <code>ttalk.heartbeat.interval</code> is set (in milliseconds); the missed-beat threshold is set by
+ * <code>ttalk.heartbeat.missed</code>. Both sides should use the same settings.
+ * </p>
+ */
+public class Heartbeats {
+
+	public static final String INTERVAL_PROPERTY = "ttalk.heartbeat.interval";
+	public static final String MISSED_BEATS_PROPERTY = "ttalk.heartbeat.missed";
+
+	public static final int DEFAULT_MISSED_BEATS = 3;
+
+	/**
+	 * The time between beats.
+	 */
+	public final long intervalInMilliseconds;
+
+	/**
+	 * The number of intervals without hearing from an endpoint, after which it is declared dead.
+	 */
+	public final int missedBeats;
+
+	/**
+	 * Create heartbeat settings.
+	 * @param intervalInMilliseconds the time between beats.
+	 * @param missedBeats the number of intervals without hearing from an endpoint, after which it is declared dead.
+	 */
+	public Heartbeats(long intervalInMilliseconds, int missedBeats) {
+		if (intervalInMilliseconds <= 0) {
+			throw new IllegalArgumentException("heartbeat interval must be positive");
+		}
+		if (missedBeats < 1) {
+			throw new IllegalArgumentException("at least one beat must be missed before declaring death");
+		}
+		this.intervalInMilliseconds = intervalInMilliseconds;
+		this.missedBeats = missedBeats;
+	}
+
+	/**
+	 * @return the time without hearing from an endpoint, after which it is declared dead.
+	 */
+	public long deadlineInMilliseconds() {
+		return intervalInMilliseconds * missedBeats;
+	}
+
+	/**
+	 * Get the heartbeat settings configured by the system properties (see class documentation).
+	 * @return the configured settings, or an empty optional if heartbeats are off.
+	 */
+	public static Optional<Heartbeats> fromSystemProperties() {
+		String interval = System.getProperty(INTERVAL_PROPERTY);
+		if (null == interval) {
+			return Optional.empty();
+		}
+		return Optional.of(new Heartbeats(Long.parseLong(interval),
+				Integer.parseInt(System.getProperty(MISSED_BEATS_PROPERTY, Integer.toString(DEFAULT_MISSED_BEATS)))));
+	}
+}
@@ -0,0 +1,166 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run tasks in FIFO order for each key, on a pool of threads shared by all keys. Tasks of the same key run one at a
+ * time, in the order they were added, so a slow task holds back only the tasks of its own key.
+ * <p>
+ * Each key with tasks waiting has a lane: a queue, kept in a map only while the key has tasks to run, whose presence
+ * means that a thread of the pool is draining it. Tasks can be added via {@link #execute} by multiple threads, in a
+ * non-blocking fashion.
+ * </p>
+ *
+ * @param <K> Type of the keys tasks are run by.
+ */
+public class KeyedExecutor<K> {
+
+	// Tasks run by a thread of the pool before it leaves the lane to the others, so that a busy key cannot take a
+	// thread for good.
+	private static final int BATCH = 64;
+
+	// INSTANCE VARIABLES
+	private final String name;
+	private final int threads;
+	private final Map<K, Queue<Runnable>> lanes = new ConcurrentHashMap<K, Queue<Runnable>>();
+	private volatile ExecutorService pool = null;
+
+	/**
+	 * Create an executor, which is inactive until {@link #start()} is invoked.
+	 *
+	 * @param name - Prefix of the names of the pool threads.
+	 * @param threads - Size of the pool; 0 for a pool which grows with the number of keys running at once, for tasks
+	 * which spend most of their time waiting.
+	 */
+	public KeyedExecutor(String name, int threads) {
+		if (null == name) {
+			throw new IllegalArgumentException("got null name");
+		}
+		if (threads < 0) {
+			throw new IllegalArgumentException("number of threads cannot be negative");
+		}
+		this.name = name;
+		this.threads = threads;
+	}
+
+	public void start() {
+		if (null != pool) {
+			throw new UnsupportedOperationException("KeyedExecutor has already started.");
+		}
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = r -> new Thread(r, name + "-" + count.incrementAndGet());
+		if (0 == threads) {
+			pool = Executors.newCachedThreadPool(factory);
+			return;
+		}
+		ThreadPoolExecutor $ = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), factory);
+		$.allowCoreThreadTimeOut(true); // Idle threads cost nothing.
+		pool = $;
+	}
+
+	/**
+	 * Cleanly stops the executor, letting the tasks already added run to completion.
+	 */
+	public void stop() {
+		ExecutorService current = pool;
+		if (null == current) {
+			// The executor has already been stopped.
+			return;
+		}
+		pool = null;
+		current.shutdown();
+		try {
+			current.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			// Should not be interrupted...
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Add a task to run after all tasks added earlier with the same key.
+	 *
+	 * @param key - The key of the task.
+	 * @param task - The task to run.
+	 */
+	public void execute(K key, Runnable task) {
+		if (null == key || null == task) {
+			throw new IllegalArgumentException("cannot add null keys or tasks to executor");
+		}
+		ExecutorService current = pool;
+		if (null == current) {
+			throw new RuntimeException("cannot execute - executor is stopped.");
+		}
+		try {
+			lanes.compute(key, (k, lane) -> {
+				if (null == lane) {
+					lane = new ArrayDeque<Runnable>();
+					current.execute(() -> drain(k)); // A new lane; nothing drains it yet.
+				}
+				lane.add(task);
+				return lane;
+			});
+		} catch (RejectedExecutionException e) {
+			throw new RuntimeException("cannot execute - executor is stopped.", e);
+		}
+	}
+
+	/**
+	 * @return the number of keys with tasks waiting or running.
+	 */
+	public int size() {
+		return lanes.size();
+	}
+
+	/**
+	 * Run the tasks of a lane until it is empty, and remove it. Runs on a thread of the pool.
+	 */
+	private void drain(K key) {
+		for (int i = 1; true; i++) {
+			Runnable task = next(key);
+			if (null == task) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// Reported as a dying thread would, but the lane goes on.
+				Thread t = Thread.currentThread();
+				t.getUncaughtExceptionHandler().uncaughtException(t, e);
+			}
+			ExecutorService current = pool;
+			if (0 == i % BATCH && null != current) {
+				try {
+					current.execute(() -> drain(key));
+					return;
+				} catch (RejectedExecutionException e) {
+					// Stopping; the lane is drained by this thread.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take the next task of a lane, removing the lane if it is empty.
+	 */
+	private Runnable next(K key) {
+		Runnable[] $ = new Runnable[1];
+		lanes.computeIfPresent(key, (k, lane) -> {
+			$[0] = lane.poll();
+			return null == $[0] ? null : lane;
+		});
+		return $[0];
+	}
+}
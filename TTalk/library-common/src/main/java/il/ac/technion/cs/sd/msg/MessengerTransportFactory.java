@@ -0,0 +1,49 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * A {@link TransportFactory} adapting the messaging library's {@link MessengerFactory} and {@link Messenger}.
+ */
+public class MessengerTransportFactory implements TransportFactory {
+	
+	private final MessengerFactory messengerFactory;
+	
+	/**
+	 * Create a transport factory starting messengers using a given messenger factory.
+	 * @param messengerFactory the factory to start messengers with.
+	 */
+	public MessengerTransportFactory(MessengerFactory messengerFactory) {
+		this.messengerFactory = messengerFactory;
+	}
+
+	@Override
+	public Transport start(String address, Consumer<String> consumer) throws IOException {
+		Messenger messenger;
+		try {
+			messenger = messengerFactory.start(address, consumer);
+		} catch (MessengerException e) {
+			throw new IOException(e);
+		}
+		return new Transport() {
+			@Override
+			public void send(String to, String payload) throws IOException {
+				try {
+					messenger.send(to, payload);
+				} catch (MessengerException e) {
+					throw new IOException(e);
+				}
+			}
+
+			@Override
+			public void kill() throws IOException {
+				try {
+					messenger.kill();
+				} catch (MessengerException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+	}
+}
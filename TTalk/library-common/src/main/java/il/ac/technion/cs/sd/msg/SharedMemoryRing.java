@@ -0,0 +1,222 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * A single-producer/single-consumer ring buffer of frames, kept in a memory-mapped file so that the producer and the
+ * consumer may live in different processes.
+ * 
+ * <p>
+ * File layout: a header holding the producer position, the consumer position and a "closed" flag (each on its own cache
+ * line), followed by the data area. Each frame is a 4-byte length followed by its UTF-8 bytes, padded to 4 bytes.
+ * A frame never wraps around the end of the data area; a {@link #PADDING} length marks the rest of the area as unused.
+ * Positions only grow, and are taken modulo the (power of 2) capacity.
+ * </p>
+ */
+class SharedMemoryRing {
+	
+	static final int DEFAULT_CAPACITY = 1 << 20;
+	
+	private static final int WRITE_POSITION_OFFSET = 0;
+	private static final int READ_POSITION_OFFSET = 64;
+	private static final int CLOSED_OFFSET = 128;
+	private static final int HEADER_SIZE = 192;
+	private static final int PADDING = -1;
+	
+	// Java 8 has no public memory fences, and the accesses to the mapped buffer are plain; Unsafe's fences order the
+	// frame bytes against the positions that publish and free them. Constant handles are inlined by the JIT.
+	private static final MethodHandle STORE_FENCE = fence("storeFence");
+	private static final MethodHandle LOAD_FENCE = fence("loadFence");
+	
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final int mask;
+	
+	private SharedMemoryRing(File file, MappedByteBuffer buffer, int capacity) {
+		this.file = file;
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+	}
+	
+	/**
+	 * Map a ring file, creating it if needed.
+	 * @param file the ring file.
+	 * @param capacity the size of the data area, in bytes; must be a power of 2.
+	 * @return the mapped ring.
+	 * @throws IOException if the file could not be mapped.
+	 */
+	static SharedMemoryRing map(File file, int capacity) throws IOException {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("ring capacity must be a power of 2");
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < HEADER_SIZE + capacity) {
+				raf.setLength(HEADER_SIZE + capacity);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+			return new SharedMemoryRing(file, buffer, capacity);
+		}
+	}
+	
+	/**
+	 * Check whether a file is a fully created ring file of a given capacity.
+	 */
+	static boolean isComplete(File file, int capacity) {
+		return file.length() >= HEADER_SIZE + capacity;
+	}
+	
+	File file() {
+		return file;
+	}
+	
+	/**
+	 * Write a frame into the ring, waiting while the ring is full. Only one thread may write to a ring at a time.
+	 * @param payload the frame to write.
+	 * @param wait the strategy to wait with while the ring is full.
+	 * @param timeoutInNanoseconds how long to wait for the ring to have room for the frame.
+	 * @return false if the consumer has closed the ring (the frame is not written); true otherwise.
+	 * @throws IOException if the frame can never fit in the ring, or if the ring stayed full for the whole timeout
+	 * (e.g. because its consumer is dead).
+	 */
+	boolean offer(String payload, WaitStrategy wait, long timeoutInNanoseconds) throws IOException {
+		byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+		int frameSize = align(4 + bytes.length);
+		if (frameSize > capacity / 2) {
+			throw new IOException("frame of " + bytes.length + " bytes is too large for a ring of " + capacity + " bytes");
+		}
+		long writePos = buffer.getLong(WRITE_POSITION_OFFSET);
+		int index = (int) (writePos & mask);
+		int tail = capacity - index;
+		int needed = tail < frameSize ? tail + frameSize : frameSize;
+		
+		long start = System.nanoTime();
+		for (int idleRounds = 0; writePos + needed - readPosition() > capacity; idleRounds++) {
+			if (isClosed()) {
+				return false;
+			}
+			if (System.nanoTime() - start > timeoutInNanoseconds) {
+				throw new IOException("ring " + file + " is full");
+			}
+			wait.idle(idleRounds);
+		}
+		if (isClosed()) {
+			return false;
+		}
+		
+		if (tail < frameSize) {
+			buffer.putInt(HEADER_SIZE + index, PADDING);
+			writePos += tail;
+			index = 0;
+		}
+		ByteBuffer frame = buffer.duplicate();
+		frame.position(HEADER_SIZE + index + 4);
+		frame.put(bytes);
+		buffer.putInt(HEADER_SIZE + index, bytes.length);
+		storeFence();
+		buffer.putLong(WRITE_POSITION_OFFSET, writePos + frameSize);
+		return true;
+	}
+	
+	/**
+	 * Read all the frames currently in the ring, passing each one to a consumer. Only one thread may read a ring at a time.
+	 * @param consumer the consumer of the frames.
+	 * @return the number of frames read.
+	 */
+	int drain(Consumer<String> consumer) {
+		long readPos = buffer.getLong(READ_POSITION_OFFSET);
+		long writePos = buffer.getLong(WRITE_POSITION_OFFSET);
+		loadFence(); // Read the frames only after reading the position that published them.
+		int frames = 0;
+		while (readPos < writePos) {
+			int index = (int) (readPos & mask);
+			int length = buffer.getInt(HEADER_SIZE + index);
+			if (length == PADDING) {
+				readPos += capacity - index;
+				continue;
+			}
+			byte[] bytes = new byte[length];
+			ByteBuffer frame = buffer.duplicate();
+			frame.position(HEADER_SIZE + index + 4);
+			frame.get(bytes);
+			readPos += align(4 + length);
+			storeFence(); // Read the frame before its space is freed.
+			// Free the space before handling, so the producer is not held back by a slow consumer.
+			buffer.putLong(READ_POSITION_OFFSET, readPos);
+			frames++;
+			consumer.accept(new String(bytes, StandardCharsets.UTF_8));
+		}
+		return frames;
+	}
+	
+	/**
+	 * Mark the ring as closed by its consumer; producers will stop writing to it.
+	 */
+	void close() {
+		buffer.putInt(CLOSED_OFFSET, 1);
+		storeFence();
+	}
+	
+	boolean isClosed() {
+		return buffer.getInt(CLOSED_OFFSET) != 0;
+	}
+	
+	private long readPosition() {
+		long $ = buffer.getLong(READ_POSITION_OFFSET);
+		loadFence();
+		return $;
+	}
+	
+	/**
+	 * Keep the accesses before the fence from being reordered with the stores after it.
+	 */
+	private static void storeFence() {
+		try {
+			STORE_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Keep the loads before the fence from being reordered with the accesses after it.
+	 */
+	private static void loadFence() {
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Look up a fence of sun.misc.Unsafe, bound to its instance.
+	 */
+	private static MethodHandle fence(String name) {
+		try {
+			Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+			Field instance = unsafe.getDeclaredField("theUnsafe");
+			instance.setAccessible(true);
+			return MethodHandles.lookup().findVirtual(unsafe, name, MethodType.methodType(void.class))
+					.bindTo(instance.get(null));
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static int align(int size) {
+		return (size + 3) & ~3;
+	}
+}
@@ -0,0 +1,281 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A {@link TransportFactory} for endpoints living in processes on the same host, exchanging frames through
+ * memory-mapped {@link SharedMemoryRing ring buffers} instead of sockets.
+ * 
+ * <p>
+ * Every endpoint owns an inbox directory, named after its address, under the factory's directory. Each sender writes
+ * to its own ring file inside the receiver's inbox, so every ring has a single producer and a single consumer:
+ * <br><code>&lt;directory&gt;/&lt;receiver address&gt;/&lt;sender address&gt;.ring</code><br>
+ * The receiving endpoint has one thread polling all of its rings, waiting by the factory's {@link WaitStrategy}
+ * when there is nothing to read. Unlike a {@link Messenger}, frames are never dropped while the receiver is alive.
+ * </p>
+ */
+public class SharedMemoryTransportFactory implements TransportFactory {
+	
+	private static final String RING_SUFFIX = ".ring";
+	private static final String LOCK_FILE = "endpoint.lock";
+	private static final long RESCAN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	// How long a send waits for room in a full ring before failing; a live receiver drains its rings much faster.
+	private static final long SEND_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	
+	private final File directory;
+	private final WaitStrategy waitStrategy;
+	private final int ringCapacity;
+	
+	/**
+	 * Create a factory for shared memory endpoints, with rings of the default capacity.
+	 * @param directory the directory holding the inboxes of all endpoints. Preferably on a memory-backed file system
+	 * (e.g. /dev/shm).
+	 * @param waitStrategy the strategy by which idle endpoints wait for frames.
+	 */
+	public SharedMemoryTransportFactory(File directory, WaitStrategy waitStrategy) {
+		this(directory, waitStrategy, SharedMemoryRing.DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Create a factory for shared memory endpoints.
+	 * @param directory the directory holding the inboxes of all endpoints.
+	 * @param waitStrategy the strategy by which idle endpoints wait for frames.
+	 * @param ringCapacity the size, in bytes, of each ring's data area; must be a power of 2.
+	 */
+	public SharedMemoryTransportFactory(File directory, WaitStrategy waitStrategy, int ringCapacity) {
+		if (null == directory || null == waitStrategy) {
+			throw new IllegalArgumentException("directory and wait strategy cannot be null");
+		}
+		if (Integer.bitCount(ringCapacity) != 1) {
+			throw new IllegalArgumentException("ring capacity must be a power of 2");
+		}
+		this.directory = directory;
+		this.waitStrategy = waitStrategy;
+		this.ringCapacity = ringCapacity;
+	}
+
+	@Override
+	public Transport start(String address, Consumer<String> consumer) throws IOException {
+		if (null == address || address.trim().isEmpty()) {
+			throw new IllegalArgumentException("address cannot be null or empty");
+		}
+		if (null == consumer) {
+			throw new IllegalArgumentException("consumer cannot be null");
+		}
+		Endpoint $ = new Endpoint(address, consumer);
+		$.open();
+		return $;
+	}
+	
+	private File inboxOf(String address) {
+		return new File(directory, fileNameOf(address));
+	}
+	
+	/**
+	 * Escape an address into a file name, keeping only characters which are safe on every file system.
+	 */
+	static String fileNameOf(String address) {
+		StringBuilder $ = new StringBuilder();
+		for (byte b : address.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xff);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+				$.append(c);
+			} else {
+				$.append('%').append(Character.forDigit((c >> 4) & 0xf, 16)).append(Character.forDigit(c & 0xf, 16));
+			}
+		}
+		return $.toString();
+	}
+	
+	private class Endpoint implements Transport {
+		
+		private final String address;
+		private final Consumer<String> consumer;
+		private final File inbox;
+		
+		// Rings this endpoint produces into, by receiver address. Guarded by itself; writing to a ring is guarded by
+		// the ring, so a full ring holds back only the sends to its receiver.
+		private final Map<String, SharedMemoryRing> outgoing = new HashMap<String, SharedMemoryRing>();
+		// Rings this endpoint consumes from. Accessed only by the poller thread.
+		private final List<SharedMemoryRing> incoming = new ArrayList<SharedMemoryRing>();
+		private final Set<File> incomingFiles = new HashSet<File>();
+		
+		private RandomAccessFile lockFile;
+		private FileLock lock;
+		private Thread poller;
+		private volatile boolean alive;
+		
+		Endpoint(String address, Consumer<String> consumer) {
+			this.address = address;
+			this.consumer = consumer;
+			this.inbox = inboxOf(address);
+		}
+		
+		void open() throws IOException {
+			if (!inbox.isDirectory() && !inbox.mkdirs()) {
+				throw new IOException("cannot create inbox " + inbox);
+			}
+			lockFile = new RandomAccessFile(new File(inbox, LOCK_FILE), "rw");
+			try {
+				lock = lockFile.getChannel().tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (null == lock) {
+				lockFile.close();
+				throw new IOException("address already in use: " + address);
+			}
+			discardStaleRings();
+			
+			alive = true;
+			poller = new Thread(() -> poll(), "shm-transport-" + address);
+			poller.setDaemon(true);
+			poller.start();
+		}
+		
+		/**
+		 * Frames left by senders to a previous endpoint with this address are lost, as with any dead endpoint.
+		 */
+		private void discardStaleRings() throws IOException {
+			File[] stale = inbox.listFiles((dir, name) -> name.endsWith(RING_SUFFIX));
+			if (null == stale) {
+				return;
+			}
+			for (File file : stale) {
+				if (SharedMemoryRing.isComplete(file, ringCapacity)) {
+					SharedMemoryRing.map(file, ringCapacity).close();
+				}
+				file.delete();
+			}
+		}
+		
+		private void poll() {
+			long lastScan = 0;
+			int idleRounds = 0;
+			while (alive) {
+				int frames = 0;
+				for (SharedMemoryRing ring : incoming) {
+					frames += ring.drain(frame -> deliver(frame));
+				}
+				if (frames > 0) {
+					idleRounds = 0;
+					continue;
+				}
+				long now = System.nanoTime();
+				if (now - lastScan > RESCAN_INTERVAL_NANOS) {
+					scanForNewRings();
+					lastScan = now;
+				}
+				waitStrategy.idle(idleRounds++);
+			}
+			for (SharedMemoryRing ring : incoming) {
+				ring.close();
+				ring.file().delete();
+			}
+			incoming.clear();
+			incomingFiles.clear();
+		}
+		
+		private void deliver(String frame) {
+			try {
+				consumer.accept(frame);
+			} catch (RuntimeException e) {
+				// Don't let a faulty frame kill the endpoint.
+				Thread t = Thread.currentThread();
+				t.getUncaughtExceptionHandler().uncaughtException(t, e);
+			}
+		}
+		
+		private void scanForNewRings() {
+			File[] files = inbox.listFiles((dir, name) -> name.endsWith(RING_SUFFIX));
+			if (null == files) {
+				return;
+			}
+			for (File file : files) {
+				if (incomingFiles.contains(file) || !SharedMemoryRing.isComplete(file, ringCapacity)) {
+					continue;
+				}
+				try {
+					incoming.add(SharedMemoryRing.map(file, ringCapacity));
+					incomingFiles.add(file);
+				} catch (IOException e) {
+					// The sender may still be creating it; try again on the next scan.
+				}
+			}
+		}
+
+		@Override
+		public void send(String to, String payload) throws IOException {
+			if (null == to || null == payload) {
+				throw new IllegalArgumentException("recipient and payload cannot be null");
+			}
+			if (!alive) {
+				throw new IOException("endpoint was killed");
+			}
+			SharedMemoryRing ring = ringTo(to);
+			synchronized (ring) {
+				if (ring.offer(payload, waitStrategy, SEND_TIMEOUT_NANOS)) {
+					return;
+				}
+			}
+			// The receiver was restarted while we were waiting; write to its new inbox instead.
+			ring = ringTo(to);
+			synchronized (ring) {
+				if (!ring.offer(payload, waitStrategy, SEND_TIMEOUT_NANOS)) {
+					throw new IOException("endpoint " + to + " closed its inbox");
+				}
+			}
+		}
+		
+		private SharedMemoryRing ringTo(String to) throws IOException {
+			synchronized (outgoing) {
+				SharedMemoryRing $ = outgoing.get(to);
+				return null != $ && !$.isClosed() ? $ : openRingTo(to);
+			}
+		}
+		
+		private SharedMemoryRing openRingTo(String to) throws IOException {
+			File receiverInbox = inboxOf(to);
+			if (!receiverInbox.isDirectory() && !receiverInbox.mkdirs()) {
+				throw new IOException("cannot create inbox " + receiverInbox);
+			}
+			SharedMemoryRing $ = SharedMemoryRing.map(new File(receiverInbox, fileNameOf(address) + RING_SUFFIX), ringCapacity);
+			outgoing.put(to, $);
+			return $;
+		}
+
+		@Override
+		public void kill() throws IOException {
+			if (!alive) {
+				throw new IOException("endpoint was already killed");
+			}
+			alive = false;
+			if (Thread.currentThread() != poller) {
+				try {
+					poller.join();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			synchronized (outgoing) {
+				outgoing.clear();
+			}
+			lock.release();
+			lockFile.close();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.IOException;
+
+/**
+ * A started, addressable endpoint of some low-level transport, used by a {@link Connection} for sending raw frames.
+ * Incoming frames are delivered to the consumer supplied to {@link TransportFactory#start}.
+ * 
+ * <p>
+ * A transport is not required to be reliable; reliability (ACKs and re-sending) is handled by the {@link Connection}
+ * above it. Empty frames are used as ACKs and should be delivered whenever possible.
+ * </p>
+ */
+public interface Transport {
+	/**
+	 * Send a raw frame to another endpoint.
+	 * @param to the address of the receiving endpoint.
+	 * @param payload the frame to send.
+	 * @throws IOException if the frame could not be handed to the transport.
+	 */
+	void send(String to, String payload) throws IOException;
+	
+	/**
+	 * Kill this endpoint, freeing its address and any resources (threads, files, sockets) it uses.
+	 * @throws IOException if the endpoint could not be killed, e.g. it was already killed.
+	 */
+	void kill() throws IOException;
+}
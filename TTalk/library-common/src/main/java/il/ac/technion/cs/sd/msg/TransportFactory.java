@@ -0,0 +1,55 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * A factory for starting {@link Transport} endpoints.
+ * 
+ * <p>
+ * The transport used by connections created without an explicit factory is chosen by {@link #fromSystemProperties()},
+ * so switching transports requires no change to {@link Connection} users:
+ * <ul>
+ * <li><code>-Dttalk.transport=messenger</code> (default) - the messaging library's {@link Messenger}.</li>
+ * <li><code>-Dttalk.transport=shm</code> - memory-mapped ring buffers for processes on the same host, see
+ * {@link SharedMemoryTransportFactory}. The ring directory is set by <code>ttalk.transport.shm.dir</code>
+ * and the wait strategy by <code>ttalk.transport.shm.wait</code> (<code>spin</code> or <code>park</code>).</li>
+ * </ul>
+ * </p>
+ */
+public interface TransportFactory {
+	
+	public static final String TRANSPORT_PROPERTY = "ttalk.transport";
+	public static final String SHM_DIR_PROPERTY = "ttalk.transport.shm.dir";
+	public static final String SHM_WAIT_PROPERTY = "ttalk.transport.shm.wait";
+	
+	/**
+	 * Start a new endpoint listening on the given address.
+	 * @param address the address of the new endpoint. 
+	 * @param consumer the consumer of all incoming frames.
+	 * @return the started endpoint.
+	 * @throws IOException if the endpoint could not be started, e.g. the address is already in use.
+	 */
+	Transport start(String address, Consumer<String> consumer) throws IOException;
+	
+	/**
+	 * Get the transport factory configured by the system properties (see class documentation).
+	 * @return the configured transport factory.
+	 */
+	public static TransportFactory fromSystemProperties() {
+		String transport = System.getProperty(TRANSPORT_PROPERTY, "messenger");
+		switch (transport) {
+		case "messenger":
+			return new MessengerTransportFactory(new MessengerFactory());
+		case "shm":
+			File dir = new File(System.getProperty(SHM_DIR_PROPERTY,
+					new File(System.getProperty("java.io.tmpdir"), "ttalk-shm").getPath()));
+			WaitStrategy wait = "park".equals(System.getProperty(SHM_WAIT_PROPERTY, "park")) ?
+					WaitStrategy.PARK : WaitStrategy.BUSY_SPIN;
+			return new SharedMemoryTransportFactory(dir, wait);
+		default:
+			throw new IllegalArgumentException("unknown transport: " + transport);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package il.ac.technion.cs.sd.msg;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread polling shared memory waits when there is nothing to do.
+ */
+public enum WaitStrategy {
+	/**
+	 * Keep spinning on the CPU. Lowest latency, but burns a core per waiting thread.
+	 */
+	BUSY_SPIN {
+		@Override
+		void idle(int idleRounds) {
+			// Spin.
+		}
+	},
+	
+	/**
+	 * Spin for a short while, then park for increasingly long periods (up to {@link #MAX_PARK_NANOS}).
+	 */
+	PARK {
+		@Override
+		void idle(int idleRounds) {
+			if (idleRounds < SPIN_ROUNDS) {
+				return;
+			}
+			if (idleRounds < SPIN_ROUNDS + YIELD_ROUNDS) {
+				Thread.yield();
+				return;
+			}
+			int shift = Math.min(idleRounds - SPIN_ROUNDS - YIELD_ROUNDS, 10);
+			LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << shift, MAX_PARK_NANOS));
+		}
+	};
+	
+	static final int SPIN_ROUNDS = 100;
+	static final int YIELD_ROUNDS = 100;
+	static final long MIN_PARK_NANOS = 1_000L;
+	static final long MAX_PARK_NANOS = 1_000_000L;
+	
+	/**
+	 * Wait once, after finding nothing to do.
+	 * @param idleRounds the number of consecutive rounds with nothing to do so far.
+	 */
+	abstract void idle(int idleRounds);
+}
@@ -0,0 +1,128 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionMultiplexerTest {
+	
+	private TransportFactory factory;
+	private ConnectionMultiplexer<String> mux;
+	private Connection<String> server;
+	private BlockingQueue<Envelope<String>> serverReceived = new LinkedBlockingQueue<Envelope<String>>();
+	private Map<String, BlockingQueue<Envelope<String>>> received = new HashMap<String, BlockingQueue<Envelope<String>>>();
+	
+	@Before
+	public void setUp() throws Exception {
+		factory = new SharedMemoryTransportFactory(Files.createTempDirectory("mux-test").toFile(), WaitStrategy.PARK);
+		server = new Connection<String>("server", new XStreamCodec<Envelope<String>>(), factory);
+		server.start(env -> serverReceived.add(env));
+		mux = new ConnectionMultiplexer<String>("mux", new XStreamCodec<Envelope<String>>(), factory);
+		mux.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mux.stop();
+		server.stop();
+	}
+	
+	private Connection<String> buildLogical(String address) {
+		Connection<String> $ = mux.connection(address);
+		received.put(address, new LinkedBlockingQueue<Envelope<String>>());
+		$.start(env -> received.get(address).add(env));
+		return $;
+	}
+	
+	@Test(timeout = 5000)
+	public void logicalConnectionsSendWithTheirOwnAddress() throws InterruptedException {
+		buildLogical("user1").send("server", "hi");
+		buildLogical("user2").send("server", "hello");
+		
+		assertEquals(Envelope.<String>wrap("user1", "server", "hi"), serverReceived.take());
+		assertEquals(Envelope.<String>wrap("user2", "server", "hello"), serverReceived.take());
+		assertEquals(2, mux.size());
+	}
+	
+	@Test(timeout = 5000)
+	public void repliesAreDemultiplexedByDestination() throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			buildLogical("user" + i).send("server", "hi");
+			serverReceived.take();
+		}
+		server.send("user42", "for 42");
+		server.send("user7", "for 7");
+		
+		assertEquals(Envelope.<String>wrap("server", "user42", "for 42"), received.get("user42").take());
+		assertEquals(Envelope.<String>wrap("server", "user7", "for 7"), received.get("user7").take());
+		assertTrue(received.get("user1").isEmpty());
+	}
+	
+	@Test(timeout = 5000)
+	public void stoppedLogicalConnectionsCannotSend() throws InterruptedException {
+		Connection<String> user = buildLogical("user");
+		user.send("server", "hi");
+		serverReceived.take();
+		user.stop();
+		assertEquals(0, mux.size());
+		try {
+			user.send("server", "lost");
+			fail();
+		} catch (RuntimeException e) {
+			// Expected.
+		}
+		assertNull(serverReceived.poll(100, TimeUnit.MILLISECONDS));
+	}
+	
+	@Test(timeout = 5000)
+	public void aSlowHandlerHoldsBackOnlyItsOwnConnection() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		Connection<String> slow = mux.connection("slow");
+		slow.start(env -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		slow.send("server", "hi");
+		buildLogical("fast").send("server", "hi");
+		serverReceived.take();
+		serverReceived.take();
+		server.send("slow", "blocks");
+		server.send("fast", "passes");
+		
+		assertEquals(Envelope.<String>wrap("server", "fast", "passes"), received.get("fast").take());
+		release.countDown();
+	}
+	
+	@Test(timeout = 5000)
+	public void anUnresponsiveDestinationHoldsBackOnlySendsToItself() throws InterruptedException {
+		Connection<String> stuck = buildLogical("stuck");
+		new Thread(() -> stuck.send("nobody", "never ACKed")).start();
+		Thread.sleep(100);
+		buildLogical("user").send("server", "hi");
+		
+		assertEquals(Envelope.<String>wrap("user", "server", "hi"), serverReceived.take());
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void cannotSendBeforeStart() {
+		mux.connection("user").send("server", "hi");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void logicalAddressMustDifferFromEndpoint() {
+		mux.connection("mux");
+	}
+}
@@ -2,8 +2,11 @@ package il.ac.technion.cs.sd.msg;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import org.junit.After;
@@ -21,9 +24,10 @@ public class ConnectionUnitTest {
 	Messenger messenger;
 	Consumer<String> consumer;
 	Codec<Envelope<String>> codec;
+	private long lastSeq = 0;
 	
 	private void sendToConnection(Envelope<String> toSend) {
-		consumer.accept(codec.encode(toSend));
+		consumer.accept(Frame.data(1L, ++lastSeq, toSend.from, toSend.from, toSend.to, codec.encode(toSend)));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -32,14 +36,15 @@ public class ConnectionUnitTest {
 		// Create a messenger that sometimes returns an ack.
 		messenger = Mockito.mock(Messenger.class);
 		Mockito.doAnswer(invocation -> {
-			if (((String)invocation.getArguments()[1]).equals("")) {
+			Frame frame = Frame.parse((String)invocation.getArguments()[1]);
+			if (frame.kind == Frame.ACK) {
 				// Never return acks to acks.
 				return null;
 			}
 			
 			if (Math.random() < 0.3) {
 				Thread.sleep(Connection.ACK_TIMEOUT_IN_MILLISECONDS / 2);
-				consumer.accept("");
+				consumer.accept(Frame.ack(frame.epoch, frame.seq, 0, 1L));
 			}
 			return null;
 		}).when(messenger).send(Mockito.anyString(), Mockito.any());
@@ -78,19 +83,31 @@ public class ConnectionUnitTest {
 		assertEquals(clientAddress, connection.myAddress());
 	}
 
+	@Test(expected = IllegalArgumentException.class)
+	public void addressesWithColonsAreRejected() {
+		new Connection<String>("client:1", codec, new MessengerTransportFactory(Mockito.mock(MessengerFactory.class)));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void addressesWithLineBreaksAreRejected() {
+		connection.send("aFriend\nand another", "Yoyoyoyoyo");
+	}
+	
 	@Test
 	public void testSend() throws MessengerException, InterruptedException {
 		connection.send("aFriend", "Yoyoyoyoyo");
 		// It may take time until the message is actually invoked.
 		Thread.sleep(10);
-		Mockito.verify(messenger, Mockito.atLeastOnce()).send("aFriend", codec.encode(Envelope.<String>wrap(connection.myAddress(), "aFriend", "Yoyoyoyoyo")));
+		Mockito.verify(messenger, Mockito.atLeastOnce()).send(Mockito.eq("aFriend"), Mockito.endsWith(
+				"\n" + clientAddress + "\naFriend\n" + codec.encode(Envelope.<String>unaddressed("Yoyoyoyoyo"))));
 	}
 	
 	@Test(timeout=1000)
 	public void verifyAllMessagesAreSentBeforeConnectionStops() throws MessengerException, InterruptedException {
 		connection.send("aFriend", "Yoyoyoyoyo");
 		connection.stop();
-		Mockito.verify(messenger, Mockito.atLeastOnce()).send("aFriend", codec.encode(Envelope.<String>wrap(connection.myAddress(), "aFriend", "Yoyoyoyoyo")));
+		Mockito.verify(messenger, Mockito.atLeastOnce()).send(Mockito.eq("aFriend"), Mockito.endsWith(
+				"\n" + clientAddress + "\naFriend\n" + codec.encode(Envelope.<String>unaddressed("Yoyoyoyoyo"))));
 	}
 
 	@Test
@@ -123,4 +140,162 @@ public class ConnectionUnitTest {
 		assertEquals(env.from, received.from);
 		assertEquals(env.content, received.content);
 	}
+	
+	@Test
+	public void retransmittedFramesAreAckedButHandledOnce() throws MessengerException, InterruptedException {
+		String frame = Frame.data(1L, 1L, "addr", "addr", clientAddress, codec.encode(Envelope.<String>wrap("addr", clientAddress, "Once")));
+		consumer.accept(frame);
+		consumer.accept(frame);
+		
+		Thread.sleep(50L); // give chance to handle incoming messages
+		
+		assertEquals("Once", receivedEnvelopes.take().content);
+		assertTrue(receivedEnvelopes.isEmpty());
+		Mockito.verify(messenger, Mockito.times(2)).send("addr", Frame.ack(1L, 1L, 0, connection.epoch()));
+	}
+	
+	@Test
+	public void framesOfDeadSessionsAreDropped() throws MessengerException, InterruptedException {
+		consumer.accept(Frame.data(2L, 1L, "addr", "addr", clientAddress, codec.encode(Envelope.<String>wrap("addr", clientAddress, "New"))));
+		consumer.accept(Frame.data(1L, 7L, "addr", "addr", clientAddress, codec.encode(Envelope.<String>wrap("addr", clientAddress, "Old"))));
+		
+		Thread.sleep(50L); // give chance to handle incoming messages
+		
+		assertEquals("New", receivedEnvelopes.take().content);
+		assertTrue(receivedEnvelopes.isEmpty());
+		Mockito.verify(messenger, Mockito.never()).send("addr", Frame.ack(1L, 7L, 0, connection.epoch()));
+		Mockito.verify(messenger).send("addr", Frame.reset(1L, 7L, 2L)); // In case the sender is alive and went back.
+	}
+	
+	@Test
+	public void newSessionsAreAdopted() throws MessengerException, InterruptedException {
+		consumer.accept(Frame.data(1L, 7L, "addr", "addr", clientAddress, codec.encode(Envelope.<String>wrap("addr", clientAddress, "Before restart"))));
+		consumer.accept(Frame.data(2L, 1L, "addr", "addr", clientAddress, codec.encode(Envelope.<String>wrap("addr", clientAddress, "After restart"))));
+		
+		assertEquals("Before restart", receivedEnvelopes.take().content);
+		assertEquals("After restart", receivedEnvelopes.take().content);
+	}
+	
+	@Test
+	public void aliasedFramesAreExpanded() throws MessengerException, InterruptedException {
+		consumer.accept(Frame.data(1L, 1L, "addr", "addr", clientAddress, codec.encode(Envelope.<String>unaddressed("Defined"))));
+		consumer.accept(Frame.data(1L, 2L, 0, connection.epoch(), null, 0, null, 1, null, codec.encode(Envelope.<String>unaddressed("Aliased"))));
+		
+		assertEquals("Defined", receivedEnvelopes.take().content);
+		Envelope<String> received = receivedEnvelopes.take();
+		assertEquals("Aliased", received.content);
+		assertEquals("addr", received.from);
+		assertEquals(clientAddress, received.to);
+	}
+	
+	@Test
+	public void idsOfEarlierEpochsAreNotTrusted() throws MessengerException, InterruptedException {
+		consumer.accept(Frame.data(1L, 1L, "addr", "addr", clientAddress, codec.encode(Envelope.<String>unaddressed("Defined"))));
+		assertEquals("Defined", receivedEnvelopes.take().content);
+		long oldEpoch = connection.epoch();
+		connection.stop();
+		connection.start(env->receivedEnvelopes.add(env));
+		assertNotEquals(oldEpoch, connection.epoch());
+		
+		consumer.accept(Frame.data(1L, 2L, 0, oldEpoch, null, 0, null, 1, null, codec.encode(Envelope.<String>unaddressed("Stale ID"))));
+		
+		Thread.sleep(50L); // give chance to handle incoming messages
+		
+		assertTrue(receivedEnvelopes.isEmpty());
+		Mockito.verify(messenger, Mockito.never()).send("addr", Frame.ack(1L, 2L, 0, oldEpoch));
+		Mockito.verify(messenger, Mockito.never()).send("addr", Frame.ack(1L, 2L, 0, connection.epoch()));
+	}
+	
+	@Test
+	public void framesWithUnknownIdsAreNotHandled()throws MessengerException, InterruptedException {
+		consumer.accept(Frame.data(1L, 1L, 0, connection.epoch(), null, 0, null, 1, null, codec.encode(Envelope.<String>unaddressed("Unknown peer"))));
+		consumer.accept(Frame.data(1L, 1L, Frame.NONE, 0, "addr", 0, "addr", 2, null, codec.encode(Envelope.<String>unaddressed("Unknown alias"))));
+		
+		Thread.sleep(50L); // give chance to handle incoming messages
+		
+		assertTrue(receivedEnvelopes.isEmpty());
+		Mockito.verify(messenger, Mockito.never()).send("addr", Frame.ack(1L, 1L, 0, connection.epoch()));
+	}
+	
+	@Test
+	public void beatsAreSentToIdleEndpoints() throws MessengerException, InterruptedException {
+		connection.stop();
+		connection.setHeartbeats(new Heartbeats(10L, 3));
+		connection.beatTo("aServer");
+		connection.start(env->receivedEnvelopes.add(env));
+		
+		Thread.sleep(100L);
+		
+		Mockito.verify(messenger, Mockito.atLeast(2)).send(Mockito.eq("aServer"), Mockito.startsWith("~"));
+	}
+	
+	@Test
+	public void silentEndpointsAreDeclaredDead() throws InterruptedException {
+		BlockingQueue<String> dead = new LinkedBlockingQueue<>();
+		connection.stop();
+		connection.setHeartbeats(new Heartbeats(10L, 3));
+		connection.watch(dead::add);
+		connection.start(env->receivedEnvelopes.add(env));
+		
+		for (int i = 0; i < 10; ++i) {
+			consumer.accept(Frame.beat(1L, Frame.NONE, 0, "addr", null));
+			Thread.sleep(10L);
+		}
+		assertTrue(dead.isEmpty());
+		
+		assertEquals("addr", dead.poll(1, TimeUnit.SECONDS));
+		Thread.sleep(50L);
+		assertTrue(dead.isEmpty()); // Declared only once.
+	}
+	
+	@Test
+	public void addressesSharingAnEndpointAreWatchedByThemselves() throws InterruptedException {
+		BlockingQueue<String> dead = new LinkedBlockingQueue<>();
+		connection.stop();
+		connection.setHeartbeats(new Heartbeats(10L, 3));
+		connection.watch(dead::add);
+		connection.start(env->receivedEnvelopes.add(env));
+		
+		consumer.accept(Frame.beat(1L, Frame.NONE, 0, "mux", "user1"));
+		for (int i = 0; i < 10; ++i) {
+			consumer.accept(Frame.beat(1L, Frame.NONE, 0, "mux", "user2"));
+			Thread.sleep(10L);
+		}
+		
+		assertEquals("user1", dead.poll(1, TimeUnit.SECONDS));
+		assertTrue(dead.isEmpty());
+	}
+	
+	@Test
+	public void acksAndResetsTheTransportDoesNotTakeAreLost() throws InterruptedException {
+		// A transport taking nothing, as a shared memory one whose rings are full.
+		AtomicReference<Consumer<String>> incoming = new AtomicReference<>();
+		Connection<String> lossy = new Connection<String>("lossy", codec, (address, c) -> {
+			incoming.set(c);
+			return new Transport() {
+				@Override
+				public void send(String to, String payload) throws IOException {
+					throw new IOException("ring is full");
+				}
+				
+				@Override
+				public void kill() {}
+			};
+		});
+		lossy.start(env->receivedEnvelopes.add(env));
+		try {
+			// Each would be ACKed, and the old one reset.
+			incoming.get().accept(Frame.data(2L, 1L, "addr", "addr", "lossy",
+					codec.encode(Envelope.<String>wrap("addr", "lossy", "New"))));
+			incoming.get().accept(Frame.data(1L, 7L, "addr", "addr", "lossy",
+					codec.encode(Envelope.<String>wrap("addr", "lossy", "Old"))));
+			incoming.get().accept(Frame.data(2L, 2L, "addr", "addr", "lossy",
+					codec.encode(Envelope.<String>wrap("addr", "lossy", "Later"))));
+			
+			assertEquals("New", receivedEnvelopes.take().content);
+			assertEquals("Later", receivedEnvelopes.take().content);
+		} finally {
+			lossy.stop();
+		}
+	}
 }
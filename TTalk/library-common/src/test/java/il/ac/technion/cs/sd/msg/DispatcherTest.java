@@ -3,6 +3,7 @@ package il.ac.technion.cs.sd.msg;
 import static org.junit.Assert.*;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.junit.After;
@@ -67,6 +68,33 @@ public class DispatcherTest {
 		assertEquals("fourth", handledStrings.take());
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void sojournTimeAndBacklogAreMeasured() throws InterruptedException {
+		dispatcher.stop();
+		BlockingQueue<Long> sojourns = new LinkedBlockingQueue<Long>();
+		BlockingQueue<Integer> backlogs = new LinkedBlockingQueue<Integer>();
+		Dispatcher<String>[] self = new Dispatcher[1];
+		CountDownLatch enqueued = new CountDownLatch(1);
+		dispatcher = self[0] = new Dispatcher<String>(s -> {
+			try {
+				enqueued.await();
+				sojourns.add(self[0].sojournInNanoseconds());
+				backlogs.add(self[0].backlog());
+				Thread.sleep(50);
+			} catch (InterruptedException e) {}
+		});
+		dispatcher.start();
+		
+		dispatcher.enqueue("first");
+		dispatcher.enqueue("second"); // waits for first to be handled.
+		enqueued.countDown();
+		sojourns.take();
+		assertEquals(1, (int)backlogs.take());
+		assertTrue(sojourns.take() >= 40 * 1000000L);
+		assertEquals(0, (int)backlogs.take());
+	}
+
 	@Test(expected=IllegalArgumentException.class)
 	public void checkExceptionWhenArgumentIsNull() {
 		new Dispatcher<Integer>(null);
@@ -0,0 +1,93 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyedExecutorTest {
+
+	private KeyedExecutor<String> executor;
+	private BlockingQueue<String> ran = new LinkedBlockingQueue<String>();
+
+	@Before
+	public void setUp() throws Exception {
+		executor = new KeyedExecutor<String>("test", 2);
+		executor.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.stop();
+	}
+
+	@Test(timeout = 5000)
+	public void tasksOfAKeyRunInOrder() throws InterruptedException {
+		for (int i = 0; i < 200; i++) {
+			String s = "" + i;
+			executor.execute("key", () -> ran.add(s));
+		}
+		for (int i = 0; i < 200; i++) {
+			assertEquals("" + i, ran.take());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void aSlowTaskHoldsBackOnlyItsOwnKey() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		executor.execute("slow", () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		executor.execute("slow", () -> ran.add("slow"));
+		executor.execute("fast", () -> ran.add("fast"));
+
+		assertEquals("fast", ran.take());
+		assertNull(ran.poll(100, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertEquals("slow", ran.take());
+	}
+
+	@Test(timeout = 5000)
+	public void aFailingTaskDoesNotStopItsKey() throws InterruptedException {
+		executor.execute("key", () -> {
+			throw new RuntimeException("expected");
+		});
+		executor.execute("key", () -> ran.add("after"));
+
+		assertEquals("after", ran.take());
+	}
+
+	@Test(timeout = 5000)
+	public void stopRunsTheTasksAlreadyAdded() throws InterruptedException {
+		for (int i = 0; i < 10; i++) {
+			executor.execute("key" + i % 3, () -> {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				ran.add("done");
+			});
+		}
+		executor.stop();
+
+		assertEquals(10, ran.size());
+		assertEquals(0, executor.size());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void cannotExecuteWhenStopped() {
+		executor.stop();
+		executor.execute("key", () -> {});
+	}
+}
@@ -0,0 +1,169 @@
+package il.ac.technion.cs.sd.msg;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+public class SharedMemoryTransportTest {
+	
+	private final Collection<Transport> transports = new ArrayList<>();
+	private final BlockingQueue<String> incomingMessages = new LinkedBlockingQueue<>();
+	private File directory;
+	private TransportFactory factory;
+	
+	@Rule
+	public Timeout globaltime = Timeout.seconds(5);
+	
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("shm-transport-test").toFile();
+		factory = new SharedMemoryTransportFactory(directory, WaitStrategy.PARK, 1 << 12);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		for (Transport t : transports) {
+			try {
+				t.kill();
+			} catch (IOException e) {/* do nothing */}
+		}
+	}
+	
+	private Transport startAndAddToList(String address) throws Exception {
+		return startAndAddToList(address, x -> incomingMessages.add(x));
+	}
+	
+	private Transport startAndAddToList(String address, Consumer<String> c) throws Exception {
+		Transport $ = factory.start(address, c);
+		transports.add($);
+		return $;
+	}
+	
+	@Test
+	public void shouldReceiveASentMessage() throws Exception {
+		Transport a = startAndAddToList("a");
+		startAndAddToList("b");
+		a.send("b", "hello");
+		assertEquals("hello", incomingMessages.take());
+	}
+	
+	@Test
+	public void emptyMessagesArrive() throws Exception {
+		Transport a = startAndAddToList("a");
+		startAndAddToList("b");
+		a.send("b", "");
+		assertEquals("", incomingMessages.take());
+	}
+	
+	@Test
+	public void messagesArriveInOrderAcrossWrapAround() throws Exception {
+		Transport a = startAndAddToList("a");
+		startAndAddToList("b");
+		// The ring holds 4KB, so this wraps around it many times.
+		for (int i = 0; i < 1000; i++) {
+			a.send("b", "Message #" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("Message #" + i, incomingMessages.take());
+		}
+	}
+	
+	@Test
+	public void addressesAreEscaped() throws Exception {
+		Transport a = startAndAddToList("../a b");
+		startAndAddToList("b/c");
+		a.send("b/c", "hello");
+		assertEquals("hello", incomingMessages.take());
+		assertTrue(new File(directory, SharedMemoryTransportFactory.fileNameOf("b/c")).isDirectory());
+	}
+	
+	@Test(expected = IOException.class)
+	public void shouldThrowAnExceptionOnTwoIdenticalNames() throws Exception {
+		startAndAddToList("a");
+		startAndAddToList("a");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldThrowAnExceptionOnEmptyAddress() throws Exception {
+		startAndAddToList("  ");
+	}
+	
+	@Test(expected = IOException.class)
+	public void cannotBeKilledTwice() throws Exception {
+		Transport $ = factory.start("a", x -> {});
+		$.kill();
+		$.kill();
+	}
+	
+	@Test(expected = IOException.class)
+	public void tooLargeFramesAreRejected() throws Exception {
+		Transport a = startAndAddToList("a");
+		startAndAddToList("b");
+		a.send("b", new String(new char[1 << 12]));
+	}
+	
+	@Test
+	public void sendsToAStuckReceiverFailOnceItsRingIsFull() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Transport a = startAndAddToList("a");
+		startAndAddToList("b", x -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		startAndAddToList("c");
+		try {
+			// The ring holds 4KB, so it fills up long before this ends.
+			for (int i = 0; i < 1000; i++) {
+				a.send("b", "Message #" + i);
+			}
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		a.send("c", "not held back");
+		assertEquals("not held back", incomingMessages.take());
+		release.countDown();
+	}
+	
+	@Test
+	public void canCreateNewObjectWithSameAddressAfterKilled() throws Exception {
+		Transport a = startAndAddToList("a");
+		factory.start("b", x -> {}).kill();
+		startAndAddToList("b");
+		a.send("b", "hello again");
+		assertEquals("hello again", incomingMessages.take());
+	}
+	
+	@Test
+	public void connectionsWorkOverSharedMemory() throws Exception {
+		BlockingQueue<Envelope<String>> received = new LinkedBlockingQueue<>();
+		Connection<String> c1 = new Connection<String>("c1", new XStreamCodec<Envelope<String>>(), factory);
+		Connection<String> c2 = new Connection<String>("c2", new XStreamCodec<Envelope<String>>(), factory);
+		c1.start(env -> {});
+		c2.start(env -> received.add(env));
+		try {
+			c1.send("c2", "hello");
+			assertEquals(Envelope.<String>wrap("c1", "c2", "hello"), received.take());
+		} finally {
+			c1.stop();
+			c2.stop();
+		}
+	}
+}
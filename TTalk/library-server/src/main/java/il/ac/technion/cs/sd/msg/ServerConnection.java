@@ -1,6 +1,7 @@
 package il.ac.technion.cs.sd.msg;
 
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * A ServerConnection manages receiving and sending custom messages, and allow user-defined handling of incoming messages on the server-side.
@@ -34,6 +35,7 @@ public class ServerConnection<Message> {
 
 	// INSTANCE VARIABLES
 	private final Connection<Message> conn;
+	private BiConsumer<String, Message> onUndelivered = null;
 	
 
 	/**
@@ -141,7 +143,44 @@ public class ServerConnection<Message> {
 
 	
 	/**
-	 * Send out a message to a specific (client's) address. This is a <b>non-blocking</b> call.
+	 * Watch the clients beating to this server, if {@link Heartbeats} are set. Should be called before {@link #start}.
+	 * 
+	 * <p>
+	 * A client which has not been heard from for the set number of heartbeat intervals is declared dead, and messages
+	 * to it are no longer re-sent until it is heard from again; each message given up is passed back to the application.
+	 * </p>
+	 * 
+	 * @param onDead - Called with the address of each client declared dead.
+	 * @param onUndelivered - Called with the destination and contents of each message given up. 
+	 */
+	public void watch(Consumer<String> onDead, BiConsumer<String, Message> onUndelivered) {
+		if (null == onDead || null == onUndelivered) {
+			throw new IllegalArgumentException("handlers cannot be null");
+		}
+		
+		this.onUndelivered = onUndelivered;
+		this.conn.watch(onDead);
+	}
+	
+	/**
+	 * Beat to another server, e.g. of the same cluster, while started, if {@link Heartbeats} are set, so that a server
+	 * watching it can tell when this server is gone. Should be called before {@link #start}.
+	 * 
+	 * @param server - Address of the other server.
+	 */
+	public void beatTo(String server) {
+		if (null == server) {
+			throw new IllegalArgumentException("server cannot be null");
+		}
+		
+		this.conn.beatTo(server);
+	}
+	
+	/**
+	 * Send out a message to a specific (client's) address. This is a <b>non-blocking</b> call: the message is sent off
+	 * the calling thread, after the messages sent to the same address before it, so a slow or dead client holds back
+	 * neither the caller nor the messages to other clients. A message given up is passed to the application as set by
+	 * {@link #watch}, on a sending thread.
 	 * 
 	 * @param to - Address to which message will be sent.
 	 * @param content - User-defined message object to be sent.
@@ -151,7 +190,29 @@ public class ServerConnection<Message> {
 			throw new RuntimeException("server will not send empty messages");
 		}
 		
-		conn.send(to, content); // contents and connection state validation is done inside this.conn
+		// contents and connection state validation is done inside this.conn
+		conn.post(to, content, delivered -> {
+			BiConsumer<String, Message> current = onUndelivered;
+			if (!delivered && null != current) {
+				current.accept(to, content);
+			}
+		});
+	}
+	
+	/**
+	 * Send out a message as {@link #send} does, waiting until it is delivered or given up. This is a <b>blocking</b>
+	 * call; a message given up is left to the caller, rather than passed to the application as set by {@link #watch}.
+	 * 
+	 * @param to - Address to which message will be sent.
+	 * @param content - User-defined message object to be sent.
+	 * @return true if the message was delivered; false if it was given up, as its destination was declared dead.
+	 */
+	public boolean deliver(String to, Message content) {
+		if ("".equals(content)) {
+			throw new RuntimeException("server will not send empty messages");
+		}
+		
+		return conn.deliver(to, content);
 	}
 	
 	/**
@@ -163,4 +224,23 @@ public class ServerConnection<Message> {
 		return this.conn.myAddress();
 	}
 	
+	/**
+	 * Get the number of incoming messages waiting to be handled, e.g. to shed load as they queue up.
+	 * 
+	 * @return the receive backlog; 0 if this ServerConnection is stopped.
+	 */
+	public int receiveBacklog() {
+		return this.conn.receiveBacklog();
+	}
+	
+	/**
+	 * Get the time the incoming message being handled, or the last one handled, waited to be handled. Read by the
+	 * handler, it is the queueing delay of the message it handles.
+	 * 
+	 * @return the sojourn time of incoming messages, in nanoseconds; 0 if this ServerConnection is stopped.
+	 */
+	public long receiveSojournInNanoseconds() {
+		return this.conn.receiveSojournInNanoseconds();
+	}
+	
 }
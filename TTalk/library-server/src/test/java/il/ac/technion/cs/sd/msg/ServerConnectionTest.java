@@ -23,13 +23,14 @@ public class ServerConnectionTest {
 	private Messenger m;
 	Codec<Envelope<String>> codec;
 	Consumer<String> consumer;
+	private long lastSeq = 0;
 	Map<String, String> receivedEnvelopes = new HashMap<String, String>();
 
 	private BiConsumer<String, String> defaultBiConsumer = (addr, msg) -> receivedEnvelopes.put(addr, msg);
 //	private BiConsumer<String, String> printerBiConsumer = (addr, msg) -> System.out.println("Connection got \"" + msg + "\" from " + addr);
 	
 	private void sendToConnection(Envelope<String> toSend) throws InterruptedException {
-		consumer.accept(codec.encode(toSend));
+		consumer.accept(Frame.data(1L, ++lastSeq, toSend.from, toSend.from, toSend.to, codec.encode(toSend)));
 		Thread.sleep(2L); // give connection threads chance to do their thing
 	}
 	